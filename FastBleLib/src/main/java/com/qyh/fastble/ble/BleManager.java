@@ -1,6 +1,7 @@
 package com.qyh.fastble.ble;
 
 import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGattCallback;
 import android.content.Context;
 import android.content.Intent;
 import android.content.ServiceConnection;
@@ -8,29 +9,62 @@ import android.content.pm.PackageManager;
 import android.util.Log;
 
 import com.qyh.fastble.ble.bluetooth.BleBluetooth;
+import com.qyh.fastble.ble.bluetooth.ConnectionProfile;
+import com.qyh.fastble.ble.bluetooth.GattCallbackTable;
+import com.qyh.fastble.ble.bluetooth.MultipleBluetoothController;
+import com.qyh.fastble.ble.conn.BleCallback;
 import com.qyh.fastble.ble.conn.BleCharacterCallback;
+import com.qyh.fastble.ble.conn.BleCoalescingWriter;
+import com.qyh.fastble.ble.conn.BleConnector;
+import com.qyh.fastble.ble.conn.BleFuture;
 import com.qyh.fastble.ble.conn.BleGattCallback;
+import com.qyh.fastble.ble.conn.BleMtuCallback;
+import com.qyh.fastble.ble.conn.BleReliableWrite;
+import com.qyh.fastble.ble.conn.BleRpc;
 import com.qyh.fastble.ble.conn.BleRssiCallback;
+import com.qyh.fastble.ble.conn.BleWriteCallback;
+import com.qyh.fastble.ble.conn.BleWriteStream;
+import com.qyh.fastble.ble.conn.GattOperation;
 import com.qyh.fastble.ble.data.BleDevice;
 import com.qyh.fastble.ble.exception.BleException;
 import com.qyh.fastble.ble.exception.BlueToothNotEnableException;
 import com.qyh.fastble.ble.exception.NotFoundDeviceException;
+import com.qyh.fastble.ble.exception.OtherException;
 import com.qyh.fastble.ble.exception.hanlder.DefaultBleExceptionHandler;
+import com.qyh.fastble.ble.notify.BatchListener;
+import com.qyh.fastble.ble.notify.BatchingNotifyListener;
+import com.qyh.fastble.ble.notify.ByteSlice;
+import com.qyh.fastble.ble.notify.Framer;
+import com.qyh.fastble.ble.notify.FramingNotifyListener;
+import com.qyh.fastble.ble.notify.NotifyListener;
+import com.qyh.fastble.ble.notify.NotifySubscription;
+import com.qyh.fastble.ble.scan.ContinuousScanCallback;
 import com.qyh.fastble.ble.scan.ListScanCallback;
+import com.qyh.fastble.ble.scan.ScanConfig;
+import com.qyh.fastble.ble.scan.ScanScheduler;
 import com.qyh.fastble.ble.service.BluetoothLeService;
+import com.qyh.fastble.ble.utils.BleExecutors;
 import com.qyh.fastble.ble.utils.BleLog;
 
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
 import static android.content.Context.BIND_AUTO_CREATE;
 
 /**
  * @author 邱永恒
  * @time 2017/8/13  09:20
  * @desc 蓝牙BLE操作管理类
+ *
+ * 支持同时连接多个设备, 每个设备按MAC地址在连接池中保存;
+ * 不带MAC地址的读写方法作用于最后连接成功的设备
  */
 public class BleManager {
 
     private Context context;
+    /** 负责扫描, 连接池为空时作为默认连接 */
     private BleBluetooth bleBluetooth;
+    private MultipleBluetoothController multipleBluetoothController;
     private DefaultBleExceptionHandler bleExceptionHandler;
     private Intent intent;
     private static BleManager instance;
@@ -44,7 +78,8 @@ public class BleManager {
 
         if (isSupportBle()) {
             if (bleBluetooth == null) {
-                bleBluetooth = new BleBluetooth(context);
+                multipleBluetoothController = new MultipleBluetoothController(context);
+                bleBluetooth = new BleBluetooth(context, multipleBluetoothController);
             }
         } else {
             handleException(new BlueToothNotEnableException());
@@ -89,6 +124,23 @@ public class BleManager {
         return bleBluetooth.startLeScan(callback);
     }
 
+    /**
+     * continuous scan
+     *
+     * 持续扫描并维护周围设备的列表, 设备出现, 更新(限频), 消失时回调, 直到 {@link #cancelScan()}
+     *
+     * @param callback 见 {@link ContinuousScanCallback}
+     * @return 是否开始扫描
+     */
+    public boolean scanDevice(ContinuousScanCallback callback) {
+        if (!isBlueEnable()) {
+            handleException(new BlueToothNotEnableException());
+            return false;
+        }
+
+        return bleBluetooth.startLeScan(callback);
+    }
+
     /**
      * connect a searched device
      *
@@ -104,16 +156,34 @@ public class BleManager {
                 callback.onConnectError(new NotFoundDeviceException());
             }
         } else {
+            BleBluetooth connecting = multipleBluetoothController.buildConnectingBle(bleDevice);
+            if (connecting == null) {
+                if (callback != null) {
+                    callback.onConnectError(new OtherException("too many connections"));
+                }
+                return;
+            }
             if (callback != null) {
                 callback.onFoundDevice(bleDevice);
             }
-            bleBluetooth.connect(bleDevice, autoConnect, callback);
+            connecting.connect(bleDevice, autoConnect, callback);
         }
     }
 
+    /**
+     * 设置最大连接数, 默认 {@link MultipleBluetoothController#DEFAULT_MAX_CONNECT_COUNT}
+     *
+     * 达到上限后再连接新设备, 会断开最久未使用的空闲连接
+     */
+    public void setMaxConnectCount(int maxConnectCount) {
+        multipleBluetoothController.setMaxConnectCount(maxConnectCount);
+    }
+
     /**
      * scan a known name device, then connect
      *
+     * 设备名不区分大小写, 在应用中匹配, 不交给控制器过滤
+     *
      * @param deviceName
      * @param time_out
      * @param autoConnect
@@ -133,6 +203,8 @@ public class BleManager {
     /**
      * scan known names device, then connect
      *
+     * 设备名不区分大小写, 在应用中匹配, 不交给控制器过滤
+     *
      * @param deviceNames
      * @param time_out
      * @param autoConnect
@@ -213,9 +285,36 @@ public class BleManager {
         bleBluetooth.cancelScan();
     }
 
+    /**
+     * 设置扫描配置, 对之后的所有扫描生效, 单次扫描可以通过 {@link ListScanCallback#setScanConfig(ScanConfig)} 覆盖
+     *
+     * 使用 {@link ScanConfig#ENGINE_LE_SCANNER} 时MAC地址和服务UUID由控制器过滤,
+     * 周围大部分设备不相关时可以大幅减少应用被唤醒的次数; 设备名不区分大小写, 只在应用中匹配
+     *
+     * @param scanConfig 为null时恢复默认的 startLeScan
+     */
+    public void setScanConfig(ScanConfig scanConfig) {
+        bleBluetooth.setScanConfig(scanConfig);
+    }
+
+    /**
+     * 设置底层扫描的扫描窗口和空闲窗口, 所有扫描共用一个底层扫描, 见 {@link ScanScheduler}
+     *
+     * 系统限制30秒内最多启动5次扫描, 窗口过短时会自动延长, 不会超过该限制
+     *
+     * @param scanWindowMillis 每次扫描的时间
+     * @param idleWindowMillis 两次扫描之间停止的时间, 为0时一直扫描(默认)
+     */
+    public void setScanDutyCycle(long scanWindowMillis, long idleWindowMillis) {
+        bleBluetooth.getScanScheduler().setDutyCycle(scanWindowMillis, idleWindowMillis);
+    }
+
     /**
      * 订阅通知notify
      *
+     * 同一特征码可以有多个订阅者, 每个callback都会收到通知;
+     * 同一个callback重复订阅只会保留最后一次
+     *
      * @param uuid_service 服务码
      * @param uuid_notify 特征码
      * @param callback 获取特征码返回数据的回调
@@ -224,9 +323,32 @@ public class BleManager {
     public boolean notify(String uuid_service,
                           String uuid_notify,
                           BleCharacterCallback callback) {
+        return notify(getBleBluetooth(), uuid_service, uuid_notify, callback);
+    }
+
+    /**
+     * 订阅指定设备的通知notify
+     *
+     * @param mac 设备MAC地址
+     * @param uuid_service 服务码
+     * @param uuid_notify 特征码
+     * @param callback 获取特征码返回数据的回调
+     * @return
+     */
+    public boolean notify(String mac,
+                          String uuid_service,
+                          String uuid_notify,
+                          BleCharacterCallback callback) {
+        return notify(getConnectedBle(mac, callback), uuid_service, uuid_notify, callback);
+    }
+
+    private boolean notify(BleBluetooth bleBluetooth,
+                           String uuid_service,
+                           String uuid_notify,
+                           BleCharacterCallback callback) {
         BleLog.i("==", "nority service : " + uuid_service + ", \ncharacter : " + uuid_notify);
 
-        return bleBluetooth.newBleConnector()
+        return bleBluetooth != null && bleBluetooth.newBleConnector()
                 .withUUIDString(uuid_service, uuid_notify, null)
                 .enableCharacteristicNotify(callback, uuid_notify);
     }
@@ -242,7 +364,30 @@ public class BleManager {
     public boolean indicate(String uuid_service,
                             String uuid_indicate,
                             BleCharacterCallback callback) {
-        return bleBluetooth.newBleConnector()
+        return indicate(getBleBluetooth(), uuid_service, uuid_indicate, callback);
+    }
+
+    /**
+     * 订阅指定设备的通知indicate
+     *
+     * @param mac 设备MAC地址
+     * @param uuid_service 服务码
+     * @param uuid_indicate 特征码
+     * @param callback 获取特征码返回数据的回调
+     * @return
+     */
+    public boolean indicate(String mac,
+                            String uuid_service,
+                            String uuid_indicate,
+                            BleCharacterCallback callback) {
+        return indicate(getConnectedBle(mac, callback), uuid_service, uuid_indicate, callback);
+    }
+
+    private boolean indicate(BleBluetooth bleBluetooth,
+                             String uuid_service,
+                             String uuid_indicate,
+                             BleCharacterCallback callback) {
+        return bleBluetooth != null && bleBluetooth.newBleConnector()
                 .withUUIDString(uuid_service, uuid_indicate, null)
                 .enableCharacteristicIndicate(callback, uuid_indicate);
     }
@@ -255,6 +400,10 @@ public class BleManager {
      * @return
      */
     public boolean stopNotify(String uuid_service, String uuid_notify) {
+        return stopNotify(getBleBluetooth(), uuid_service, uuid_notify);
+    }
+
+    private boolean stopNotify(BleBluetooth bleBluetooth, String uuid_service, String uuid_notify) {
         boolean success = bleBluetooth.newBleConnector()
                 .withUUIDString(uuid_service, uuid_notify, null)
                 .disableCharacteristicNotify();
@@ -264,6 +413,47 @@ public class BleManager {
         return success;
     }
 
+    /**
+     * stop notify for one subscriber
+     *
+     * 只移除该callback的订阅, 该特征码没有其他订阅者时才关闭notify
+     *
+     * @param uuid_service
+     * @param uuid_notify
+     * @param callback notify时传入的callback
+     * @return
+     */
+    public boolean stopNotify(String uuid_service, String uuid_notify, BleCharacterCallback callback) {
+        return stopNotify(getBleBluetooth(), uuid_service, uuid_notify, callback);
+    }
+
+    /**
+     * stop notify of a device for one subscriber
+     *
+     * @param mac 设备MAC地址
+     * @param uuid_service
+     * @param uuid_notify
+     * @param callback notify时传入的callback
+     * @return
+     */
+    public boolean stopNotify(String mac, String uuid_service, String uuid_notify, BleCharacterCallback callback) {
+        BleBluetooth connected = multipleBluetoothController.getBleBluetooth(mac);
+        return connected != null && stopNotify(connected, uuid_service, uuid_notify, callback);
+    }
+
+    private boolean stopNotify(BleBluetooth bleBluetooth, String uuid_service, String uuid_notify,
+                               BleCharacterCallback callback) {
+        UUID uuid = UUID.fromString(uuid_notify);
+        if (callback != null) {
+            bleBluetooth.removeGattCallback(GattCallbackTable.EVENT_CHARACTERISTIC_CHANGED, uuid,
+                    callback.getBluetoothGattCallback(GattCallbackTable.EVENT_CHARACTERISTIC_CHANGED, uuid));
+        }
+        if (bleBluetooth.hasGattCallback(GattCallbackTable.EVENT_CHARACTERISTIC_CHANGED, uuid)) {
+            return true;
+        }
+        return stopNotify(bleBluetooth, uuid_service, uuid_notify);
+    }
+
     /**
      * stop indicate, remove callback
      *
@@ -272,6 +462,10 @@ public class BleManager {
      * @return
      */
     public boolean stopIndicate(String uuid_service, String uuid_indicate) {
+        return stopIndicate(getBleBluetooth(), uuid_service, uuid_indicate);
+    }
+
+    private boolean stopIndicate(BleBluetooth bleBluetooth, String uuid_service, String uuid_indicate) {
         boolean success = bleBluetooth.newBleConnector()
                 .withUUIDString(uuid_service, uuid_indicate, null)
                 .disableCharacteristicIndicate();
@@ -281,6 +475,209 @@ public class BleManager {
         return success;
     }
 
+    /**
+     * stop indicate for one subscriber
+     *
+     * 只移除该callback的订阅, 该特征码没有其他订阅者时才关闭indicate
+     *
+     * @param uuid_service
+     * @param uuid_indicate
+     * @param callback indicate时传入的callback
+     * @return
+     */
+    public boolean stopIndicate(String uuid_service, String uuid_indicate, BleCharacterCallback callback) {
+        return stopIndicate(getBleBluetooth(), uuid_service, uuid_indicate, callback);
+    }
+
+    /**
+     * stop indicate of a device for one subscriber
+     *
+     * @param mac 设备MAC地址
+     * @param uuid_service
+     * @param uuid_indicate
+     * @param callback indicate时传入的callback
+     * @return
+     */
+    public boolean stopIndicate(String mac, String uuid_service, String uuid_indicate, BleCharacterCallback callback) {
+        BleBluetooth connected = multipleBluetoothController.getBleBluetooth(mac);
+        return connected != null && stopIndicate(connected, uuid_service, uuid_indicate, callback);
+    }
+
+    private boolean stopIndicate(BleBluetooth bleBluetooth, String uuid_service, String uuid_indicate,
+                                 BleCharacterCallback callback) {
+        UUID uuid = UUID.fromString(uuid_indicate);
+        if (callback != null) {
+            bleBluetooth.removeGattCallback(GattCallbackTable.EVENT_CHARACTERISTIC_CHANGED, uuid,
+                    callback.getBluetoothGattCallback(GattCallbackTable.EVENT_CHARACTERISTIC_CHANGED, uuid));
+        }
+        if (bleBluetooth.hasGattCallback(GattCallbackTable.EVENT_CHARACTERISTIC_CHANGED, uuid)) {
+            return true;
+        }
+        return stopIndicate(bleBluetooth, uuid_service, uuid_indicate);
+    }
+
+    /**
+     * 订阅notify, 数据通过复用的 {@link ByteSlice} 在binder线程回调, 每包不分配内存
+     *
+     * 适合高频数据, 回调中不能做耗时操作, 需要保存数据时复制出来
+     *
+     * @param uuid_service 服务码
+     * @param uuid_notify 特征码
+     * @param listener 数据回调
+     * @return 订阅, 用于 {@link #unsubscribe(NotifySubscription)}; 特征码不支持notify时返回null
+     */
+    public NotifySubscription subscribeNotify(String uuid_service,
+                                              String uuid_notify,
+                                              NotifyListener listener) {
+        NotifySubscription subscription = new NotifySubscription(uuid_service, uuid_notify, listener);
+        return subscribe(getBleBluetooth(), subscription, false) ? subscription : null;
+    }
+
+    /**
+     * 订阅indicate, 同 {@link #subscribeNotify(String, String, NotifyListener)}
+     */
+    public NotifySubscription subscribeIndicate(String uuid_service,
+                                                String uuid_indicate,
+                                                NotifyListener listener) {
+        NotifySubscription subscription = new NotifySubscription(uuid_service, uuid_indicate, listener);
+        return subscribe(getBleBluetooth(), subscription, true) ? subscription : null;
+    }
+
+    /**
+     * 批量订阅notify
+     *
+     * 攒够maxPackets包或第一包到达后maxLatencyMillis毫秒(以先到者为准)整批回调一次,
+     * 每包带接收时间, 高频传感器数据可大幅减少线程切换和回调次数
+     *
+     * @param uuid_service 服务码
+     * @param uuid_notify 特征码
+     * @param maxPackets 每批最多包数
+     * @param maxLatencyMillis 最大延时
+     * @param executor 批量回调执行的线程, 见 {@link BleExecutors}
+     * @param listener 批量回调
+     * @return 订阅, 特征码不支持notify时返回null
+     */
+    public NotifySubscription subscribeNotify(String uuid_service,
+                                              String uuid_notify,
+                                              int maxPackets,
+                                              long maxLatencyMillis,
+                                              Executor executor,
+                                              BatchListener listener) {
+        BleBluetooth bleBluetooth = getBleBluetooth();
+        NotifySubscription subscription = new NotifySubscription(uuid_service, uuid_notify,
+                new BatchingNotifyListener(maxPackets, maxLatencyMillis,
+                        bytesPerPacket(bleBluetooth), listener, executor));
+        return subscribe(bleBluetooth, subscription, false) ? subscription : null;
+    }
+
+    /**
+     * 批量订阅indicate, 同 {@link #subscribeNotify(String, String, int, long, Executor, BatchListener)}
+     */
+    public NotifySubscription subscribeIndicate(String uuid_service,
+                                                String uuid_indicate,
+                                                int maxPackets,
+                                                long maxLatencyMillis,
+                                                Executor executor,
+                                                BatchListener listener) {
+        BleBluetooth bleBluetooth = getBleBluetooth();
+        NotifySubscription subscription = new NotifySubscription(uuid_service, uuid_indicate,
+                new BatchingNotifyListener(maxPackets, maxLatencyMillis,
+                        bytesPerPacket(bleBluetooth), listener, executor));
+        return subscribe(bleBluetooth, subscription, true) ? subscription : null;
+    }
+
+    /**
+     * 分帧订阅notify, 多包数据按framer拼成完整的消息后回调, 不完整的数据不会回调
+     *
+     * 见 {@link FramingNotifyListener}, 回调在binder线程执行, 帧数据只在回调期间有效
+     *
+     * @param uuid_service 服务码
+     * @param uuid_notify 特征码
+     * @param framer 分帧策略, 如 {@link com.qyh.fastble.ble.notify.LengthPrefixFramer},
+     *               {@link com.qyh.fastble.ble.notify.DelimiterFramer}, {@link com.qyh.fastble.ble.notify.SlipFramer},
+     *               {@link com.qyh.fastble.ble.notify.CobsFramer}; 每个订阅使用新的实例
+     * @param listener 完整帧的回调
+     * @return 订阅, 特征码不支持notify时返回null
+     */
+    public NotifySubscription subscribeNotify(String uuid_service,
+                                              String uuid_notify,
+                                              Framer framer,
+                                              NotifyListener listener) {
+        NotifySubscription subscription = new NotifySubscription(uuid_service, uuid_notify,
+                new FramingNotifyListener(framer, listener));
+        return subscribe(getBleBluetooth(), subscription, false) ? subscription : null;
+    }
+
+    /**
+     * 分帧订阅indicate, 同 {@link #subscribeNotify(String, String, Framer, NotifyListener)}
+     */
+    public NotifySubscription subscribeIndicate(String uuid_service,
+                                                String uuid_indicate,
+                                                Framer framer,
+                                                NotifyListener listener) {
+        NotifySubscription subscription = new NotifySubscription(uuid_service, uuid_indicate,
+                new FramingNotifyListener(framer, listener));
+        return subscribe(getBleBluetooth(), subscription, true) ? subscription : null;
+    }
+
+    /**
+     * 在指定设备上订阅, 可自行创建订阅以指定回调执行器
+     *
+     * @param mac 设备MAC地址
+     * @param subscription 订阅
+     * @param indication true为indicate, false为notify
+     * @return
+     */
+    public boolean subscribe(String mac, NotifySubscription subscription, boolean indication) {
+        return subscribe(multipleBluetoothController.getBleBluetooth(mac), subscription, indication);
+    }
+
+    /**
+     * 按连接当前的MTU预估每包长度, 之后协商的更大MTU由批次自动扩容
+     */
+    private static int bytesPerPacket(BleBluetooth bleBluetooth) {
+        return bleBluetooth == null ? BatchingNotifyListener.DEFAULT_BYTES_PER_PACKET
+                : Math.max(bleBluetooth.getMtu() - 3, BatchingNotifyListener.DEFAULT_BYTES_PER_PACKET);
+    }
+
+    private boolean subscribe(BleBluetooth bleBluetooth, NotifySubscription subscription, boolean indication) {
+        return bleBluetooth != null && bleBluetooth.newBleConnector()
+                .withUUID(subscription.getServiceUuid(), subscription.getUuid(), null)
+                .enableCharacteristicNotify(subscription, indication);
+    }
+
+    /**
+     * 取消订阅, 该特征码没有其他订阅者时关闭notify / indicate
+     *
+     * @param subscription
+     * @return
+     */
+    public boolean unsubscribe(NotifySubscription subscription) {
+        if (subscription == null) {
+            return false;
+        }
+        // 先停止接收, 再发出未满的批次
+        subscription.cancel();
+        if (subscription.getListener() instanceof BatchingNotifyListener) {
+            ((BatchingNotifyListener) subscription.getListener()).flush();
+        }
+        if (subscription.getListener() instanceof FramingNotifyListener) {
+            ((FramingNotifyListener) subscription.getListener()).reset();
+        }
+        for (BleBluetooth connected : multipleBluetoothController.getBleBluetoothList()) {
+            if (connected.getNotifyDispatcher().unsubscribe(subscription)) {
+                if (connected.hasGattCallback(GattCallbackTable.EVENT_CHARACTERISTIC_CHANGED,
+                        subscription.getUuid())) {
+                    return true;
+                }
+                return connected.newBleConnector()
+                        .withUUID(subscription.getServiceUuid(), subscription.getUuid(), null)
+                        .disableCharacteristicNotify();
+            }
+        }
+        return false;
+    }
+
     /**
      * write
      *
@@ -296,11 +693,384 @@ public class BleManager {
                                String uuid_write,
                                byte[] data,
                                BleCharacterCallback callback) {
-        return bleBluetooth.newBleConnector()
+        return writeDevice(uuid_service, uuid_write, data, GattOperation.PRIORITY_NORMAL, callback);
+    }
+
+    /**
+     * write with priority
+     *
+     * 写操作进入连接的操作队列, 高优先级的操作(如控制指令)会排在普通读写之前执行
+     *
+     * @param uuid_service 服务码
+     * @param uuid_write 特征码
+     * @param data 写入的数据
+     * @param priority {@link GattOperation#PRIORITY_HIGH}, {@link GattOperation#PRIORITY_NORMAL}, {@link GattOperation#PRIORITY_LOW}
+     * @param callback
+     * @return 是否加入队列
+     */
+    public boolean writeDevice(String uuid_service,
+                               String uuid_write,
+                               byte[] data,
+                               int priority,
+                               BleCharacterCallback callback) {
+        return writeDevice(getBleBluetooth(), uuid_service, uuid_write, data, priority, callback);
+    }
+
+    /**
+     * write to a device
+     *
+     * @param mac 设备MAC地址
+     * @param uuid_service 服务码
+     * @param uuid_write 特征码
+     * @param data 写入的数据
+     * @param priority 操作优先级
+     * @param callback
+     * @return 是否加入队列
+     */
+    public boolean writeDevice(String mac,
+                               String uuid_service,
+                               String uuid_write,
+                               byte[] data,
+                               int priority,
+                               BleCharacterCallback callback) {
+        return writeDevice(getConnectedBle(mac, callback), uuid_service, uuid_write, data, priority, callback);
+    }
+
+    private boolean writeDevice(BleBluetooth bleBluetooth,
+                                String uuid_service,
+                                String uuid_write,
+                                byte[] data,
+                                int priority,
+                                BleCharacterCallback callback) {
+        return bleBluetooth != null && bleBluetooth.newBleConnector()
                 .withUUIDString(uuid_service, uuid_write, null)
+                .setPriority(priority)
                 .writeCharacteristic(data, callback, uuid_write);
     }
 
+    /**
+     * large write
+     *
+     * 超过一包长度的数据自动按 MTU - 3 分包, 每个连接第一次分包写入前协商一次MTU,
+     * 各分包连续进入操作队列, 通过callback返回进度和吞吐量
+     *
+     * @param uuid_service 服务码
+     * @param uuid_write 特征码
+     * @param data 写入的数据
+     * @param callback
+     * @return 是否加入队列
+     */
+    public boolean writeLargeDevice(String uuid_service,
+                                    String uuid_write,
+                                    byte[] data,
+                                    BleWriteCallback callback) {
+        return writeLargeDevice(getBleBluetooth(), uuid_service, uuid_write, data, callback);
+    }
+
+    /**
+     * large write to a device
+     *
+     * @param mac 设备MAC地址
+     * @param uuid_service 服务码
+     * @param uuid_write 特征码
+     * @param data 写入的数据
+     * @param callback
+     * @return 是否加入队列
+     */
+    public boolean writeLargeDevice(String mac,
+                                    String uuid_service,
+                                    String uuid_write,
+                                    byte[] data,
+                                    BleWriteCallback callback) {
+        return writeLargeDevice(getConnectedBle(mac, callback), uuid_service, uuid_write, data, callback);
+    }
+
+    private boolean writeLargeDevice(BleBluetooth bleBluetooth,
+                                     String uuid_service,
+                                     String uuid_write,
+                                     byte[] data,
+                                     BleWriteCallback callback) {
+        return bleBluetooth != null && bleBluetooth.newBleConnector()
+                .withUUIDString(uuid_service, uuid_write, null)
+                .writeCharacteristicLarge(data, callback);
+    }
+
+    /**
+     * reliable write
+     *
+     * 创建一个可靠写事务, 通过add加入多个特征码的写入, commit后作为一个整体提交:
+     * 每一包写入都成功才执行, 任一包失败或超时则全部取消, 只返回一次结果
+     *
+     * @return 未连接时返回null
+     */
+    public BleReliableWrite newReliableWrite() {
+        BleBluetooth bleBluetooth = getBleBluetooth();
+        return bleBluetooth.isConnected() ? bleBluetooth.newBleConnector().newReliableWrite() : null;
+    }
+
+    /**
+     * reliable write of a device
+     *
+     * @param mac 设备MAC地址
+     * @return 设备未连接时返回null
+     */
+    public BleReliableWrite newReliableWrite(String mac) {
+        BleBluetooth connected = multipleBluetoothController.getBleBluetooth(mac);
+        return connected != null && connected.isConnected() ? connected.newBleConnector().newReliableWrite() : null;
+    }
+
+    /**
+     * write stream
+     *
+     * 以 write without response 方式连续写入, 同时最多window包在队列中,
+     * 每包的onCharacteristicWrite回调后补充一个额度, 适合大批量上传(音频, 日志)
+     *
+     * @param uuid_service 服务码
+     * @param uuid_write 特征码, 需要支持 PROPERTY_WRITE_NO_RESPONSE
+     * @param window 同时在队列中的包数
+     * @param callback 每包返回进度, 缓存的数据全部写完后返回吞吐量
+     * @return 特征码不支持时返回null
+     */
+    public BleWriteStream openWriteStream(String uuid_service,
+                                          String uuid_write,
+                                          int window,
+                                          BleWriteCallback callback) {
+        return openWriteStream(getBleBluetooth(), uuid_service, uuid_write, null, window, callback);
+    }
+
+    /**
+     * write stream with credit notification
+     *
+     * 额度只由设备通过uuid_credit的notify下发(8位或16位小端整数), window为初始额度
+     *
+     * @param mac 设备MAC地址
+     * @param uuid_service 服务码
+     * @param uuid_write 特征码
+     * @param uuid_credit 下发额度的特征码, 为null时由onCharacteristicWrite补充额度
+     * @param window 初始额度
+     * @param callback
+     * @return 特征码不支持或设备未连接时返回null
+     */
+    public BleWriteStream openWriteStream(String mac,
+                                          String uuid_service,
+                                          String uuid_write,
+                                          String uuid_credit,
+                                          int window,
+                                          BleWriteCallback callback) {
+        return openWriteStream(getConnectedBle(mac, callback), uuid_service, uuid_write, uuid_credit,
+                window, callback);
+    }
+
+    private BleWriteStream openWriteStream(BleBluetooth bleBluetooth,
+                                           String uuid_service,
+                                           String uuid_write,
+                                           String uuid_credit,
+                                           int window,
+                                           BleWriteCallback callback) {
+        if (bleBluetooth == null) {
+            return null;
+        }
+        BleWriteStream stream = bleBluetooth.newBleConnector()
+                .withUUIDString(uuid_service, uuid_write, null)
+                .openWriteStream(window, callback);
+        if (stream == null || uuid_credit == null) {
+            return stream;
+        }
+        NotifySubscription subscription = new NotifySubscription(uuid_service, uuid_credit,
+                stream.creditListener());
+        if (!subscribe(bleBluetooth, subscription, false)) {
+            stream.close();
+            if (callback != null) {
+                BleConnector.postFailure(callback, new OtherException("credit characteristic not support notify!"));
+            }
+            return null;
+        }
+        stream.setCreditFlowControl(true).setCreditSubscription(subscription);
+        return stream;
+    }
+
+    /**
+     * 关闭写入流, 丢弃未发送的数据并取消额度订阅
+     */
+    public void closeWriteStream(BleWriteStream stream) {
+        if (stream == null) {
+            return;
+        }
+        stream.close();
+        unsubscribe(stream.getCreditSubscription());
+    }
+
+    /**
+     * coalescing writer
+     *
+     * 高频的小数据写入(LED, 震动, 拖动音量条)先缓存windowMillis, 再作为一次写操作进入队列;
+     * 操作在队列中等待期间到达的数据也一起合并, 减少空口占用和队列长度
+     *
+     * @param uuid_service 服务码
+     * @param uuid_write 特征码
+     * @param mode {@link BleCoalescingWriter#MODE_MERGE} 按顺序拼接到 MTU - 3 字节,
+     *             {@link BleCoalescingWriter#MODE_LAST_WRITE_WINS} 只写最新的值, 用于状态类特征码
+     * @param windowMillis 缓存时间, 为0时只在队列繁忙时合并
+     * @param callback 每次实际写入回调一次
+     * @return 特征码不支持写入时返回null
+     */
+    public BleCoalescingWriter openCoalescingWriter(String uuid_service,
+                                                    String uuid_write,
+                                                    int mode,
+                                                    long windowMillis,
+                                                    BleCharacterCallback callback) {
+        return openCoalescingWriter(getBleBluetooth(), uuid_service, uuid_write, mode, windowMillis, callback);
+    }
+
+    /**
+     * coalescing writer of a device
+     *
+     * @param mac 设备MAC地址
+     * @param uuid_service 服务码
+     * @param uuid_write 特征码
+     * @param mode 合并方式
+     * @param windowMillis 缓存时间
+     * @param callback
+     * @return 特征码不支持或设备未连接时返回null
+     */
+    public BleCoalescingWriter openCoalescingWriter(String mac,
+                                                    String uuid_service,
+                                                    String uuid_write,
+                                                    int mode,
+                                                    long windowMillis,
+                                                    BleCharacterCallback callback) {
+        return openCoalescingWriter(getConnectedBle(mac, callback), uuid_service, uuid_write, mode,
+                windowMillis, callback);
+    }
+
+    private BleCoalescingWriter openCoalescingWriter(BleBluetooth bleBluetooth,
+                                                     String uuid_service,
+                                                     String uuid_write,
+                                                     int mode,
+                                                     long windowMillis,
+                                                     BleCharacterCallback callback) {
+        return bleBluetooth == null ? null : bleBluetooth.newBleConnector()
+                .withUUIDString(uuid_service, uuid_write, null)
+                .openCoalescingWriter(mode, windowMillis, callback);
+    }
+
+    /**
+     * request / response
+     *
+     * 请求写入uuid_write, 响应通过uuid_notify的notify返回, 按序号匹配请求和响应;
+     * 同时最多maxOutstanding个请求在等待响应, 批量请求只需约一个往返时间
+     *
+     * @param uuid_service 服务码
+     * @param uuid_write 写入请求的特征码
+     * @param uuid_notify 返回响应的特征码, 支持notify或indicate
+     * @param extractor 读取请求和响应中的序号
+     * @return 特征码不支持时返回null
+     */
+    public BleRpc openRpc(String uuid_service,
+                          String uuid_write,
+                          String uuid_notify,
+                          BleRpc.SequenceExtractor extractor) {
+        return openRpc(getBleBluetooth(), uuid_service, uuid_write, uuid_notify, null, extractor,
+                BleRpc.DEFAULT_MAX_OUTSTANDING);
+    }
+
+    /**
+     * request / response of a device, 按序号匹配响应
+     *
+     * @param mac 设备MAC地址
+     * @param maxOutstanding 同时等待响应的请求数
+     * @return 特征码不支持或设备未连接时返回null
+     */
+    public BleRpc openRpc(String mac,
+                          String uuid_service,
+                          String uuid_write,
+                          String uuid_notify,
+                          BleRpc.SequenceExtractor extractor,
+                          int maxOutstanding) {
+        return openRpc(multipleBluetoothController.getBleBluetooth(mac), uuid_service, uuid_write, uuid_notify,
+                null, extractor, maxOutstanding);
+    }
+
+    /**
+     * request / response of a device, 响应按matcher依次与等待中的请求比较, 匹配第一个
+     *
+     * @param mac 设备MAC地址
+     * @param maxOutstanding 同时等待响应的请求数
+     * @return 特征码不支持或设备未连接时返回null
+     */
+    public BleRpc openRpc(String mac,
+                          String uuid_service,
+                          String uuid_write,
+                          String uuid_notify,
+                          BleRpc.Matcher matcher,
+                          int maxOutstanding) {
+        return openRpc(multipleBluetoothController.getBleBluetooth(mac), uuid_service, uuid_write, uuid_notify,
+                matcher, null, maxOutstanding);
+    }
+
+    private BleRpc openRpc(BleBluetooth bleBluetooth,
+                           String uuid_service,
+                           String uuid_write,
+                           String uuid_notify,
+                           BleRpc.Matcher matcher,
+                           BleRpc.SequenceExtractor extractor,
+                           int maxOutstanding) {
+        if (bleBluetooth == null) {
+            return null;
+        }
+        BleConnector connector = bleBluetooth.newBleConnector().withUUIDString(uuid_service, uuid_write, null);
+        BleRpc rpc = matcher != null
+                ? connector.newRpc(matcher, maxOutstanding)
+                : connector.newRpc(extractor, maxOutstanding);
+        if (rpc == null) {
+            return null;
+        }
+        NotifySubscription subscription = new NotifySubscription(uuid_service, uuid_notify, rpc);
+        if (!subscribe(bleBluetooth, subscription, false) && !subscribe(bleBluetooth, subscription, true)) {
+            return null;
+        }
+        return rpc.setSubscription(subscription);
+    }
+
+    /**
+     * 关闭request / response, 等待中的请求以失败结束, 并取消响应订阅
+     */
+    public void closeRpc(BleRpc rpc) {
+        if (rpc == null) {
+            return;
+        }
+        rpc.close();
+        unsubscribe(rpc.getSubscription());
+    }
+
+    /**
+     * requestMtu
+     *
+     * 协商MTU, 结果在连接断开前一直有效, 需要Android 5.0
+     *
+     * @param mtu 期望的MTU, 最大517
+     * @param callback
+     * @return 是否加入队列
+     */
+    public boolean requestMtu(int mtu, BleMtuCallback callback) {
+        return getBleBluetooth().newBleConnector()
+                .requestMtu(mtu, callback);
+    }
+
+    /**
+     * requestMtu of a device
+     *
+     * @param mac 设备MAC地址
+     * @param mtu 期望的MTU, 最大517
+     * @param callback
+     * @return 是否加入队列
+     */
+    public boolean requestMtu(String mac, int mtu, BleMtuCallback callback) {
+        BleBluetooth connected = getConnectedBle(mac, callback);
+        return connected != null && connected.newBleConnector()
+                .requestMtu(mtu, callback);
+    }
+
     /**
      * read
      *
@@ -314,8 +1084,51 @@ public class BleManager {
     public boolean readDevice(String uuid_service,
                               String uuid_read,
                               BleCharacterCallback callback) {
-        return bleBluetooth.newBleConnector()
+        return readDevice(uuid_service, uuid_read, GattOperation.PRIORITY_NORMAL, callback);
+    }
+
+    /**
+     * read with priority
+     *
+     * @param uuid_service
+     * @param uuid_read
+     * @param priority 批量读取可使用 {@link GattOperation#PRIORITY_LOW}, 让控制指令先执行
+     * @param callback
+     * @return 是否加入队列
+     */
+    public boolean readDevice(String uuid_service,
+                              String uuid_read,
+                              int priority,
+                              BleCharacterCallback callback) {
+        return readDevice(getBleBluetooth(), uuid_service, uuid_read, priority, callback);
+    }
+
+    /**
+     * read from a device
+     *
+     * @param mac 设备MAC地址
+     * @param uuid_service
+     * @param uuid_read
+     * @param priority 操作优先级
+     * @param callback
+     * @return 是否加入队列
+     */
+    public boolean readDevice(String mac,
+                              String uuid_service,
+                              String uuid_read,
+                              int priority,
+                              BleCharacterCallback callback) {
+        return readDevice(getConnectedBle(mac, callback), uuid_service, uuid_read, priority, callback);
+    }
+
+    private boolean readDevice(BleBluetooth bleBluetooth,
+                               String uuid_service,
+                               String uuid_read,
+                               int priority,
+                               BleCharacterCallback callback) {
+        return bleBluetooth != null && bleBluetooth.newBleConnector()
                 .withUUIDString(uuid_service, uuid_read, null)
+                .setPriority(priority)
                 .readCharacteristic(callback, uuid_read);
     }
 
@@ -326,24 +1139,127 @@ public class BleManager {
      * @return
      */
     public boolean readRssi(BleRssiCallback callback) {
-        return bleBluetooth.newBleConnector()
+        return getBleBluetooth().newBleConnector()
                 .readRemoteRssi(callback);
     }
 
+    /**
+     * read Rssi of a device
+     *
+     * @param mac 设备MAC地址
+     * @param callback
+     * @return
+     */
+    public boolean readRssi(String mac, BleRssiCallback callback) {
+        BleBluetooth connected = getConnectedBle(mac, callback);
+        return connected != null && connected.newBleConnector()
+                .readRemoteRssi(callback);
+    }
+
+    /**
+     * 获取连接池中的设备, 不存在时在callback的执行器上返回异常
+     */
+    private BleBluetooth getConnectedBle(String mac, BleCallback callback) {
+        BleBluetooth connected = multipleBluetoothController.getBleBluetooth(mac);
+        if (connected == null && callback != null) {
+            BleConnector.postFailure(callback, new OtherException("device " + mac + " is not connected"));
+        }
+        return connected;
+    }
+
+    /*------------------------------- futures ----------------------------------- */
+
+    /**
+     * read, 返回 {@link BleFuture}
+     *
+     * 与 {@link #readDevice(String, String, BleCharacterCallback)} 使用同一个操作队列,
+     * 不注册回调; 多个操作可用 {@link BleFuture#allOf}, {@link BleFuture#thenCompose} 组合,
+     * 未执行的操作取消或超时后不会再发出
+     *
+     * @param mac 设备MAC地址, 为null时使用最后连接的设备
+     * @param uuid_service 服务码
+     * @param uuid_read 特征码
+     * @return 完成时得到读取数据的副本
+     */
+    public BleFuture<byte[]> readAsync(String mac, String uuid_service, String uuid_read) {
+        BleBluetooth connected = getAsyncBle(mac);
+        if (connected == null) {
+            return BleFuture.failed(new OtherException("device " + mac + " is not connected"));
+        }
+        return connected.newBleConnector()
+                .withUUIDString(uuid_service, uuid_read, null)
+                .readCharacteristic();
+    }
+
+    /**
+     * write, 返回 {@link BleFuture}, 见 {@link #readAsync(String, String, String)}
+     *
+     * @param mac 设备MAC地址, 为null时使用最后连接的设备
+     * @return 写入确认后完成
+     */
+    public BleFuture<Void> writeAsync(String mac, String uuid_service, String uuid_write, byte[] data) {
+        BleBluetooth connected = getAsyncBle(mac);
+        if (connected == null) {
+            return BleFuture.failed(new OtherException("device " + mac + " is not connected"));
+        }
+        return connected.newBleConnector()
+                .withUUIDString(uuid_service, uuid_write, null)
+                .writeCharacteristic(data);
+    }
+
+    /**
+     * read Rssi, 返回 {@link BleFuture}
+     *
+     * @param mac 设备MAC地址, 为null时使用最后连接的设备
+     */
+    public BleFuture<Integer> readRssiAsync(String mac) {
+        BleBluetooth connected = getAsyncBle(mac);
+        if (connected == null) {
+            return BleFuture.failed(new OtherException("device " + mac + " is not connected"));
+        }
+        return connected.newBleConnector().readRemoteRssi();
+    }
+
+    /**
+     * 订阅notify, 返回 {@link BleFuture}, 写入描述符后完成; 数据回调同 {@link #subscribeNotify(String, String, NotifyListener)}
+     *
+     * @param mac 设备MAC地址, 为null时使用最后连接的设备
+     * @return 完成时得到订阅, 用于 {@link #unsubscribe(NotifySubscription)}
+     */
+    public BleFuture<NotifySubscription> subscribeNotifyAsync(String mac,
+                                                              String uuid_service,
+                                                              String uuid_notify,
+                                                              NotifyListener listener) {
+        BleBluetooth connected = getAsyncBle(mac);
+        if (connected == null) {
+            return BleFuture.failed(new OtherException("device " + mac + " is not connected"));
+        }
+        return connected.newBleConnector()
+                .withUUIDString(uuid_service, uuid_notify, null)
+                .subscribe(new NotifySubscription(uuid_service, uuid_notify, listener), false);
+    }
+
+    private BleBluetooth getAsyncBle(String mac) {
+        BleBluetooth connected = mac == null ? getBleBluetooth() : multipleBluetoothController.getBleBluetooth(mac);
+        return connected != null && connected.isConnected() ? connected : null;
+    }
 
     /**
      * refresh Device Cache
      */
     public void refreshDeviceCache() {
-        bleBluetooth.refreshDeviceCache();
+        getBleBluetooth().refreshDeviceCache();
     }
 
     /**
      * close gatt
      *
-     * 退出界面必须调用此方法, 断开GATT连接, 不然会阻塞, 下次连接不上
+     * 退出界面必须调用此方法, 断开所有设备的GATT连接, 不然会阻塞, 下次连接不上
      */
     public void closeBluetoothGatt() {
+        if (multipleBluetoothController != null) {
+            multipleBluetoothController.disconnectAllDevice();
+        }
         if (bleBluetooth != null) {
             bleBluetooth.clearCallback();
             try {
@@ -403,7 +1319,7 @@ public class BleManager {
      * @return
      */
     public boolean isConnectingOrConnected() {
-        return bleBluetooth.isConnectingOrConnected();
+        return getBleBluetooth().isConnectingOrConnected();
     }
 
     /**
@@ -411,7 +1327,25 @@ public class BleManager {
      * @return
      */
     public boolean isConnected() {
-        return bleBluetooth.isConnected();
+        return getBleBluetooth().isConnected();
+    }
+
+    /**
+     * 指定设备是否已连接
+     * @param mac
+     * @return
+     */
+    public boolean isConnected(String mac) {
+        BleBluetooth connected = multipleBluetoothController.getBleBluetooth(mac);
+        return connected != null && connected.isConnected();
+    }
+
+    /**
+     * 断开指定设备
+     * @param mac
+     */
+    public void disconnect(String mac) {
+        multipleBluetoothController.disconnect(mac);
     }
 
     /**
@@ -419,7 +1353,7 @@ public class BleManager {
      * @return
      */
     public boolean isServiceDiscovered() {
-        return bleBluetooth.isServiceDiscovered();
+        return getBleBluetooth().isServiceDiscovered();
     }
 
     /**
@@ -427,18 +1361,65 @@ public class BleManager {
      * 移除特征码对应的回调
      */
     public void stopListenCharacterCallback(String uuid) {
-        bleBluetooth.removeGattCallback(uuid);
+        getBleBluetooth().removeGattCallback(uuid);
+    }
+
+    /**
+     * remove one callback, other callbacks of the character keep listening
+     * 移除单个回调
+     */
+    public void stopListenCharacterCallback(BleCharacterCallback callback) {
+        if (callback != null) {
+            for (BluetoothGattCallback gattCallback : callback.takeBluetoothGattCallbacks()) {
+                getBleBluetooth().removeGattCallback(gattCallback);
+            }
+        }
     }
 
     /**
      * remove callback for gatt connect
      */
     public void stopListenConnectCallback() {
-        bleBluetooth.removeConnectGattCallback();
+        getBleBluetooth().removeConnectGattCallback();
     }
 
+    /**
+     * 最后连接成功的设备, 该设备已断开或没有连接时返回负责扫描的默认对象
+     */
     public BleBluetooth getBleBluetooth() {
-        return bleBluetooth;
+        BleBluetooth last = multipleBluetoothController == null
+                ? null : multipleBluetoothController.getLastBleBluetooth();
+        return last == null ? bleBluetooth : last;
+    }
+
+    /**
+     * 指定设备的连接, 未连接时返回null
+     */
+    public BleBluetooth getBleBluetooth(String mac) {
+        return multipleBluetoothController.getBleBluetooth(mac);
+    }
+
+    /**
+     * 开始传输会话, 会话期间连接使用高优先级连接间隔和2M PHY, 结束后恢复空闲配置
+     *
+     * @param mac 设备MAC地址
+     * @return 传输结束后调用 {@link ConnectionProfile.Session#end()}, 设备未连接时返回null
+     */
+    public ConnectionProfile.Session beginTransferSession(String mac) {
+        BleBluetooth connected = multipleBluetoothController.getBleBluetooth(mac);
+        return connected == null ? null : connected.getConnectionProfile().beginSession();
+    }
+
+    /**
+     * 指定设备的连接参数配置, 未连接时返回null
+     */
+    public ConnectionProfile getConnectionProfile(String mac) {
+        BleBluetooth connected = multipleBluetoothController.getBleBluetooth(mac);
+        return connected == null ? null : connected.getConnectionProfile();
+    }
+
+    public MultipleBluetoothController getMultipleBluetoothController() {
+        return multipleBluetoothController;
     }
 
     /**
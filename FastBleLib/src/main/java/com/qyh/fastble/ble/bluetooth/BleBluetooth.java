@@ -9,27 +9,31 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothManager;
 import android.bluetooth.BluetoothProfile;
 import android.content.Context;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.SystemClock;
 import android.text.TextUtils;
 
 import com.qyh.fastble.ble.conn.BleConnector;
 import com.qyh.fastble.ble.conn.BleGattCallback;
+import com.qyh.fastble.ble.conn.GattOperationQueue;
 import com.qyh.fastble.ble.data.BleDevice;
 import com.qyh.fastble.ble.exception.BleException;
 import com.qyh.fastble.ble.exception.ConnectException;
 import com.qyh.fastble.ble.exception.NotFoundDeviceException;
+import com.qyh.fastble.ble.exception.OtherException;
 import com.qyh.fastble.ble.exception.ScanFailedException;
+import com.qyh.fastble.ble.notify.NotifyDispatcher;
 import com.qyh.fastble.ble.scan.MacScanCallback;
 import com.qyh.fastble.ble.scan.NameScanCallback;
 import com.qyh.fastble.ble.scan.PeriodScanCallback;
+import com.qyh.fastble.ble.scan.ScanConfig;
+import com.qyh.fastble.ble.scan.ScanScheduler;
+import com.qyh.fastble.ble.utils.BleExecutors;
 import com.qyh.fastble.ble.utils.BleLog;
+import com.qyh.fastble.ble.utils.HashedWheelTimer;
+import com.qyh.fastble.ble.utils.LogUtils;
 
 import java.lang.reflect.Method;
-import java.util.HashMap;
-import java.util.Iterator;
-import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
 
 /**
  * @author 邱永恒
@@ -38,7 +42,6 @@ import java.util.Map;
  */
 public class BleBluetooth {
 
-    private static final String CONNECT_CALLBACK_KEY = "connect_key";
     public static final String READ_RSSI_KEY = "rssi_key";
 
     private static final int STATE_DISCONNECTED = 0;
@@ -47,27 +50,88 @@ public class BleBluetooth {
     private static final int STATE_CONNECTED = 3;
     private static final int STATE_SERVICES_DISCOVERED = 4;
 
+    /** 服务为空时, 重新发现服务的最小/最大延时 */
+    private static final long MIN_DISCOVER_DELAY_MILLIS = 50;
+    private static final long MAX_DISCOVER_DELAY_MILLIS = 1000;
+    private static final int MAX_DISCOVER_ATTEMPTS = 4;
+
+    /** 最近这段时间内有数据收发的连接不会因连接池已满被断开 */
+    private static final long EVICT_IDLE_MILLIS = 5000;
+
+    /** ATT协议默认MTU, 每包最多写入 MTU - 3 = 20 字节 */
+    public static final int DEFAULT_MTU = 23;
+
+    /**
+     * 连接成功后发现服务的延时, 所有连接共享
+     *
+     * 从0开始, 只有协议栈返回空服务列表时才加倍, 之后每次成功减半, 逐渐回到0
+     */
+    private static volatile long discoverDelayMillis = 0;
+
     private int connectionState = STATE_DISCONNECTED;
     private Context context;
     private BluetoothAdapter bluetoothAdapter;
     private BluetoothGatt bluetoothGatt;
-    private Handler handler = new Handler(Looper.getMainLooper());
-    private HashMap<String, BluetoothGattCallback> callbackHashMap = new HashMap<>();
+    /** 连接状态回调, 与数据回调分开保存 */
+    private volatile BleGattCallback connectGattCallback;
+    /** 数据回调, 按 (事件, 特征码UUID) 索引, 同一特征码可以有多个订阅者 */
+    private GattCallbackTable<BluetoothGattCallback> callbackTable = new GattCallbackTable<>();
+    /** GATT操作队列, 同一时间只执行一个操作, 上一个操作回调后立即执行下一个 */
+    private final GattOperationQueue operationQueue = new GattOperationQueue(this);
+    /** notify / indicate 快速订阅, 数据通过复用的ByteSlice回调, 每包不分配内存 */
+    private final NotifyDispatcher notifyDispatcher = new NotifyDispatcher();
     private PeriodScanCallback periodScanCallback;
+    private ScanConfig scanConfig;
+    /** 扫描调度, 所有扫描请求共用一个底层扫描 */
+    private final ScanScheduler scanScheduler;
+    /** 所属连接池, 为null时扫描到的设备直接在本对象上连接 */
+    private final MultipleBluetoothController controller;
+    private volatile String mac;
+    /** 本次连接是否已安排发现服务, 每次连接只安排一次 */
+    private boolean discoverScheduled;
+    private int discoverAttempts;
+    private HashedWheelTimer.Timeout discoverTimeout;
+    /** 本次连接协商得到的MTU, 断开后恢复默认值 */
+    private volatile int mtu = DEFAULT_MTU;
+    private volatile int rssi;
+    /** 最近一次收到notify / indicate的时间, System.nanoTime() */
+    private volatile long lastNotifyNanos = System.nanoTime();
+    /** 本次连接是否已协商过MTU, 协商失败也不再重复协商 */
+    private volatile boolean mtuNegotiated;
+    /** 连接参数配置, 传输会话期间使用高优先级连接间隔 */
+    private final ConnectionProfile connectionProfile = new ConnectionProfile(this);
 
 
     public BleBluetooth(Context context) {
+        this(context, null);
+    }
+
+    public BleBluetooth(Context context, MultipleBluetoothController controller) {
+        this.controller = controller;
         this.context = context = context.getApplicationContext();
         BluetoothManager bluetoothManager = (BluetoothManager) context
                 .getSystemService(Context.BLUETOOTH_SERVICE);
 
         bluetoothAdapter = bluetoothManager.getAdapter();
+        scanScheduler = ScanScheduler.getDefault(bluetoothAdapter);
     }
 
     public BleConnector newBleConnector() {
         return new BleConnector(this);
     }
 
+    public GattOperationQueue getOperationQueue() {
+        return operationQueue;
+    }
+
+    public NotifyDispatcher getNotifyDispatcher() {
+        return notifyDispatcher;
+    }
+
+    public ConnectionProfile getConnectionProfile() {
+        return connectionProfile;
+    }
+
 
     public boolean isInScanning() {
         return connectionState == STATE_SCANNING;
@@ -85,37 +149,166 @@ public class BleBluetooth {
         return connectionState == STATE_SERVICES_DISCOVERED;
     }
 
+    /**
+     * 连接池满时可以被断开: 没有正在建立的连接, 没有未完成的GATT操作, 没有notify / indicate订阅,
+     * 并且最近 {@link #EVICT_IDLE_MILLIS} 内没有数据收发
+     */
+    public boolean isIdle() {
+        if (connectionState == STATE_CONNECTING || !operationQueue.isIdle()
+                || !callbackTable.isEmpty(GattCallbackTable.EVENT_CHARACTERISTIC_CHANGED)
+                || !notifyDispatcher.isEmpty()) {
+            return false;
+        }
+        long lastActivity = Math.max(operationQueue.getLastActivityNanos(), lastNotifyNanos);
+        return System.nanoTime() - lastActivity >= TimeUnit.MILLISECONDS.toNanos(EVICT_IDLE_MILLIS);
+    }
+
+    /**
+     * 最近一次readRemoteRssi的结果, 在完成事件分发前更新
+     */
+    public int getRssi() {
+        return rssi;
+    }
+
+    /**
+     * 当前连接的MTU, 未协商时为 {@link #DEFAULT_MTU}
+     */
+    public int getMtu() {
+        return mtu;
+    }
+
+    public boolean isMtuNegotiated() {
+        return mtuNegotiated;
+    }
+
+    private void resetMtu() {
+        mtu = DEFAULT_MTU;
+        mtuNegotiated = false;
+    }
+
+    /**
+     * 连接的设备MAC地址, 未连接过时为null
+     */
+    public String getMac() {
+        return mac;
+    }
+
 
     private void addConnectGattCallback(BleGattCallback callback) {
-        callbackHashMap.put(CONNECT_CALLBACK_KEY, callback);
+        connectGattCallback = callback;
     }
 
-    public void addGattCallback(String uuid, BluetoothGattCallback callback) {
-        callbackHashMap.put(uuid, callback);
+    /**
+     * 注册数据回调
+     *
+     * 同一特征码可以注册多个回调, 每个回调都会收到该特征码的事件
+     *
+     * @param event    {@link GattCallbackTable} 中的事件类型
+     * @param uuid     特征码UUID, 与特征码无关的事件使用 {@link GattCallbackTable#NO_UUID}
+     * @param callback 回调
+     */
+    public void addGattCallback(int event, UUID uuid, BluetoothGattCallback callback) {
+        callbackTable.add(event, uuid, callback);
     }
 
     public void removeConnectGattCallback() {
-        callbackHashMap.remove(CONNECT_CALLBACK_KEY);
+        connectGattCallback = null;
     }
 
-    public void removeGattCallback(String key) {
-        callbackHashMap.remove(key);
+    /**
+     * 移除单个回调, 同一特征码上的其他回调不受影响
+     */
+    public void removeGattCallback(int event, UUID uuid, BluetoothGattCallback callback) {
+        callbackTable.remove(event, uuid, callback);
     }
 
-    public void clearCallback() {
-        callbackHashMap.clear();
+    /**
+     * 移除回调的全部订阅
+     */
+    public void removeGattCallback(BluetoothGattCallback callback) {
+        callbackTable.remove(callback);
     }
 
-    public BluetoothGattCallback getGattCallback(String uuid) {
+    public void removeGattCallback(int event, UUID uuid) {
+        callbackTable.remove(event, uuid);
+    }
+
+    /**
+     * 移除特征码对应的所有回调
+     *
+     * @param uuid 特征码
+     */
+    public void removeGattCallback(String uuid) {
         if (TextUtils.isEmpty(uuid))
-            return null;
-        return callbackHashMap.get(uuid);
+            return;
+        if (READ_RSSI_KEY.equals(uuid)) {
+            callbackTable.remove(GattCallbackTable.EVENT_READ_RSSI, GattCallbackTable.NO_UUID);
+            return;
+        }
+        UUID key = UUID.fromString(uuid);
+        callbackTable.remove(key);
+        notifyDispatcher.remove(key);
+    }
+
+    /**
+     * 连接池已满, 断开本连接给新设备使用
+     *
+     * 先通过 {@link BleGattCallback#onDisConnected} 通知应用, 再清空回调并关闭GATT;
+     * close之后协议栈不会再回调连接状态
+     */
+    void evict() {
+        final BleGattCallback call = connectGattCallback;
+        final BluetoothGatt gatt = bluetoothGatt;
+        if (call != null) {
+            final BleException exception = new OtherException("connection evicted, the connection pool is full");
+            call.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    call.onDisConnected(gatt, BluetoothProfile.STATE_DISCONNECTED, exception);
+                }
+            });
+        }
+        clearCallback();
+        closeBluetoothGatt();
+    }
+
+    public void clearCallback() {
+        connectGattCallback = null;
+        callbackTable.clear();
+        notifyDispatcher.clear();
+    }
+
+    /**
+     * 是否还有回调订阅了该特征码的事件, notify事件同时检查快速订阅
+     */
+    public boolean hasGattCallback(int event, UUID uuid) {
+        return callbackTable.contains(event, uuid)
+                || (event == GattCallbackTable.EVENT_CHARACTERISTIC_CHANGED && notifyDispatcher.hasSubscribers(uuid));
+    }
+
+    /**
+     * 默认扫描配置, 扫描回调没有设置 {@link PeriodScanCallback#setScanConfig(ScanConfig)} 时使用
+     */
+    public void setScanConfig(ScanConfig scanConfig) {
+        this.scanConfig = scanConfig;
+    }
+
+    public ScanConfig getScanConfig() {
+        return scanConfig;
+    }
+
+    public ScanScheduler getScanScheduler() {
+        return scanScheduler;
     }
 
+    /**
+     * 扫描请求交给 {@link ScanScheduler}, 与其他扫描共用底层扫描
+     */
     public boolean startLeScan(PeriodScanCallback callback) {
         this.periodScanCallback = callback;
         callback.setBleBluetooth(this).notifyScanStarted();
-        boolean success = bluetoothAdapter.startLeScan(callback);
+        ScanConfig config = callback.getScanConfig() != null ? callback.getScanConfig() : scanConfig;
+        boolean success = scanScheduler.start(callback, config);
         if (success) {
             connectionState = STATE_SCANNING;
         } else {
@@ -140,8 +333,10 @@ public class BleBluetooth {
     public void stopScan(BluetoothAdapter.LeScanCallback callback) {
         if (callback instanceof PeriodScanCallback) {
             ((PeriodScanCallback) callback).removeHandlerMsg();
+            scanScheduler.stop((PeriodScanCallback) callback);
+        } else {
+            bluetoothAdapter.stopLeScan(callback);
         }
-        bluetoothAdapter.stopLeScan(callback);
         if (connectionState == STATE_SCANNING) {
             connectionState = STATE_DISCONNECTED;
         }
@@ -157,11 +352,13 @@ public class BleBluetooth {
                                               boolean autoConnect,
                                               BleGattCallback callback) {
         addConnectGattCallback(callback);
+        mac = bleDevice.getDevice().getAddress();
+        connectionState = STATE_CONNECTING;
         BleLog.i("connect name: " + bleDevice.getDevice().getName()
                 + "\nmac: " + bleDevice.getDevice().getAddress()
                 + "\ndevice is remote: " + BluetoothAdapter.checkBluetoothAddress(bleDevice.getDevice().getAddress())
                 + "\nautoConnect: " + autoConnect
-                + "\ncallback num: " + callbackHashMap.size());
+                + "\ncallback num: " + callbackTable.size());
         return bleDevice.getDevice().connectGatt(context, autoConnect, coreGattCallback, BluetoothDevice.TRANSPORT_LE);
     }
 
@@ -180,27 +377,12 @@ public class BleBluetooth {
 
             @Override
             public void onDeviceFound(final BleDevice scanResult) {
-                runOnMainThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (callback != null) {
-                            callback.onFoundDevice(scanResult);
-                        }
-                        connect(scanResult, autoConnect, callback);
-                    }
-                });
+                onScanDeviceFound(scanResult, autoConnect, callback);
             }
 
             @Override
             public void onDeviceNotFound() {
-                runOnMainThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (callback != null) {
-                            callback.onConnectError(new NotFoundDeviceException());
-                        }
-                    }
-                });
+                deliverConnectError(callback, new NotFoundDeviceException());
             }
         });
         if (!success && callback != null) {
@@ -223,27 +405,12 @@ public class BleBluetooth {
 
             @Override
             public void onDeviceFound(final BleDevice scanResult) {
-                runOnMainThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (callback != null) {
-                            callback.onFoundDevice(scanResult);
-                        }
-                        connect(scanResult, autoConnect, callback);
-                    }
-                });
+                onScanDeviceFound(scanResult, autoConnect, callback);
             }
 
             @Override
             public void onDeviceNotFound() {
-                runOnMainThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (callback != null) {
-                            callback.onConnectError(new NotFoundDeviceException());
-                        }
-                    }
-                });
+                deliverConnectError(callback, new NotFoundDeviceException());
             }
         });
         if (!success && callback != null) {
@@ -262,27 +429,12 @@ public class BleBluetooth {
 
             @Override
             public void onDeviceFound(final BleDevice scanResult) {
-                runOnMainThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (callback != null) {
-                            callback.onFoundDevice(scanResult);
-                        }
-                        connect(scanResult, autoConnect, callback);
-                    }
-                });
+                onScanDeviceFound(scanResult, autoConnect, callback);
             }
 
             @Override
             public void onDeviceNotFound() {
-                runOnMainThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (callback != null) {
-                            callback.onConnectError(new NotFoundDeviceException());
-                        }
-                    }
-                });
+                deliverConnectError(callback, new NotFoundDeviceException());
             }
         });
         if (!success && callback != null) {
@@ -290,6 +442,48 @@ public class BleBluetooth {
         }
     }
 
+    /**
+     * 扫描到设备后连接
+     *
+     * 部分手机要求在主线程调用connectGatt, 连接仍在主线程发起(每次连接只有一次);
+     * 有连接池时在连接池中为该设备分配连接
+     */
+    private void onScanDeviceFound(final BleDevice bleDevice, final boolean autoConnect,
+                                   final BleGattCallback callback) {
+        if (callback != null) {
+            callback.getExecutor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onFoundDevice(bleDevice);
+                }
+            });
+        }
+        BleExecutors.main().execute(new Runnable() {
+            @Override
+            public void run() {
+                BleBluetooth bleBluetooth = controller == null
+                        ? BleBluetooth.this : controller.buildConnectingBle(bleDevice);
+                if (bleBluetooth == null) {
+                    deliverConnectError(callback, new OtherException("too many connections"));
+                    return;
+                }
+                bleBluetooth.connect(bleDevice, autoConnect, callback);
+            }
+        });
+    }
+
+    private static void deliverConnectError(final BleGattCallback callback, final BleException exception) {
+        if (callback == null) {
+            return;
+        }
+        callback.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                callback.onConnectError(exception);
+            }
+        });
+    }
+
     public boolean refreshDeviceCache() {
         try {
             final Method refresh = BluetoothGatt.class.getMethod("refresh");
@@ -321,11 +515,18 @@ public class BleBluetooth {
             refreshDeviceCache();
         }
 
+        /** 清空未执行的GATT操作 */
+        operationQueue.clear(new OtherException("gatt closed"));
+        resetDiscoverServices();
+        resetMtu();
+        connectionProfile.reset();
+
         /** 关闭GATT连接 */
         if (bluetoothGatt != null) {
             BleLog.i("gatt close");
             bluetoothGatt.close();
             bluetoothGatt = null;
+            connectionState = STATE_DISCONNECTED;
         }
     }
 
@@ -382,14 +583,6 @@ public class BleBluetooth {
         bluetoothAdapter.disable();
     }
 
-    private void runOnMainThread(Runnable runnable) {
-        if (Looper.myLooper() == Looper.getMainLooper()) {
-            runnable.run();
-        } else {
-            handler.post(runnable);
-        }
-    }
-
     public Context getContext() {
         return context;
     }
@@ -414,55 +607,64 @@ public class BleBluetooth {
         }
 
         @Override
-        public void onConnecting(BluetoothGatt gatt, int status) {
-            BleLog.i("BleGattCallback：onConnectSuccess ");
+        public void onConnecting(final BluetoothGatt gatt, final int status) {
+            BleLog.i("BleGattCallback：onConnecting ");
 
             bluetoothGatt = gatt;
-            Iterator iterator = callbackHashMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry entry = (Map.Entry) iterator.next();
-                Object call = entry.getValue();
-                if (call instanceof BleGattCallback) {
-                    ((BleGattCallback) call).onConnecting(gatt, status);
-                }
+            final BleGattCallback call = connectGattCallback;
+            if (call != null) {
+                call.getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        call.onConnecting(gatt, status);
+                    }
+                });
             }
         }
 
         @Override
-        public void onConnectSuccess(BluetoothGatt gatt, int status) {
+        public void onConnectSuccess(final BluetoothGatt gatt, final int status) {
             BleLog.i("BleGattCallback：onConnectSuccess ");
 
             bluetoothGatt = gatt;
-            Iterator iterator = callbackHashMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry entry = (Map.Entry) iterator.next();
-                Object call = entry.getValue();
-
-
-                if (call instanceof BleGattCallback) {
-                    ((BleGattCallback) call).onConnectSuccess(gatt, status);
-
-                    /** 断开连接后, 进行重连, 在进行discoverServices操作前, 必须睡眠一段时间, 不然在连接成功后, 获取不到service */
-                    SystemClock.sleep(100);
-                    gatt.discoverServices();
-                }
+            final BleGattCallback call = connectGattCallback;
+            if (call != null) {
+                call.getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        call.onConnectSuccess(gatt, status);
+                    }
+                });
+            }
+            if (controller != null) {
+                controller.onConnected(BleBluetooth.this);
             }
+            connectionProfile.onConnected();
+            scheduleDiscoverServices(gatt);
         }
 
         @Override
-        public void onDisConnected(BluetoothGatt gatt, int status, BleException exception) {
+        public void onDisConnected(final BluetoothGatt gatt, final int status, final BleException exception) {
             BleLog.i("BleGattCallback：onConnectFailure ");
 
             gatt.close();
             bluetoothGatt = null;
+            operationQueue.clear(exception);
+            resetDiscoverServices();
+            resetMtu();
+            connectionProfile.reset();
+            if (controller != null) {
+                controller.removeBleBluetooth(BleBluetooth.this);
+            }
 
-            Iterator iterator = callbackHashMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry entry = (Map.Entry) iterator.next();
-                Object call = entry.getValue();
-                if (call instanceof BleGattCallback) {
-                    ((BleGattCallback) call).onDisConnected(gatt, status, exception);
-                }
+            final BleGattCallback call = connectGattCallback;
+            if (call != null) {
+                call.getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        call.onDisConnected(gatt, status, exception);
+                    }
+                });
             }
         }
 
@@ -478,11 +680,13 @@ public class BleBluetooth {
          * @param newState 详细状态
          */
         @Override
-        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
-            BleLog.i("BleGattCallback：onConnectionStateChange "
-                    + '\n' + "status: " + status
-                    + '\n' + "newState: " + newState
-                    + '\n' + "currentThread: " + Thread.currentThread().getId());
+        public void onConnectionStateChange(final BluetoothGatt gatt, final int status, final int newState) {
+            if (BleLog.isLoggable(LogUtils.LEVEL_INFO)) {
+                BleLog.i("BleGattCallback：onConnectionStateChange "
+                        + '\n' + "status: " + status
+                        + '\n' + "newState: " + newState
+                        + '\n' + "currentThread: " + Thread.currentThread().getId());
+            }
 
             //            bluetoothGatt = gatt;
 
@@ -500,31 +704,39 @@ public class BleBluetooth {
                 onConnecting(gatt, newState);
             }
 
-            Iterator iterator = callbackHashMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry entry = (Map.Entry) iterator.next();
-                Object call = entry.getValue();
-                if (call instanceof BluetoothGattCallback) {
-                    ((BluetoothGattCallback) call).onConnectionStateChange(gatt, status, newState);
-                }
+            final BleGattCallback call = connectGattCallback;
+            if (call != null) {
+                call.getExecutor().execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        call.onConnectionStateChange(gatt, status, newState);
+                    }
+                });
             }
         }
 
         @Override
-        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+        public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
             BleLog.i("BleGattCallback：onServicesDiscovered :" + gatt.getServices().size());
             BleLog.i("BleGattCallback：onServicesDiscovered status:" + status);
             BleLog.i("BluetoothGatt.GATT_SUCCESS:" + BluetoothGatt.GATT_SUCCESS);
 
+            /** 协议栈还没准备好时会返回空服务列表, 延时后重新发现 */
+            if (gatt.getServices().isEmpty() && retryDiscoverServices(gatt)) {
+                return;
+            }
+            onDiscoverServicesFinished(!gatt.getServices().isEmpty());
+
 //            if (status == BluetoothGatt.GATT_SUCCESS) {
                 connectionState = STATE_SERVICES_DISCOVERED;
-                Iterator iterator = callbackHashMap.entrySet().iterator();
-                while (iterator.hasNext()) {
-                    Map.Entry entry = (Map.Entry) iterator.next();
-                    Object call = entry.getValue();
-                    if (call instanceof BluetoothGattCallback) {
-                        ((BluetoothGattCallback) call).onServicesDiscovered(gatt, status);
-                    }
+                final BleGattCallback call = connectGattCallback;
+                if (call != null) {
+                    call.getExecutor().execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            call.onServicesDiscovered(gatt, status);
+                        }
+                    });
                 }
 //            } else if (status == 129) { // GATT_INTERNAL_ERROR
 //                BleLog.i("GATT_INTERNAL_ERROR: 129, 重启蓝牙");
@@ -533,103 +745,214 @@ public class BleBluetooth {
 
         @Override
         public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            BleLog.i("BleGattCallback：onCharacteristicRead ");
-
-            Iterator iterator = callbackHashMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry entry = (Map.Entry) iterator.next();
-                Object call = entry.getValue();
-                if (call instanceof BluetoothGattCallback) {
-                    ((BluetoothGattCallback) call).onCharacteristicRead(gatt, characteristic, status);
-                }
+            if (BleLog.isLoggable(LogUtils.LEVEL_INFO)) {
+                BleLog.i("BleGattCallback：onCharacteristicRead ");
+            }
+
+            for (Object call : callbackTable.get(GattCallbackTable.EVENT_CHARACTERISTIC_READ,
+                    characteristic.getUuid())) {
+                ((BluetoothGattCallback) call).onCharacteristicRead(gatt, characteristic, status);
             }
+            operationQueue.onGattEvent(GattCallbackTable.EVENT_CHARACTERISTIC_READ,
+                    characteristic.getUuid(), status);
         }
 
         @Override
         public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
-            BleLog.i("BleGattCallback：onCharacteristicWrite ");
-
-            Iterator iterator = callbackHashMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry entry = (Map.Entry) iterator.next();
-                Object call = entry.getValue();
-                if (call instanceof BluetoothGattCallback) {
-                    ((BluetoothGattCallback) call).onCharacteristicWrite(gatt, characteristic, status);
-                }
+            if (BleLog.isLoggable(LogUtils.LEVEL_INFO)) {
+                BleLog.i("BleGattCallback：onCharacteristicWrite ");
             }
+
+            for (Object call : callbackTable.get(GattCallbackTable.EVENT_CHARACTERISTIC_WRITE,
+                    characteristic.getUuid())) {
+                ((BluetoothGattCallback) call).onCharacteristicWrite(gatt, characteristic, status);
+            }
+            operationQueue.onGattEvent(GattCallbackTable.EVENT_CHARACTERISTIC_WRITE,
+                    characteristic.getUuid(), status);
         }
 
         @Override
         public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
-            BleLog.i("BleGattCallback：onCharacteristicChanged ");
-
-            Iterator iterator = callbackHashMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry entry = (Map.Entry) iterator.next();
-                Object call = entry.getValue();
-                if (call instanceof BluetoothGattCallback) {
-                    ((BluetoothGattCallback) call).onCharacteristicChanged(gatt, characteristic);
-                }
+            lastNotifyNanos = System.nanoTime();
+            if (BleLog.isLoggable(LogUtils.LEVEL_INFO)) {
+                BleLog.i("BleGattCallback：onCharacteristicChanged ");
             }
+
+            for (Object call : callbackTable.get(GattCallbackTable.EVENT_CHARACTERISTIC_CHANGED,
+                    characteristic.getUuid())) {
+                ((BluetoothGattCallback) call).onCharacteristicChanged(gatt, characteristic);
+            }
+            notifyDispatcher.dispatch(characteristic.getUuid(), characteristic.getValue());
         }
 
+        /**
+         * 描述符事件按所属特征码的UUID分发
+         */
         @Override
         public void onDescriptorRead(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            BleLog.i("BleGattCallback：onDescriptorRead ");
-
-            Iterator iterator = callbackHashMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry entry = (Map.Entry) iterator.next();
-                Object call = entry.getValue();
-                if (call instanceof BluetoothGattCallback) {
-                    ((BluetoothGattCallback) call).onDescriptorRead(gatt, descriptor, status);
-                }
+            if (BleLog.isLoggable(LogUtils.LEVEL_INFO)) {
+                BleLog.i("BleGattCallback：onDescriptorRead ");
+            }
+
+            for (Object call : callbackTable.get(GattCallbackTable.EVENT_DESCRIPTOR_READ,
+                    descriptor.getCharacteristic().getUuid())) {
+                ((BluetoothGattCallback) call).onDescriptorRead(gatt, descriptor, status);
             }
+            operationQueue.onGattEvent(GattCallbackTable.EVENT_DESCRIPTOR_READ,
+                    descriptor.getCharacteristic().getUuid(), status);
         }
 
         @Override
         public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
-            BleLog.i("BleGattCallback：onDescriptorWrite ");
-
-            Iterator iterator = callbackHashMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry entry = (Map.Entry) iterator.next();
-                Object call = entry.getValue();
-                if (call instanceof BluetoothGattCallback) {
-                    ((BluetoothGattCallback) call).onDescriptorWrite(gatt, descriptor, status);
-                }
+            if (BleLog.isLoggable(LogUtils.LEVEL_INFO)) {
+                BleLog.i("BleGattCallback：onDescriptorWrite ");
+            }
+
+            for (Object call : callbackTable.get(GattCallbackTable.EVENT_DESCRIPTOR_WRITE,
+                    descriptor.getCharacteristic().getUuid())) {
+                ((BluetoothGattCallback) call).onDescriptorWrite(gatt, descriptor, status);
             }
+            operationQueue.onGattEvent(GattCallbackTable.EVENT_DESCRIPTOR_WRITE,
+                    descriptor.getCharacteristic().getUuid(), status);
         }
 
         @Override
         public void onReliableWriteCompleted(BluetoothGatt gatt, int status) {
-            BleLog.i("BleGattCallback：onReliableWriteCompleted ");
-
-            Iterator iterator = callbackHashMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry entry = (Map.Entry) iterator.next();
-                Object call = entry.getValue();
-                if (call instanceof BluetoothGattCallback) {
-                    ((BluetoothGattCallback) call).onReliableWriteCompleted(gatt, status);
-                }
+            if (BleLog.isLoggable(LogUtils.LEVEL_INFO)) {
+                BleLog.i("BleGattCallback：onReliableWriteCompleted ");
             }
+
+            for (Object call : callbackTable.get(GattCallbackTable.EVENT_RELIABLE_WRITE_COMPLETED,
+                    GattCallbackTable.NO_UUID)) {
+                ((BluetoothGattCallback) call).onReliableWriteCompleted(gatt, status);
+            }
+            operationQueue.onGattEvent(GattCallbackTable.EVENT_RELIABLE_WRITE_COMPLETED,
+                    GattCallbackTable.NO_UUID, status);
         }
 
         @Override
         public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-            BleLog.i("BleGattCallback：onReadRemoteRssi ");
-
-            Iterator iterator = callbackHashMap.entrySet().iterator();
-            while (iterator.hasNext()) {
-                Map.Entry entry = (Map.Entry) iterator.next();
-                Object call = entry.getValue();
-                if (call instanceof BluetoothGattCallback) {
-                    ((BluetoothGattCallback) call).onReadRemoteRssi(gatt, rssi, status);
-                }
+            if (BleLog.isLoggable(LogUtils.LEVEL_INFO)) {
+                BleLog.i("BleGattCallback：onReadRemoteRssi ");
             }
+
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                BleBluetooth.this.rssi = rssi;
+            }
+            for (Object call : callbackTable.get(GattCallbackTable.EVENT_READ_RSSI,
+                    GattCallbackTable.NO_UUID)) {
+                ((BluetoothGattCallback) call).onReadRemoteRssi(gatt, rssi, status);
+            }
+            operationQueue.onGattEvent(GattCallbackTable.EVENT_READ_RSSI,
+                    GattCallbackTable.NO_UUID, status);
+        }
+
+        @Override
+        public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+            if (BleLog.isLoggable(LogUtils.LEVEL_INFO)) {
+                BleLog.i("BleGattCallback：onMtuChanged " + mtu + ", status: " + status);
+            }
+
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                BleBluetooth.this.mtu = mtu;
+            }
+            mtuNegotiated = true;
+            for (Object call : callbackTable.get(GattCallbackTable.EVENT_MTU_CHANGED,
+                    GattCallbackTable.NO_UUID)) {
+                ((BluetoothGattCallback) call).onMtuChanged(gatt, mtu, status);
+            }
+            operationQueue.onGattEvent(GattCallbackTable.EVENT_MTU_CHANGED,
+                    GattCallbackTable.NO_UUID, status);
+        }
+
+        /**
+         * Android 8.0 起回调, compileSdk 25 中没有该方法, 不加 @Override
+         */
+        public void onPhyUpdate(BluetoothGatt gatt, int txPhy, int rxPhy, int status) {
+            connectionProfile.onPhyUpdate(txPhy, rxPhy, status);
+        }
+
+        /**
+         * 隐藏API, Android 8.0 起协议栈更新连接参数后回调
+         */
+        public void onConnectionUpdated(BluetoothGatt gatt, int interval, int latency, int timeout, int status) {
+            connectionProfile.onConnectionUpdated(interval, latency, timeout, status);
         }
     };
 
+    /**
+     * 安排发现服务, 每次连接只执行一次, 不阻塞binder线程
+     *
+     * 以前在回调中固定睡眠100ms再发现服务, 现在延时从0开始, 由 {@link #discoverDelayMillis} 自适应
+     */
+    private synchronized void scheduleDiscoverServices(BluetoothGatt gatt) {
+        if (discoverScheduled) {
+            return;
+        }
+        discoverScheduled = true;
+        discoverAttempts = 0;
+        discoverServices(gatt, discoverDelayMillis);
+    }
+
+    private synchronized void discoverServices(final BluetoothGatt gatt, long delayMillis) {
+        discoverAttempts++;
+        if (delayMillis <= 0) {
+            startDiscoverServices(gatt);
+            return;
+        }
+        BleLog.i("discoverServices after " + delayMillis + "ms, attempt " + discoverAttempts);
+        discoverTimeout = HashedWheelTimer.getDefault().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                startDiscoverServices(gatt);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private synchronized void startDiscoverServices(BluetoothGatt gatt) {
+        if (!discoverScheduled) {
+            return;
+        }
+        if (!gatt.discoverServices()) {
+            retryDiscoverServices(gatt);
+        }
+    }
+
+    /**
+     * 发现服务失败或服务为空, 加大延时后重试
+     *
+     * @return 是否已安排重试
+     */
+    private synchronized boolean retryDiscoverServices(BluetoothGatt gatt) {
+        if (!discoverScheduled || discoverAttempts >= MAX_DISCOVER_ATTEMPTS) {
+            return false;
+        }
+        long delay = Math.min(Math.max(discoverDelayMillis * 2, MIN_DISCOVER_DELAY_MILLIS),
+                MAX_DISCOVER_DELAY_MILLIS);
+        discoverDelayMillis = delay;
+        discoverServices(gatt, delay);
+        return true;
+    }
+
+    /**
+     * 发现服务成功后延时减半, 协议栈表现正常时很快回到0
+     */
+    private synchronized void onDiscoverServicesFinished(boolean success) {
+        if (success) {
+            long delay = discoverDelayMillis / 2;
+            discoverDelayMillis = delay < MIN_DISCOVER_DELAY_MILLIS ? 0 : delay;
+        }
+        discoverTimeout = null;
+    }
+
+    private synchronized void resetDiscoverServices() {
+        discoverScheduled = false;
+        if (discoverTimeout != null) {
+            discoverTimeout.cancel();
+            discoverTimeout = null;
+        }
+    }
+
     /**
      * 根据MAC地址获取远程设备
      * @param address
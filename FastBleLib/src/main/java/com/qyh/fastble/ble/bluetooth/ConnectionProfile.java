@@ -0,0 +1,245 @@
+package com.qyh.fastble.ble.bluetooth;
+
+import android.bluetooth.BluetoothGatt;
+import android.os.Build;
+
+import com.qyh.fastble.ble.utils.BleLog;
+
+import java.lang.reflect.Method;
+
+/**
+ * 连接参数配置
+ *
+ * 传输会话期间使用高优先级连接间隔(7.5~15ms)和2M PHY, 所有会话结束后恢复空闲配置
+ * (默认balanced, 可设为low power). 会话按引用计数, 多个传输可以同时进行
+ *
+ * 同时记录协议栈回报的实际连接间隔和PHY, 便于和吞吐量对照.
+ * 连接间隔只有Android 8.0起的协议栈会回报, 之前的版本为0
+ */
+public class ConnectionProfile {
+
+    private static final String TAG = ConnectionProfile.class.getSimpleName();
+
+    /** BluetoothDevice.PHY_LE_1M_MASK, compileSdk 25 中没有 */
+    public static final int PHY_LE_1M_MASK = 1;
+    /** BluetoothDevice.PHY_LE_2M_MASK */
+    public static final int PHY_LE_2M_MASK = 2;
+    /** BluetoothDevice.PHY_OPTION_NO_PREFERRED */
+    private static final int PHY_OPTION_NO_PREFERRED = 0;
+    private static final int VERSION_CODES_O = 26;
+
+    private final BleBluetooth bleBluetooth;
+
+    private int idlePriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private int sessionPriority = BluetoothGatt.CONNECTION_PRIORITY_HIGH;
+    private int sessionPhy = PHY_LE_2M_MASK;
+    private int sessionCount;
+    /** 每次断开加1, 断开前取得的Session结束时不影响新连接 */
+    private int generation;
+    private int appliedPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+    private int appliedPhy = PHY_LE_1M_MASK;
+
+    /** 连接间隔, 单位1.25ms */
+    private volatile int interval;
+    private volatile int latency;
+    /** 监督超时, 单位10ms */
+    private volatile int supervisionTimeout;
+    private volatile int txPhy = PHY_LE_1M_MASK;
+    private volatile int rxPhy = PHY_LE_1M_MASK;
+
+    ConnectionProfile(BleBluetooth bleBluetooth) {
+        this.bleBluetooth = bleBluetooth;
+    }
+
+    /**
+     * 开始传输会话, 第一个会话切换到会话配置
+     *
+     * @return 传输结束后调用 {@link Session#end()}
+     */
+    public Session beginSession() {
+        Session session;
+        synchronized (this) {
+            sessionCount++;
+            session = new Session(generation);
+        }
+        apply();
+        return session;
+    }
+
+    /**
+     * 空闲时的连接优先级, 如 {@link BluetoothGatt#CONNECTION_PRIORITY_LOW_POWER}
+     */
+    public void setIdlePriority(int idlePriority) {
+        synchronized (this) {
+            this.idlePriority = idlePriority;
+        }
+        apply();
+    }
+
+    /**
+     * 会话期间的连接优先级, 默认 {@link BluetoothGatt#CONNECTION_PRIORITY_HIGH}
+     */
+    public void setSessionPriority(int sessionPriority) {
+        synchronized (this) {
+            this.sessionPriority = sessionPriority;
+        }
+        apply();
+    }
+
+    /**
+     * 会话期间的PHY, 默认 {@link #PHY_LE_2M_MASK}, 设备不支持时协议栈保持1M
+     */
+    public void setSessionPhy(int sessionPhy) {
+        synchronized (this) {
+            this.sessionPhy = sessionPhy;
+        }
+        apply();
+    }
+
+    public synchronized boolean isSessionActive() {
+        return sessionCount > 0;
+    }
+
+    /**
+     * 按当前会话状态请求连接参数, 与已生效的配置相同时不重复请求
+     *
+     * 计算, 比较和请求在同一个锁内完成, 并发的会话开始和结束不会交错;
+     * 只有请求成功才记录为已生效, 失败的请求在下次apply时重试
+     */
+    synchronized void apply() {
+        BluetoothGatt gatt = bleBluetooth.getBluetoothGatt();
+        if (gatt == null || !bleBluetooth.isConnected()) {
+            return;
+        }
+        int priority = sessionCount > 0 ? sessionPriority : idlePriority;
+        int phy = sessionCount > 0 ? sessionPhy : PHY_LE_1M_MASK;
+        if (priority != appliedPriority && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP) {
+            boolean success = gatt.requestConnectionPriority(priority);
+            BleLog.i(TAG, "requestConnectionPriority " + priority + ": " + success);
+            if (success) {
+                appliedPriority = priority;
+            }
+        }
+        if (phy != appliedPhy && Build.VERSION.SDK_INT >= VERSION_CODES_O) {
+            if (setPreferredPhy(gatt, phy)) {
+                appliedPhy = phy;
+            }
+        }
+    }
+
+    /**
+     * BluetoothGatt.setPreferredPhy 为API 26, compileSdk 25 通过反射调用
+     */
+    private static boolean setPreferredPhy(BluetoothGatt gatt, int phy) {
+        try {
+            Method method = BluetoothGatt.class.getMethod("setPreferredPhy", int.class, int.class, int.class);
+            method.invoke(gatt, phy, phy, PHY_OPTION_NO_PREFERRED);
+            BleLog.i(TAG, "setPreferredPhy " + phy);
+            return true;
+        } catch (Exception e) {
+            BleLog.w(TAG, "setPreferredPhy failed: " + e.getMessage());
+            return false;
+        }
+    }
+
+    /**
+     * 连接建立后按当前配置请求, 连接刚建立时协议栈为balanced和1M
+     */
+    void onConnected() {
+        synchronized (this) {
+            appliedPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+            appliedPhy = PHY_LE_1M_MASK;
+        }
+        apply();
+    }
+
+    /**
+     * 断开后会话计数清零, 已取得的Session不再生效
+     */
+    synchronized void reset() {
+        sessionCount = 0;
+        generation++;
+        appliedPriority = BluetoothGatt.CONNECTION_PRIORITY_BALANCED;
+        appliedPhy = PHY_LE_1M_MASK;
+        interval = 0;
+        latency = 0;
+        supervisionTimeout = 0;
+        txPhy = PHY_LE_1M_MASK;
+        rxPhy = PHY_LE_1M_MASK;
+    }
+
+    void onConnectionUpdated(int interval, int latency, int timeout, int status) {
+        BleLog.i(TAG, "connection updated, interval: " + interval * 1.25 + "ms, latency: " + latency
+                + ", timeout: " + timeout * 10 + "ms, status: " + status);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.interval = interval;
+            this.latency = latency;
+            this.supervisionTimeout = timeout;
+        }
+    }
+
+    void onPhyUpdate(int txPhy, int rxPhy, int status) {
+        BleLog.i(TAG, "phy updated, tx: " + txPhy + ", rx: " + rxPhy + ", status: " + status);
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            this.txPhy = txPhy;
+            this.rxPhy = rxPhy;
+        }
+    }
+
+    /**
+     * 协议栈回报的连接间隔, 单位1.25ms, 未回报时为0
+     */
+    public int getInterval() {
+        return interval;
+    }
+
+    public double getIntervalMillis() {
+        return interval * 1.25;
+    }
+
+    public int getLatency() {
+        return latency;
+    }
+
+    /**
+     * 监督超时, 单位10ms
+     */
+    public int getSupervisionTimeout() {
+        return supervisionTimeout;
+    }
+
+    public int getTxPhy() {
+        return txPhy;
+    }
+
+    public int getRxPhy() {
+        return rxPhy;
+    }
+
+    /**
+     * 传输会话, end只生效一次
+     */
+    public final class Session {
+
+        private final int generation;
+        private boolean ended;
+
+        private Session(int generation) {
+            this.generation = generation;
+        }
+
+        public void end() {
+            synchronized (ConnectionProfile.this) {
+                if (ended) {
+                    return;
+                }
+                ended = true;
+                if (generation != ConnectionProfile.this.generation) {
+                    return;
+                }
+                sessionCount--;
+            }
+            apply();
+        }
+    }
+}
@@ -0,0 +1,197 @@
+package com.qyh.fastble.ble.bluetooth;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * GATT数据回调分发表
+ *
+ * 以 (事件类型, 特征码UUID) 为索引保存数据回调, 收到GATT事件时直接查表,
+ * 只通知订阅了该特征码的回调, 不再遍历全部回调
+ *
+ * 同一特征码可以有多个订阅者, 每个特征码对应一个不可变的订阅者数组,
+ * 增删订阅者时替换为新数组(copy-on-write), binder线程分发时无需加锁,
+ * 也不会抛出 ConcurrentModificationException
+ *
+ * 连接状态回调不放在此表中, 由 {@link BleBluetooth} 单独保存
+ */
+public class GattCallbackTable<T> {
+
+    public static final int EVENT_CHARACTERISTIC_CHANGED = 0;
+    public static final int EVENT_CHARACTERISTIC_READ = 1;
+    public static final int EVENT_CHARACTERISTIC_WRITE = 2;
+    public static final int EVENT_DESCRIPTOR_READ = 3;
+    public static final int EVENT_DESCRIPTOR_WRITE = 4;
+    public static final int EVENT_READ_RSSI = 5;
+    public static final int EVENT_RELIABLE_WRITE_COMPLETED = 6;
+    public static final int EVENT_MTU_CHANGED = 7;
+    private static final int EVENT_COUNT = 8;
+
+    /**
+     * 与特征码无关的事件(rssi, reliable write, mtu)使用的key
+     */
+    public static final UUID NO_UUID = new UUID(0L, 0L);
+
+    private static final Object[] EMPTY = new Object[0];
+
+    private final ConcurrentHashMap<UUID, Object[]>[] tables;
+
+    public GattCallbackTable() {
+        tables = newTables(EVENT_COUNT);
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            tables[i] = new ConcurrentHashMap<>();
+        }
+    }
+
+    /**
+     * 不能直接创建泛型数组, 数组只在本类中使用, 元素都是 ConcurrentHashMap<UUID, Object[]>
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ConcurrentHashMap<UUID, Object[]>[] newTables(int size) {
+        return new ConcurrentHashMap[size];
+    }
+
+    /**
+     * 添加订阅者, 同一个回调重复添加只保留一份
+     */
+    public void add(int event, UUID uuid, T callback) {
+        if (uuid == null || callback == null) {
+            return;
+        }
+        ConcurrentHashMap<UUID, Object[]> table = tables[event];
+        for (; ; ) {
+            Object[] old = table.get(uuid);
+            if (old == null) {
+                if (table.putIfAbsent(uuid, new Object[]{callback}) == null) {
+                    return;
+                }
+                continue;
+            }
+            if (indexOf(old, callback) >= 0) {
+                return;
+            }
+            Object[] update = Arrays.copyOf(old, old.length + 1);
+            update[old.length] = callback;
+            if (table.replace(uuid, old, update)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * 获取订阅者数组
+     *
+     * 返回的数组是内部快照, 只能读取, 不能修改; 没有订阅者时返回空数组
+     */
+    public Object[] get(int event, UUID uuid) {
+        if (uuid == null) {
+            return EMPTY;
+        }
+        Object[] callbacks = tables[event].get(uuid);
+        return callbacks == null ? EMPTY : callbacks;
+    }
+
+    /**
+     * 事件上没有任何订阅者
+     */
+    public boolean isEmpty(int event) {
+        return tables[event].isEmpty();
+    }
+
+    public boolean contains(int event, UUID uuid) {
+        return uuid != null && tables[event].containsKey(uuid);
+    }
+
+    /**
+     * 移除单个订阅者
+     */
+    public boolean remove(int event, UUID uuid, T callback) {
+        if (uuid == null || callback == null) {
+            return false;
+        }
+        ConcurrentHashMap<UUID, Object[]> table = tables[event];
+        for (; ; ) {
+            Object[] old = table.get(uuid);
+            if (old == null) {
+                return false;
+            }
+            int index = indexOf(old, callback);
+            if (index < 0) {
+                return false;
+            }
+            if (old.length == 1) {
+                if (table.remove(uuid, old)) {
+                    return true;
+                }
+                continue;
+            }
+            Object[] update = new Object[old.length - 1];
+            System.arraycopy(old, 0, update, 0, index);
+            System.arraycopy(old, index + 1, update, index, old.length - index - 1);
+            if (table.replace(uuid, old, update)) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * 移除回调在所有事件, 所有特征码上的订阅
+     */
+    public void remove(T callback) {
+        if (callback == null) {
+            return;
+        }
+        for (int event = 0; event < EVENT_COUNT; event++) {
+            for (UUID uuid : tables[event].keySet()) {
+                remove(event, uuid, callback);
+            }
+        }
+    }
+
+    /**
+     * 移除事件上该特征码的全部订阅者
+     */
+    public void remove(int event, UUID uuid) {
+        if (uuid != null) {
+            tables[event].remove(uuid);
+        }
+    }
+
+    /**
+     * 移除特征码在所有事件上的订阅者
+     */
+    public void remove(UUID uuid) {
+        if (uuid == null) {
+            return;
+        }
+        for (ConcurrentHashMap<UUID, Object[]> table : tables) {
+            table.remove(uuid);
+        }
+    }
+
+    public void clear() {
+        for (ConcurrentHashMap<UUID, Object[]> table : tables) {
+            table.clear();
+        }
+    }
+
+    public int size() {
+        int size = 0;
+        for (ConcurrentHashMap<UUID, Object[]> table : tables) {
+            for (Object[] callbacks : table.values()) {
+                size += callbacks.length;
+            }
+        }
+        return size;
+    }
+
+    private static int indexOf(Object[] callbacks, Object callback) {
+        for (int i = 0; i < callbacks.length; i++) {
+            if (callbacks[i] == callback) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,182 @@
+package com.qyh.fastble.ble.bluetooth;
+
+import android.content.Context;
+
+import com.qyh.fastble.ble.data.BleDevice;
+import com.qyh.fastble.ble.utils.BleLog;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * 多设备连接池
+ *
+ * 以MAC地址为key, 每个设备对应一个 {@link BleBluetooth}, 各自持有GATT, 连接状态,
+ * 回调表和操作队列, 互不影响
+ *
+ * 连接数达到上限时, 按最近最少使用(LRU)的顺序断开一个空闲连接给新设备使用, 见 {@link BleBluetooth#isIdle()},
+ * 被断开的连接回调onDisConnected; 没有空闲连接时拒绝新连接
+ */
+public class MultipleBluetoothController {
+
+    private static final String TAG = MultipleBluetoothController.class.getSimpleName();
+
+    /** Android协议栈同时连接数一般为7 */
+    public static final int DEFAULT_MAX_CONNECT_COUNT = 7;
+
+    private final Context context;
+    /** accessOrder = true, 迭代顺序从最久未使用到最近使用 */
+    private final LinkedHashMap<String, BleBluetooth> bleLruHashMap = new LinkedHashMap<>(16, 0.75f, true);
+    /** 最后连接成功的设备, 断开后为null; 与LRU顺序无关, 按MAC访问其他设备不会改变它 */
+    private BleBluetooth lastConnected;
+    private int maxConnectCount = DEFAULT_MAX_CONNECT_COUNT;
+
+    public MultipleBluetoothController(Context context) {
+        this.context = context.getApplicationContext();
+    }
+
+    /**
+     * 获取设备对应的连接, 没有则新建
+     *
+     * @return 连接数已满并且没有空闲连接可以断开时返回null
+     */
+    public BleBluetooth buildConnectingBle(BleDevice bleDevice) {
+        String mac = bleDevice.getDevice().getAddress();
+        BleBluetooth evicted = null;
+        BleBluetooth bleBluetooth;
+        synchronized (this) {
+            bleBluetooth = bleLruHashMap.get(mac);
+            if (bleBluetooth != null) {
+                return bleBluetooth;
+            }
+            if (bleLruHashMap.size() >= maxConnectCount) {
+                evicted = removeEldestIdle();
+                if (evicted == null) {
+                    BleLog.w(TAG, "connection pool is full: " + bleLruHashMap.size());
+                    return null;
+                }
+            }
+            bleBluetooth = new BleBluetooth(context, this);
+            bleLruHashMap.put(mac, bleBluetooth);
+        }
+        if (evicted != null) {
+            BleLog.i(TAG, "evict idle connection " + evicted.getMac());
+            evicted.evict();
+        }
+        return bleBluetooth;
+    }
+
+    /**
+     * 获取已连接(或正在连接)的设备, 同时刷新该连接的LRU顺序
+     */
+    public synchronized BleBluetooth getBleBluetooth(String mac) {
+        return mac == null ? null : bleLruHashMap.get(mac);
+    }
+
+    /**
+     * 最后连接成功的设备, 不指定MAC地址的操作作用于该连接; 该设备断开后返回null, 直到下一个设备连接成功
+     */
+    public synchronized BleBluetooth getLastBleBluetooth() {
+        return lastConnected;
+    }
+
+    /**
+     * 连接成功时由 {@link BleBluetooth} 调用
+     */
+    synchronized void onConnected(BleBluetooth bleBluetooth) {
+        if (bleLruHashMap.get(bleBluetooth.getMac()) == bleBluetooth) {
+            lastConnected = bleBluetooth;
+        }
+    }
+
+    public synchronized List<BleBluetooth> getBleBluetoothList() {
+        return new ArrayList<>(bleLruHashMap.values());
+    }
+
+    public synchronized boolean isContainDevice(String mac) {
+        return mac != null && bleLruHashMap.containsKey(mac);
+    }
+
+    public synchronized int getConnectCount() {
+        return bleLruHashMap.size();
+    }
+
+    /**
+     * 连接断开后从连接池中移除
+     */
+    synchronized void removeBleBluetooth(BleBluetooth bleBluetooth) {
+        String mac = bleBluetooth.getMac();
+        if (mac != null && bleLruHashMap.get(mac) == bleBluetooth) {
+            bleLruHashMap.remove(mac);
+        }
+        clearLastConnected(bleBluetooth);
+    }
+
+    /**
+     * 断开指定设备
+     */
+    public void disconnect(String mac) {
+        BleBluetooth bleBluetooth;
+        synchronized (this) {
+            bleBluetooth = mac == null ? null : bleLruHashMap.remove(mac);
+            clearLastConnected(bleBluetooth);
+        }
+        if (bleBluetooth != null) {
+            bleBluetooth.clearCallback();
+            bleBluetooth.closeBluetoothGatt();
+        }
+    }
+
+    /**
+     * 断开所有设备
+     */
+    public void disconnectAllDevice() {
+        List<BleBluetooth> list;
+        synchronized (this) {
+            list = new ArrayList<>(bleLruHashMap.values());
+            bleLruHashMap.clear();
+            lastConnected = null;
+        }
+        for (BleBluetooth bleBluetooth : list) {
+            bleBluetooth.clearCallback();
+            bleBluetooth.closeBluetoothGatt();
+        }
+    }
+
+    public synchronized int getMaxConnectCount() {
+        return maxConnectCount;
+    }
+
+    /**
+     * 设置最大连接数, 已超出的连接不会被断开, 只影响之后的新连接
+     */
+    public synchronized void setMaxConnectCount(int maxConnectCount) {
+        if (maxConnectCount > 0) {
+            this.maxConnectCount = maxConnectCount;
+        }
+    }
+
+    /**
+     * 从最久未使用的连接开始查找, 移除第一个空闲连接
+     */
+    private BleBluetooth removeEldestIdle() {
+        Iterator<BleBluetooth> iterator = bleLruHashMap.values().iterator();
+        while (iterator.hasNext()) {
+            BleBluetooth bleBluetooth = iterator.next();
+            if (bleBluetooth.isIdle()) {
+                iterator.remove();
+                clearLastConnected(bleBluetooth);
+                return bleBluetooth;
+            }
+        }
+        return null;
+    }
+
+    private void clearLastConnected(BleBluetooth bleBluetooth) {
+        if (bleBluetooth != null && lastConnected == bleBluetooth) {
+            lastConnected = null;
+        }
+    }
+}
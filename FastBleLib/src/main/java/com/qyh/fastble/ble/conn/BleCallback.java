@@ -3,11 +3,42 @@ package com.qyh.fastble.ble.conn;
 import android.bluetooth.BluetoothGattCallback;
 
 import com.qyh.fastble.ble.exception.BleException;
+import com.qyh.fastble.ble.utils.BleExecutors;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Executor;
 
 
 public abstract class BleCallback {
 
     private BluetoothGattCallback bluetoothGattCallback;
+    /** 按 (事件, 特征码) 保存的订阅, 同一回调可以同时订阅多个特征码 */
+    private final Map<String, BluetoothGattCallback> gattCallbacks = new HashMap<>();
+    /** 为null时在主线程执行 */
+    private Executor executor;
+
+    /**
+     * 设置回调执行的线程, 默认在主线程执行, 见 {@link BleExecutors}
+     *
+     * 不更新UI的回调可以设置 {@link BleExecutors#direct()} 在binder线程直接执行, 省去切换线程.
+     * 非direct执行器时, 同一特征码的后续数据会覆盖characteristic的值,
+     * 高频notify需要完整数据时应使用direct执行器, 在回调中立即取出数据
+     *
+     * @param executor 为null时恢复主线程
+     */
+    public BleCallback setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public Executor getExecutor() {
+        Executor executor = this.executor;
+        return executor == null ? BleExecutors.main() : executor;
+    }
 
     public BleCallback setBluetoothGattCallback(BluetoothGattCallback bluetoothGattCallback) {
         this.bluetoothGattCallback = bluetoothGattCallback;
@@ -18,6 +49,38 @@ public abstract class BleCallback {
         return bluetoothGattCallback;
     }
 
+    /**
+     * 记录在 (事件, 特征码) 上的订阅
+     *
+     * @return 该回调之前在同一 (事件, 特征码) 上的订阅, 没有时返回null
+     */
+    synchronized BluetoothGattCallback putBluetoothGattCallback(int event, UUID uuid, BluetoothGattCallback callback) {
+        bluetoothGattCallback = callback;
+        return gattCallbacks.put(key(event, uuid), callback);
+    }
+
+    /**
+     * 该回调在 (事件, 特征码) 上的订阅
+     *
+     * @return 没有时返回null
+     */
+    public synchronized BluetoothGattCallback getBluetoothGattCallback(int event, UUID uuid) {
+        return gattCallbacks.get(key(event, uuid));
+    }
+
+    /**
+     * 取出并清空该回调的全部订阅
+     */
+    public synchronized List<BluetoothGattCallback> takeBluetoothGattCallbacks() {
+        List<BluetoothGattCallback> callbacks = new ArrayList<>(gattCallbacks.values());
+        gattCallbacks.clear();
+        return callbacks;
+    }
+
+    private static String key(int event, UUID uuid) {
+        return event + "/" + uuid;
+    }
+
     public abstract void onFailure(BleException exception);
 
     public abstract void onInitiatedResult(boolean result);
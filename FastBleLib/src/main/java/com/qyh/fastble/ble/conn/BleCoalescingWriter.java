@@ -0,0 +1,327 @@
+package com.qyh.fastble.ble.conn;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.qyh.fastble.ble.bluetooth.BleBluetooth;
+import com.qyh.fastble.ble.bluetooth.GattCallbackTable;
+import com.qyh.fastble.ble.exception.BleException;
+import com.qyh.fastble.ble.exception.GattException;
+import com.qyh.fastble.ble.exception.OtherException;
+import com.qyh.fastble.ble.utils.HashedWheelTimer;
+
+import java.util.ArrayDeque;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Coalescing writer for small, frequent writes to one characteristic.
+ * <p>
+ * Writes are held for a short window before a single operation is put on the connection's
+ * operation queue. The operation takes its payload only when it starts, so writes arriving
+ * while it waits behind other operations are coalesced as well:
+ * <ul>
+ * <li>{@link #MODE_MERGE} concatenates the pending writes, in order and without splitting one,
+ * into packets of at most MTU - 3 bytes. A full packet is queued without waiting for the window.</li>
+ * <li>{@link #MODE_LAST_WRITE_WINS} keeps only the latest value, for idempotent state
+ * characteristics such as a volume or brightness level.</li>
+ * </ul>
+ * The callback is invoked once per GATT write, which may carry several submitted writes.
+ */
+public class BleCoalescingWriter {
+
+    public static final int MODE_MERGE = 0;
+    public static final int MODE_LAST_WRITE_WINS = 1;
+
+    public static final long DEFAULT_WINDOW_MILLIS = 20;
+
+    private final BleConnector connector;
+    private final BleBluetooth bleBluetooth;
+    private final BluetoothGattCharacteristic characteristic;
+    private final int mode;
+    private final BleCharacterCallback bleCallback;
+
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    private int pendingBytes;
+    private long windowNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_WINDOW_MILLIS);
+    /** window timer armed by the first write after the last flush */
+    private HashedWheelTimer.Timeout windowTimeout;
+    /** an operation is queued and has not taken its payload yet */
+    private boolean scheduled;
+    private boolean closed;
+
+    private long submittedCount;
+    private long writeCount;
+
+    BleCoalescingWriter(BleConnector connector, BleBluetooth bleBluetooth,
+                        BluetoothGattCharacteristic characteristic, int mode, BleCharacterCallback bleCallback) {
+        if (mode != MODE_MERGE && mode != MODE_LAST_WRITE_WINS) {
+            throw new IllegalArgumentException("unknown coalescing mode: " + mode);
+        }
+        this.connector = connector;
+        this.bleBluetooth = bleBluetooth;
+        this.characteristic = characteristic;
+        this.mode = mode;
+        this.bleCallback = bleCallback;
+    }
+
+    /**
+     * how long the first write after a flush waits for more writes, 0 queues at once and
+     * only coalesces writes arriving while the operation waits in the queue
+     */
+    public synchronized BleCoalescingWriter setWindow(long window, TimeUnit unit) {
+        windowNanos = Math.max(unit.toNanos(window), 0);
+        return this;
+    }
+
+    /**
+     * buffer a write, returns at once. the data must not be modified afterwards.
+     *
+     * @return false if the writer is closed
+     */
+    public boolean write(byte[] data) {
+        if (data == null || data.length == 0) {
+            return false;
+        }
+        boolean start;
+        synchronized (this) {
+            if (closed) {
+                return false;
+            }
+            submittedCount++;
+            if (mode == MODE_LAST_WRITE_WINS) {
+                pending.clear();
+                pendingBytes = 0;
+            }
+            pending.addLast(data);
+            pendingBytes += data.length;
+            start = schedule();
+        }
+        if (start) {
+            start();
+        }
+        return true;
+    }
+
+    /**
+     * queue the buffered writes now instead of waiting for the window
+     */
+    public void flush() {
+        synchronized (this) {
+            if (closed || scheduled || pending.isEmpty()) {
+                return;
+            }
+            cancelWindow();
+            scheduled = true;
+        }
+        start();
+    }
+
+    /**
+     * drop the buffered writes, a write already handed to the stack still completes
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            cancelWindow();
+            pending.clear();
+            pendingBytes = 0;
+        }
+    }
+
+    /**
+     * decide what to do with the buffered writes, called with the lock held
+     *
+     * @return true if the caller has to queue an operation
+     */
+    private boolean schedule() {
+        if (scheduled || pending.isEmpty()) {
+            // the queued operation picks the new data up when it starts
+            return false;
+        }
+        if (windowNanos == 0 || (mode == MODE_MERGE && pendingBytes >= packetSize())) {
+            cancelWindow();
+            scheduled = true;
+            return true;
+        }
+        if (windowTimeout == null) {
+            windowTimeout = HashedWheelTimer.getDefault().newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    onWindowElapsed();
+                }
+            }, windowNanos, TimeUnit.NANOSECONDS);
+        }
+        return false;
+    }
+
+    private void onWindowElapsed() {
+        synchronized (this) {
+            windowTimeout = null;
+            if (closed || scheduled || pending.isEmpty()) {
+                return;
+            }
+            scheduled = true;
+        }
+        start();
+    }
+
+    private void cancelWindow() {
+        if (windowTimeout != null) {
+            windowTimeout.cancel();
+            windowTimeout = null;
+        }
+    }
+
+    private void start() {
+        if (!connector.enqueue(new CoalescedWriteOperation())) {
+            synchronized (this) {
+                scheduled = false;
+            }
+            if (bleCallback != null) {
+                BleConnector.postFailure(bleCallback, new OtherException("coalesced write operation rejected"));
+            }
+        }
+    }
+
+    private int packetSize() {
+        return Math.max(bleBluetooth.getMtu() - 3, 1);
+    }
+
+    /**
+     * take the payload when the operation starts
+     *
+     * @return null if there is nothing left to write
+     */
+    private synchronized byte[] nextPayload() {
+        scheduled = false;
+        if (pending.isEmpty()) {
+            return null;
+        }
+        byte[] first = pending.pollFirst();
+        if (pending.isEmpty() || first.length + pending.peekFirst().length > packetSize()) {
+            pendingBytes -= first.length;
+            return first;
+        }
+        int limit = packetSize();
+        int length = first.length;
+        int count = 1;
+        for (byte[] next : pending) {
+            if (length + next.length > limit) {
+                break;
+            }
+            length += next.length;
+            count++;
+        }
+        byte[] payload = new byte[length];
+        System.arraycopy(first, 0, payload, 0, first.length);
+        int offset = first.length;
+        for (int i = 1; i < count; i++) {
+            byte[] next = pending.pollFirst();
+            System.arraycopy(next, 0, payload, offset, next.length);
+            offset += next.length;
+        }
+        pendingBytes -= length;
+        return payload;
+    }
+
+    /**
+     * schedule what is left once a write has finished, e.g. the rest of a merge beyond one packet
+     */
+    private void onWriteFinished() {
+        boolean start;
+        synchronized (this) {
+            start = !closed && schedule();
+        }
+        if (start) {
+            start();
+        }
+    }
+
+    public int getMode() {
+        return mode;
+    }
+
+    /**
+     * writes passed to {@link #write(byte[])}
+     */
+    public synchronized long getSubmittedCount() {
+        return submittedCount;
+    }
+
+    /**
+     * GATT writes completed successfully
+     */
+    public synchronized long getWriteCount() {
+        return writeCount;
+    }
+
+    /**
+     * bytes buffered and not yet handed to the stack
+     */
+    public synchronized int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    private final class CoalescedWriteOperation extends GattOperation {
+
+        private byte[] payload;
+
+        CoalescedWriteOperation() {
+            super(GattCallbackTable.EVENT_CHARACTERISTIC_WRITE, characteristic.getUuid());
+        }
+
+        @Override
+        protected int execute(BluetoothGatt gatt) {
+            if (payload == null) {
+                payload = nextPayload();
+                if (payload == null) {
+                    return RESULT_DONE;
+                }
+            }
+            // set again on a retry, the characteristic is shared with other writers
+            characteristic.setValue(payload);
+            return gatt.writeCharacteristic(characteristic) ? RESULT_PENDING : RESULT_FAILED;
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            if (payload != null) {
+                if (status == BluetoothGatt.GATT_SUCCESS) {
+                    synchronized (BleCoalescingWriter.this) {
+                        writeCount++;
+                    }
+                    if (bleCallback != null) {
+                        BleConnector.postSuccess(bleCallback, characteristic);
+                    }
+                } else if (bleCallback != null) {
+                    BleConnector.postFailure(bleCallback, new GattException(status));
+                }
+            }
+            onWriteFinished();
+        }
+
+        @Override
+        protected void onFailure(BleException exception) {
+            if (payload == null) {
+                // failed before taking its payload, e.g. on disconnect: drop the batch it stood for,
+                // the next write schedules a new operation
+                synchronized (BleCoalescingWriter.this) {
+                    scheduled = false;
+                    pending.clear();
+                    pendingBytes = 0;
+                }
+            }
+            if (bleCallback != null) {
+                BleConnector.postFailure(bleCallback, exception);
+            }
+            if (payload != null) {
+                // only this payload is lost, schedule the writes buffered behind it
+                onWriteFinished();
+            }
+        }
+    }
+}
@@ -1,4 +1,3 @@
-
 package com.qyh.fastble.ble.conn;
 
 import android.bluetooth.BluetoothGatt;
@@ -6,38 +5,40 @@ import android.bluetooth.BluetoothGattCallback;
 import android.bluetooth.BluetoothGattCharacteristic;
 import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
-import android.os.Handler;
-import android.os.Looper;
-import android.os.Message;
+import android.os.Build;
 
 import com.qyh.fastble.ble.bluetooth.BleBluetooth;
+import com.qyh.fastble.ble.bluetooth.GattCallbackTable;
+import com.qyh.fastble.ble.exception.BleException;
 import com.qyh.fastble.ble.exception.GattException;
 import com.qyh.fastble.ble.exception.OtherException;
-import com.qyh.fastble.ble.exception.TimeoutException;
+import com.qyh.fastble.ble.notify.ByteSlice;
+import com.qyh.fastble.ble.notify.NotifySubscription;
+import com.qyh.fastble.ble.utils.BleExecutors;
 import com.qyh.fastble.ble.utils.BleLog;
 import com.qyh.fastble.ble.utils.HexUtil;
+import com.qyh.fastble.ble.utils.LogUtils;
 
 import java.util.Arrays;
+import java.util.List;
 import java.util.UUID;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
 
 /**
  * Ble Device Connector.
- * be sure main thread
+ * operations are queued on the connection's {@link GattOperationQueue},
+ * the boolean results only tell whether an operation was accepted by the queue,
+ * {@link BleCallback#onInitiatedResult(boolean)} reports when the gatt call is actually made.
  */
 public class BleConnector {
 
     private static final String TAG = BleConnector.class.getSimpleName();
     private static final String UUID_CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR = "00002902-0000-1000-8000-00805f9b34fb";
-
-    private static final int MSG_WRITE_CHA = 1;
-    private static final int MSG_WRIATE_DES = 2;
-    private static final int MSG_READ_CHA = 3;
-    private static final int MSG_READ_DES = 4;
-    private static final int MSG_READ_RSSI = 5;
-    private static final int MSG_NOTIFY_CHA = 6;
-    private static final int MSG_NOTIY_DES = 7;
-    private static final int MSG_INDICATE_DES = 8;
+    /** ATT header of a write request: opcode + handle */
+    private static final int ATT_WRITE_HEADER = 3;
+    /** 247 fits a 251 byte LE data length extension PDU, 244 byte segments */
+    public static final int DEFAULT_PREFERRED_MTU = 247;
 
     private BluetoothGatt bluetoothGatt;
     private BluetoothGattService service;
@@ -45,24 +46,13 @@ public class BleConnector {
     private BluetoothGattDescriptor descriptor;
     private BleBluetooth bleBluetooth;
     private static int timeOutMillis = 10000;
-    private Handler handler = new MyHandler();
-
-    private static final class MyHandler extends Handler {
-        @Override
-        public void handleMessage(Message msg) {
-
-            BleCallback call = (BleCallback) msg.obj;
-            if (call != null) {
-                call.onFailure(new TimeoutException());
-            }
-            msg.obj = null;
-        }
-    }
+    private int priority = GattOperation.PRIORITY_NORMAL;
+    private int retryCount = 3;
+    private int preferredMtu = DEFAULT_PREFERRED_MTU;
 
     public BleConnector(BleBluetooth bleBluetooth) {
         this.bleBluetooth = bleBluetooth;
         this.bluetoothGatt = bleBluetooth.getBluetoothGatt();
-        this.handler = new Handler(Looper.getMainLooper());
     }
 
     public BleConnector(BleBluetooth bleBluetooth, BluetoothGattService service,
@@ -130,17 +120,37 @@ public class BleConnector {
 
             handleCharacteristicNotificationCallback(bleCallback, uuid_notify);
 
-            return setCharacteristicNotification(getBluetoothGatt(), getCharacteristic(), true, bleCallback);
+            return setCharacteristicNotification(getBluetoothGatt(), getCharacteristic(), true, false, bleCallback);
 
         } else {
             if (bleCallback != null) {
-                bleCallback.onFailure(new OtherException("this characteristic not support notify!"));
-                bleCallback.onInitiatedResult(false);
+                postFailure(bleCallback, new OtherException("this characteristic not support notify!"));
+                postInitiated(bleCallback, false);
             }
             return false;
         }
     }
 
+    /**
+     * notify / indicate with an allocation-free subscription,
+     * packets are delivered through the subscription's reusable {@link ByteSlice}.
+     */
+    public boolean enableCharacteristicNotify(NotifySubscription subscription, boolean indication) {
+        if (getCharacteristic() == null
+                || (getCharacteristic().getProperties() & (indication
+                ? BluetoothGattCharacteristic.PROPERTY_INDICATE
+                : BluetoothGattCharacteristic.PROPERTY_NOTIFY)) == 0) {
+            BleLog.w(TAG, "this characteristic not support " + (indication ? "indicate" : "notify"));
+            return false;
+        }
+        bleBluetooth.getNotifyDispatcher().subscribe(subscription);
+        if (!setCharacteristicNotification(getBluetoothGatt(), getCharacteristic(), true, indication, null)) {
+            bleBluetooth.getNotifyDispatcher().unsubscribe(subscription);
+            return false;
+        }
+        return true;
+    }
+
     /**
      * stop notify
      */
@@ -149,49 +159,12 @@ public class BleConnector {
                 && (getCharacteristic().getProperties() | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
             BleLog.w(TAG, "characteristic.getProperties():" + getCharacteristic().getProperties());
 
-            return setCharacteristicNotification(getBluetoothGatt(), getCharacteristic(), false, null);
+            return setCharacteristicNotification(getBluetoothGatt(), getCharacteristic(), false, false, null);
         } else {
             return false;
         }
     }
 
-    /**
-     * notify setting
-     */
-    private boolean setCharacteristicNotification(BluetoothGatt gatt,
-                                                  BluetoothGattCharacteristic characteristic,
-                                                  boolean enable,
-                                                  BleCharacterCallback bleCallback) {
-        if (gatt == null || characteristic == null) {
-            if (bleCallback != null) {
-                bleCallback.onFailure(new OtherException("gatt or characteristic equal null"));
-                bleCallback.onInitiatedResult(false);
-            }
-            return false;
-        }
-
-        boolean success = gatt.setCharacteristicNotification(characteristic, enable);
-        BleLog.d(TAG, "setCharacteristicNotification: " + enable
-                + "\nsuccess: " + success
-                + "\ncharacteristic.getUuid(): " + characteristic.getUuid());
-
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(formUUID(UUID_CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR));
-        if (descriptor != null) {
-            descriptor.setValue(enable ? BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE :
-                    BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-            boolean success2 = gatt.writeDescriptor(descriptor);
-            if (bleCallback != null) {
-                bleCallback.onInitiatedResult(success2);
-            }
-            return success2;
-        }
-        if (bleCallback != null) {
-            bleCallback.onFailure(new OtherException("notify operation failed"));
-            bleCallback.onInitiatedResult(false);
-        }
-        return false;
-    }
-
     /**
      * indicate
      */
@@ -202,11 +175,11 @@ public class BleConnector {
 
             handleCharacteristicIndicationCallback(bleCallback, uuid_indicate);
 
-            return setCharacteristicIndication(getBluetoothGatt(), getCharacteristic(), true, bleCallback);
+            return setCharacteristicNotification(getBluetoothGatt(), getCharacteristic(), true, true, bleCallback);
 
         } else {
             if (bleCallback != null) {
-                bleCallback.onFailure(new OtherException("this characteristic not support indicate!"));
+                postFailure(bleCallback, new OtherException("this characteristic not support indicate!"));
             }
             return false;
         }
@@ -221,7 +194,7 @@ public class BleConnector {
                 && (getCharacteristic().getProperties() | BluetoothGattCharacteristic.PROPERTY_NOTIFY) > 0) {
             BleLog.w(TAG, "characteristic.getProperties():" + getCharacteristic().getProperties());
 
-            return setCharacteristicIndication(getBluetoothGatt(), getCharacteristic(), false, null);
+            return setCharacteristicNotification(getBluetoothGatt(), getCharacteristic(), false, true, null);
 
         } else {
             return false;
@@ -229,51 +202,102 @@ public class BleConnector {
     }
 
     /**
-     * indicate setting
+     * notify / indicate setting, queued as a write of the client characteristic config descriptor
      */
-    private boolean setCharacteristicIndication(BluetoothGatt gatt,
-                                                BluetoothGattCharacteristic characteristic,
-                                                boolean enable,
-                                                BleCharacterCallback bleCallback) {
+    private boolean setCharacteristicNotification(BluetoothGatt gatt,
+                                                  final BluetoothGattCharacteristic characteristic,
+                                                  final boolean enable,
+                                                  final boolean indication,
+                                                  BleCharacterCallback bleCallback) {
         if (gatt == null || characteristic == null) {
             if (bleCallback != null) {
-                bleCallback.onFailure(new OtherException("gatt or characteristic equal null"));
-                bleCallback.onInitiatedResult(false);
+                postFailure(bleCallback, new OtherException("gatt or characteristic equal null"));
+                postInitiated(bleCallback, false);
             }
             return false;
         }
 
-        boolean success = gatt.setCharacteristicNotification(characteristic, enable);
-        BleLog.d(TAG, "setCharacteristicIndication:" + enable
-                + "\nsuccess:" + success
-                + "\ncharacteristic.getUuid():" + characteristic.getUuid());
-
-        BluetoothGattDescriptor descriptor = characteristic.getDescriptor(formUUID(UUID_CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR));
-        if (descriptor != null) {
-            descriptor.setValue(enable ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE :
-                    BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
-            boolean success2 = gatt.writeDescriptor(descriptor);
+        final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(formUUID(UUID_CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR));
+        if (descriptor == null) {
             if (bleCallback != null) {
-                bleCallback.onInitiatedResult(success2);
+                postFailure(bleCallback, new OtherException(indication ? "indicate operation failed" : "notify operation failed"));
+                postInitiated(bleCallback, false);
             }
-            return success2;
-        }
-        if (bleCallback != null) {
-            bleCallback.onFailure(new OtherException("indicate operation failed"));
-            bleCallback.onInitiatedResult(false);
+            return false;
         }
-        return false;
+
+        return enqueue(new CallbackOperation(GattCallbackTable.EVENT_DESCRIPTOR_WRITE,
+                characteristic.getUuid(), bleCallback, false) {
+            @Override
+            protected int execute(BluetoothGatt gatt) {
+                boolean success = gatt.setCharacteristicNotification(characteristic, enable);
+                BleLog.d(TAG, "setCharacteristicNotification: " + enable
+                        + "\nindication: " + indication
+                        + "\nsuccess: " + success
+                        + "\ncharacteristic.getUuid(): " + characteristic.getUuid());
+
+                byte[] value = !enable ? BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE
+                        : indication ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE
+                        : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE;
+                descriptor.setValue(value);
+                return gatt.writeDescriptor(descriptor) ? RESULT_PENDING : RESULT_FAILED;
+            }
+        });
     }
 
 
     /**
      * write
      */
-    public boolean writeCharacteristic(byte[] data, BleCharacterCallback bleCallback, String uuid_write) {
+    public boolean writeCharacteristic(final byte[] data, final BleCharacterCallback bleCallback, final String uuid_write) {
         if (data == null) {
             if (bleCallback != null) {
-                bleCallback.onFailure(new OtherException("the data to be written is empty"));
-                bleCallback.onInitiatedResult(false);
+                postFailure(bleCallback, new OtherException("the data to be written is empty"));
+                postInitiated(bleCallback, false);
+            }
+            return false;
+        }
+
+        if (getCharacteristic() == null
+                || (getCharacteristic().getProperties() & (BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) == 0) {
+            if (bleCallback != null) {
+                postFailure(bleCallback, new OtherException("this characteristic not support write!"));
+                postInitiated(bleCallback, false);
+            }
+            return false;
+        }
+
+        if (BleLog.isLoggable(LogUtils.LEVEL_DEBUG)) {
+            BleLog.d(TAG, getCharacteristic().getUuid()
+                    + "\ncharacteristic.getProperties():" + getCharacteristic().getProperties()
+                    + "\ncharacteristic.getValue(): " + Arrays.toString(getCharacteristic().getValue())
+                    + "\ncharacteristic write bytes: " + Arrays.toString(data)
+                    + "\nhex: " + HexUtil.encodeHexStr(data));
+        }
+
+        final BluetoothGattCharacteristic characteristic = getCharacteristic();
+        return enqueue(new CallbackOperation(GattCallbackTable.EVENT_CHARACTERISTIC_WRITE,
+                characteristic.getUuid(), bleCallback, true) {
+            @Override
+            protected int execute(BluetoothGatt gatt) {
+                // the characteristic is shared, set its value only when the write really starts
+                handleCharacteristicWriteCallback(bleCallback, characteristic.getUuid());
+                characteristic.setValue(data);
+                return gatt.writeCharacteristic(characteristic) ? RESULT_PENDING : RESULT_FAILED;
+            }
+        });
+    }
+
+    /**
+     * large write, the payload is split into MTU - 3 byte segments.
+     * the MTU is negotiated once per connection before the first large write,
+     * then all segments are queued back to back; the first failed segment aborts the rest.
+     */
+    public boolean writeCharacteristicLarge(final byte[] data, final BleWriteCallback bleCallback) {
+        if (data == null || data.length == 0) {
+            if (bleCallback != null) {
+                postFailure(bleCallback, new OtherException("the data to be written is empty"));
+                postInitiated(bleCallback, false);
             }
             return false;
         }
@@ -281,42 +305,236 @@ public class BleConnector {
         if (getCharacteristic() == null
                 || (getCharacteristic().getProperties() & (BluetoothGattCharacteristic.PROPERTY_WRITE | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) == 0) {
             if (bleCallback != null) {
-                bleCallback.onFailure(new OtherException("this characteristic not support write!"));
-                bleCallback.onInitiatedResult(false);
+                postFailure(bleCallback, new OtherException("this characteristic not support write!"));
+                postInitiated(bleCallback, false);
             }
             return false;
         }
 
-        BleLog.d(TAG, getCharacteristic().getUuid()
-                + "\ncharacteristic.getProperties():" + getCharacteristic().getProperties()
-                + "\ncharacteristic.getValue(): " + Arrays.toString(getCharacteristic().getValue())
-                + "\ncharacteristic write bytes: " + Arrays.toString(data)
-                + "\nhex: " + HexUtil.encodeHexStr(data));
+        final LargeWrite write = new LargeWrite(getCharacteristic(), data, bleCallback);
+        if (bleBluetooth.isMtuNegotiated()
+                || Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP
+                || preferredMtu <= BleBluetooth.DEFAULT_MTU
+                || data.length <= BleBluetooth.DEFAULT_MTU - ATT_WRITE_HEADER) {
+            write.start();
+            return true;
+        }
+
+        return enqueue(new GattOperation(GattCallbackTable.EVENT_MTU_CHANGED, GattCallbackTable.NO_UUID) {
+            @Override
+            protected int execute(BluetoothGatt gatt) {
+                if (bleBluetooth.isMtuNegotiated()) {
+                    return RESULT_DONE;
+                }
+                return gatt.requestMtu(preferredMtu) ? RESULT_PENDING : RESULT_FAILED;
+            }
 
-        handleCharacteristicWriteCallback(bleCallback, uuid_write);
-        getCharacteristic().setValue(data);
-        return handleAfterInitialed(getBluetoothGatt().writeCharacteristic(getCharacteristic()), bleCallback);
+            @Override
+            protected void onComplete(int status) {
+                write.start();
+            }
+
+            @Override
+            protected void onFailure(BleException exception) {
+                // the peer may not answer the exchange, fall back to the current MTU
+                BleLog.w(TAG, "requestMtu failed: " + exception);
+                write.start();
+            }
+        });
+    }
+
+    /**
+     * the segments of one large write, sharing a single progress counter
+     */
+    private final class LargeWrite {
+
+        private final BluetoothGattCharacteristic characteristic;
+        private final byte[] data;
+        private final BleWriteCallback bleCallback;
+        private long startNanos;
+        private int written;
+        private boolean initiated;
+        private boolean finished;
+
+        LargeWrite(BluetoothGattCharacteristic characteristic, byte[] data, BleWriteCallback bleCallback) {
+            this.characteristic = characteristic;
+            this.data = data;
+            this.bleCallback = bleCallback;
+        }
+
+        void start() {
+            int segmentSize = Math.max(bleBluetooth.getMtu() - ATT_WRITE_HEADER, 1);
+            if (BleLog.isLoggable(LogUtils.LEVEL_DEBUG)) {
+                BleLog.d(TAG, characteristic.getUuid() + " large write " + data.length
+                        + " bytes, mtu " + bleBluetooth.getMtu());
+            }
+            synchronized (this) {
+                startNanos = System.nanoTime();
+            }
+            for (int offset = 0; offset < data.length; offset += segmentSize) {
+                final int from = offset;
+                final int to = Math.min(offset + segmentSize, data.length);
+                enqueue(new GattOperation(GattCallbackTable.EVENT_CHARACTERISTIC_WRITE, characteristic.getUuid()) {
+                    @Override
+                    protected int execute(BluetoothGatt gatt) {
+                        if (isFinished()) {
+                            return RESULT_DONE;
+                        }
+                        characteristic.setValue(Arrays.copyOfRange(data, from, to));
+                        return gatt.writeCharacteristic(characteristic) ? RESULT_PENDING : RESULT_FAILED;
+                    }
+
+                    @Override
+                    protected void onInitiated(boolean result) {
+                        onSegmentInitiated(result);
+                    }
+
+                    @Override
+                    protected void onComplete(int status) {
+                        if (status == BluetoothGatt.GATT_SUCCESS) {
+                            onSegmentWritten(to - from);
+                        } else {
+                            fail(new GattException(status));
+                        }
+                    }
+
+                    @Override
+                    protected void onFailure(BleException exception) {
+                        fail(exception);
+                    }
+                });
+            }
+        }
+
+        private synchronized boolean isFinished() {
+            return finished;
+        }
+
+        private void onSegmentInitiated(boolean result) {
+            synchronized (this) {
+                if (initiated || (result && finished)) {
+                    return;
+                }
+                initiated = true;
+            }
+            if (bleCallback != null) {
+                postInitiated(bleCallback, result);
+            }
+        }
+
+        private void onSegmentWritten(int length) {
+            final int current;
+            long elapsedNanos;
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                written += length;
+                current = written;
+                finished = current == data.length;
+                elapsedNanos = System.nanoTime() - startNanos;
+            }
+            if (bleCallback == null) {
+                return;
+            }
+            postProgress(bleCallback, current, data.length);
+            if (current == data.length) {
+                long bytesPerSecond = elapsedNanos <= 0 ? 0
+                        : (long) (data.length * 1000000000.0 / elapsedNanos);
+                postSuccess(bleCallback, data.length, elapsedNanos / 1000000, bytesPerSecond);
+            }
+        }
+
+        private void fail(BleException exception) {
+            synchronized (this) {
+                if (finished) {
+                    return;
+                }
+                finished = true;
+            }
+            if (bleCallback != null) {
+                postFailure(bleCallback, exception);
+            }
+        }
+    }
+
+    /**
+     * open a write-without-response stream on this characteristic,
+     * the MTU is negotiated first if this connection has not done it yet.
+     * see {@link BleWriteStream}
+     *
+     * @param window packets queued at once, also the initial credit
+     * @return null if the characteristic does not support write without response
+     */
+    public BleWriteStream openWriteStream(int window, BleWriteCallback bleCallback) {
+        if (getCharacteristic() == null
+                || (getCharacteristic().getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE) == 0) {
+            if (bleCallback != null) {
+                postFailure(bleCallback, new OtherException("this characteristic not support write without response!"));
+                postInitiated(bleCallback, false);
+            }
+            return null;
+        }
+        if (!bleBluetooth.isMtuNegotiated()
+                && Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP
+                && preferredMtu > BleBluetooth.DEFAULT_MTU) {
+            // queued ahead of the first packet, packets are sliced with the negotiated MTU
+            requestMtu(preferredMtu, null);
+        }
+        return new BleWriteStream(this, bleBluetooth, getCharacteristic(),
+                window > 0 ? window : BleWriteStream.DEFAULT_WINDOW, bleCallback);
+    }
+
+    /**
+     * open a coalescing writer on this characteristic, small writes within the window are merged
+     * up to MTU - 3 bytes or collapsed to the latest value before they are queued.
+     * see {@link BleCoalescingWriter}
+     *
+     * @param mode         {@link BleCoalescingWriter#MODE_MERGE} or {@link BleCoalescingWriter#MODE_LAST_WRITE_WINS}
+     * @param windowMillis how long writes are held, 0 only coalesces while the queue is busy
+     * @return null if the characteristic does not support write
+     */
+    public BleCoalescingWriter openCoalescingWriter(int mode, long windowMillis, BleCharacterCallback bleCallback) {
+        if (getCharacteristic() == null
+                || (getCharacteristic().getProperties() & (BluetoothGattCharacteristic.PROPERTY_WRITE
+                | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) == 0) {
+            if (bleCallback != null) {
+                postFailure(bleCallback, new OtherException("this characteristic not support write!"));
+                postInitiated(bleCallback, false);
+            }
+            return null;
+        }
+        return new BleCoalescingWriter(this, bleBluetooth, getCharacteristic(), mode, bleCallback)
+                .setWindow(windowMillis, TimeUnit.MILLISECONDS);
     }
 
     /**
      * read
      */
-    public boolean readCharacteristic(BleCharacterCallback bleCallback, String uuid_read) {
+    public boolean readCharacteristic(final BleCharacterCallback bleCallback, String uuid_read) {
         if (getCharacteristic() != null
                 && (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) > 0) {
 
-            BleLog.d(TAG, getCharacteristic().getUuid()
-                    + "\ncharacteristic.getProperties(): " + getCharacteristic().getProperties()
-                    + "\ncharacteristic.getValue(): " + Arrays.toString(getCharacteristic().getValue()));
+            if (BleLog.isLoggable(LogUtils.LEVEL_DEBUG)) {
+                BleLog.d(TAG, getCharacteristic().getUuid()
+                        + "\ncharacteristic.getProperties(): " + getCharacteristic().getProperties()
+                        + "\ncharacteristic.getValue(): " + Arrays.toString(getCharacteristic().getValue()));
+            }
 
-            setCharacteristicNotification(getBluetoothGatt(), getCharacteristic(), false, bleCallback);
-            handleCharacteristicReadCallback(bleCallback, uuid_read);
-            return handleAfterInitialed(getBluetoothGatt().readCharacteristic(getCharacteristic()), bleCallback);
+            final BluetoothGattCharacteristic characteristic = getCharacteristic();
+            return enqueue(new CallbackOperation(GattCallbackTable.EVENT_CHARACTERISTIC_READ,
+                    characteristic.getUuid(), bleCallback, true) {
+                @Override
+                protected int execute(BluetoothGatt gatt) {
+                    handleCharacteristicReadCallback(bleCallback, characteristic.getUuid());
+                    return gatt.readCharacteristic(characteristic) ? RESULT_PENDING : RESULT_FAILED;
+                }
+            });
 
         } else {
             if (bleCallback != null) {
-                bleCallback.onFailure(new OtherException("this characteristic not support read!"));
-                bleCallback.onInitiatedResult(false);
+                postFailure(bleCallback, new OtherException("this characteristic not support read!"));
+                postInitiated(bleCallback, false);
             }
             return false;
         }
@@ -325,9 +543,317 @@ public class BleConnector {
     /**
      * rssi
      */
-    public boolean readRemoteRssi(BleRssiCallback bleCallback) {
-        handleRSSIReadCallback(bleCallback);
-        return handleAfterInitialed(getBluetoothGatt().readRemoteRssi(), bleCallback);
+    public boolean readRemoteRssi(final BleRssiCallback bleCallback) {
+        return enqueue(new CallbackOperation(GattCallbackTable.EVENT_READ_RSSI,
+                GattCallbackTable.NO_UUID, bleCallback, true) {
+            @Override
+            protected int execute(BluetoothGatt gatt) {
+                handleRSSIReadCallback(bleCallback);
+                return gatt.readRemoteRssi() ? RESULT_PENDING : RESULT_FAILED;
+            }
+        });
+    }
+
+    /**
+     * negotiate the MTU of this connection, the result is cached until disconnect.
+     * needs android 5.0, older versions always use the default 23 byte MTU.
+     */
+    public boolean requestMtu(final int mtu, final BleMtuCallback bleCallback) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) {
+            if (bleCallback != null) {
+                postFailure(bleCallback, new OtherException("requestMtu needs android 5.0"));
+                postInitiated(bleCallback, false);
+            }
+            return false;
+        }
+
+        return enqueue(new CallbackOperation(GattCallbackTable.EVENT_MTU_CHANGED,
+                GattCallbackTable.NO_UUID, bleCallback, true) {
+            @Override
+            protected int execute(BluetoothGatt gatt) {
+                handleMtuChangedCallback(bleCallback);
+                return gatt.requestMtu(mtu) ? RESULT_PENDING : RESULT_FAILED;
+            }
+        });
+    }
+
+    /*------------------------------- futures ----------------------------------- */
+
+    /**
+     * read this characteristic
+     *
+     * @return completes with a copy of the value
+     */
+    public BleFuture<byte[]> readCharacteristic() {
+        final BluetoothGattCharacteristic characteristic = getCharacteristic();
+        if (characteristic == null
+                || (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_READ) == 0) {
+            return BleFuture.failed(new OtherException("this characteristic not support read!"));
+        }
+        return enqueue(new FutureOperation<byte[]>(GattCallbackTable.EVENT_CHARACTERISTIC_READ,
+                characteristic.getUuid()) {
+            @Override
+            protected int start(BluetoothGatt gatt) {
+                return gatt.readCharacteristic(characteristic) ? RESULT_PENDING : RESULT_FAILED;
+            }
+
+            @Override
+            protected byte[] result() {
+                byte[] value = characteristic.getValue();
+                return value == null ? new byte[0] : value.clone();
+            }
+        });
+    }
+
+    /**
+     * write this characteristic with its current write type
+     *
+     * @return completes when the write is confirmed
+     */
+    public BleFuture<Void> writeCharacteristic(final byte[] data) {
+        final BluetoothGattCharacteristic characteristic = getCharacteristic();
+        if (data == null) {
+            return BleFuture.failed(new OtherException("the data to be written is empty"));
+        }
+        if (characteristic == null
+                || (characteristic.getProperties() & (BluetoothGattCharacteristic.PROPERTY_WRITE
+                | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) == 0) {
+            return BleFuture.failed(new OtherException("this characteristic not support write!"));
+        }
+        return enqueue(new FutureOperation<Void>(GattCallbackTable.EVENT_CHARACTERISTIC_WRITE,
+                characteristic.getUuid()) {
+            @Override
+            protected int start(BluetoothGatt gatt) {
+                characteristic.setValue(data);
+                return gatt.writeCharacteristic(characteristic) ? RESULT_PENDING : RESULT_FAILED;
+            }
+
+            @Override
+            protected Void result() {
+                return null;
+            }
+        });
+    }
+
+    /**
+     * @return completes with the rssi of the connection
+     */
+    public BleFuture<Integer> readRemoteRssi() {
+        return enqueue(new FutureOperation<Integer>(GattCallbackTable.EVENT_READ_RSSI,
+                GattCallbackTable.NO_UUID) {
+            @Override
+            protected int start(BluetoothGatt gatt) {
+                return gatt.readRemoteRssi() ? RESULT_PENDING : RESULT_FAILED;
+            }
+
+            @Override
+            protected Integer result() {
+                return bleBluetooth.getRssi();
+            }
+        });
+    }
+
+    /**
+     * subscribe to this characteristic, the subscription receives data as soon as it is added,
+     * before the client characteristic config descriptor is written
+     *
+     * @return completes with the subscription once the descriptor is written;
+     * on failure the subscription is removed again
+     */
+    public BleFuture<NotifySubscription> subscribe(final NotifySubscription subscription, final boolean indication) {
+        final BluetoothGattCharacteristic characteristic = getCharacteristic();
+        if (characteristic == null
+                || (characteristic.getProperties() & (indication
+                ? BluetoothGattCharacteristic.PROPERTY_INDICATE
+                : BluetoothGattCharacteristic.PROPERTY_NOTIFY)) == 0) {
+            return BleFuture.failed(new OtherException("this characteristic not support "
+                    + (indication ? "indicate" : "notify")));
+        }
+        final BluetoothGattDescriptor descriptor = characteristic.getDescriptor(
+                formUUID(UUID_CLIENT_CHARACTERISTIC_CONFIG_DESCRIPTOR));
+        if (descriptor == null) {
+            return BleFuture.failed(new OtherException(indication ? "indicate operation failed" : "notify operation failed"));
+        }
+        bleBluetooth.getNotifyDispatcher().subscribe(subscription);
+        BleFuture<NotifySubscription> future = enqueue(new FutureOperation<NotifySubscription>(
+                GattCallbackTable.EVENT_DESCRIPTOR_WRITE, characteristic.getUuid()) {
+            @Override
+            protected int start(BluetoothGatt gatt) {
+                gatt.setCharacteristicNotification(characteristic, true);
+                descriptor.setValue(indication ? BluetoothGattDescriptor.ENABLE_INDICATION_VALUE
+                        : BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+                return gatt.writeDescriptor(descriptor) ? RESULT_PENDING : RESULT_FAILED;
+            }
+
+            @Override
+            protected NotifySubscription result() {
+                return subscription;
+            }
+        });
+        future.addListener(new BleFuture.Listener<NotifySubscription>() {
+            @Override
+            public void onSuccess(NotifySubscription value) {
+            }
+
+            @Override
+            public void onFailure(BleException exception) {
+                bleBluetooth.getNotifyDispatcher().unsubscribe(subscription);
+            }
+        });
+        return future;
+    }
+
+    private <T> BleFuture<T> enqueue(FutureOperation<T> operation) {
+        if (!enqueue((GattOperation) operation)) {
+            operation.future.fail(new OtherException("gatt operation could not be queued"));
+        }
+        return operation.future;
+    }
+
+    /**
+     * queue an operation with this connector's priority, timeout and retry settings
+     */
+    public boolean enqueue(GattOperation operation) {
+        operation.setPriority(priority)
+                .setTimeoutMillis(timeOutMillis)
+                .setMaxRetries(retryCount);
+        return bleBluetooth.getOperationQueue().enqueue(operation);
+    }
+
+    /**
+     * queue operations back to back with the given priority and this connector's timeout and retry settings
+     */
+    public boolean enqueueAll(List<GattOperation> operations, int priority) {
+        for (GattOperation operation : operations) {
+            operation.setPriority(priority)
+                    .setTimeoutMillis(timeOutMillis)
+                    .setMaxRetries(retryCount);
+        }
+        return bleBluetooth.getOperationQueue().enqueueAll(operations);
+    }
+
+    /**
+     * start a reliable write transaction, see {@link BleReliableWrite}
+     */
+    public BleReliableWrite newReliableWrite() {
+        return new BleReliableWrite(this);
+    }
+
+    /**
+     * request / response channel writing to this characteristic, responses are matched
+     * by sequence id. the caller subscribes the returned rpc to the response characteristic.
+     * see {@link BleRpc}
+     *
+     * @return null if the characteristic does not support write
+     */
+    public BleRpc newRpc(BleRpc.SequenceExtractor extractor, int maxOutstanding) {
+        if (extractor == null) {
+            throw new IllegalArgumentException("extractor must not be null");
+        }
+        return newRpc(null, extractor, maxOutstanding);
+    }
+
+    /**
+     * request / response channel writing to this characteristic, responses are matched
+     * by a predicate against the outstanding requests in send order. see {@link BleRpc}
+     *
+     * @return null if the characteristic does not support write
+     */
+    public BleRpc newRpc(BleRpc.Matcher matcher, int maxOutstanding) {
+        if (matcher == null) {
+            throw new IllegalArgumentException("matcher must not be null");
+        }
+        return newRpc(matcher, null, maxOutstanding);
+    }
+
+    private BleRpc newRpc(BleRpc.Matcher matcher, BleRpc.SequenceExtractor extractor, int maxOutstanding) {
+        if (getCharacteristic() == null
+                || (getCharacteristic().getProperties() & (BluetoothGattCharacteristic.PROPERTY_WRITE
+                | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE)) == 0) {
+            BleLog.w(TAG, "this characteristic not support write!");
+            return null;
+        }
+        return new BleRpc(this, getCharacteristic(), matcher, extractor, maxOutstanding);
+    }
+
+    /**
+     * operation reporting to a BleCallback,
+     * one-shot subscriptions are dropped when the operation fails.
+     */
+    private abstract class CallbackOperation extends GattOperation {
+
+        private final BleCallback bleCallback;
+        private final boolean oneShot;
+
+        CallbackOperation(int event, UUID uuid, BleCallback bleCallback, boolean oneShot) {
+            super(event, uuid);
+            this.bleCallback = bleCallback;
+            this.oneShot = oneShot;
+        }
+
+        @Override
+        protected void onInitiated(boolean initiated) {
+            if (bleCallback != null) {
+                postInitiated(bleCallback, initiated);
+            }
+        }
+
+        @Override
+        protected void onFailure(BleException exception) {
+            if (bleCallback != null) {
+                if (oneShot) {
+                    bleBluetooth.removeGattCallback(bleCallback.getBluetoothGattCallback());
+                }
+                postFailure(bleCallback, exception);
+            }
+        }
+    }
+
+
+    /**
+     * operation completing a {@link BleFuture}. no gatt callback is registered, the result is
+     * taken when the completion event reaches the queue, before the next operation starts.
+     * a future that is already done (cancelled, timed out) skips the gatt call.
+     */
+    private abstract static class FutureOperation<T> extends GattOperation {
+
+        final BleFuture<T> future = new BleFuture<>();
+
+        FutureOperation(int event, UUID uuid) {
+            super(event, uuid);
+        }
+
+        /**
+         * issue the gatt call, see {@link #execute(BluetoothGatt)}
+         */
+        protected abstract int start(BluetoothGatt gatt);
+
+        /**
+         * the result of a successful operation, read on the binder thread
+         */
+        protected abstract T result();
+
+        @Override
+        protected final int execute(BluetoothGatt gatt) {
+            return future.isDone() ? RESULT_DONE : start(gatt);
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            if (future.isDone()) {
+                return;
+            }
+            if (status == BluetoothGatt.GATT_SUCCESS) {
+                future.complete(result());
+            } else {
+                future.fail(new GattException(status));
+            }
+        }
+
+        @Override
+        protected void onFailure(BleException exception) {
+            future.fail(exception);
+        }
     }
 
 
@@ -340,20 +866,13 @@ public class BleConnector {
                                                           final String uuid_notify) {
         if (bleCallback != null) {
 
-            listenAndTimer(bleCallback, MSG_NOTIFY_CHA, uuid_notify, new BluetoothGattCallback() {
-                AtomicBoolean msgRemoved = new AtomicBoolean(false);
-
+            listen(bleCallback, GattCallbackTable.EVENT_CHARACTERISTIC_CHANGED,
+                    getCharacteristic().getUuid(), new BluetoothGattCallback() {
                 @Override
                 public void onCharacteristicChanged(BluetoothGatt gatt,
                                                     BluetoothGattCharacteristic characteristic) {
-
-                    if (!msgRemoved.getAndSet(true)) {
-                        // 移除超时任务
-                        handler.removeMessages(MSG_NOTIFY_CHA, this);
-                    }
-                    if (characteristic.getUuid().equals(UUID.fromString(uuid_notify))) {
-                        bleCallback.onSuccess(characteristic);
-                    }
+                    // 分发表已按特征码路由, 这里无需再比较UUID
+                    postSuccess(bleCallback, characteristic);
                 }
             });
         }
@@ -366,19 +885,12 @@ public class BleConnector {
                                                         final String uuid_indicate) {
         if (bleCallback != null) {
 
-            listenAndTimer(bleCallback, MSG_INDICATE_DES, uuid_indicate, new BluetoothGattCallback() {
-                AtomicBoolean msgRemoved = new AtomicBoolean(false);
-
+            listen(bleCallback, GattCallbackTable.EVENT_CHARACTERISTIC_CHANGED,
+                    getCharacteristic().getUuid(), new BluetoothGattCallback() {
                 @Override
                 public void onCharacteristicChanged(BluetoothGatt gatt,
                                                     BluetoothGattCharacteristic characteristic) {
-
-                    if (!msgRemoved.getAndSet(true)) {
-                        handler.removeMessages(MSG_INDICATE_DES, this);
-                    }
-                    if (characteristic.getUuid().equals(UUID.fromString(uuid_indicate))) {
-                        bleCallback.onSuccess(characteristic);
-                    }
+                    postSuccess(bleCallback, characteristic);
                 }
             });
         }
@@ -388,21 +900,22 @@ public class BleConnector {
      * write
      */
     private void handleCharacteristicWriteCallback(final BleCharacterCallback bleCallback,
-                                                   final String uuid_write) {
+                                                   UUID uuid_write) {
         if (bleCallback != null) {
 
-            listenAndTimer(bleCallback, MSG_WRITE_CHA, uuid_write, new BluetoothGattCallback() {
+            listen(bleCallback, GattCallbackTable.EVENT_CHARACTERISTIC_WRITE,
+                    uuid_write, new BluetoothGattCallback() {
                 @Override
                 public void onCharacteristicWrite(BluetoothGatt gatt,
                                                   BluetoothGattCharacteristic characteristic, int status) {
-                    handler.removeMessages(MSG_WRITE_CHA, this);
+                    // 一次性回调, 完成后取消订阅
+                    bleBluetooth.removeGattCallback(GattCallbackTable.EVENT_CHARACTERISTIC_WRITE,
+                            characteristic.getUuid(), this);
 
                     if (status == BluetoothGatt.GATT_SUCCESS) {
-                        if (characteristic.getUuid().equals(UUID.fromString(uuid_write))) {
-                            bleCallback.onSuccess(characteristic);
-                        }
+                        postSuccess(bleCallback, characteristic);
                     } else {
-                        bleCallback.onFailure(new GattException(status));
+                        postFailure(bleCallback, new GattException(status));
                     }
                 }
             });
@@ -413,23 +926,19 @@ public class BleConnector {
      * read
      */
     private void handleCharacteristicReadCallback(final BleCharacterCallback bleCallback,
-                                                  final String uuid_read) {
+                                                  UUID uuid_read) {
         if (bleCallback != null) {
-            listenAndTimer(bleCallback, MSG_READ_CHA, uuid_read, new BluetoothGattCallback() {
-                AtomicBoolean msgRemoved = new AtomicBoolean(false);
-
+            listen(bleCallback, GattCallbackTable.EVENT_CHARACTERISTIC_READ,
+                    uuid_read, new BluetoothGattCallback() {
                 @Override
                 public void onCharacteristicRead(BluetoothGatt gatt,
                                                  BluetoothGattCharacteristic characteristic, int status) {
-                    if (!msgRemoved.getAndSet(true)) {
-                        handler.removeMessages(MSG_READ_CHA, this);
-                    }
+                    bleBluetooth.removeGattCallback(GattCallbackTable.EVENT_CHARACTERISTIC_READ,
+                            characteristic.getUuid(), this);
                     if (status == BluetoothGatt.GATT_SUCCESS) {
-                        if (characteristic.getUuid().equals(UUID.fromString(uuid_read))) {
-                            bleCallback.onSuccess(characteristic);
-                        }
+                        postSuccess(bleCallback, characteristic);
                     } else {
-                        bleCallback.onFailure(new GattException(status));
+                        postFailure(bleCallback, new GattException(status));
                     }
                 }
             });
@@ -442,40 +951,138 @@ public class BleConnector {
     private void handleRSSIReadCallback(final BleRssiCallback bleCallback) {
 
         if (bleCallback != null) {
-            listenAndTimer(bleCallback, MSG_READ_RSSI, BleBluetooth.READ_RSSI_KEY, new BluetoothGattCallback() {
+            listen(bleCallback, GattCallbackTable.EVENT_READ_RSSI,
+                    GattCallbackTable.NO_UUID, new BluetoothGattCallback() {
                 @Override
                 public void onReadRemoteRssi(BluetoothGatt gatt, int rssi, int status) {
-                    handler.removeMessages(MSG_READ_RSSI, this);
+                    bleBluetooth.removeGattCallback(GattCallbackTable.EVENT_READ_RSSI,
+                            GattCallbackTable.NO_UUID, this);
                     if (status == BluetoothGatt.GATT_SUCCESS) {
-                        bleCallback.onSuccess(rssi);
+                        postSuccess(bleCallback, rssi);
                     } else {
-                        bleCallback.onFailure(new GattException(status));
+                        postFailure(bleCallback, new GattException(status));
                     }
                 }
             });
         }
     }
 
-    private boolean handleAfterInitialed(boolean initiated, BleCallback bleCallback) {
+    /**
+     * mtu
+     */
+    private void handleMtuChangedCallback(final BleMtuCallback bleCallback) {
+
         if (bleCallback != null) {
-            if (!initiated) {
-                bleCallback.onFailure(new OtherException("write or read operation failed"));
-            }
-            bleCallback.onInitiatedResult(initiated);
+            listen(bleCallback, GattCallbackTable.EVENT_MTU_CHANGED,
+                    GattCallbackTable.NO_UUID, new BluetoothGattCallback() {
+                @Override
+                public void onMtuChanged(BluetoothGatt gatt, int mtu, int status) {
+                    bleBluetooth.removeGattCallback(GattCallbackTable.EVENT_MTU_CHANGED,
+                            GattCallbackTable.NO_UUID, this);
+                    if (status == BluetoothGatt.GATT_SUCCESS) {
+                        postSuccess(bleCallback, mtu);
+                    } else {
+                        postFailure(bleCallback, new GattException(status));
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * results are delivered on the callback's executor,
+     * a direct executor runs them inline without allocating a Runnable.
+     */
+    static void postSuccess(final BleCharacterCallback bleCallback,
+                            final BluetoothGattCharacteristic characteristic) {
+        Executor executor = bleCallback.getExecutor();
+        if (BleExecutors.isDirect(executor)) {
+            bleCallback.onSuccess(characteristic);
+            return;
         }
-        return initiated;
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                bleCallback.onSuccess(characteristic);
+            }
+        });
     }
 
+    private static void postSuccess(final BleRssiCallback bleCallback, final int rssi) {
+        bleCallback.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                bleCallback.onSuccess(rssi);
+            }
+        });
+    }
+
+    private static void postSuccess(final BleMtuCallback bleCallback, final int mtu) {
+        bleCallback.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                bleCallback.onSuccess(mtu);
+            }
+        });
+    }
+
+    static void postSuccess(final BleWriteCallback bleCallback, final int total,
+                                    final long elapsedMillis, final long bytesPerSecond) {
+        bleCallback.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                bleCallback.onSuccess(total, elapsedMillis, bytesPerSecond);
+            }
+        });
+    }
+
+    static void postProgress(final BleWriteCallback bleCallback, final int current, final int total) {
+        Executor executor = bleCallback.getExecutor();
+        if (BleExecutors.isDirect(executor)) {
+            bleCallback.onProgress(current, total);
+            return;
+        }
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                bleCallback.onProgress(current, total);
+            }
+        });
+    }
 
     /**
-     * listen bleBluetooth gatt callback, and send a delayed message.
+     * deliver a failure on the callback's executor, also used by BleManager for failures
+     * found before an operation is queued.
      */
-    private void listenAndTimer(BleCallback bleCallback, int what, String uuid, BluetoothGattCallback callback) {
-        bleCallback.setBluetoothGattCallback(callback);
-        bleBluetooth.addGattCallback(uuid, callback);
+    public static void postFailure(final BleCallback bleCallback, final BleException exception) {
+        bleCallback.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                bleCallback.onFailure(exception);
+            }
+        });
+    }
+
+    static void postInitiated(final BleCallback bleCallback, final boolean result) {
+        bleCallback.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                bleCallback.onInitiatedResult(result);
+            }
+        });
+    }
 
-        Message msg = handler.obtainMessage(what, bleCallback);
-        handler.sendMessageDelayed(msg, timeOutMillis);
+    /**
+     * listen bleBluetooth gatt callback, timeouts are handled by the operation queue.
+     * a BleCallback is subscribed at most once per (event, uuid): reusing it for the same
+     * characteristic replaces its previous subscription, other characteristics keep theirs.
+     */
+    private void listen(BleCallback bleCallback, int event, UUID uuid, BluetoothGattCallback callback) {
+        BluetoothGattCallback previous = bleCallback.putBluetoothGattCallback(event, uuid, callback);
+        if (previous != null) {
+            bleBluetooth.removeGattCallback(event, uuid, previous);
+        }
+        bleBluetooth.addGattCallback(event, uuid, callback);
     }
 
 
@@ -527,4 +1134,41 @@ public class BleConnector {
         this.timeOutMillis = timeOutMillis;
         return this;
     }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * @param priority {@link GattOperation#PRIORITY_HIGH} for control writes,
+     *                 {@link GattOperation#PRIORITY_LOW} for bulk reads
+     */
+    public BleConnector setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public int getPreferredMtu() {
+        return preferredMtu;
+    }
+
+    /**
+     * MTU requested before the first large write of a connection, up to 517
+     */
+    public BleConnector setPreferredMtu(int preferredMtu) {
+        this.preferredMtu = preferredMtu;
+        return this;
+    }
+
+    public int getRetryCount() {
+        return retryCount;
+    }
+
+    /**
+     * times to retry a gatt call refused because the stack is busy
+     */
+    public BleConnector setRetryCount(int retryCount) {
+        this.retryCount = retryCount;
+        return this;
+    }
 }
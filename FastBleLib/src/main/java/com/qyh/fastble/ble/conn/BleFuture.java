@@ -0,0 +1,382 @@
+package com.qyh.fastble.ble.conn;
+
+import com.qyh.fastble.ble.exception.BleException;
+import com.qyh.fastble.ble.exception.CancelledException;
+import com.qyh.fastble.ble.exception.OtherException;
+import com.qyh.fastble.ble.exception.TimeoutException;
+import com.qyh.fastble.ble.utils.BleExecutors;
+import com.qyh.fastble.ble.utils.HashedWheelTimer;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Result of an asynchronous operation, completed once with a value or a {@link BleException}.
+ * <p>
+ * Listeners added before completion run on the completing thread (binder or timer thread)
+ * unless an executor is given; listeners added afterwards run right away.
+ * <p>
+ * Futures compose with {@link #thenApply}, {@link #thenCompose} and {@link #allOf}.
+ * A derived future that fails, is cancelled or times out cancels the futures it is still
+ * waiting for, and a cancelled operation that has not reached the radio yet is skipped
+ * by the operation queue.
+ */
+public class BleFuture<T> {
+
+    public interface Listener<T> {
+
+        void onSuccess(T value);
+
+        void onFailure(BleException exception);
+    }
+
+    public interface Function<T, R> {
+
+        R apply(T value);
+    }
+
+    private static final int PENDING = 0;
+    private static final int SUCCEEDED = 1;
+    private static final int FAILED = 2;
+
+    private int state = PENDING;
+    private T value;
+    private BleException exception;
+    private List<Registration<T>> listeners;
+
+    public static <T> BleFuture<T> succeeded(T value) {
+        BleFuture<T> future = new BleFuture<>();
+        future.complete(value);
+        return future;
+    }
+
+    public static <T> BleFuture<T> failed(BleException exception) {
+        BleFuture<T> future = new BleFuture<>();
+        future.fail(exception);
+        return future;
+    }
+
+    /**
+     * @return false if the future was already completed
+     */
+    public boolean complete(T value) {
+        List<Registration<T>> registrations;
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            this.value = value;
+            state = SUCCEEDED;
+            registrations = takeListeners();
+        }
+        notifyListeners(registrations);
+        return true;
+    }
+
+    /**
+     * @return false if the future was already completed
+     */
+    public boolean fail(BleException exception) {
+        List<Registration<T>> registrations;
+        synchronized (this) {
+            if (state != PENDING) {
+                return false;
+            }
+            this.exception = exception;
+            state = FAILED;
+            registrations = takeListeners();
+        }
+        notifyListeners(registrations);
+        return true;
+    }
+
+    public BleFuture<T> addListener(Listener<? super T> listener) {
+        return addListener(listener, BleExecutors.direct());
+    }
+
+    /**
+     * @param executor thread the listener runs on, see {@link BleExecutors}
+     */
+    public BleFuture<T> addListener(Listener<? super T> listener, Executor executor) {
+        Registration<T> registration = new Registration<T>(listener, executor);
+        synchronized (this) {
+            if (state == PENDING) {
+                if (listeners == null) {
+                    listeners = new ArrayList<>(2);
+                }
+                listeners.add(registration);
+                return this;
+            }
+        }
+        registration.post(this);
+        return this;
+    }
+
+    /**
+     * fail with a {@link CancelledException} if still pending
+     *
+     * @return false if the future was already completed
+     */
+    public boolean cancel() {
+        return fail(new CancelledException());
+    }
+
+    public synchronized boolean isCancelled() {
+        return exception instanceof CancelledException;
+    }
+
+    /**
+     * fail with a {@link TimeoutException} if still pending after the timeout,
+     * armed on the shared {@link HashedWheelTimer}
+     */
+    public BleFuture<T> withTimeout(long timeout, TimeUnit unit) {
+        synchronized (this) {
+            if (state != PENDING) {
+                return this;
+            }
+        }
+        final HashedWheelTimer.Timeout handle = HashedWheelTimer.getDefault().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                fail(new TimeoutException());
+            }
+        }, timeout, unit);
+        return addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T value) {
+                handle.cancel();
+            }
+
+            @Override
+            public void onFailure(BleException exception) {
+                handle.cancel();
+            }
+        });
+    }
+
+    /**
+     * transform the value, the function runs on the completing thread
+     */
+    public <R> BleFuture<R> thenApply(final Function<? super T, ? extends R> function) {
+        final BleFuture<R> result = new BleFuture<>();
+        addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T value) {
+                R mapped;
+                try {
+                    mapped = function.apply(value);
+                } catch (RuntimeException e) {
+                    result.fail(new OtherException(e.toString()));
+                    return;
+                }
+                result.complete(mapped);
+            }
+
+            @Override
+            public void onFailure(BleException exception) {
+                result.fail(exception);
+            }
+        });
+        result.cancelOnFailure(this);
+        return result;
+    }
+
+    /**
+     * start the next asynchronous step with the value, the function runs on the completing thread
+     */
+    public <R> BleFuture<R> thenCompose(final Function<? super T, BleFuture<R>> function) {
+        final BleFuture<R> result = new BleFuture<>();
+        addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T value) {
+                BleFuture<R> next;
+                try {
+                    next = function.apply(value);
+                } catch (RuntimeException e) {
+                    result.fail(new OtherException(e.toString()));
+                    return;
+                }
+                if (next == null) {
+                    result.fail(new OtherException("thenCompose function returned null"));
+                    return;
+                }
+                result.cancelOnFailure(next);
+                next.addListener(new Listener<R>() {
+                    @Override
+                    public void onSuccess(R value) {
+                        result.complete(value);
+                    }
+
+                    @Override
+                    public void onFailure(BleException exception) {
+                        result.fail(exception);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(BleException exception) {
+                result.fail(exception);
+            }
+        });
+        result.cancelOnFailure(this);
+        return result;
+    }
+
+    /**
+     * completes with the values in the order of the futures once all succeed,
+     * fails with the first failure and cancels the others
+     */
+    public static <T> BleFuture<List<T>> allOf(final List<? extends BleFuture<? extends T>> futures) {
+        final BleFuture<List<T>> result = new BleFuture<>();
+        final int count = futures.size();
+        if (count == 0) {
+            result.complete(Collections.<T>emptyList());
+            return result;
+        }
+        final Object[] values = new Object[count];
+        final AtomicInteger remaining = new AtomicInteger(count);
+        for (int i = 0; i < count; i++) {
+            final int index = i;
+            BleFuture<? extends T> future = futures.get(i);
+            result.cancelOnFailure(future);
+            future.addListener(new Listener<T>() {
+                @Override
+                @SuppressWarnings("unchecked")
+                public void onSuccess(T value) {
+                    values[index] = value;
+                    if (remaining.decrementAndGet() == 0) {
+                        result.complete((List<T>) Arrays.asList(values));
+                    }
+                }
+
+                @Override
+                public void onFailure(BleException exception) {
+                    result.fail(exception);
+                }
+            });
+        }
+        return result;
+    }
+
+    /**
+     * same as {@link #allOf(List)}, the array is only read and copied into a new list
+     */
+    @SafeVarargs
+    public static <T> BleFuture<List<T>> allOf(BleFuture<? extends T>... futures) {
+        List<BleFuture<? extends T>> list = new ArrayList<>(futures.length);
+        for (BleFuture<? extends T> future : futures) {
+            list.add(future);
+        }
+        return allOf(list);
+    }
+
+    /**
+     * when this future fails, cancel the upstream future if it is still pending
+     */
+    private void cancelOnFailure(final BleFuture<?> upstream) {
+        addListener(new Listener<T>() {
+            @Override
+            public void onSuccess(T value) {
+            }
+
+            @Override
+            public void onFailure(BleException exception) {
+                upstream.cancel();
+            }
+        });
+    }
+
+    /**
+     * block until completion, never call it on the main thread or in a callback
+     *
+     * @return false if the future is still pending after the timeout
+     */
+    public synchronized boolean await(long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        long deadline = System.nanoTime() + nanos;
+        while (state == PENDING) {
+            if (nanos <= 0) {
+                return false;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, nanos);
+            nanos = deadline - System.nanoTime();
+        }
+        return true;
+    }
+
+    public synchronized boolean isDone() {
+        return state != PENDING;
+    }
+
+    public synchronized boolean isSuccess() {
+        return state == SUCCEEDED;
+    }
+
+    /**
+     * @return the value, null while pending or after a failure
+     */
+    public synchronized T getValue() {
+        return value;
+    }
+
+    /**
+     * @return the failure, null while pending or after success
+     */
+    public synchronized BleException getException() {
+        return exception;
+    }
+
+    private List<Registration<T>> takeListeners() {
+        notifyAll();
+        List<Registration<T>> registrations = listeners;
+        listeners = null;
+        return registrations;
+    }
+
+    private void notifyListeners(List<Registration<T>> registrations) {
+        if (registrations == null) {
+            return;
+        }
+        for (Registration<T> registration : registrations) {
+            registration.post(this);
+        }
+    }
+
+    private static final class Registration<T> {
+
+        private final Listener<? super T> listener;
+        private final Executor executor;
+
+        Registration(Listener<? super T> listener, Executor executor) {
+            this.listener = listener;
+            this.executor = executor == null ? BleExecutors.direct() : executor;
+        }
+
+        void post(final BleFuture<T> future) {
+            if (BleExecutors.isDirect(executor)) {
+                run(future);
+                return;
+            }
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Registration.this.run(future);
+                }
+            });
+        }
+
+        private void run(BleFuture<T> future) {
+            if (future.isSuccess()) {
+                listener.onSuccess(future.getValue());
+            } else {
+                listener.onFailure(future.getException());
+            }
+        }
+    }
+}
@@ -6,12 +6,34 @@ import android.bluetooth.BluetoothGattCallback;
 
 import com.qyh.fastble.ble.data.BleDevice;
 import com.qyh.fastble.ble.exception.BleException;
+import com.qyh.fastble.ble.utils.BleExecutors;
+
+import java.util.concurrent.Executor;
 
 /**
  * 连接回调
  */
 public abstract class BleGattCallback extends BluetoothGattCallback {
 
+    /** 为null时在主线程执行 */
+    private Executor executor;
+
+    /**
+     * 设置连接回调执行的线程, 默认在主线程执行, 不更新UI时可以设置 {@link BleExecutors#direct()},
+     * 见 {@link BleExecutors}
+     *
+     * @param executor 为null时恢复主线程
+     */
+    public BleGattCallback setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public Executor getExecutor() {
+        Executor executor = this.executor;
+        return executor == null ? BleExecutors.main() : executor;
+    }
+
     /**
      * 返回连接的设备
      * @param bleDevice
@@ -0,0 +1,6 @@
+package com.qyh.fastble.ble.conn;
+
+
+public abstract class BleMtuCallback extends BleCallback {
+    public abstract void onSuccess(int mtu);
+}
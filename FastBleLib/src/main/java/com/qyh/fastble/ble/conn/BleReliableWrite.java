@@ -0,0 +1,257 @@
+package com.qyh.fastble.ble.conn;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattService;
+import android.os.Build;
+
+import com.qyh.fastble.ble.bluetooth.GattCallbackTable;
+import com.qyh.fastble.ble.exception.BleException;
+import com.qyh.fastble.ble.exception.GattException;
+import com.qyh.fastble.ble.exception.OtherException;
+import com.qyh.fastble.ble.utils.BleLog;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Reliable (prepared) write transaction.
+ * <p>
+ * The writes are queued as prepared writes between {@code beginReliableWrite} and
+ * {@code executeReliableWrite}. Any failed or timed out write aborts the whole transaction,
+ * so the peer applies either all values or none of them. The value echoed by the peer for
+ * each prepared write is not reported to the app by Android, only the write status.
+ * <p>
+ * All operations are queued back to back with {@link GattOperation#PRIORITY_HIGH},
+ * no other write can end up inside the transaction.
+ */
+public class BleReliableWrite {
+
+    private static final String TAG = BleReliableWrite.class.getSimpleName();
+
+    private final BleConnector connector;
+    private final List<Entry> entries = new ArrayList<>();
+    private BleReliableWriteCallback bleCallback;
+    private boolean committed;
+    private boolean aborted;
+    private boolean finished;
+
+    BleReliableWrite(BleConnector connector) {
+        this.connector = connector;
+    }
+
+    /**
+     * add a write to the transaction
+     *
+     * @return false if the characteristic is not found or not writable
+     */
+    public synchronized boolean add(UUID serviceUuid, UUID characteristicUuid, byte[] data) {
+        BluetoothGatt gatt = connector.getBluetoothGatt();
+        if (committed || gatt == null || data == null) {
+            return false;
+        }
+        BluetoothGattService service = gatt.getService(serviceUuid);
+        BluetoothGattCharacteristic characteristic = service == null ? null
+                : service.getCharacteristic(characteristicUuid);
+        if (characteristic == null
+                || (characteristic.getProperties() & BluetoothGattCharacteristic.PROPERTY_WRITE) == 0) {
+            return false;
+        }
+        entries.add(new Entry(characteristic, data));
+        return true;
+    }
+
+    public boolean add(String serviceUuid, String characteristicUuid, byte[] data) {
+        return add(UUID.fromString(serviceUuid), UUID.fromString(characteristicUuid), data);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+
+    /**
+     * queue the transaction, the result is reported once through the callback
+     *
+     * @return whether the transaction was queued
+     */
+    public boolean commit(BleReliableWriteCallback bleCallback) {
+        List<GattOperation> operations = new ArrayList<>();
+        synchronized (this) {
+            if (committed || entries.isEmpty()) {
+                if (bleCallback != null) {
+                    BleConnector.postFailure(bleCallback, new OtherException(committed
+                            ? "reliable write already committed" : "reliable write is empty"));
+                    BleConnector.postInitiated(bleCallback, false);
+                }
+                return false;
+            }
+            committed = true;
+            this.bleCallback = bleCallback;
+            operations.add(new BeginOperation());
+            for (Entry entry : entries) {
+                operations.add(new PrepareOperation(entry));
+            }
+            operations.add(new ExecuteOperation());
+        }
+        return connector.enqueueAll(operations, GattOperation.PRIORITY_HIGH);
+    }
+
+    private synchronized boolean isAborted() {
+        return aborted;
+    }
+
+    /**
+     * mark the transaction aborted, the execute operation aborts it on the peer
+     */
+    private void abort(BleException exception) {
+        synchronized (this) {
+            if (aborted || finished) {
+                return;
+            }
+            aborted = true;
+        }
+        BleLog.w(TAG, "reliable write aborted: " + exception);
+        if (bleCallback != null) {
+            BleConnector.postFailure(bleCallback, exception);
+        }
+    }
+
+    private void finish(int status) {
+        synchronized (this) {
+            if (aborted || finished) {
+                return;
+            }
+            finished = true;
+        }
+        if (bleCallback == null) {
+            return;
+        }
+        if (status == BluetoothGatt.GATT_SUCCESS) {
+            postSuccess(bleCallback, entries.size());
+        } else {
+            BleConnector.postFailure(bleCallback, new GattException(status));
+        }
+    }
+
+    private static void postSuccess(final BleReliableWriteCallback bleCallback, final int count) {
+        bleCallback.getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                bleCallback.onSuccess(count);
+            }
+        });
+    }
+
+    private static final class Entry {
+        final BluetoothGattCharacteristic characteristic;
+        final byte[] data;
+
+        Entry(BluetoothGattCharacteristic characteristic, byte[] data) {
+            this.characteristic = characteristic;
+            this.data = data;
+        }
+    }
+
+    private final class BeginOperation extends GattOperation {
+
+        BeginOperation() {
+            super(GattCallbackTable.EVENT_RELIABLE_WRITE_COMPLETED, GattCallbackTable.NO_UUID);
+        }
+
+        @Override
+        protected int execute(BluetoothGatt gatt) {
+            return gatt.beginReliableWrite() ? RESULT_DONE : RESULT_FAILED;
+        }
+
+        @Override
+        protected void onInitiated(boolean initiated) {
+            if (bleCallback != null) {
+                BleConnector.postInitiated(bleCallback, initiated);
+            }
+        }
+
+        @Override
+        protected void onFailure(BleException exception) {
+            abort(exception);
+        }
+    }
+
+    private final class PrepareOperation extends GattOperation {
+
+        private final Entry entry;
+
+        PrepareOperation(Entry entry) {
+            super(GattCallbackTable.EVENT_CHARACTERISTIC_WRITE, entry.characteristic.getUuid());
+            this.entry = entry;
+        }
+
+        @Override
+        protected int execute(BluetoothGatt gatt) {
+            if (isAborted()) {
+                return RESULT_DONE;
+            }
+            // prepared writes need a write request, restore the write type for other writers
+            int writeType = entry.characteristic.getWriteType();
+            entry.characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_DEFAULT);
+            entry.characteristic.setValue(entry.data);
+            boolean success = gatt.writeCharacteristic(entry.characteristic);
+            entry.characteristic.setWriteType(writeType);
+            return success ? RESULT_PENDING : RESULT_FAILED;
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            if (isAborted()) {
+                return;
+            }
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                abort(new GattException(status));
+            }
+        }
+
+        @Override
+        protected void onFailure(BleException exception) {
+            abort(exception);
+        }
+    }
+
+    private final class ExecuteOperation extends GattOperation {
+
+        ExecuteOperation() {
+            super(GattCallbackTable.EVENT_RELIABLE_WRITE_COMPLETED, GattCallbackTable.NO_UUID);
+        }
+
+        @Override
+        protected int execute(BluetoothGatt gatt) {
+            if (isAborted()) {
+                abortReliableWrite(gatt);
+                return RESULT_DONE;
+            }
+            return gatt.executeReliableWrite() ? RESULT_PENDING : RESULT_FAILED;
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            finish(status);
+        }
+
+        @Override
+        protected void onFailure(BleException exception) {
+            BluetoothGatt gatt = connector.getBluetoothGatt();
+            if (gatt != null) {
+                abortReliableWrite(gatt);
+            }
+            abort(exception);
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static void abortReliableWrite(BluetoothGatt gatt) {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.KITKAT) {
+            gatt.abortReliableWrite();
+        } else {
+            gatt.abortReliableWrite(gatt.getDevice());
+        }
+    }
+}
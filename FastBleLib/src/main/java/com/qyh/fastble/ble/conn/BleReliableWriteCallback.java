@@ -0,0 +1,12 @@
+package com.qyh.fastble.ble.conn;
+
+
+public abstract class BleReliableWriteCallback extends BleCallback {
+
+    /**
+     * all prepared writes were verified and executed
+     *
+     * @param count number of writes in the transaction
+     */
+    public abstract void onSuccess(int count);
+}
@@ -0,0 +1,351 @@
+package com.qyh.fastble.ble.conn;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.qyh.fastble.ble.bluetooth.GattCallbackTable;
+import com.qyh.fastble.ble.exception.BleException;
+import com.qyh.fastble.ble.exception.GattException;
+import com.qyh.fastble.ble.exception.OtherException;
+import com.qyh.fastble.ble.exception.TimeoutException;
+import com.qyh.fastble.ble.notify.ByteSlice;
+import com.qyh.fastble.ble.notify.NotifyListener;
+import com.qyh.fastble.ble.notify.NotifySubscription;
+import com.qyh.fastble.ble.utils.HashedWheelTimer;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request / response correlation: a request is written to one characteristic and its
+ * response arrives as a notification on another.
+ * <p>
+ * Up to {@code maxOutstanding} requests are on the air at once, so a batch of requests
+ * costs about one round trip instead of one round trip each; further requests wait here
+ * until a slot frees up. Responses are matched either by sequence id through a
+ * {@link SequenceExtractor} (a map lookup, responses may come back in any order) or by a
+ * {@link Matcher} tried against the outstanding requests in send order.
+ * <p>
+ * Every request has its own timeout, counted from {@link #call(byte[], long)}, on the shared
+ * {@link HashedWheelTimer}. Notifications matching no request go to the unsolicited listener.
+ * The returned futures complete on the binder thread, or on the timer thread on timeout.
+ */
+public class BleRpc implements NotifyListener {
+
+    /**
+     * decides whether a notification is the response to a request
+     */
+    public interface Matcher {
+
+        /**
+         * @param response only valid during the call
+         */
+        boolean matches(byte[] request, ByteSlice response);
+    }
+
+    /**
+     * reads the sequence id of requests and responses
+     */
+    public interface SequenceExtractor {
+
+        /** returned by {@link #responseId(ByteSlice)} for notifications that are no response */
+        long NO_ID = Long.MIN_VALUE;
+
+        long requestId(byte[] request);
+
+        /**
+         * @param response only valid during the call
+         */
+        long responseId(ByteSlice response);
+    }
+
+    public static final int DEFAULT_MAX_OUTSTANDING = 4;
+    public static final long DEFAULT_TIMEOUT_MILLIS = 5000;
+
+    private final BleConnector connector;
+    private final BluetoothGattCharacteristic characteristic;
+    private final Matcher matcher;
+    private final SequenceExtractor extractor;
+    private final int maxOutstanding;
+    private final HashedWheelTimer timer = HashedWheelTimer.getDefault();
+
+    /** outstanding calls in send order */
+    private final ArrayDeque<Call> outstanding = new ArrayDeque<>();
+    private final Map<Long, Call> outstandingById = new HashMap<>();
+    private final ArrayDeque<Call> waiting = new ArrayDeque<>();
+
+    private long defaultTimeoutMillis = DEFAULT_TIMEOUT_MILLIS;
+    private NotifyListener unsolicitedListener;
+    private NotifySubscription subscription;
+    private boolean closed;
+    private long unsolicitedCount;
+
+    BleRpc(BleConnector connector, BluetoothGattCharacteristic characteristic,
+           Matcher matcher, SequenceExtractor extractor, int maxOutstanding) {
+        this.connector = connector;
+        this.characteristic = characteristic;
+        this.matcher = matcher;
+        this.extractor = extractor;
+        this.maxOutstanding = maxOutstanding > 0 ? maxOutstanding : DEFAULT_MAX_OUTSTANDING;
+    }
+
+    public BleFuture<byte[]> call(byte[] request) {
+        return call(request, getDefaultTimeoutMillis());
+    }
+
+    /**
+     * send a request
+     *
+     * @param timeoutMillis time allowed until the response, including the wait for a free slot
+     * @return completes with a copy of the response
+     */
+    public BleFuture<byte[]> call(byte[] request, long timeoutMillis) {
+        if (request == null) {
+            return BleFuture.failed(new OtherException("the request is empty"));
+        }
+        final Call call = new Call(request, extractor == null ? SequenceExtractor.NO_ID
+                : extractor.requestId(request));
+        List<Call> started;
+        synchronized (this) {
+            if (closed) {
+                return BleFuture.failed(new OtherException("rpc is closed"));
+            }
+            waiting.add(call);
+            call.timeout = timer.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    finish(call, null, new TimeoutException());
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+            started = startWaiting();
+        }
+        send(started);
+        return call.future;
+    }
+
+    /**
+     * move waiting calls into free slots, called holding the lock
+     */
+    private List<Call> startWaiting() {
+        List<Call> started = null;
+        while (outstanding.size() < maxOutstanding && !waiting.isEmpty()) {
+            Call call = waiting.poll();
+            if (call.id != SequenceExtractor.NO_ID) {
+                if (outstandingById.containsKey(call.id)) {
+                    // wait until the call with the same id is answered
+                    waiting.addFirst(call);
+                    break;
+                }
+                outstandingById.put(call.id, call);
+            }
+            outstanding.add(call);
+            if (started == null) {
+                started = new ArrayList<>(2);
+            }
+            started.add(call);
+        }
+        return started;
+    }
+
+    /**
+     * queue the writes outside the lock, the queue may call back synchronously
+     */
+    private void send(List<Call> started) {
+        if (started == null) {
+            return;
+        }
+        for (Call call : started) {
+            if (!connector.enqueue(new RequestOperation(call))) {
+                finish(call, null, new OtherException("request could not be queued"));
+            }
+        }
+    }
+
+    /**
+     * responses, on the binder thread
+     */
+    @Override
+    public void onNotify(UUID uuid, ByteSlice value) {
+        Call call;
+        NotifyListener unsolicited;
+        synchronized (this) {
+            call = match(value);
+            unsolicited = call == null ? unsolicitedListener : null;
+            if (call == null) {
+                unsolicitedCount++;
+            }
+        }
+        if (call != null) {
+            finish(call, value.toByteArray(), null);
+        } else if (unsolicited != null) {
+            unsolicited.onNotify(uuid, value);
+        }
+    }
+
+    private Call match(ByteSlice value) {
+        if (extractor != null) {
+            long id = extractor.responseId(value);
+            return id == SequenceExtractor.NO_ID ? null : outstandingById.get(id);
+        }
+        for (Call call : outstanding) {
+            if (matcher.matches(call.request, value)) {
+                return call;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * complete a call once, with the response or the failure
+     */
+    private void finish(Call call, byte[] response, BleException exception) {
+        List<Call> started;
+        synchronized (this) {
+            if (call.finished) {
+                return;
+            }
+            call.finished = true;
+            if (call.timeout != null) {
+                call.timeout.cancel();
+            }
+            if (!waiting.remove(call)) {
+                outstanding.remove(call);
+                if (call.id != SequenceExtractor.NO_ID) {
+                    outstandingById.remove(call.id);
+                }
+            }
+            started = closed ? null : startWaiting();
+        }
+        if (exception == null) {
+            call.future.complete(response);
+        } else {
+            call.future.fail(exception);
+        }
+        send(started);
+    }
+
+    /**
+     * fail all pending calls, later calls fail right away.
+     * the notify subscription is released by {@link com.qyh.fastble.ble.BleManager#closeRpc(BleRpc)}
+     */
+    public void close() {
+        List<Call> pending = new ArrayList<>();
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pending.addAll(outstanding);
+            pending.addAll(waiting);
+        }
+        for (Call call : pending) {
+            finish(call, null, new OtherException("rpc is closed"));
+        }
+    }
+
+    public synchronized boolean isClosed() {
+        return closed;
+    }
+
+    /**
+     * requests written and waiting for their response
+     */
+    public synchronized int getOutstandingCount() {
+        return outstanding.size();
+    }
+
+    /**
+     * requests waiting for a free slot
+     */
+    public synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    public int getMaxOutstanding() {
+        return maxOutstanding;
+    }
+
+    public synchronized long getDefaultTimeoutMillis() {
+        return defaultTimeoutMillis;
+    }
+
+    public synchronized BleRpc setDefaultTimeoutMillis(long defaultTimeoutMillis) {
+        this.defaultTimeoutMillis = defaultTimeoutMillis;
+        return this;
+    }
+
+    /**
+     * receives the notifications that match no outstanding request, on the binder thread
+     */
+    public synchronized BleRpc setUnsolicitedListener(NotifyListener unsolicitedListener) {
+        this.unsolicitedListener = unsolicitedListener;
+        return this;
+    }
+
+    public synchronized long getUnsolicitedCount() {
+        return unsolicitedCount;
+    }
+
+    public synchronized NotifySubscription getSubscription() {
+        return subscription;
+    }
+
+    public synchronized BleRpc setSubscription(NotifySubscription subscription) {
+        this.subscription = subscription;
+        return this;
+    }
+
+    private static final class Call {
+
+        final byte[] request;
+        final long id;
+        final BleFuture<byte[]> future = new BleFuture<>();
+        HashedWheelTimer.Timeout timeout;
+        boolean finished;
+
+        Call(byte[] request, long id) {
+            this.request = request;
+            this.id = id;
+        }
+    }
+
+    private final class RequestOperation extends GattOperation {
+
+        private final Call call;
+
+        RequestOperation(Call call) {
+            super(GattCallbackTable.EVENT_CHARACTERISTIC_WRITE, characteristic.getUuid());
+            this.call = call;
+        }
+
+        @Override
+        protected int execute(BluetoothGatt gatt) {
+            synchronized (BleRpc.this) {
+                if (call.finished) {
+                    // timed out or closed while queued, skip the write
+                    return RESULT_DONE;
+                }
+            }
+            characteristic.setValue(call.request);
+            return gatt.writeCharacteristic(characteristic) ? RESULT_PENDING : RESULT_FAILED;
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            if (status != BluetoothGatt.GATT_SUCCESS) {
+                finish(call, null, new GattException(status));
+            }
+        }
+
+        @Override
+        protected void onFailure(BleException exception) {
+            finish(call, null, exception);
+        }
+    }
+}
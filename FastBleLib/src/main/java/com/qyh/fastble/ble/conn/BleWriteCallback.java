@@ -0,0 +1,24 @@
+package com.qyh.fastble.ble.conn;
+
+
+/**
+ * large write callback, the payload is split into MTU - 3 byte segments
+ */
+public abstract class BleWriteCallback extends BleCallback {
+
+    /**
+     * called after each segment is acknowledged
+     *
+     * @param current bytes written so far
+     * @param total   payload length
+     */
+    public void onProgress(int current, int total) {
+    }
+
+    /**
+     * @param total          payload length
+     * @param elapsedMillis  time from the first segment to the last acknowledgement
+     * @param bytesPerSecond throughput of the whole write
+     */
+    public abstract void onSuccess(int total, long elapsedMillis, long bytesPerSecond);
+}
@@ -0,0 +1,334 @@
+package com.qyh.fastble.ble.conn;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCharacteristic;
+
+import com.qyh.fastble.ble.bluetooth.BleBluetooth;
+import com.qyh.fastble.ble.bluetooth.GattCallbackTable;
+import com.qyh.fastble.ble.exception.BleException;
+import com.qyh.fastble.ble.exception.GattException;
+import com.qyh.fastble.ble.exception.OtherException;
+import com.qyh.fastble.ble.notify.ByteSlice;
+import com.qyh.fastble.ble.notify.NotifyListener;
+import com.qyh.fastble.ble.notify.NotifySubscription;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+
+/**
+ * Write-without-response stream with credit based flow control.
+ * <p>
+ * Written data is buffered and sent as WRITE_TYPE_NO_RESPONSE packets of MTU - 3 bytes.
+ * Up to {@code window} packets are queued on the connection's operation queue at once,
+ * so the next packet goes out straight from the binder callback of the previous one.
+ * Each packet consumes one credit. By default a credit is returned when the stack reports
+ * {@code onCharacteristicWrite} for the packet; with {@link #setCreditFlowControl(boolean)}
+ * credits are only granted by the peer, see {@link #grantCredits(int)} and {@link #creditListener()}.
+ * <p>
+ * Packets are sliced when they are sent, so an MTU negotiated after opening the stream is used.
+ */
+public class BleWriteStream {
+
+    public static final int DEFAULT_WINDOW = 8;
+
+    private final BleConnector connector;
+    private final BleBluetooth bleBluetooth;
+    private final BluetoothGattCharacteristic characteristic;
+    private final BleWriteCallback bleCallback;
+
+    private final ArrayDeque<byte[]> pending = new ArrayDeque<>();
+    /** read offset into the first pending buffer */
+    private int pendingOffset;
+    /** bytes buffered but not sliced into a packet yet */
+    private int pendingBytes;
+    /** operations queued but not executed yet */
+    private int scheduled;
+    /** packets handed to the stack but not reported written yet */
+    private int inFlight;
+    private int credits;
+    private boolean creditFlowControl;
+    private boolean closed;
+    private boolean failed;
+
+    /** bytes submitted and written since the stream was last drained */
+    private int burstSubmitted;
+    private int burstWritten;
+    private long burstStartNanos;
+    private long totalWritten;
+
+    private NotifySubscription creditSubscription;
+
+    BleWriteStream(BleConnector connector, BleBluetooth bleBluetooth,
+                   BluetoothGattCharacteristic characteristic, int window, BleWriteCallback bleCallback) {
+        this.connector = connector;
+        this.bleBluetooth = bleBluetooth;
+        this.characteristic = characteristic;
+        this.credits = window;
+        this.bleCallback = bleCallback;
+    }
+
+    /**
+     * only the peer grants credits, packet write callbacks no longer refill the window.
+     * the window passed when opening the stream is the initial credit.
+     */
+    public synchronized BleWriteStream setCreditFlowControl(boolean creditFlowControl) {
+        this.creditFlowControl = creditFlowControl;
+        return this;
+    }
+
+    /**
+     * buffer data and start sending, returns at once.
+     * progress is reported per packet, {@link BleWriteCallback#onSuccess(int, long, long)}
+     * each time all buffered data has been written.
+     *
+     * @return false if the stream is closed or failed
+     */
+    public boolean write(byte[] data) {
+        if (data == null || data.length == 0) {
+            return false;
+        }
+        synchronized (this) {
+            if (closed || failed) {
+                return false;
+            }
+            if (burstSubmitted == burstWritten) {
+                burstSubmitted = 0;
+                burstWritten = 0;
+                burstStartNanos = System.nanoTime();
+            }
+            pending.addLast(data);
+            pendingBytes += data.length;
+            burstSubmitted += data.length;
+        }
+        pump();
+        return true;
+    }
+
+    /**
+     * credits granted by the peer, e.g. from an application level credit notification
+     */
+    public void grantCredits(int count) {
+        if (count <= 0) {
+            return;
+        }
+        synchronized (this) {
+            credits += count;
+        }
+        pump();
+    }
+
+    /**
+     * listener for a credit characteristic, the notification carries the granted credits
+     * as an unsigned 8 or 16 bit little endian integer
+     */
+    public NotifyListener creditListener() {
+        return new NotifyListener() {
+            @Override
+            public void onNotify(UUID uuid, ByteSlice value) {
+                if (value.length() == 1) {
+                    grantCredits(value.getUnsigned(0));
+                } else if (value.length() >= 2) {
+                    grantCredits(value.getUInt16(0));
+                }
+            }
+        };
+    }
+
+    /**
+     * drop the buffered data, packets already handed to the stack still complete
+     */
+    public void close() {
+        synchronized (this) {
+            closed = true;
+            pending.clear();
+            pendingOffset = 0;
+            pendingBytes = 0;
+        }
+    }
+
+    /**
+     * queue as many packets as the credits and buffered data allow
+     */
+    private void pump() {
+        int count = 0;
+        synchronized (this) {
+            int packetSize = packetSize();
+            while (!failed && credits > 0 && (long) scheduled * packetSize < pendingBytes) {
+                credits--;
+                scheduled++;
+                count++;
+            }
+        }
+        for (int i = 0; i < count; i++) {
+            if (!connector.enqueue(new PacketOperation())) {
+                fail(new OtherException("write stream operation rejected"));
+                return;
+            }
+        }
+    }
+
+    private int packetSize() {
+        return Math.max(bleBluetooth.getMtu() - 3, 1);
+    }
+
+    /**
+     * slice the next packet when its operation starts
+     *
+     * @return null if there is nothing left to send, the credit is returned
+     */
+    private synchronized byte[] nextPacket() {
+        scheduled--;
+        if (pendingBytes == 0 || failed) {
+            credits++;
+            return null;
+        }
+        byte[] packet = new byte[Math.min(packetSize(), pendingBytes)];
+        int filled = 0;
+        while (filled < packet.length) {
+            byte[] head = pending.peekFirst();
+            int length = Math.min(head.length - pendingOffset, packet.length - filled);
+            System.arraycopy(head, pendingOffset, packet, filled, length);
+            filled += length;
+            pendingOffset += length;
+            if (pendingOffset == head.length) {
+                pending.pollFirst();
+                pendingOffset = 0;
+            }
+        }
+        pendingBytes -= packet.length;
+        inFlight++;
+        return packet;
+    }
+
+    private void onPacketWritten(int length) {
+        int current;
+        int submitted;
+        long elapsedNanos = 0;
+        boolean drained;
+        synchronized (this) {
+            inFlight--;
+            if (failed) {
+                return;
+            }
+            if (!creditFlowControl) {
+                credits++;
+            }
+            totalWritten += length;
+            burstWritten += length;
+            current = burstWritten;
+            submitted = burstSubmitted;
+            drained = current == submitted;
+            if (drained) {
+                elapsedNanos = System.nanoTime() - burstStartNanos;
+            }
+        }
+        if (bleCallback != null) {
+            BleConnector.postProgress(bleCallback, current, submitted);
+            if (drained) {
+                long bytesPerSecond = elapsedNanos <= 0 ? 0
+                        : (long) (submitted * 1000000000.0 / elapsedNanos);
+                BleConnector.postSuccess(bleCallback, submitted, elapsedNanos / 1000000, bytesPerSecond);
+            }
+        }
+        pump();
+    }
+
+    private void fail(BleException exception) {
+        synchronized (this) {
+            if (failed) {
+                return;
+            }
+            failed = true;
+            pending.clear();
+            pendingOffset = 0;
+            pendingBytes = 0;
+        }
+        if (bleCallback != null) {
+            BleConnector.postFailure(bleCallback, exception);
+        }
+    }
+
+    public synchronized int getCredits() {
+        return credits;
+    }
+
+    public synchronized int getInFlightCount() {
+        return inFlight;
+    }
+
+    /**
+     * bytes buffered and not yet handed to the stack
+     */
+    public synchronized int getPendingBytes() {
+        return pendingBytes;
+    }
+
+    public synchronized long getTotalWritten() {
+        return totalWritten;
+    }
+
+    public synchronized boolean isClosed() {
+        return closed || failed;
+    }
+
+    public NotifySubscription getCreditSubscription() {
+        return creditSubscription;
+    }
+
+    public void setCreditSubscription(NotifySubscription creditSubscription) {
+        this.creditSubscription = creditSubscription;
+    }
+
+    private final class PacketOperation extends GattOperation {
+
+        private byte[] packet;
+
+        PacketOperation() {
+            super(GattCallbackTable.EVENT_CHARACTERISTIC_WRITE, characteristic.getUuid());
+        }
+
+        @Override
+        protected int execute(BluetoothGatt gatt) {
+            if (packet == null) {
+                packet = nextPacket();
+                if (packet == null) {
+                    return RESULT_DONE;
+                }
+            }
+            // set again on a retry, the characteristic is shared with other writers
+            characteristic.setValue(packet);
+            // the write type is read when the call is made, restore it for other writers
+            int writeType = characteristic.getWriteType();
+            characteristic.setWriteType(BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE);
+            boolean success = gatt.writeCharacteristic(characteristic);
+            characteristic.setWriteType(writeType);
+            return success ? RESULT_PENDING : RESULT_FAILED;
+        }
+
+        @Override
+        protected void onComplete(int status) {
+            if (packet == null) {
+                pump();
+            } else if (status == BluetoothGatt.GATT_SUCCESS) {
+                onPacketWritten(packet.length);
+            } else {
+                synchronized (BleWriteStream.this) {
+                    inFlight--;
+                }
+                fail(new GattException(status));
+            }
+        }
+
+        @Override
+        protected void onFailure(BleException exception) {
+            synchronized (BleWriteStream.this) {
+                if (packet == null) {
+                    scheduled--;
+                } else {
+                    inFlight--;
+                }
+            }
+            fail(exception);
+        }
+    }
+}
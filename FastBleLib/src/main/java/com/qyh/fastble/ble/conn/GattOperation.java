@@ -0,0 +1,131 @@
+package com.qyh.fastble.ble.conn;
+
+import android.bluetooth.BluetoothGatt;
+
+import com.qyh.fastble.ble.exception.BleException;
+import com.qyh.fastble.ble.utils.HashedWheelTimer;
+
+import java.util.UUID;
+
+/**
+ * A single GATT operation executed by {@link GattOperationQueue}.
+ * <p>
+ * Android allows only one GATT operation in flight per connection, the queue runs
+ * operations one by one and starts the next as soon as the completion event
+ * ({@link #getEvent()} on {@link #getUuid()}) of the current one arrives.
+ */
+public abstract class GattOperation {
+
+    /** control writes, jump ahead of everything else */
+    public static final int PRIORITY_HIGH = 0;
+    public static final int PRIORITY_NORMAL = 1;
+    /** bulk reads and transfers */
+    public static final int PRIORITY_LOW = 2;
+
+    /** the gatt call was refused, may be retried */
+    public static final int RESULT_FAILED = 0;
+    /** the gatt call was accepted, wait for the completion event */
+    public static final int RESULT_PENDING = 1;
+    /** the operation finished synchronously, no completion event will arrive */
+    public static final int RESULT_DONE = 2;
+
+    private final int event;
+    private final UUID uuid;
+    private int priority = PRIORITY_NORMAL;
+    private long timeoutMillis = 10000;
+    private int maxRetries = 3;
+
+    /** queued, or waiting for a retry */
+    static final int STATE_WAITING = 0;
+    /** execute() is running, a completion arriving now is held back until onInitiated */
+    static final int STATE_ISSUING = 1;
+    /** the gatt call was accepted, waiting for the completion event */
+    static final int STATE_IN_FLIGHT = 2;
+    /** onComplete is running, the operation still holds the connection */
+    static final int STATE_COMPLETING = 3;
+    /** failed with a timeout, holds the connection until the late completion arrives */
+    static final int STATE_TIMED_OUT = 4;
+
+    // guarded by the queue
+    int state = STATE_WAITING;
+    boolean earlyCompletion;
+    int earlyStatus;
+
+    int attempts;
+    long sequence;
+    HashedWheelTimer.Timeout timeout;
+    HashedWheelTimer.Timeout retry;
+
+    /**
+     * @param event completion event, one of the GattCallbackTable events
+     * @param uuid  characteristic uuid of the completion event
+     */
+    public GattOperation(int event, UUID uuid) {
+        this.event = event;
+        this.uuid = uuid;
+    }
+
+    /**
+     * issue the gatt call.
+     *
+     * @return {@link #RESULT_FAILED}, {@link #RESULT_PENDING} or {@link #RESULT_DONE}
+     */
+    protected abstract int execute(BluetoothGatt gatt);
+
+    /**
+     * the gatt call has been issued (or finally refused after all retries).
+     */
+    protected void onInitiated(boolean initiated) {
+    }
+
+    /**
+     * the completion event arrived, called before the next operation starts.
+     */
+    protected void onComplete(int status) {
+    }
+
+    /**
+     * the operation could not be started, or no completion event arrived in time.
+     */
+    protected void onFailure(BleException exception) {
+    }
+
+    boolean matches(int event, UUID uuid) {
+        return this.event == event && this.uuid.equals(uuid);
+    }
+
+    public int getEvent() {
+        return event;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public int getPriority() {
+        return priority;
+    }
+
+    public GattOperation setPriority(int priority) {
+        this.priority = priority;
+        return this;
+    }
+
+    public long getTimeoutMillis() {
+        return timeoutMillis;
+    }
+
+    public GattOperation setTimeoutMillis(long timeoutMillis) {
+        this.timeoutMillis = timeoutMillis;
+        return this;
+    }
+
+    public int getMaxRetries() {
+        return maxRetries;
+    }
+
+    public GattOperation setMaxRetries(int maxRetries) {
+        this.maxRetries = maxRetries;
+        return this;
+    }
+}
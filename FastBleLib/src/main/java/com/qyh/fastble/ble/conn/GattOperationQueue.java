@@ -0,0 +1,342 @@
+package com.qyh.fastble.ble.conn;
+
+import android.bluetooth.BluetoothGatt;
+
+import com.qyh.fastble.ble.bluetooth.BleBluetooth;
+import com.qyh.fastble.ble.exception.BleException;
+import com.qyh.fastble.ble.exception.OtherException;
+import com.qyh.fastble.ble.exception.TimeoutException;
+import com.qyh.fastble.ble.utils.BleLog;
+import com.qyh.fastble.ble.utils.HashedWheelTimer;
+
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Per-connection GATT operation queue.
+ * <p>
+ * Operations run one at a time in priority order (FIFO within the same priority).
+ * The next operation is started from the completion callback of the previous one,
+ * there is no fixed delay between operations. A refused gatt call (stack busy) is
+ * retried with a short backoff, an operation without completion event fails with
+ * {@link TimeoutException}.
+ * <p>
+ * Timeouts and retry backoffs are armed on the shared {@link HashedWheelTimer}, so
+ * completing an operation cancels its timeout in O(1) and nothing is left behind in
+ * the main looper. Timeouts fire on the timer thread.
+ */
+public class GattOperationQueue {
+
+    private static final String TAG = GattOperationQueue.class.getSimpleName();
+    private static final long RETRY_BACKOFF_MILLIS = 10;
+
+    private static final Comparator<GattOperation> ORDER = new Comparator<GattOperation>() {
+        @Override
+        public int compare(GattOperation o1, GattOperation o2) {
+            if (o1.getPriority() != o2.getPriority()) {
+                return o1.getPriority() < o2.getPriority() ? -1 : 1;
+            }
+            return o1.sequence < o2.sequence ? -1 : (o1.sequence == o2.sequence ? 0 : 1);
+        }
+    };
+
+    private final BleBluetooth bleBluetooth;
+    private final PriorityQueue<GattOperation> pending = new PriorityQueue<>(16, ORDER);
+    private final HashedWheelTimer timer;
+    private GattOperation current;
+    private long sequence;
+    /** System.nanoTime() when the last operation finished */
+    private volatile long lastActivityNanos = System.nanoTime();
+
+    public GattOperationQueue(BleBluetooth bleBluetooth) {
+        this(bleBluetooth, HashedWheelTimer.getDefault());
+    }
+
+    public GattOperationQueue(BleBluetooth bleBluetooth, HashedWheelTimer timer) {
+        this.bleBluetooth = bleBluetooth;
+        this.timer = timer;
+    }
+
+    /**
+     * add an operation, it starts immediately if the connection is idle.
+     */
+    public boolean enqueue(GattOperation operation) {
+        if (operation == null) {
+            return false;
+        }
+        synchronized (this) {
+            operation.sequence = sequence++;
+            operation.state = GattOperation.STATE_WAITING;
+            pending.add(operation);
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * add operations with consecutive sequence numbers, operations of the same or a lower
+     * priority queued later cannot run between them.
+     */
+    public boolean enqueueAll(List<GattOperation> operations) {
+        if (operations == null || operations.isEmpty()) {
+            return false;
+        }
+        synchronized (this) {
+            for (GattOperation operation : operations) {
+                operation.sequence = sequence++;
+                operation.state = GattOperation.STATE_WAITING;
+                pending.add(operation);
+            }
+        }
+        drain();
+        return true;
+    }
+
+    /**
+     * called by BleBluetooth for every completion event, after the subscribers were notified.
+     */
+    public void onGattEvent(int event, UUID uuid, int status) {
+        GattOperation operation;
+        synchronized (this) {
+            operation = current;
+            if (operation == null || !operation.matches(event, uuid)) {
+                return;
+            }
+            switch (operation.state) {
+                case GattOperation.STATE_ISSUING:
+                    // execute() has not returned yet, completed by start() after onInitiated
+                    operation.earlyCompletion = true;
+                    operation.earlyStatus = status;
+                    return;
+                case GattOperation.STATE_IN_FLIGHT:
+                    operation.state = GattOperation.STATE_COMPLETING;
+                    cancel(operation.timeout);
+                    break;
+                case GattOperation.STATE_TIMED_OUT:
+                    // the late completion of a timed out operation, it has already failed
+                    current = null;
+                    cancel(operation.timeout);
+                    operation = null;
+                    break;
+                default:
+                    return;
+            }
+        }
+        if (operation != null) {
+            finish(operation, status);
+        } else {
+            BleLog.d(TAG, "late completion absorbed " + uuid);
+        }
+        drain();
+    }
+
+    /**
+     * fail the running and all waiting operations, e.g. when the connection is lost.
+     */
+    public void clear(BleException exception) {
+        List<GattOperation> dropped = new ArrayList<>();
+        synchronized (this) {
+            if (current != null) {
+                // a completing operation finishes on its own, a timed out one has already failed
+                if (current.state != GattOperation.STATE_COMPLETING
+                        && current.state != GattOperation.STATE_TIMED_OUT) {
+                    dropped.add(current);
+                }
+                cancel(current.timeout);
+                current = null;
+            }
+            while (!pending.isEmpty()) {
+                dropped.add(pending.poll());
+            }
+        }
+        for (GattOperation operation : dropped) {
+            cancel(operation.timeout);
+            cancel(operation.retry);
+            operation.onFailure(exception);
+        }
+    }
+
+    public synchronized int size() {
+        return pending.size() + (current == null ? 0 : 1);
+    }
+
+    public synchronized boolean isIdle() {
+        return current == null && pending.isEmpty();
+    }
+
+    /**
+     * System.nanoTime() when the last operation finished.
+     */
+    public long getLastActivityNanos() {
+        return lastActivityNanos;
+    }
+
+    private void drain() {
+        for (; ; ) {
+            GattOperation operation;
+            synchronized (this) {
+                if (current != null || pending.isEmpty()) {
+                    return;
+                }
+                operation = pending.poll();
+                current = operation;
+            }
+            if (start(operation)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return true if the operation holds the connection (in flight or waiting for a retry)
+     */
+    private boolean start(final GattOperation operation) {
+        BluetoothGatt gatt = bleBluetooth.getBluetoothGatt();
+        int result = GattOperation.RESULT_FAILED;
+        if (gatt != null) {
+            synchronized (this) {
+                if (current != operation) {
+                    return false;
+                }
+                operation.state = GattOperation.STATE_ISSUING;
+                operation.earlyCompletion = false;
+                // armed before the gatt call, the completion may arrive before execute() returns
+                operation.timeout = timer.newTimeout(new Runnable() {
+                    @Override
+                    public void run() {
+                        onTimeout(operation);
+                    }
+                }, operation.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+            }
+            result = operation.execute(gatt);
+        }
+        operation.attempts++;
+
+        if (result == GattOperation.RESULT_PENDING) {
+            operation.onInitiated(true);
+            int status;
+            synchronized (this) {
+                if (current != operation || operation.state == GattOperation.STATE_TIMED_OUT) {
+                    // cleared or timed out meanwhile, already failed. a timed out call keeps
+                    // the connection until its late completion
+                    return current == operation;
+                }
+                if (!operation.earlyCompletion) {
+                    operation.state = GattOperation.STATE_IN_FLIGHT;
+                    return true;
+                }
+                operation.state = GattOperation.STATE_COMPLETING;
+                cancel(operation.timeout);
+                status = operation.earlyStatus;
+            }
+            finish(operation, status);
+            return false;
+        }
+
+        // refused or finished synchronously, no completion event will arrive
+        boolean retry = result == GattOperation.RESULT_FAILED && gatt != null
+                && operation.attempts <= operation.getMaxRetries();
+        synchronized (this) {
+            cancel(operation.timeout);
+            if (current != operation || operation.state == GattOperation.STATE_TIMED_OUT) {
+                if (current == operation) {
+                    current = null;
+                }
+                return false;
+            }
+            operation.state = retry ? GattOperation.STATE_WAITING : GattOperation.STATE_COMPLETING;
+        }
+
+        if (retry) {
+            BleLog.d(TAG, "gatt busy, retry " + operation.attempts + " " + operation.getUuid());
+            operation.retry = timer.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    retry(operation);
+                }
+            }, RETRY_BACKOFF_MILLIS * operation.attempts, TimeUnit.MILLISECONDS);
+            return true;
+        }
+
+        if (result == GattOperation.RESULT_DONE) {
+            operation.onInitiated(true);
+            finish(operation, BluetoothGatt.GATT_SUCCESS);
+        } else {
+            operation.onFailure(new OtherException("gatt operation failed"));
+            operation.onInitiated(false);
+            release(operation);
+        }
+        return false;
+    }
+
+    /**
+     * complete the operation, then free the connection for the next one.
+     */
+    private void finish(GattOperation operation, int status) {
+        operation.onComplete(status);
+        release(operation);
+    }
+
+    private synchronized void release(GattOperation operation) {
+        lastActivityNanos = System.nanoTime();
+        if (current == operation) {
+            current = null;
+        }
+    }
+
+    private static void cancel(HashedWheelTimer.Timeout timeout) {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+    }
+
+    private void retry(GattOperation operation) {
+        synchronized (this) {
+            if (current != operation || operation.state != GattOperation.STATE_WAITING) {
+                return;
+            }
+        }
+        if (!start(operation)) {
+            drain();
+        }
+    }
+
+    /**
+     * fail the operation, but keep the connection busy until its late completion arrives:
+     * android refuses new gatt calls meanwhile, and the late event would otherwise be taken
+     * as the completion of the next operation. released after another timeout period if the
+     * event never arrives.
+     */
+    private void onTimeout(final GattOperation operation) {
+        synchronized (this) {
+            if (current != operation || (operation.state != GattOperation.STATE_ISSUING
+                    && operation.state != GattOperation.STATE_IN_FLIGHT)) {
+                return;
+            }
+            operation.state = GattOperation.STATE_TIMED_OUT;
+            operation.timeout = timer.newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    releaseTimedOut(operation);
+                }
+            }, operation.getTimeoutMillis(), TimeUnit.MILLISECONDS);
+        }
+        BleLog.w(TAG, "gatt operation timeout " + operation.getUuid());
+        operation.onFailure(new TimeoutException());
+    }
+
+    private void releaseTimedOut(GattOperation operation) {
+        synchronized (this) {
+            if (current != operation || operation.state != GattOperation.STATE_TIMED_OUT) {
+                return;
+            }
+            current = null;
+        }
+        BleLog.w(TAG, "no completion after timeout, connection released " + operation.getUuid());
+        drain();
+    }
+}
@@ -0,0 +1,348 @@
+package com.qyh.fastble.ble.data;
+
+import com.qyh.fastble.ble.notify.ByteSlice;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 广播数据(AD structure)的只读视图
+ *
+ * 创建时只遍历一次scanRecord, 把每个AD结构的类型, 偏移和长度记录在一个int数组中, 不复制数据,
+ * 不为每个字段创建对象. 各字段在第一次访问时解析并缓存;
+ * 厂商数据和服务数据通过调用方提供的 {@link ByteSlice} 返回, 扫描过滤时不分配内存
+ */
+public final class AdvertisingData {
+
+    public static final int TYPE_FLAGS = 0x01;
+    public static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    public static final int TYPE_UUID16 = 0x03;
+    public static final int TYPE_UUID32_INCOMPLETE = 0x04;
+    public static final int TYPE_UUID32 = 0x05;
+    public static final int TYPE_UUID128_INCOMPLETE = 0x06;
+    public static final int TYPE_UUID128 = 0x07;
+    public static final int TYPE_LOCAL_NAME_SHORT = 0x08;
+    public static final int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    public static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    public static final int TYPE_SERVICE_DATA_16_BIT = 0x16;
+    public static final int TYPE_SERVICE_DATA_32_BIT = 0x20;
+    public static final int TYPE_SERVICE_DATA_128_BIT = 0x21;
+    public static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    /** 没有该字段时 {@link #getTxPowerLevel()} 的返回值 */
+    public static final int TX_POWER_UNKNOWN = Integer.MIN_VALUE;
+
+    /** 蓝牙基础UUID 0000xxxx-0000-1000-8000-00805f9b34fb */
+    private static final long BASE_UUID_MSB = 0x0000000000001000L;
+    private static final long BASE_UUID_LSB = 0x800000805F9B34FBL;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int NOT_DECODED = Integer.MIN_VALUE + 1;
+
+    private final byte[] scanRecord;
+    /** 每个AD结构一项: 数据偏移 << 16 | 数据长度 << 8 | 类型 */
+    private final int[] table;
+    private final int count;
+
+    // 缓存: 多线程同时解析时结果相同, 只会重复计算
+    private int flags = NOT_DECODED;
+    private int txPowerLevel = NOT_DECODED;
+    private String localName;
+    private volatile List<UUID> serviceUuids;
+
+    public AdvertisingData(byte[] scanRecord) {
+        this.scanRecord = scanRecord == null ? new byte[0] : scanRecord;
+        int[] entries = new int[8];
+        int size = 0;
+        byte[] record = this.scanRecord;
+        int position = 0;
+        while (position < record.length) {
+            int length = record[position] & 0xFF;
+            // 长度为0之后是补齐的0, 超出末尾的结构不完整
+            if (length == 0 || position + 1 + length > record.length || position + 2 > 0xFFFF) {
+                break;
+            }
+            if (size == entries.length) {
+                int[] grown = new int[size * 2];
+                System.arraycopy(entries, 0, grown, 0, size);
+                entries = grown;
+            }
+            int type = record[position + 1] & 0xFF;
+            entries[size++] = (position + 2) << 16 | (length - 1) << 8 | type;
+            position += 1 + length;
+        }
+        this.table = entries;
+        this.count = size;
+    }
+
+    public byte[] getBytes() {
+        return scanRecord;
+    }
+
+    /**
+     * AD结构的个数
+     */
+    public int getCount() {
+        return count;
+    }
+
+    public int getType(int index) {
+        return table[index] & 0xFF;
+    }
+
+    /**
+     * 第index个AD结构的数据在scanRecord中的偏移, 不含长度和类型
+     */
+    public int getDataOffset(int index) {
+        return table[index] >>> 16;
+    }
+
+    public int getDataLength(int index) {
+        return (table[index] >>> 8) & 0xFF;
+    }
+
+    /**
+     * 第一个该类型的AD结构的序号
+     *
+     * @return 没有时返回-1
+     */
+    public int indexOf(int type) {
+        for (int i = 0; i < count; i++) {
+            if ((table[i] & 0xFF) == type) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * @return 没有Flags时返回-1
+     */
+    public int getFlags() {
+        int value = flags;
+        if (value == NOT_DECODED) {
+            int index = indexOf(TYPE_FLAGS);
+            value = index < 0 || getDataLength(index) == 0 ? -1 : scanRecord[getDataOffset(index)] & 0xFF;
+            flags = value;
+        }
+        return value;
+    }
+
+    /**
+     * @return 单位dBm, 没有时返回 {@link #TX_POWER_UNKNOWN}
+     */
+    public int getTxPowerLevel() {
+        int value = txPowerLevel;
+        if (value == NOT_DECODED) {
+            int index = indexOf(TYPE_TX_POWER_LEVEL);
+            value = index < 0 || getDataLength(index) == 0 ? TX_POWER_UNKNOWN : scanRecord[getDataOffset(index)];
+            txPowerLevel = value;
+        }
+        return value;
+    }
+
+    /**
+     * 完整设备名, 没有时使用缩写设备名
+     *
+     * @return 都没有时返回null
+     */
+    public String getLocalName() {
+        String name = localName;
+        if (name == null) {
+            int index = indexOf(TYPE_LOCAL_NAME_COMPLETE);
+            if (index < 0) {
+                index = indexOf(TYPE_LOCAL_NAME_SHORT);
+            }
+            if (index < 0) {
+                return null;
+            }
+            name = new String(scanRecord, getDataOffset(index), getDataLength(index), UTF_8);
+            localName = name;
+        }
+        return name;
+    }
+
+    /**
+     * 广播的所有服务UUID, 16位和32位UUID转换为完整UUID
+     *
+     * @return 只读列表, 没有时为空列表
+     */
+    public List<UUID> getServiceUuids() {
+        List<UUID> uuids = serviceUuids;
+        if (uuids == null) {
+            List<UUID> list = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                int width = uuidWidth(getType(i));
+                if (width == 0) {
+                    continue;
+                }
+                int offset = getDataOffset(i);
+                int end = offset + getDataLength(i);
+                for (int position = offset; position + width <= end; position += width) {
+                    list.add(new UUID(msb(position, width), lsb(position, width)));
+                }
+            }
+            uuids = list.isEmpty() ? Collections.<UUID>emptyList() : Collections.unmodifiableList(list);
+            serviceUuids = uuids;
+        }
+        return uuids;
+    }
+
+    /**
+     * 是否广播了该服务UUID, 直接比较原始数据, 不分配内存
+     */
+    public boolean hasServiceUuid(UUID uuid) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for (int i = 0; i < count; i++) {
+            int width = uuidWidth(getType(i));
+            if (width == 0) {
+                continue;
+            }
+            int offset = getDataOffset(i);
+            int end = offset + getDataLength(i);
+            for (int position = offset; position + width <= end; position += width) {
+                if (lsb(position, width) == lsb && msb(position, width) == msb) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 第一个厂商数据的厂商ID(Company Identifier)
+     *
+     * @return 没有时返回-1
+     */
+    public int getManufacturerId() {
+        for (int i = 0; i < count; i++) {
+            if (getType(i) == TYPE_MANUFACTURER_SPECIFIC_DATA && getDataLength(i) >= 2) {
+                return readUInt16(getDataOffset(i));
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * 查找厂商数据, 不分配内存
+     *
+     * @param manufacturerId 厂商ID, 如 0x004C
+     * @param out            找到时指向厂商ID之后的数据, 只在scanRecord不变时有效
+     * @return 是否找到
+     */
+    public boolean getManufacturerData(int manufacturerId, ByteSlice out) {
+        for (int i = 0; i < count; i++) {
+            if (getType(i) == TYPE_MANUFACTURER_SPECIFIC_DATA && getDataLength(i) >= 2
+                    && readUInt16(getDataOffset(i)) == manufacturerId) {
+                out.set(scanRecord, getDataOffset(i) + 2, getDataLength(i) - 2);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 查找厂商数据并复制
+     *
+     * @return 没有时返回null
+     */
+    public byte[] getManufacturerData(int manufacturerId) {
+        ByteSlice slice = new ByteSlice();
+        return getManufacturerData(manufacturerId, slice) ? slice.toByteArray() : null;
+    }
+
+    /**
+     * 查找服务数据, 不分配内存
+     *
+     * @param uuid 服务UUID, 16位和32位UUID使用完整形式
+     * @param out  找到时指向UUID之后的数据, 只在scanRecord不变时有效
+     * @return 是否找到
+     */
+    public boolean getServiceData(UUID uuid, ByteSlice out) {
+        long msb = uuid.getMostSignificantBits();
+        long lsb = uuid.getLeastSignificantBits();
+        for (int i = 0; i < count; i++) {
+            int width = serviceDataUuidWidth(getType(i));
+            if (width == 0 || getDataLength(i) < width) {
+                continue;
+            }
+            int offset = getDataOffset(i);
+            if (lsb(offset, width) == lsb && msb(offset, width) == msb) {
+                out.set(scanRecord, offset + width, getDataLength(i) - width);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * 查找服务数据并复制
+     *
+     * @return 没有时返回null
+     */
+    public byte[] getServiceData(UUID uuid) {
+        ByteSlice slice = new ByteSlice();
+        return getServiceData(uuid, slice) ? slice.toByteArray() : null;
+    }
+
+    private static int uuidWidth(int type) {
+        switch (type) {
+            case TYPE_UUID16_INCOMPLETE:
+            case TYPE_UUID16:
+                return 2;
+            case TYPE_UUID32_INCOMPLETE:
+            case TYPE_UUID32:
+                return 4;
+            case TYPE_UUID128_INCOMPLETE:
+            case TYPE_UUID128:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    private static int serviceDataUuidWidth(int type) {
+        switch (type) {
+            case TYPE_SERVICE_DATA_16_BIT:
+                return 2;
+            case TYPE_SERVICE_DATA_32_BIT:
+                return 4;
+            case TYPE_SERVICE_DATA_128_BIT:
+                return 16;
+            default:
+                return 0;
+        }
+    }
+
+    /**
+     * 小端UUID的高64位, 16位和32位UUID按基础UUID展开
+     */
+    private long msb(int position, int width) {
+        if (width == 16) {
+            return readLong(position + 8);
+        }
+        long value = width == 2 ? readUInt16(position)
+                : readUInt16(position) | (long) readUInt16(position + 2) << 16;
+        return value << 32 | BASE_UUID_MSB;
+    }
+
+    private long lsb(int position, int width) {
+        return width == 16 ? readLong(position) : BASE_UUID_LSB;
+    }
+
+    private int readUInt16(int position) {
+        return (scanRecord[position] & 0xFF) | (scanRecord[position + 1] & 0xFF) << 8;
+    }
+
+    private long readLong(int position) {
+        long value = 0;
+        for (int i = 7; i >= 0; i--) {
+            value = value << 8 | (scanRecord[position + i] & 0xFF);
+        }
+        return value;
+    }
+}
@@ -12,6 +12,8 @@ public class BleDevice implements Parcelable {
     private byte[] mScanRecord;
     private int mRssi;
     private long mTimestampNanos;
+    /** 第一次访问时由mScanRecord创建, 不参与序列化 */
+    private AdvertisingData mAdvertisingData;
 
     public BleDevice(BluetoothDevice device, int rssi, byte[] scanRecord,
                      long timestampNanos) {
@@ -68,6 +70,25 @@ public class BleDevice implements Parcelable {
 
     public void setScanRecord(byte[] scanRecord) {
         this.mScanRecord = scanRecord;
+        this.mAdvertisingData = null;
+    }
+
+    /**
+     * 解析后的广播数据, 第一次调用时索引scanRecord, 各字段在访问时解析并缓存
+     *
+     * @return 没有scanRecord时返回null
+     */
+    public AdvertisingData getAdvertisingData() {
+        AdvertisingData data = mAdvertisingData;
+        byte[] scanRecord = mScanRecord;
+        if (data == null || data.getBytes() != scanRecord) {
+            if (scanRecord == null) {
+                return null;
+            }
+            data = new AdvertisingData(scanRecord);
+            mAdvertisingData = data;
+        }
+        return data;
     }
 
     public int getRssi() {
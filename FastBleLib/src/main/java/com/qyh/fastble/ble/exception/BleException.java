@@ -12,6 +12,7 @@ public abstract class BleException implements Serializable {
     public static final int ERROR_CODE_NOT_FOUND_DEVICE = 103;
     public static final int ERROR_CODE_BLUETOOTH_NOT_ENABLE = 104;
     public static final int ERROR_CODE_SCAN_FAILED = 105;
+    public static final int ERROR_CODE_CANCELLED = 106;
 
 
     private int code;
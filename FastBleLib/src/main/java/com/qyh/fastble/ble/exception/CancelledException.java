@@ -0,0 +1,12 @@
+package com.qyh.fastble.ble.exception;
+
+
+/**
+ * 操作被取消, 由 {@link com.qyh.fastble.ble.exception.hanlder.BleExceptionHandler} 按OtherException处理
+ */
+public class CancelledException extends OtherException {
+    public CancelledException() {
+        super("Operation Cancelled!");
+        setCode(ERROR_CODE_CANCELLED);
+    }
+}
@@ -0,0 +1,15 @@
+package com.qyh.fastble.ble.notify;
+
+import java.util.UUID;
+
+/**
+ * 批量notify数据回调
+ */
+public interface BatchListener {
+
+    /**
+     * @param uuid  特征码
+     * @param batch 一批数据, 回调返回后被回收复用, 需要保存时复制出来
+     */
+    void onBatch(UUID uuid, NotifyBatch batch);
+}
@@ -0,0 +1,201 @@
+package com.qyh.fastble.ble.notify;
+
+import com.qyh.fastble.ble.utils.BleExecutors;
+import com.qyh.fastble.ble.utils.HashedWheelTimer;
+
+import java.util.ArrayDeque;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 批量回调notify数据
+ *
+ * 数据复制到预先分配的 {@link NotifyBatch} 中, 攒够maxPackets包或第一包到达后maxLatencyMillis毫秒,
+ * 以先到者为准, 整批回调一次. 每批只切换一次线程, 批次用完后回收复用.
+ *
+ * 作为 {@link NotifySubscription} 的listener使用, 订阅本身应使用direct执行器
+ */
+public class BatchingNotifyListener implements NotifyListener {
+
+    /** 默认ATT MTU下每包的数据长度, 包更长时批次自动扩容 */
+    public static final int DEFAULT_BYTES_PER_PACKET = 20;
+    private static final int POOL_SIZE = 4;
+
+    private final int maxPackets;
+    private final long maxLatencyMillis;
+    private final int bytesPerPacket;
+    private final BatchListener listener;
+    private final Executor executor;
+    private final ArrayDeque<NotifyBatch> pool = new ArrayDeque<>(POOL_SIZE);
+    private NotifyBatch current;
+    private HashedWheelTimer.Timeout flushTimeout;
+    private long generation;
+    private long batchCount;
+    private long packetCount;
+
+    public BatchingNotifyListener(int maxPackets, long maxLatencyMillis, BatchListener listener) {
+        this(maxPackets, maxLatencyMillis, DEFAULT_BYTES_PER_PACKET, listener, BleExecutors.direct());
+    }
+
+    /**
+     * @param maxPackets       每批最多包数
+     * @param maxLatencyMillis 第一包到达后最多等待的时间, <=0 时只按包数回调
+     * @param bytesPerPacket   预估每包长度(MTU - 3), 用于预分配, 包更长时自动扩容
+     * @param listener         批量回调
+     * @param executor         批量回调执行的线程
+     */
+    public BatchingNotifyListener(int maxPackets, long maxLatencyMillis, int bytesPerPacket,
+                                  BatchListener listener, Executor executor) {
+        if (maxPackets <= 0) {
+            throw new IllegalArgumentException("maxPackets must be greater than 0");
+        }
+        if (listener == null) {
+            throw new IllegalArgumentException("listener must not be null");
+        }
+        this.maxPackets = maxPackets;
+        this.maxLatencyMillis = maxLatencyMillis;
+        this.bytesPerPacket = Math.max(bytesPerPacket, 1);
+        this.listener = listener;
+        this.executor = executor == null ? BleExecutors.direct() : executor;
+        for (int i = 0; i < 2; i++) {
+            pool.push(newBatch());
+        }
+    }
+
+    @Override
+    public void onNotify(UUID uuid, ByteSlice value) {
+        long now = System.nanoTime();
+        NotifyBatch overflow = null;
+        NotifyBatch full = null;
+        synchronized (this) {
+            packetCount++;
+            if (current == null) {
+                current = obtain();
+            }
+            if (!current.add(value, now)) {
+                // 批次已满, 先发出当前批次
+                overflow = takeCurrent();
+                current = obtain();
+                current.add(value, now);
+            }
+            current.uuid = uuid;
+            if (current.size() == 1) {
+                armFlushTimer();
+            }
+            if (current.isFull()) {
+                full = takeCurrent();
+            }
+        }
+        deliver(overflow);
+        deliver(full);
+    }
+
+    /**
+     * 立即回调当前未满的批次, 如取消订阅前
+     */
+    public void flush() {
+        NotifyBatch batch;
+        synchronized (this) {
+            batch = takeCurrent();
+        }
+        deliver(batch);
+    }
+
+    /**
+     * 已回调的批次数
+     */
+    public synchronized long getBatchCount() {
+        return batchCount;
+    }
+
+    /**
+     * 收到的包数
+     */
+    public synchronized long getPacketCount() {
+        return packetCount;
+    }
+
+    private void armFlushTimer() {
+        if (maxLatencyMillis <= 0) {
+            return;
+        }
+        cancelFlushTimer();
+        final long armed = ++generation;
+        flushTimeout = HashedWheelTimer.getDefault().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                onFlushTimeout(armed);
+            }
+        }, maxLatencyMillis, TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelFlushTimer() {
+        if (flushTimeout != null) {
+            flushTimeout.cancel();
+            flushTimeout = null;
+        }
+    }
+
+    private void onFlushTimeout(long armed) {
+        NotifyBatch batch;
+        synchronized (this) {
+            if (armed != generation) {
+                return;
+            }
+            batch = takeCurrent();
+        }
+        deliver(batch);
+    }
+
+    /**
+     * 取出当前批次, 同时取消已安排的定时回调
+     */
+    private NotifyBatch takeCurrent() {
+        NotifyBatch batch = current;
+        current = null;
+        cancelFlushTimer();
+        generation++;
+        if (batch != null && batch.isEmpty()) {
+            recycle(batch);
+            return null;
+        }
+        if (batch != null) {
+            batchCount++;
+        }
+        return batch;
+    }
+
+    private void deliver(NotifyBatch batch) {
+        if (batch != null) {
+            executor.execute(batch.delivery);
+        }
+    }
+
+    private NotifyBatch obtain() {
+        NotifyBatch batch = pool.poll();
+        return batch != null ? batch : newBatch();
+    }
+
+    private synchronized void recycle(NotifyBatch batch) {
+        batch.clear();
+        if (pool.size() < POOL_SIZE) {
+            pool.push(batch);
+        }
+    }
+
+    private NotifyBatch newBatch() {
+        final NotifyBatch batch = new NotifyBatch(maxPackets, bytesPerPacket);
+        batch.delivery = new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    listener.onBatch(batch.uuid, batch);
+                } finally {
+                    recycle(batch);
+                }
+            }
+        };
+        return batch;
+    }
+}
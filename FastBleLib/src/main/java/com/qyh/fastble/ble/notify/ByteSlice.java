@@ -0,0 +1,116 @@
+package com.qyh.fastble.ble.notify;
+
+import com.qyh.fastble.ble.utils.HexUtil;
+
+/**
+ * 只读的字节数组视图 (array, offset, length)
+ *
+ * 每个订阅复用同一个实例, 只在回调期间有效; 需要保存数据时调用
+ * {@link #copyTo(byte[], int)} 或 {@link #toByteArray()}
+ */
+public final class ByteSlice {
+
+    private static final byte[] EMPTY = new byte[0];
+
+    private byte[] array = EMPTY;
+    private int offset;
+    private int length;
+
+    public ByteSlice() {
+    }
+
+    public ByteSlice(byte[] array, int offset, int length) {
+        set(array, offset, length);
+    }
+
+    /**
+     * 指向新的数据, 不复制
+     */
+    public ByteSlice set(byte[] array, int offset, int length) {
+        if (array == null) {
+            this.array = EMPTY;
+            this.offset = 0;
+            this.length = 0;
+            return this;
+        }
+        if (offset < 0 || length < 0 || offset + length > array.length) {
+            throw new IndexOutOfBoundsException("offset " + offset + ", length " + length
+                    + ", array " + array.length);
+        }
+        this.array = array;
+        this.offset = offset;
+        this.length = length;
+        return this;
+    }
+
+    public ByteSlice set(byte[] array) {
+        return set(array, 0, array == null ? 0 : array.length);
+    }
+
+    public int length() {
+        return length;
+    }
+
+    public boolean isEmpty() {
+        return length == 0;
+    }
+
+    public byte get(int index) {
+        if (index < 0 || index >= length) {
+            throw new IndexOutOfBoundsException("index " + index + ", length " + length);
+        }
+        return array[offset + index];
+    }
+
+    public int getUnsigned(int index) {
+        return get(index) & 0xFF;
+    }
+
+    /**
+     * 小端无符号16位整数, BLE数据一般为小端
+     */
+    public int getUInt16(int index) {
+        return getUnsigned(index) | (getUnsigned(index + 1) << 8);
+    }
+
+    /**
+     * 小端有符号32位整数
+     */
+    public int getInt32(int index) {
+        return getUnsigned(index) | (getUnsigned(index + 1) << 8)
+                | (getUnsigned(index + 2) << 16) | (get(index + 3) << 24);
+    }
+
+    /**
+     * 复制到目标数组
+     *
+     * @return 复制的字节数
+     */
+    public int copyTo(byte[] dest, int destOffset) {
+        int count = Math.min(length, dest.length - destOffset);
+        System.arraycopy(array, offset, dest, destOffset, count);
+        return count;
+    }
+
+    /**
+     * 复制为新数组, 会分配内存
+     */
+    public byte[] toByteArray() {
+        byte[] copy = new byte[length];
+        System.arraycopy(array, offset, copy, 0, length);
+        return copy;
+    }
+
+    byte[] array() {
+        return array;
+    }
+
+    int offset() {
+        return offset;
+    }
+
+    @Override
+    public String toString() {
+        return HexUtil.encodeHexStr(toByteArray());
+    }
+}
@@ -0,0 +1,101 @@
+package com.qyh.fastble.ble.notify;
+
+/**
+ * COBS (Consistent Overhead Byte Stuffing) 分帧: 编码后的内容不含0, 帧以0结尾
+ *
+ * 找到帧尾后原地解码, 空帧和编码错误的帧被丢弃
+ */
+public class CobsFramer implements Framer {
+
+    /** 已扫描过, 不含0的字节数 */
+    private int scanned;
+
+    @Override
+    public int decode(byte[] buffer, int offset, int length, ByteSlice frame) {
+        int end = -1;
+        for (int i = scanned; i < length; i++) {
+            if (buffer[offset + i] == 0) {
+                end = i;
+                break;
+            }
+        }
+        if (end < 0) {
+            scanned = length;
+            return NEED_MORE;
+        }
+        scanned = 0;
+        int consumed = end + 1;
+        int decoded = decode(buffer, offset, end);
+        if (decoded <= 0) {
+            return -consumed;
+        }
+        frame.set(buffer, offset, decoded);
+        return consumed;
+    }
+
+    /**
+     * 原地解码 buffer[offset, offset + length)
+     *
+     * @return 解码后的长度, 编码错误时返回-1
+     */
+    private static int decode(byte[] buffer, int offset, int length) {
+        int read = 0;
+        int write = 0;
+        while (read < length) {
+            int code = buffer[offset + read] & 0xFF;
+            if (read + code > length) {
+                return -1;
+            }
+            read++;
+            for (int i = 1; i < code; i++) {
+                buffer[offset + write++] = buffer[offset + read++];
+            }
+            if (code != 0xFF && read < length) {
+                buffer[offset + write++] = 0;
+            }
+        }
+        return write;
+    }
+
+    @Override
+    public boolean isInPlace() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        scanned = 0;
+    }
+
+    /**
+     * 编码一帧, 包括结尾的0, 发送时使用
+     */
+    public static byte[] encode(byte[] data) {
+        byte[] out = new byte[data.length + data.length / 254 + 2];
+        int codeIndex = 0;
+        int write = 1;
+        int code = 1;
+        for (byte b : data) {
+            if (b == 0) {
+                out[codeIndex] = (byte) code;
+                codeIndex = write++;
+                code = 1;
+            } else {
+                out[write++] = b;
+                if (++code == 0xFF) {
+                    out[codeIndex] = (byte) code;
+                    codeIndex = write++;
+                    code = 1;
+                }
+            }
+        }
+        out[codeIndex] = (byte) code;
+        out[write++] = 0;
+        if (write == out.length) {
+            return out;
+        }
+        byte[] trimmed = new byte[write];
+        System.arraycopy(out, 0, trimmed, 0, write);
+        return trimmed;
+    }
+}
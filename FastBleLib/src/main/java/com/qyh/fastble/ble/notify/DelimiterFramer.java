@@ -0,0 +1,66 @@
+package com.qyh.fastble.ble.notify;
+
+/**
+ * 分隔符分帧: 内容以分隔符结尾, 例如文本协议的 "\r\n"; 回调的帧不包括分隔符
+ */
+public class DelimiterFramer implements Framer {
+
+    private final byte[] delimiter;
+    private final boolean skipEmpty;
+    /** 已扫描过, 不包含完整分隔符的字节数 */
+    private int scanned;
+
+    public DelimiterFramer(byte delimiter) {
+        this(new byte[]{delimiter}, true);
+    }
+
+    /**
+     * @param delimiter 分隔符
+     * @param skipEmpty 是否丢弃空帧(连续的分隔符)
+     */
+    public DelimiterFramer(byte[] delimiter, boolean skipEmpty) {
+        if (delimiter == null || delimiter.length == 0) {
+            throw new IllegalArgumentException("delimiter must not be empty");
+        }
+        this.delimiter = delimiter.clone();
+        this.skipEmpty = skipEmpty;
+    }
+
+    @Override
+    public int decode(byte[] buffer, int offset, int length, ByteSlice frame) {
+        int last = length - delimiter.length;
+        for (int i = scanned; i <= last; i++) {
+            if (matches(buffer, offset + i)) {
+                scanned = 0;
+                int consumed = i + delimiter.length;
+                if (i == 0 && skipEmpty) {
+                    return -consumed;
+                }
+                frame.set(buffer, offset, i);
+                return consumed;
+            }
+        }
+        // 分隔符可能跨包, 下次从可能的起点继续扫描
+        scanned = Math.max(0, last + 1);
+        return NEED_MORE;
+    }
+
+    private boolean matches(byte[] buffer, int position) {
+        for (int j = 0; j < delimiter.length; j++) {
+            if (buffer[position + j] != delimiter[j]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isInPlace() {
+        return false;
+    }
+
+    @Override
+    public void reset() {
+        scanned = 0;
+    }
+}
@@ -0,0 +1,33 @@
+package com.qyh.fastble.ble.notify;
+
+/**
+ * 分帧策略, 从连续的notify数据中切出完整的应用层消息
+ *
+ * 由 {@link FramingNotifyListener} 调用, 实现可以保存扫描进度等状态, 每个订阅使用单独的实例
+ */
+public interface Framer {
+
+    /** 数据不足, 等待下一包 */
+    int NEED_MORE = 0;
+
+    /**
+     * 从 buffer[offset, offset + length) 的开头取出一帧
+     *
+     * @param buffer 未处理的数据, {@link #isInPlace()} 为true时可以原地解码
+     * @param frame  取到一帧时指向帧内容, 只在本次回调期间有效
+     * @return 大于0: 取到一帧, 值为消耗的字节数(包括长度头, 分隔符等);
+     * {@link #NEED_MORE}: 数据不足;
+     * 小于0: 开头的 -n 个字节是无效数据, 需要丢弃
+     */
+    int decode(byte[] buffer, int offset, int length, ByteSlice frame);
+
+    /**
+     * 是否会修改buffer中的数据; 不修改时第一包可以直接在收到的数据上分帧, 不需要复制
+     */
+    boolean isInPlace();
+
+    /**
+     * 清除状态, 丢弃数据或重新订阅时调用
+     */
+    void reset();
+}
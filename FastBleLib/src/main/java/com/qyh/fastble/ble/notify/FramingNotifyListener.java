@@ -0,0 +1,163 @@
+package com.qyh.fastble.ble.notify;
+
+import java.util.UUID;
+
+/**
+ * 把notify数据按 {@link Framer} 拼成完整的应用层消息, 只把完整的帧回调给listener
+ *
+ * 不跨包的帧直接在收到的数据上切出, 不复制(只限不修改数据的分帧策略);
+ * 跨包的数据复制一次到复用的缓冲区, 缓冲区按需倍增, 不超过maxFrameLength.
+ * 回调的 {@link ByteSlice} 指向缓冲区或收到的数据, 只在回调期间有效.
+ *
+ * 作为 {@link NotifySubscription} 的listener使用, 同一订阅的数据顺序到达
+ */
+public class FramingNotifyListener implements NotifyListener {
+
+    /** 默认最大帧长度 */
+    public static final int DEFAULT_MAX_FRAME_LENGTH = 64 * 1024;
+    private static final int INITIAL_CAPACITY = 256;
+
+    private final Framer framer;
+    private final NotifyListener listener;
+    private final int maxFrameLength;
+    private final ByteSlice frame = new ByteSlice();
+
+    private byte[] buffer;
+    private int start;
+    private int end;
+
+    private long frameCount;
+    private long discardedBytes;
+
+    public FramingNotifyListener(Framer framer, NotifyListener listener) {
+        this(framer, DEFAULT_MAX_FRAME_LENGTH, listener);
+    }
+
+    /**
+     * @param framer         分帧策略, 每个订阅使用单独的实例
+     * @param maxFrameLength 最大帧长度(编码后), 超过后丢弃已缓存的数据
+     * @param listener       完整帧的回调
+     */
+    public FramingNotifyListener(Framer framer, int maxFrameLength, NotifyListener listener) {
+        if (framer == null || listener == null) {
+            throw new IllegalArgumentException("framer and listener must not be null");
+        }
+        if (maxFrameLength <= 0) {
+            throw new IllegalArgumentException("maxFrameLength must be greater than 0");
+        }
+        this.framer = framer;
+        this.listener = listener;
+        this.maxFrameLength = maxFrameLength;
+        this.buffer = new byte[Math.min(INITIAL_CAPACITY, maxFrameLength)];
+    }
+
+    @Override
+    public synchronized void onNotify(UUID uuid, ByteSlice value) {
+        int length = value.length();
+        if (length == 0) {
+            return;
+        }
+        if (start == end && !framer.isInPlace()) {
+            // 没有缓存的数据, 直接在收到的数据上分帧, 只缓存剩下的部分
+            int consumed = drain(uuid, value.array(), value.offset(), length);
+            if (consumed < length) {
+                start = 0;
+                end = 0;
+                append(value.array(), value.offset() + consumed, length - consumed);
+            }
+            return;
+        }
+        append(value.array(), value.offset(), length);
+        start += drain(uuid, buffer, start, end - start);
+        if (start == end) {
+            start = 0;
+            end = 0;
+        }
+    }
+
+    /**
+     * 回调 data[offset, offset + length) 中所有完整的帧
+     *
+     * @return 消耗的字节数
+     */
+    private int drain(UUID uuid, byte[] data, int offset, int length) {
+        int position = 0;
+        while (position < length) {
+            int result = framer.decode(data, offset + position, length - position, frame);
+            if (result == Framer.NEED_MORE) {
+                break;
+            }
+            if (result < 0) {
+                discardedBytes -= result;
+                position -= result;
+                continue;
+            }
+            position += result;
+            frameCount++;
+            listener.onNotify(uuid, frame);
+        }
+        if (length - position > maxFrameLength) {
+            // 一直没有完整的帧, 丢弃已缓存的数据重新同步
+            discardedBytes += length - position;
+            framer.reset();
+            return length;
+        }
+        return position;
+    }
+
+    /**
+     * 追加到缓冲区末尾, 空间不足时先把未处理的数据移到开头, 仍不足时扩容
+     */
+    private void append(byte[] data, int offset, int length) {
+        if (end + length > buffer.length) {
+            int pending = end - start;
+            if (pending + length > buffer.length) {
+                int capacity = buffer.length;
+                while (capacity < pending + length) {
+                    capacity <<= 1;
+                }
+                // 允许超过maxFrameLength一包, 超出的数据在drain中丢弃
+                byte[] grown = new byte[capacity];
+                System.arraycopy(buffer, start, grown, 0, pending);
+                buffer = grown;
+            } else {
+                System.arraycopy(buffer, start, buffer, 0, pending);
+            }
+            start = 0;
+            end = pending;
+        }
+        System.arraycopy(data, offset, buffer, end, length);
+        end += length;
+    }
+
+    /**
+     * 丢弃缓存的不完整数据, 缓冲区保留复用
+     */
+    public synchronized void reset() {
+        start = 0;
+        end = 0;
+        framer.reset();
+    }
+
+    /**
+     * 缓存的不完整数据字节数
+     */
+    public synchronized int getPendingLength() {
+        return end - start;
+    }
+
+    public synchronized long getFrameCount() {
+        return frameCount;
+    }
+
+    /**
+     * 丢弃的无效数据字节数
+     */
+    public synchronized long getDiscardedBytes() {
+        return discardedBytes;
+    }
+
+    public Framer getFramer() {
+        return framer;
+    }
+}
@@ -0,0 +1,69 @@
+package com.qyh.fastble.ble.notify;
+
+/**
+ * 长度头分帧: [长度][内容], 长度为1, 2或4字节的无符号整数
+ */
+public class LengthPrefixFramer implements Framer {
+
+    private final int headerSize;
+    private final boolean bigEndian;
+    private final boolean includesHeader;
+
+    /**
+     * 小端长度头, 长度只包括内容
+     *
+     * @param headerSize 长度头字节数, 1, 2或4
+     */
+    public LengthPrefixFramer(int headerSize) {
+        this(headerSize, false, false);
+    }
+
+    /**
+     * @param headerSize     长度头字节数, 1, 2或4
+     * @param bigEndian      长度头是否为大端
+     * @param includesHeader 长度是否包括长度头本身
+     */
+    public LengthPrefixFramer(int headerSize, boolean bigEndian, boolean includesHeader) {
+        if (headerSize != 1 && headerSize != 2 && headerSize != 4) {
+            throw new IllegalArgumentException("headerSize must be 1, 2 or 4: " + headerSize);
+        }
+        this.headerSize = headerSize;
+        this.bigEndian = bigEndian;
+        this.includesHeader = includesHeader;
+    }
+
+    @Override
+    public int decode(byte[] buffer, int offset, int length, ByteSlice frame) {
+        if (length < headerSize) {
+            return NEED_MORE;
+        }
+        long declared = 0;
+        for (int i = 0; i < headerSize; i++) {
+            int b = buffer[offset + (bigEndian ? i : headerSize - 1 - i)] & 0xFF;
+            declared = (declared << 8) | b;
+        }
+        long total = includesHeader ? declared : declared + headerSize;
+        if (total < headerSize || total > Integer.MAX_VALUE) {
+            // 长度头错误, 丢弃长度头
+            return -headerSize;
+        }
+        if (length < total) {
+            return NEED_MORE;
+        }
+        frame.set(buffer, offset + headerSize, (int) total - headerSize);
+        return (int) total;
+    }
+
+    @Override
+    public boolean isInPlace() {
+        return false;
+    }
+
+    @Override
+    public void reset() {
+    }
+
+    public int getHeaderSize() {
+        return headerSize;
+    }
+}
@@ -0,0 +1,121 @@
+package com.qyh.fastble.ble.notify;
+
+import java.util.Arrays;
+import java.util.UUID;
+
+/**
+ * 一批notify数据, 预先分配, 循环使用
+ *
+ * 数据连续存放在同一个数组中, 每包记录偏移, 长度和接收时间({@link System#nanoTime()});
+ * 只在 {@link BatchListener#onBatch(UUID, NotifyBatch)} 回调期间有效
+ */
+public final class NotifyBatch {
+
+    private final int capacity;
+    private final int[] offsets;
+    private final int[] lengths;
+    private final long[] timestamps;
+    private final ByteSlice slice = new ByteSlice();
+    /** 由 {@link BatchingNotifyListener} 设置, 切换线程时复用, 不再每批创建Runnable */
+    Runnable delivery;
+    UUID uuid;
+    private byte[] data;
+    private int count;
+    private int size;
+
+    NotifyBatch(int capacity, int bytesPerPacket) {
+        this.capacity = capacity;
+        this.offsets = new int[capacity];
+        this.lengths = new int[capacity];
+        this.timestamps = new long[capacity];
+        this.data = new byte[capacity * bytesPerPacket];
+    }
+
+    /**
+     * 包数
+     */
+    public int size() {
+        return count;
+    }
+
+    public boolean isEmpty() {
+        return count == 0;
+    }
+
+    /**
+     * 第index包的数据, 返回的视图复用同一实例
+     */
+    public ByteSlice get(int index) {
+        return get(index, slice);
+    }
+
+    /**
+     * 第index包的数据, 写入调用方提供的视图
+     */
+    public ByteSlice get(int index, ByteSlice out) {
+        checkIndex(index);
+        return out.set(data, offsets[index], lengths[index]);
+    }
+
+    public int length(int index) {
+        checkIndex(index);
+        return lengths[index];
+    }
+
+    /**
+     * 第index包的接收时间, {@link System#nanoTime()}
+     */
+    public long getTimestampNanos(int index) {
+        checkIndex(index);
+        return timestamps[index];
+    }
+
+    /**
+     * 所有包的总字节数
+     */
+    public int byteCount() {
+        return size;
+    }
+
+    boolean isFull() {
+        return count == capacity;
+    }
+
+    /**
+     * 批次已满时返回false
+     *
+     * 数据区不足时(如MTU协商后包变长)按当前包长扩容到整批的大小, 回收复用后不再扩容
+     */
+    boolean add(byte[] value, int offset, int length, long timestampNanos) {
+        if (count == capacity) {
+            return false;
+        }
+        if (size + length > data.length) {
+            data = Arrays.copyOf(data, Math.max(size + length, capacity * length));
+        }
+        if (length > 0) {
+            System.arraycopy(value, offset, data, size, length);
+        }
+        offsets[count] = size;
+        lengths[count] = length;
+        timestamps[count] = timestampNanos;
+        size += length;
+        count++;
+        return true;
+    }
+
+    boolean add(ByteSlice value, long timestampNanos) {
+        return add(value.array(), value.offset(), value.length(), timestampNanos);
+    }
+
+    void clear() {
+        count = 0;
+        size = 0;
+    }
+
+    private void checkIndex(int index) {
+        if (index < 0 || index >= count) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + count);
+        }
+    }
+}
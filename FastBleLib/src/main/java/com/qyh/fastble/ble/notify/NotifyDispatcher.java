@@ -0,0 +1,76 @@
+package com.qyh.fastble.ble.notify;
+
+import com.qyh.fastble.ble.bluetooth.GattCallbackTable;
+
+import java.util.UUID;
+
+/**
+ * notify / indicate 分发表, 每个连接一个
+ *
+ * 复用 {@link GattCallbackTable} 的copy-on-write数组, 分发时只有一次哈希查找和一次数组遍历,
+ * 不加锁, 不创建迭代器, 每包不分配内存
+ */
+public class NotifyDispatcher {
+
+    private static final int EVENT = GattCallbackTable.EVENT_CHARACTERISTIC_CHANGED;
+
+    private final GattCallbackTable<NotifySubscription> table = new GattCallbackTable<>();
+
+    public void subscribe(NotifySubscription subscription) {
+        table.add(EVENT, subscription.getUuid(), subscription);
+    }
+
+    /**
+     * 取消订阅
+     *
+     * @return 该订阅属于本连接并已移除
+     */
+    public boolean unsubscribe(NotifySubscription subscription) {
+        if (subscription == null) {
+            return false;
+        }
+        boolean removed = table.remove(EVENT, subscription.getUuid(), subscription);
+        if (removed) {
+            subscription.cancel();
+        }
+        return removed;
+    }
+
+    public boolean hasSubscribers(UUID uuid) {
+        return table.contains(EVENT, uuid);
+    }
+
+    /**
+     * 没有任何特征码的订阅
+     */
+    public boolean isEmpty() {
+        return table.isEmpty(EVENT);
+    }
+
+    /**
+     * 分发一包数据
+     *
+     * @return 收到数据的订阅数
+     */
+    public int dispatch(UUID uuid, byte[] value) {
+        Object[] subscriptions = table.get(EVENT, uuid);
+        for (Object subscription : subscriptions) {
+            ((NotifySubscription) subscription).deliver(value);
+        }
+        return subscriptions.length;
+    }
+
+    /**
+     * 移除特征码的全部订阅
+     */
+    public void remove(UUID uuid) {
+        for (Object subscription : table.get(EVENT, uuid)) {
+            ((NotifySubscription) subscription).cancel();
+        }
+        table.remove(EVENT, uuid);
+    }
+
+    public void clear() {
+        table.clear();
+    }
+}
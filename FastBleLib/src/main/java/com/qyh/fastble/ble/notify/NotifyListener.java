@@ -0,0 +1,15 @@
+package com.qyh.fastble.ble.notify;
+
+import java.util.UUID;
+
+/**
+ * notify / indicate 数据回调
+ */
+public interface NotifyListener {
+
+    /**
+     * @param uuid  特征码, 订阅时解析好的实例
+     * @param value 数据视图, 只在回调期间有效
+     */
+    void onNotify(UUID uuid, ByteSlice value);
+}
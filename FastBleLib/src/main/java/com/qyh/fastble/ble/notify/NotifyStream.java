@@ -0,0 +1,290 @@
+package com.qyh.fastble.ble.notify;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * 有界notify数据流
+ *
+ * binder线程只负责把数据复制进预先分配的环形缓冲区, 消费者在自己的线程中读取,
+ * 消费者再慢也不会阻塞binder线程(BLOCK策略除外)或在主线程堆积Runnable.
+ * 缓冲区写满后按溢出策略处理, 内存始终为 capacity * slotSize.
+ * 每包记录各自的characteristic UUID, 同一个数据流可以订阅多个characteristic.
+ *
+ * 用法: 作为listener传给 {@link com.qyh.fastble.ble.BleManager#subscribeNotify(String, String, NotifyListener)},
+ * 然后在工作线程中循环调用 {@link #take(byte[], long, TimeUnit)} 或 {@link #drain(NotifyListener)}
+ */
+public class NotifyStream implements NotifyListener {
+
+    /** 丢弃最旧的数据, 保留最新数据 */
+    public static final int OVERFLOW_DROP_OLDEST = 0;
+    /** 丢弃新到的数据 */
+    public static final int OVERFLOW_DROP_NEWEST = 1;
+    /** 阻塞binder线程等待消费者, 超时后丢弃新到的数据 */
+    public static final int OVERFLOW_BLOCK = 2;
+
+    /** MTU 247 时每包最大长度 */
+    public static final int DEFAULT_SLOT_SIZE = 244;
+
+    private final int capacity;
+    private final int slotSize;
+    private final int overflowPolicy;
+    private final byte[] slots;
+    private final int[] lengths;
+    private final UUID[] uuids;
+    private final byte[] scratch;
+    private final ByteSlice slice = new ByteSlice();
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+
+    private long blockTimeoutNanos = TimeUnit.MILLISECONDS.toNanos(100);
+    private int head;
+    private int count;
+    private boolean closed;
+
+    private long receivedCount;
+    private long dropCount;
+    private long blockCount;
+
+    public NotifyStream(int capacity, int overflowPolicy) {
+        this(capacity, DEFAULT_SLOT_SIZE, overflowPolicy);
+    }
+
+    /**
+     * @param capacity       最多缓存的包数
+     * @param slotSize       每包最大长度, 超长的包被丢弃并计入丢包数
+     * @param overflowPolicy {@link #OVERFLOW_DROP_OLDEST}, {@link #OVERFLOW_DROP_NEWEST}, {@link #OVERFLOW_BLOCK}
+     */
+    public NotifyStream(int capacity, int slotSize, int overflowPolicy) {
+        if (capacity <= 0 || slotSize <= 0) {
+            throw new IllegalArgumentException("capacity and slotSize must be greater than 0");
+        }
+        if (overflowPolicy < OVERFLOW_DROP_OLDEST || overflowPolicy > OVERFLOW_BLOCK) {
+            throw new IllegalArgumentException("unknown overflow policy: " + overflowPolicy);
+        }
+        this.capacity = capacity;
+        this.slotSize = slotSize;
+        this.overflowPolicy = overflowPolicy;
+        this.slots = new byte[capacity * slotSize];
+        this.lengths = new int[capacity];
+        this.uuids = new UUID[capacity];
+        this.scratch = new byte[slotSize];
+    }
+
+    /**
+     * BLOCK策略下binder线程最多等待的时间, 默认100ms
+     */
+    public NotifyStream setBlockTimeout(long timeout, TimeUnit unit) {
+        lock.lock();
+        try {
+            blockTimeoutNanos = unit.toNanos(timeout);
+        } finally {
+            lock.unlock();
+        }
+        return this;
+    }
+
+    /**
+     * 生产者, 在binder线程调用
+     */
+    @Override
+    public void onNotify(UUID uuid, ByteSlice value) {
+        lock.lock();
+        try {
+            receivedCount++;
+            if (closed || value.length() > slotSize) {
+                dropCount++;
+                return;
+            }
+            if (count == capacity && !makeRoom()) {
+                dropCount++;
+                return;
+            }
+            int index = (head + count) % capacity;
+            value.copyTo(slots, index * slotSize);
+            lengths[index] = value.length();
+            uuids[index] = uuid;
+            count++;
+            notEmpty.signal();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 缓冲区已满时按溢出策略腾出一个位置, 调用时持有锁
+     *
+     * @return 是否可以写入新数据
+     */
+    private boolean makeRoom() {
+        switch (overflowPolicy) {
+            case OVERFLOW_DROP_OLDEST:
+                head = (head + 1) % capacity;
+                count--;
+                dropCount++;
+                return true;
+            case OVERFLOW_BLOCK:
+                blockCount++;
+                long nanos = blockTimeoutNanos;
+                try {
+                    while (count == capacity && !closed) {
+                        if (nanos <= 0) {
+                            return false;
+                        }
+                        nanos = notFull.awaitNanos(nanos);
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return false;
+                }
+                return !closed;
+            case OVERFLOW_DROP_NEWEST:
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * 读取一包, 没有数据时立即返回
+     *
+     * @param dest 长度不小于slotSize
+     * @return 数据长度, 没有数据时返回-1
+     */
+    public int poll(byte[] dest) {
+        lock.lock();
+        try {
+            return count == 0 ? -1 : dequeue(dest);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 读取一包, 没有数据时等待
+     *
+     * @param dest 长度不小于slotSize
+     * @return 数据长度, 超时或流已关闭时返回-1
+     */
+    public int take(byte[] dest, long timeout, TimeUnit unit) throws InterruptedException {
+        long nanos = unit.toNanos(timeout);
+        lock.lockInterruptibly();
+        try {
+            while (count == 0) {
+                if (closed || nanos <= 0) {
+                    return -1;
+                }
+                nanos = notEmpty.awaitNanos(nanos);
+            }
+            return dequeue(dest);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 把当前缓存的数据逐包回调给listener, 在调用线程执行, 不阻塞生产者;
+     * 回调的UUID为该包到达时的characteristic
+     *
+     * @return 回调的包数
+     */
+    public int drain(NotifyListener listener) {
+        int drained = 0;
+        for (; ; ) {
+            int length;
+            UUID current;
+            lock.lock();
+            try {
+                if (count == 0) {
+                    return drained;
+                }
+                current = uuids[head];
+                length = dequeue(scratch);
+            } finally {
+                lock.unlock();
+            }
+            listener.onNotify(current, slice.set(scratch, 0, length));
+            drained++;
+        }
+    }
+
+    private int dequeue(byte[] dest) {
+        int length = lengths[head];
+        System.arraycopy(slots, head * slotSize, dest, 0, length);
+        uuids[head] = null;
+        head = (head + 1) % capacity;
+        count--;
+        notFull.signal();
+        return length;
+    }
+
+    /**
+     * 关闭数据流, 唤醒等待中的生产者和消费者, 之后到达的数据被丢弃; 已缓存的数据仍可读取
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signalAll();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int size() {
+        lock.lock();
+        try {
+            return count;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getCapacity() {
+        return capacity;
+    }
+
+    public int getSlotSize() {
+        return slotSize;
+    }
+
+    /**
+     * 收到的包数, 包括被丢弃的
+     */
+    public long getReceivedCount() {
+        lock.lock();
+        try {
+            return receivedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * 丢弃的包数
+     */
+    public long getDropCount() {
+        lock.lock();
+        try {
+            return dropCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * BLOCK策略下生产者等待的次数
+     */
+    public long getBlockCount() {
+        lock.lock();
+        try {
+            return blockCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.qyh.fastble.ble.notify;
+
+import com.qyh.fastble.ble.utils.BleExecutors;
+
+import java.util.Arrays;
+import java.util.UUID;
+import java.util.concurrent.Executor;
+
+/**
+ * 一个notify / indicate订阅
+ *
+ * 特征码UUID在订阅时解析一次, 分发时按UUID实例查表, 不再逐包解析字符串;
+ * 使用direct执行器(默认)时, 数据通过复用的 {@link ByteSlice} 在binder线程直接回调,
+ * 每包不分配内存. 其他执行器需要复制数据后切换线程, 每包会分配一次.
+ *
+ * direct回调不可重入, 同一订阅的数据总是在同一连接的binder线程上顺序到达
+ */
+public class NotifySubscription {
+
+    private final UUID serviceUuid;
+    private final UUID uuid;
+    private final NotifyListener listener;
+    private final Executor executor;
+    private final ByteSlice slice = new ByteSlice();
+    private volatile boolean active = true;
+
+    public NotifySubscription(UUID serviceUuid, UUID uuid, NotifyListener listener) {
+        this(serviceUuid, uuid, listener, BleExecutors.direct());
+    }
+
+    public NotifySubscription(UUID serviceUuid, UUID uuid, NotifyListener listener, Executor executor) {
+        if (uuid == null || listener == null) {
+            throw new IllegalArgumentException("uuid and listener must not be null");
+        }
+        this.serviceUuid = serviceUuid;
+        this.uuid = uuid;
+        this.listener = listener;
+        this.executor = executor == null ? BleExecutors.direct() : executor;
+    }
+
+    public NotifySubscription(String serviceUuid, String uuid, NotifyListener listener) {
+        this(serviceUuid == null ? null : UUID.fromString(serviceUuid), UUID.fromString(uuid), listener);
+    }
+
+    public void deliver(byte[] value) {
+        deliver(value, 0, value == null ? 0 : value.length);
+    }
+
+    public void deliver(byte[] value, int offset, int length) {
+        if (!active) {
+            return;
+        }
+        if (BleExecutors.isDirect(executor)) {
+            listener.onNotify(uuid, slice.set(value, offset, length));
+            return;
+        }
+        final byte[] copy = value == null ? null : Arrays.copyOfRange(value, offset, offset + length);
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (active) {
+                    listener.onNotify(uuid, new ByteSlice().set(copy));
+                }
+            }
+        });
+    }
+
+    /**
+     * 停止回调, 已切换到其他执行器但还未执行的数据也会被丢弃
+     */
+    public void cancel() {
+        active = false;
+    }
+
+    public boolean isActive() {
+        return active;
+    }
+
+    public UUID getServiceUuid() {
+        return serviceUuid;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public NotifyListener getListener() {
+        return listener;
+    }
+
+    public Executor getExecutor() {
+        return executor;
+    }
+}
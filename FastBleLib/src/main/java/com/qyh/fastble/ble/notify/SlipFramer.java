@@ -0,0 +1,97 @@
+package com.qyh.fastble.ble.notify;
+
+/**
+ * SLIP (RFC 1055) 分帧: 帧以END(0xC0)结尾, 内容中的END和ESC被转义
+ *
+ * 原地解码, 空帧(帧开头的END)被丢弃
+ */
+public class SlipFramer implements Framer {
+
+    public static final byte END = (byte) 0xC0;
+    public static final byte ESC = (byte) 0xDB;
+    public static final byte ESC_END = (byte) 0xDC;
+    public static final byte ESC_ESC = (byte) 0xDD;
+
+    /** 已解码的输入字节数 */
+    private int scanned;
+    /** 已解码的输出字节数, 不超过scanned */
+    private int decoded;
+    private boolean invalid;
+
+    @Override
+    public int decode(byte[] buffer, int offset, int length, ByteSlice frame) {
+        int read = scanned;
+        int write = decoded;
+        while (read < length) {
+            byte b = buffer[offset + read];
+            if (b == END) {
+                int consumed = read + 1;
+                boolean drop = invalid || write == 0;
+                reset();
+                if (drop) {
+                    return -consumed;
+                }
+                frame.set(buffer, offset, write);
+                return consumed;
+            }
+            if (b == ESC) {
+                if (read + 1 == length) {
+                    // 转义字符跨包
+                    break;
+                }
+                byte next = buffer[offset + read + 1];
+                if (next == ESC_END) {
+                    b = END;
+                } else if (next == ESC_ESC) {
+                    b = ESC;
+                } else {
+                    invalid = true;
+                }
+                read += 2;
+            } else {
+                read++;
+            }
+            buffer[offset + write++] = b;
+        }
+        scanned = read;
+        decoded = write;
+        return NEED_MORE;
+    }
+
+    @Override
+    public boolean isInPlace() {
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        scanned = 0;
+        decoded = 0;
+        invalid = false;
+    }
+
+    /**
+     * 编码一帧, 发送时使用
+     */
+    public static byte[] encode(byte[] data) {
+        int size = 1;
+        for (byte b : data) {
+            size += (b == END || b == ESC) ? 2 : 1;
+        }
+        byte[] out = new byte[size];
+        int i = 0;
+        for (byte b : data) {
+            if (b == END) {
+                out[i++] = ESC;
+                out[i++] = ESC_END;
+            } else if (b == ESC) {
+                out[i++] = ESC;
+                out[i++] = ESC_ESC;
+            } else {
+                out[i++] = b;
+            }
+        }
+        out[i] = END;
+        return out;
+    }
+}
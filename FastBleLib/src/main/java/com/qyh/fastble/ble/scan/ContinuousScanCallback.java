@@ -0,0 +1,316 @@
+package com.qyh.fastble.ble.scan;
+
+import android.bluetooth.BluetoothDevice;
+
+import com.qyh.fastble.ble.data.BleDevice;
+import com.qyh.fastble.ble.utils.BleExecutors;
+import com.qyh.fastble.ble.utils.HashedWheelTimer;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 持续扫描, 维护周围设备的实时列表
+ *
+ * 不设置扫描时间时一直扫描, 直到 {@link com.qyh.fastble.ble.BleManager#cancelScan()}.
+ * 设备第一次出现时回调 {@link #onDeviceEnter(BleDevice)}; 之后的广播只更新平滑后的rssi,
+ * 每个设备最多每updateInterval回调一次 {@link #onDeviceUpdate(BleDevice)};
+ * 超过expire没有收到广播的设备被移除并回调 {@link #onDeviceExit(BleDevice)}, 扫描结束时所有设备都会退出.
+ *
+ * 回调中BleDevice的rssi为指数移动平均(EMA)后的值. 每次回调都是当时状态的新BleDevice对象,
+ * 扫描线程之后收到的广播不会修改已回调出去的对象
+ */
+public abstract class ContinuousScanCallback extends PeriodScanCallback {
+
+    public static final long DEFAULT_EXPIRE_MILLIS = 10000;
+    public static final long DEFAULT_UPDATE_INTERVAL_MILLIS = 1000;
+    public static final float DEFAULT_RSSI_ALPHA = 0.25f;
+
+    /** 检查过期设备的最小间隔 */
+    private static final long MIN_SWEEP_MILLIS = 100;
+
+    private static final int EVENT_ENTER = 0;
+    private static final int EVENT_UPDATE = 1;
+    private static final int EVENT_EXIT = 2;
+
+    private final LinkedHashMap<String, Entry> devices = new LinkedHashMap<>();
+    private long expireNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_EXPIRE_MILLIS);
+    private long updateIntervalNanos = TimeUnit.MILLISECONDS.toNanos(DEFAULT_UPDATE_INTERVAL_MILLIS);
+    private float rssiAlpha = DEFAULT_RSSI_ALPHA;
+
+    /** 每次开始扫描加1, 上一次扫描的过期检查不再执行 */
+    private int generation;
+    private boolean scanning;
+    private boolean sweepArmed;
+
+    public ContinuousScanCallback() {
+        super(0);
+    }
+
+    /**
+     * @param timeoutMillis 扫描时间, 小于等于0时一直扫描
+     */
+    public ContinuousScanCallback(long timeoutMillis) {
+        super(timeoutMillis);
+    }
+
+    /**
+     * 超过该时间没有收到广播的设备被移除, 默认10s
+     */
+    public synchronized ContinuousScanCallback setExpireMillis(long expireMillis) {
+        if (expireMillis <= 0) {
+            throw new IllegalArgumentException("expireMillis must be greater than 0");
+        }
+        this.expireNanos = TimeUnit.MILLISECONDS.toNanos(expireMillis);
+        return this;
+    }
+
+    /**
+     * 同一设备两次onDeviceUpdate的最小间隔, 默认1s
+     */
+    public synchronized ContinuousScanCallback setUpdateInterval(long updateIntervalMillis) {
+        this.updateIntervalNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(updateIntervalMillis, 0));
+        return this;
+    }
+
+    /**
+     * rssi平滑系数, 新值的权重, 取值 (0, 1], 越小越平滑但跟随越慢, 为1时不平滑
+     */
+    public synchronized ContinuousScanCallback setRssiSmoothing(float alpha) {
+        if (!(alpha > 0 && alpha <= 1)) {
+            throw new IllegalArgumentException("alpha must be in (0, 1]");
+        }
+        this.rssiAlpha = alpha;
+        return this;
+    }
+
+    @Override
+    public void notifyScanStarted() {
+        synchronized (this) {
+            generation++;
+            scanning = true;
+            sweepArmed = false;
+        }
+        super.notifyScanStarted();
+    }
+
+    @Override
+    public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+        if (device == null) {
+            return;
+        }
+        String address = device.getAddress();
+        long now = System.nanoTime();
+        BleDevice entered = null;
+        BleDevice updated = null;
+        boolean armSweep = false;
+        int armGeneration;
+        synchronized (this) {
+            if (!scanning) {
+                return;
+            }
+            Entry entry = devices.get(address);
+            if (entry == null) {
+                entry = new Entry(device, rssi, scanRecord, now);
+                devices.put(address, entry);
+                entered = entry.toBleDevice();
+                if (!sweepArmed) {
+                    sweepArmed = true;
+                    armSweep = true;
+                }
+            } else {
+                entry.smoothedRssi += rssiAlpha * (rssi - entry.smoothedRssi);
+                entry.lastSeenNanos = now;
+                entry.scanRecord = scanRecord;
+                entry.timestamp = System.currentTimeMillis();
+                if (now - entry.lastReportNanos >= updateIntervalNanos) {
+                    entry.lastReportNanos = now;
+                    updated = entry.toBleDevice();
+                }
+            }
+            armGeneration = generation;
+        }
+        if (armSweep) {
+            armSweep(armGeneration);
+        }
+        if (entered != null) {
+            deliver(EVENT_ENTER, entered);
+        } else if (updated != null) {
+            deliver(EVENT_UPDATE, updated);
+        }
+    }
+
+    private void armSweep(final int armGeneration) {
+        long delayMillis;
+        synchronized (this) {
+            delayMillis = Math.max(TimeUnit.NANOSECONDS.toMillis(expireNanos) / 4, MIN_SWEEP_MILLIS);
+        }
+        HashedWheelTimer.getDefault().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                sweep(armGeneration);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * 移除过期设备, 还有设备时继续定时检查
+     */
+    private void sweep(int armGeneration) {
+        List<BleDevice> exited = null;
+        boolean rearm;
+        synchronized (this) {
+            if (armGeneration != generation || !scanning) {
+                return;
+            }
+            long now = System.nanoTime();
+            Iterator<Entry> iterator = devices.values().iterator();
+            while (iterator.hasNext()) {
+                Entry entry = iterator.next();
+                if (now - entry.lastSeenNanos >= expireNanos) {
+                    iterator.remove();
+                    if (exited == null) {
+                        exited = new ArrayList<>();
+                    }
+                    exited.add(entry.toBleDevice());
+                }
+            }
+            rearm = !devices.isEmpty();
+            sweepArmed = rearm;
+        }
+        if (rearm) {
+            armSweep(armGeneration);
+        }
+        if (exited != null) {
+            for (BleDevice bleDevice : exited) {
+                deliver(EVENT_EXIT, bleDevice);
+            }
+        }
+    }
+
+    @Override
+    public void onScanTimeout() {
+        onScanStopped();
+    }
+
+    @Override
+    public void onScanCancel() {
+        onScanStopped();
+    }
+
+    /**
+     * 扫描结束, 所有设备退出
+     */
+    private void onScanStopped() {
+        BleDevice[] exited;
+        synchronized (this) {
+            scanning = false;
+            sweepArmed = false;
+            generation++;
+            exited = snapshot();
+            devices.clear();
+        }
+        for (BleDevice bleDevice : exited) {
+            deliver(EVENT_EXIT, bleDevice);
+        }
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                onScanStop();
+            }
+        });
+    }
+
+    /**
+     * 当前在列表中的设备, 按出现的顺序排列
+     */
+    public synchronized BleDevice[] getDevices() {
+        return snapshot();
+    }
+
+    private BleDevice[] snapshot() {
+        BleDevice[] result = new BleDevice[devices.size()];
+        int i = 0;
+        for (Entry entry : devices.values()) {
+            result[i++] = entry.toBleDevice();
+        }
+        return result;
+    }
+
+    private void deliver(final int event, final BleDevice bleDevice) {
+        if (BleExecutors.isDirect(getExecutor())) {
+            dispatch(event, bleDevice);
+            return;
+        }
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                dispatch(event, bleDevice);
+            }
+        });
+    }
+
+    private void dispatch(int event, BleDevice bleDevice) {
+        switch (event) {
+            case EVENT_ENTER:
+                onDeviceEnter(bleDevice);
+                break;
+            case EVENT_UPDATE:
+                onDeviceUpdate(bleDevice);
+                break;
+            default:
+                onDeviceExit(bleDevice);
+                break;
+        }
+    }
+
+    /**
+     * 设备第一次出现
+     */
+    public abstract void onDeviceEnter(BleDevice bleDevice);
+
+    /**
+     * 设备的rssi或广播数据有更新, 每个设备最多每updateInterval回调一次
+     */
+    public void onDeviceUpdate(BleDevice bleDevice) {
+    }
+
+    /**
+     * 设备超过expire没有广播, 或扫描已结束
+     */
+    public abstract void onDeviceExit(BleDevice bleDevice);
+
+    /**
+     * 扫描结束, 在所有onDeviceExit之后回调
+     */
+    public void onScanStop() {
+    }
+
+    /**
+     * 设备的当前状态, 只在持有callback锁时修改; 回调出去的是 {@link #toBleDevice()} 创建的副本
+     */
+    private static final class Entry {
+        final BluetoothDevice device;
+        float smoothedRssi;
+        byte[] scanRecord;
+        long timestamp;
+        long lastSeenNanos;
+        long lastReportNanos;
+
+        Entry(BluetoothDevice device, int rssi, byte[] scanRecord, long now) {
+            this.device = device;
+            this.smoothedRssi = rssi;
+            this.scanRecord = scanRecord;
+            this.timestamp = System.currentTimeMillis();
+            this.lastSeenNanos = now;
+            this.lastReportNanos = now;
+        }
+
+        BleDevice toBleDevice() {
+            return new BleDevice(device, Math.round(smoothedRssi), scanRecord, timestamp);
+        }
+    }
+}
@@ -0,0 +1,210 @@
+package com.qyh.fastble.ble.scan;
+
+import android.annotation.TargetApi;
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.le.BluetoothLeScanner;
+import android.bluetooth.le.ScanCallback;
+import android.bluetooth.le.ScanFilter;
+import android.bluetooth.le.ScanRecord;
+import android.bluetooth.le.ScanResult;
+import android.bluetooth.le.ScanSettings;
+import android.os.Build;
+import android.os.ParcelUuid;
+
+import com.qyh.fastble.ble.utils.BleLog;
+import com.qyh.fastble.ble.utils.HashedWheelTimer;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * BluetoothLeScanner扫描引擎
+ *
+ * 由 {@link ScanScheduler} 使用, 所有扫描请求的过滤条件合并成ScanFilter交给控制器过滤,
+ * 扫描结果转换成 onLeScan 回调, 原有的扫描回调无需修改
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+final class LeScannerBackend extends ScanCallback {
+
+    private static final String TAG = LeScannerBackend.class.getSimpleName();
+    /** 批量上报时停止前等待缓存结果的最长时间, 协议栈没有回调时到时停止 */
+    private static final long FLUSH_TIMEOUT_MILLIS = 1000;
+
+    /**
+     * 扫描结果和启动失败的回调
+     */
+    interface Listener extends BluetoothAdapter.LeScanCallback {
+
+        /**
+         * @param errorCode ScanCallback.SCAN_FAILED_*
+         */
+        void onScanFailed(int errorCode);
+    }
+
+    private final BluetoothLeScanner scanner;
+    private final Listener listener;
+    private final boolean batched;
+    /** 已请求停止, 等待缓存的结果 */
+    private boolean stopping;
+    private boolean stopped;
+    private HashedWheelTimer.Timeout flushTimeout;
+
+    private LeScannerBackend(BluetoothLeScanner scanner, Listener listener, boolean batched) {
+        this.scanner = scanner;
+        this.listener = listener;
+        this.batched = batched;
+    }
+
+    /**
+     * 开始扫描
+     *
+     * @param criteria 过滤条件, 为null时不过滤
+     * @return 蓝牙未开启时返回null; 启动失败通过 {@link Listener#onScanFailed(int)} 回调
+     */
+    static LeScannerBackend start(BluetoothAdapter adapter, Listener listener, Collection<ScanScheduler.Criterion> criteria,
+                                  int scanMode, long reportDelayMillis) {
+        BluetoothLeScanner scanner = adapter.getBluetoothLeScanner();
+        if (scanner == null) {
+            return null;
+        }
+        ScanSettings.Builder settings = new ScanSettings.Builder();
+        if (scanMode == ScanConfig.SCAN_MODE_OPPORTUNISTIC && Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            scanMode = ScanConfig.SCAN_MODE_LOW_POWER;
+        }
+        settings.setScanMode(scanMode);
+        boolean batched = reportDelayMillis > 0 && adapter.isOffloadedScanBatchingSupported();
+        if (batched) {
+            settings.setReportDelay(reportDelayMillis);
+        } else if (reportDelayMillis > 0) {
+            BleLog.w(TAG, "scan batching not supported, results are reported at once");
+        }
+
+        LeScannerBackend backend = new LeScannerBackend(scanner, listener, batched);
+        try {
+            scanner.startScan(buildFilters(criteria), settings.build(), backend);
+        } catch (IllegalStateException e) {
+            // the adapter was turned off in between
+            BleLog.w(TAG, "startScan failed: " + e);
+            return null;
+        }
+        return backend;
+    }
+
+    /**
+     * 每个条件一个ScanFilter, 控制器匹配任意一个即上报; 没有条件时返回null(不过滤)
+     */
+    static List<ScanFilter> buildFilters(Collection<ScanScheduler.Criterion> criteria) {
+        if (criteria == null) {
+            return null;
+        }
+        List<ScanFilter> filters = new ArrayList<>(criteria.size());
+        for (ScanScheduler.Criterion criterion : criteria) {
+            ScanFilter.Builder builder = new ScanFilter.Builder();
+            if (criterion.name != null) {
+                builder.setDeviceName(criterion.name);
+            }
+            if (criterion.address != null) {
+                builder.setDeviceAddress(criterion.address);
+            }
+            if (criterion.serviceUuid != null) {
+                builder.setServiceUuid(new ParcelUuid(criterion.serviceUuid));
+            }
+            filters.add(builder.build());
+        }
+        return filters;
+    }
+
+    /**
+     * 停止扫描
+     *
+     * 批量上报时先取出控制器中缓存的结果, 结果通过onBatchScanResults异步返回,
+     * 收到后才真正停止扫描, 最多等待 {@link #FLUSH_TIMEOUT_MILLIS}; 期间的结果照常分发
+     */
+    void stop() {
+        if (!batched) {
+            stopScan();
+            return;
+        }
+        synchronized (this) {
+            if (stopping) {
+                return;
+            }
+            stopping = true;
+            flushTimeout = HashedWheelTimer.getDefault().newTimeout(new Runnable() {
+                @Override
+                public void run() {
+                    BleLog.w(TAG, "no batch scan results after flush, scan stopped");
+                    finishStop();
+                }
+            }, FLUSH_TIMEOUT_MILLIS, TimeUnit.MILLISECONDS);
+        }
+        try {
+            scanner.flushPendingScanResults(this);
+        } catch (IllegalStateException e) {
+            // the adapter is already off, nothing left to flush
+            BleLog.w(TAG, "flushPendingScanResults failed: " + e);
+            finishStop();
+        }
+    }
+
+    private void finishStop() {
+        synchronized (this) {
+            if (stopped) {
+                return;
+            }
+            stopped = true;
+            if (flushTimeout != null) {
+                flushTimeout.cancel();
+                flushTimeout = null;
+            }
+        }
+        stopScan();
+    }
+
+    private void stopScan() {
+        try {
+            scanner.stopScan(this);
+        } catch (IllegalStateException e) {
+            // the adapter is already off, the scan is gone with it
+            BleLog.w(TAG, "stopScan failed: " + e);
+        }
+    }
+
+    private synchronized boolean isStopping() {
+        return stopping;
+    }
+
+    @Override
+    public void onScanResult(int callbackType, ScanResult result) {
+        deliver(result);
+    }
+
+    @Override
+    public void onBatchScanResults(List<ScanResult> results) {
+        for (int i = 0, size = results.size(); i < size; i++) {
+            deliver(results.get(i));
+        }
+        if (isStopping()) {
+            // 缓存的结果已取出
+            finishStop();
+        }
+    }
+
+    @Override
+    public void onScanFailed(int errorCode) {
+        if (isStopping()) {
+            // 调度器已经不再使用该扫描, 不能当作新扫描的失败
+            BleLog.w(TAG, "scan failed while stopping, errorCode: " + errorCode);
+            return;
+        }
+        BleLog.e(TAG, "scan failed, errorCode: " + errorCode);
+        listener.onScanFailed(errorCode);
+    }
+
+    private void deliver(ScanResult result) {
+        ScanRecord record = result.getScanRecord();
+        listener.onLeScan(result.getDevice(), result.getRssi(), record == null ? null : record.getBytes());
+    }
+}
@@ -3,12 +3,12 @@ package com.qyh.fastble.ble.scan;
 import android.bluetooth.BluetoothDevice;
 
 import com.qyh.fastble.ble.data.BleDevice;
+import com.qyh.fastble.ble.utils.BleExecutors;
 import com.qyh.fastble.ble.utils.BleLog;
 import com.qyh.fastble.ble.utils.HexUtil;
+import com.qyh.fastble.ble.utils.LogUtils;
 
-import java.util.ArrayList;
-import java.util.List;
-import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.LinkedHashMap;
 
 /**
  * @author 邱永恒
@@ -19,50 +19,94 @@ import java.util.concurrent.atomic.AtomicBoolean;
  */
 public abstract class ListScanCallback extends PeriodScanCallback {
 
-    private List<BleDevice> resultList = new ArrayList<>();
-    private AtomicBoolean hasFound = new AtomicBoolean(false);
+    /**
+     * 扫描结果, 以MAC地址为key, 按第一次发现的顺序排列; 只在持有锁时修改, 不直接交给回调
+     */
+    private final LinkedHashMap<String, BleDevice> results = new LinkedHashMap<>();
 
     public ListScanCallback(long timeoutMillis) {
         super(timeoutMillis);
     }
 
+    /**
+     * 每个广播包都会回调, 已发现的设备只原地更新rssi, 发现时间和广播数据, 不分配新对象;
+     * 只有第一次发现的设备才回调onScanning, 回调的是副本, 之后的广播不会修改它
+     */
     @Override
     public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
         if (device == null) {
             return;
         }
-        BleLog.i(HexUtil.bytesToHexString(scanRecord));
-
-        BleDevice bleDevice = new BleDevice(device, rssi, scanRecord,
-                System.currentTimeMillis());
-
+        String address = device.getAddress();
+        long now = System.currentTimeMillis();
+        BleDevice bleDevice;
         synchronized (this) {
-            hasFound.set(false);
-            for (BleDevice result : resultList) {
-                if (result.getDevice().equals(device)) {
-                    hasFound.set(true);
-                }
-            }
-            if (!hasFound.get()) {
-                resultList.add(bleDevice);
-                onScanning(bleDevice);
+            BleDevice found = results.get(address);
+            if (found != null) {
+                found.setRssi(rssi);
+                found.setScanRecord(scanRecord);
+                found.setTimestampNanos(now);
+                return;
             }
+            results.put(address, new BleDevice(device, rssi, scanRecord, now));
+            bleDevice = new BleDevice(device, rssi, scanRecord, now);
+        }
+        if (BleLog.isLoggable(LogUtils.LEVEL_INFO)) {
+            BleLog.i(address + " " + HexUtil.bytesToHexString(scanRecord));
         }
+        deliverScanning(bleDevice);
     }
 
     @Override
     public void onScanTimeout() {
-        BleDevice[] results = new BleDevice[resultList.size()];
-        for (int i = 0; i < results.length; i++) {
-            results[i] = resultList.get(i);
-        }
-        onScanComplete(results);
+        deliverScanComplete(getScanResults());
     }
 
     @Override
     public void onScanCancel() {
-        BleDevice[] resultArr = resultList.toArray(new BleDevice[resultList.size()]);
-        onScanComplete(resultArr);
+        deliverScanComplete(getScanResults());
+    }
+
+    /**
+     * 当前扫描结果的快照, 按第一次发现的顺序排列, 每个BleDevice都是副本
+     */
+    public synchronized BleDevice[] getScanResults() {
+        BleDevice[] snapshot = new BleDevice[results.size()];
+        int i = 0;
+        for (BleDevice found : results.values()) {
+            snapshot[i++] = new BleDevice(found.getDevice(), found.getRssi(),
+                    found.getScanRecord(), found.getTimestampNanos());
+        }
+        return snapshot;
+    }
+
+    /**
+     * 已发现的设备数
+     */
+    public synchronized int getScanResultCount() {
+        return results.size();
+    }
+
+    private void deliverScanning(final BleDevice bleDevice) {
+        if (BleExecutors.isDirect(getExecutor())) {
+            onScanning(bleDevice);
+            return;
+        }
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                onScanning(bleDevice);
+            }
+        });
+    }
+
+    private void deliverScanComplete(final BleDevice[] results) {
+        getExecutor().execute(new Runnable() {
+            @Override
+            public void run() {
+                onScanComplete(results);
+            }
+        });
     }
 
     public abstract void onScanning(BleDevice result);
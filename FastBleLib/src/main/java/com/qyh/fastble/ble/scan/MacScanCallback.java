@@ -1,11 +1,15 @@
 package com.qyh.fastble.ble.scan;
 
 
+import android.bluetooth.BluetoothAdapter;
 import android.bluetooth.BluetoothDevice;
 import android.text.TextUtils;
 
 import com.qyh.fastble.ble.data.BleDevice;
 
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
@@ -45,6 +49,15 @@ public abstract class MacScanCallback extends PeriodScanCallback {
         }
     }
 
+    @Override
+    List<String> getFilterAddresses() {
+        if (mMac == null) {
+            return null;
+        }
+        String address = mMac.toUpperCase(Locale.US);
+        return BluetoothAdapter.checkBluetoothAddress(address) ? Collections.singletonList(address) : null;
+    }
+
     @Override
     public void onScanTimeout() {
         onDeviceNotFound();
@@ -9,6 +9,9 @@ import java.util.concurrent.atomic.AtomicBoolean;
 
 /**
  * scan a known name device, then connect
+ *
+ * 设备名只在应用中匹配: 精确搜索不区分大小写, 而控制器的ScanFilter区分大小写,
+ * 所以设备名不交给控制器过滤, 使用 {@link ScanConfig#ENGINE_LE_SCANNER} 时每个广播仍会回调到应用
  */
 public abstract class NameScanCallback extends PeriodScanCallback {
 
@@ -38,7 +41,7 @@ public abstract class NameScanCallback extends PeriodScanCallback {
     /**
      * 根据设备名搜索指定设备
      *
-     * 模糊搜索区分大小写
+     * 精确搜索不区分大小写, 模糊搜索区分大小写
      * @param device
      * @param rssi
      * @param scanRecord
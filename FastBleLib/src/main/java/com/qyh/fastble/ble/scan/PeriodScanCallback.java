@@ -5,6 +5,10 @@ import android.os.Handler;
 import android.os.Looper;
 
 import com.qyh.fastble.ble.bluetooth.BleBluetooth;
+import com.qyh.fastble.ble.utils.BleExecutors;
+
+import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * 有扫描超时的扫描回调
@@ -13,6 +17,9 @@ public abstract class PeriodScanCallback implements BluetoothAdapter.LeScanCallb
 
     private Handler handler = new Handler(Looper.getMainLooper());
     private long timeoutMillis = 10000;
+    /** 为null时在主线程执行 */
+    private Executor executor;
+    private ScanConfig scanConfig;
     BleBluetooth bleBluetooth;
 
     PeriodScanCallback(long timeoutMillis) {
@@ -24,9 +31,43 @@ public abstract class PeriodScanCallback implements BluetoothAdapter.LeScanCallb
     public abstract void onScanCancel();
 
     /**
-     * handler定时停止扫描
+     * BluetoothLeScanner启动扫描失败, 扫描已停止; 默认按扫描超时处理
+     *
+     * @param errorCode ScanCallback.SCAN_FAILED_*
+     */
+    public void onScanFailed(int errorCode) {
+        onScanTimeout();
+    }
+
+    /**
+     * 可以交给控制器精确匹配的设备名, 为null时不按设备名过滤.
+     * 控制器匹配区分大小写, 只有应用中的匹配也区分大小写时才能返回设备名
+     */
+    List<String> getFilterNames() {
+        return null;
+    }
+
+    /**
+     * 可以交给控制器匹配的MAC地址(大写), 为null时不按地址过滤
+     */
+    List<String> getFilterAddresses() {
+        return null;
+    }
+
+    /**
+     * 扫描请求开始
+     *
+     * 超时不在这里开始计算: 调度器可能把启动推迟到空闲窗口结束或有启动额度时,
+     * 底层扫描真正为该请求运行时才由 {@link ScanScheduler} 调用 {@link #startTimeout()}
      */
     public void notifyScanStarted() {
+        removeHandlerMsg();
+    }
+
+    /**
+     * handler定时停止扫描
+     */
+    void startTimeout() {
         if (timeoutMillis > 0) {
             removeHandlerMsg();
             handler.postDelayed(new Runnable() {
@@ -64,6 +105,34 @@ public abstract class PeriodScanCallback implements BluetoothAdapter.LeScanCallb
         return this;
     }
 
+    public Executor getExecutor() {
+        Executor executor = this.executor;
+        return executor == null ? BleExecutors.main() : executor;
+    }
+
+    /**
+     * 设置扫描结果回调执行的线程, 默认在主线程执行, 不更新UI时可以设置 {@link BleExecutors#direct()}
+     * 在扫描线程直接执行, 见 {@link BleExecutors}
+     *
+     * @param executor 为null时恢复主线程
+     */
+    public PeriodScanCallback setExecutor(Executor executor) {
+        this.executor = executor;
+        return this;
+    }
+
+    public ScanConfig getScanConfig() {
+        return scanConfig;
+    }
+
+    /**
+     * 本次扫描的配置, 为null时使用 {@link BleBluetooth#setScanConfig(ScanConfig)} 设置的默认配置
+     */
+    public PeriodScanCallback setScanConfig(ScanConfig scanConfig) {
+        this.scanConfig = scanConfig;
+        return this;
+    }
+
     public BleBluetooth getBleBluetooth() {
         return bleBluetooth;
     }
@@ -0,0 +1,106 @@
+package com.qyh.fastble.ble.scan;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * 扫描配置
+ *
+ * 默认使用 BluetoothAdapter.startLeScan, 每个广播包都回调到应用中再匹配.
+ * 设置 {@link #ENGINE_LE_SCANNER} 后在Android 5.0及以上使用 BluetoothLeScanner:
+ * MAC地址和服务UUID作为ScanFilter交给控制器过滤, 不匹配的广播不会唤醒应用;
+ * 支持扫描模式和批量上报. Android 5.0以下自动使用 startLeScan
+ *
+ * 注意: 控制器按设备名匹配区分大小写, 而按名称扫描不区分大小写, 所以设备名仍在应用中匹配
+ */
+public class ScanConfig {
+
+    /** BluetoothAdapter.startLeScan */
+    public static final int ENGINE_LEGACY = 0;
+    /** BluetoothLeScanner, 需要Android 5.0 */
+    public static final int ENGINE_LE_SCANNER = 1;
+
+    /** ScanSettings.SCAN_MODE_OPPORTUNISTIC, 只接收其他应用扫描到的结果, 需要Android 6.0 */
+    public static final int SCAN_MODE_OPPORTUNISTIC = -1;
+    /** ScanSettings.SCAN_MODE_LOW_POWER */
+    public static final int SCAN_MODE_LOW_POWER = 0;
+    /** ScanSettings.SCAN_MODE_BALANCED */
+    public static final int SCAN_MODE_BALANCED = 1;
+    /** ScanSettings.SCAN_MODE_LOW_LATENCY */
+    public static final int SCAN_MODE_LOW_LATENCY = 2;
+
+    private int engine = ENGINE_LEGACY;
+    private int scanMode = SCAN_MODE_LOW_LATENCY;
+    private long reportDelayMillis;
+    private final List<UUID> serviceUuids = new ArrayList<>();
+
+    public ScanConfig() {
+    }
+
+    public ScanConfig(ScanConfig other) {
+        engine = other.engine;
+        scanMode = other.scanMode;
+        reportDelayMillis = other.reportDelayMillis;
+        serviceUuids.addAll(other.serviceUuids);
+    }
+
+    public int getEngine() {
+        return engine;
+    }
+
+    /**
+     * @param engine {@link #ENGINE_LEGACY} 或 {@link #ENGINE_LE_SCANNER}
+     */
+    public ScanConfig setEngine(int engine) {
+        if (engine != ENGINE_LEGACY && engine != ENGINE_LE_SCANNER) {
+            throw new IllegalArgumentException("unknown scan engine: " + engine);
+        }
+        this.engine = engine;
+        return this;
+    }
+
+    public int getScanMode() {
+        return scanMode;
+    }
+
+    /**
+     * 扫描模式, 只对 {@link #ENGINE_LE_SCANNER} 有效, 默认 {@link #SCAN_MODE_LOW_LATENCY}
+     */
+    public ScanConfig setScanMode(int scanMode) {
+        if (scanMode < SCAN_MODE_OPPORTUNISTIC || scanMode > SCAN_MODE_LOW_LATENCY) {
+            throw new IllegalArgumentException("unknown scan mode: " + scanMode);
+        }
+        this.scanMode = scanMode;
+        return this;
+    }
+
+    public long getReportDelayMillis() {
+        return reportDelayMillis;
+    }
+
+    /**
+     * 批量上报延时, 控制器缓存扫描结果, 最多延时reportDelayMillis后一次性上报, 0为立即上报.
+     * 只对 {@link #ENGINE_LE_SCANNER} 有效, 控制器不支持批量上报时立即上报
+     */
+    public ScanConfig setReportDelay(long reportDelayMillis) {
+        this.reportDelayMillis = Math.max(reportDelayMillis, 0);
+        return this;
+    }
+
+    public List<UUID> getServiceUuids() {
+        return Collections.unmodifiableList(serviceUuids);
+    }
+
+    /**
+     * 只扫描广播了该服务UUID的设备, 多次添加时匹配任意一个.
+     * 与设备名或MAC地址同时使用时需同时满足
+     */
+    public ScanConfig addServiceUuid(UUID serviceUuid) {
+        if (serviceUuid != null && !serviceUuids.contains(serviceUuid)) {
+            serviceUuids.add(serviceUuid);
+        }
+        return this;
+    }
+}
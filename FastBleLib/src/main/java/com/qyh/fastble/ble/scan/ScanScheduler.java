@@ -0,0 +1,683 @@
+package com.qyh.fastble.ble.scan;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.os.Build;
+
+import com.qyh.fastble.ble.data.AdvertisingData;
+import com.qyh.fastble.ble.utils.BleLog;
+import com.qyh.fastble.ble.utils.HashedWheelTimer;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * 扫描调度
+ *
+ * 所有扫描回调共用一个底层扫描: 第一个扫描请求启动扫描, 之后的请求直接加入, 每个广播包分发给所有请求,
+ * 最后一个请求结束后才停止. 底层扫描可以按扫描窗口/空闲窗口交替运行, 默认一直扫描.
+ *
+ * Android 7.0起30秒内启动扫描超过5次, 系统不报错, 但之后的扫描不再返回结果. 调度器记录每次启动的时间,
+ * 从不超过该限制; 额度不足时放宽窗口而不是让扫描没有结果: 扫描中延长扫描窗口, 空闲中延长空闲窗口,
+ * 最后一个请求结束后继续扫描一段时间, 让紧接着的扫描请求不需要重新启动
+ */
+public final class ScanScheduler {
+
+    private static final String TAG = ScanScheduler.class.getSimpleName();
+
+    /** 系统限制: START_PERIOD_MILLIS内最多启动MAX_STARTS次 */
+    public static final int MAX_STARTS = 5;
+    public static final long START_PERIOD_MILLIS = 30000;
+    /** 计算额度时多等的时间, 抵消定时器误差 */
+    private static final long START_PERIOD_MARGIN_MILLIS = 500;
+
+    /** ScanCallback.SCAN_FAILED_INTERNAL_ERROR */
+    private static final int SCAN_FAILED_INTERNAL_ERROR = 3;
+
+    /** 没有请求, 没有扫描 */
+    private static final int PHASE_OFF = 0;
+    /** 有请求, 正在扫描 */
+    private static final int PHASE_SCANNING = 1;
+    /** 有请求, 空闲窗口中或等待启动额度 */
+    private static final int PHASE_IDLE = 2;
+    /** 没有请求, 启动额度不足, 继续扫描 */
+    private static final int PHASE_LINGER = 3;
+
+    private static final int EVENT_WINDOW_END = 0;
+    private static final int EVENT_IDLE_END = 1;
+    private static final int EVENT_RESTART = 2;
+    private static final int EVENT_LINGER_END = 3;
+
+    private static ScanScheduler defaultScheduler;
+
+    private final BluetoothAdapter adapter;
+    private final Radio radio = new Radio();
+    private final LinkedHashMap<PeriodScanCallback, Request> requests = new LinkedHashMap<>();
+    /** 分发广播时使用的快照, 请求变化时整体替换 */
+    private volatile Request[] active = new Request[0];
+
+    /** 最近MAX_STARTS次启动扫描的时间(ms), 环形数组, startIndex为最早的一次 */
+    private final long[] startTimes = new long[MAX_STARTS];
+    private int startIndex;
+    private int startTotal;
+
+    private long scanWindowMillis;
+    private long idleWindowMillis;
+
+    private int phase = PHASE_OFF;
+    private boolean radioOn;
+    /** 当前底层扫描的参数 */
+    private RadioSpec running;
+    private LeScannerBackend leScanner;
+    /** 新请求不在当前扫描的过滤条件内, 下次启动时使用新的条件 */
+    private boolean restartPending;
+    private HashedWheelTimer.Timeout phaseTimeout;
+    /** 每次设置或取消定时加1, 已取消但正在执行的定时任务不再生效 */
+    private int generation;
+
+    ScanScheduler(BluetoothAdapter adapter) {
+        this.adapter = adapter;
+        // 未使用的位置视为很久以前启动过
+        for (int i = 0; i < MAX_STARTS; i++) {
+            startTimes[i] = Long.MIN_VALUE / 2;
+        }
+    }
+
+    /**
+     * 系统的扫描启动次数限制按应用计算, 所有BleBluetooth共用一个调度器
+     */
+    public static synchronized ScanScheduler getDefault(BluetoothAdapter adapter) {
+        if (defaultScheduler == null) {
+            defaultScheduler = new ScanScheduler(adapter);
+        }
+        return defaultScheduler;
+    }
+
+    /**
+     * 设置扫描窗口和空闲窗口, 底层扫描扫描scanWindowMillis后停止idleWindowMillis, 交替进行.
+     * 任意一个为0时一直扫描(默认).
+     *
+     * 每个扫描窗口需要启动一次扫描, 窗口过短时启动额度不足, 扫描窗口会自动延长
+     */
+    public synchronized ScanScheduler setDutyCycle(long scanWindowMillis, long idleWindowMillis) {
+        if (scanWindowMillis < 0 || idleWindowMillis < 0) {
+            throw new IllegalArgumentException("window must not be negative");
+        }
+        this.scanWindowMillis = scanWindowMillis;
+        this.idleWindowMillis = idleWindowMillis;
+        if (phase == PHASE_SCANNING) {
+            cancelTimer();
+            if (isDutyCycled()) {
+                schedule(EVENT_WINDOW_END, scanWindowMillis);
+            } else if (restartPending) {
+                schedule(EVENT_RESTART, nextStartAt(now()) - now());
+            }
+        }
+        return this;
+    }
+
+    public synchronized long getScanWindowMillis() {
+        return scanWindowMillis;
+    }
+
+    public synchronized long getIdleWindowMillis() {
+        return idleWindowMillis;
+    }
+
+    /**
+     * 正在进行的扫描请求数
+     */
+    public synchronized int getRequestCount() {
+        return requests.size();
+    }
+
+    /**
+     * 底层扫描是否正在运行
+     */
+    public synchronized boolean isScanning() {
+        return radioOn;
+    }
+
+    /**
+     * 底层扫描的累计启动次数
+     */
+    public synchronized int getStartCount() {
+        return startTotal;
+    }
+
+    /**
+     * 加入扫描请求, 没有底层扫描时启动扫描; 启动额度不足时推迟到有额度时启动, 仍然返回true.
+     * 请求的扫描超时从底层扫描真正为它运行时开始计算, 推迟的时间不计入
+     *
+     * @param config 扫描配置, 可以为null
+     * @return 启动扫描失败时返回false
+     */
+    public boolean start(PeriodScanCallback callback, ScanConfig config) {
+        List<Request> failed = null;
+        boolean success;
+        synchronized (this) {
+            long now = now();
+            Request request = new Request(callback, config);
+            requests.put(callback, request);
+            updateActive();
+            switch (phase) {
+                case PHASE_IDLE:
+                    // 空闲窗口结束时一起启动
+                    return true;
+                case PHASE_LINGER:
+                    cancelTimer();
+                    phase = PHASE_SCANNING;
+                    if (isDutyCycled()) {
+                        schedule(EVENT_WINDOW_END, scanWindowMillis);
+                    }
+                    success = joinRunning(request, now);
+                    break;
+                case PHASE_SCANNING:
+                    success = joinRunning(request, now);
+                    break;
+                default:
+                    success = startOrWait(now);
+                    break;
+            }
+            if (!success) {
+                requests.remove(callback);
+                failed = takeAll();
+            }
+        }
+        if (failed != null) {
+            notifyFailed(failed, SCAN_FAILED_INTERNAL_ERROR);
+        }
+        return success;
+    }
+
+    /**
+     * 移除扫描请求, 最后一个请求结束后停止底层扫描; 启动额度不足时继续扫描到额度恢复
+     */
+    public synchronized void stop(PeriodScanCallback callback) {
+        if (requests.remove(callback) == null) {
+            return;
+        }
+        updateActive();
+        // 剩下请求的过滤条件只会更窄, 不为此重启扫描
+        if (!requests.isEmpty()) {
+            return;
+        }
+        long now = now();
+        if (phase == PHASE_IDLE && availableStarts(now) < 2) {
+            // 同lingerOrStop: 额度不足时保留空闲窗口, 紧接着的请求在窗口结束时启动, 不提前消耗额度
+            return;
+        }
+        cancelTimer();
+        if (radioOn) {
+            lingerOrStop(now);
+        } else {
+            phase = PHASE_OFF;
+        }
+    }
+
+    private void onTimer(int armedGeneration, int event) {
+        List<Request> failed = null;
+        synchronized (this) {
+            if (armedGeneration != generation) {
+                return;
+            }
+            phaseTimeout = null;
+            long now = now();
+            boolean success = true;
+            switch (event) {
+                case EVENT_WINDOW_END:
+                    onWindowEnd(now);
+                    break;
+                case EVENT_IDLE_END:
+                    if (requests.isEmpty()) {
+                        // 空闲窗口中最后一个请求已结束
+                        phase = PHASE_OFF;
+                    } else {
+                        success = startOrWait(now);
+                    }
+                    break;
+                case EVENT_RESTART:
+                    success = !restartPending || restartOrDefer(now);
+                    break;
+                default:
+                    lingerOrStop(now);
+                    break;
+            }
+            if (!success) {
+                failed = takeAll();
+            }
+        }
+        if (failed != null) {
+            notifyFailed(failed, SCAN_FAILED_INTERNAL_ERROR);
+        }
+    }
+
+    /**
+     * 扫描窗口结束, 停止扫描进入空闲窗口; 空闲窗口结束时没有启动额度则先延长扫描窗口
+     */
+    private void onWindowEnd(long now) {
+        long resumeAt = now + idleWindowMillis;
+        long allowedAt = nextStartAt(resumeAt);
+        if (allowedAt > resumeAt) {
+            BleLog.i(TAG, "scan start budget low, scan window extended by " + (allowedAt - resumeAt) + "ms");
+            schedule(EVENT_WINDOW_END, allowedAt - resumeAt);
+            return;
+        }
+        stopRadio();
+        phase = PHASE_IDLE;
+        schedule(EVENT_IDLE_END, idleWindowMillis);
+    }
+
+    /**
+     * 有启动额度时启动扫描, 否则延长空闲窗口到有额度时
+     *
+     * @return 启动扫描失败时返回false
+     */
+    private boolean startOrWait(long now) {
+        long allowedAt = nextStartAt(now);
+        if (allowedAt > now) {
+            BleLog.i(TAG, "scan start budget used up, scan starts in " + (allowedAt - now) + "ms");
+            phase = PHASE_IDLE;
+            schedule(EVENT_IDLE_END, allowedAt - now);
+            return true;
+        }
+        return startRadio(now);
+    }
+
+    /**
+     * 加入正在运行的扫描, 当前扫描收不到该请求需要的广播时重启扫描
+     *
+     * @return 重启扫描失败时返回false
+     */
+    private boolean joinRunning(Request request, long now) {
+        if (running.covers(request)) {
+            startTimeout(request);
+            return true;
+        }
+        return restartOrDefer(now);
+    }
+
+    /**
+     * 新请求需要更宽的过滤条件, 有启动额度时立即重启扫描; 否则继续使用当前扫描,
+     * 一直扫描时到有额度时重启, 交替扫描时在下一个扫描窗口生效
+     */
+    private boolean restartOrDefer(long now) {
+        restartPending = true;
+        long allowedAt = nextStartAt(now);
+        if (allowedAt <= now) {
+            cancelTimer();
+            stopRadio();
+            return startRadio(now);
+        }
+        if (!isDutyCycled()) {
+            schedule(EVENT_RESTART, allowedAt - now);
+        }
+        return true;
+    }
+
+    /**
+     * 没有请求了, 剩余启动额度不少于2次时停止扫描, 否则继续扫描到额度恢复一次
+     */
+    private void lingerOrStop(long now) {
+        if (!requests.isEmpty()) {
+            return;
+        }
+        if (availableStarts(now) >= 2) {
+            stopRadio();
+            phase = PHASE_OFF;
+            return;
+        }
+        phase = PHASE_LINGER;
+        schedule(EVENT_LINGER_END, slotFreedAt(now) - now);
+    }
+
+    private boolean startRadio(long now) {
+        RadioSpec spec = computeSpec();
+        recordStart(now);
+        boolean success;
+        if (spec.le) {
+            leScanner = LeScannerBackend.start(adapter, radio, spec.criteria, spec.scanMode, spec.reportDelayMillis);
+            success = leScanner != null;
+        } else {
+            success = adapter.startLeScan(radio);
+        }
+        if (!success) {
+            BleLog.e(TAG, "start scan failed");
+            phase = PHASE_OFF;
+            return false;
+        }
+        radioOn = true;
+        running = spec;
+        restartPending = false;
+        phase = PHASE_SCANNING;
+        for (Request request : requests.values()) {
+            startTimeout(request);
+        }
+        if (isDutyCycled()) {
+            schedule(EVENT_WINDOW_END, scanWindowMillis);
+        }
+        return true;
+    }
+
+    private void stopRadio() {
+        if (!radioOn) {
+            return;
+        }
+        radioOn = false;
+        running = null;
+        if (leScanner != null) {
+            LeScannerBackend scanner = leScanner;
+            leScanner = null;
+            // 批量上报时先取出缓存的结果再停止, 这些结果仍分发给当前的请求
+            scanner.stop();
+        } else {
+            adapter.stopLeScan(radio);
+        }
+    }
+
+    /**
+     * 所有请求需要的扫描参数: 全部使用BluetoothLeScanner时才使用, 扫描模式取最积极的,
+     * 批量上报延时取最短的, 过滤条件取并集, 任意一个请求不过滤时不过滤
+     */
+    private RadioSpec computeSpec() {
+        boolean le = Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP;
+        int scanMode = ScanConfig.SCAN_MODE_OPPORTUNISTIC;
+        long reportDelayMillis = Long.MAX_VALUE;
+        Set<Criterion> criteria = new HashSet<>();
+        for (Request request : requests.values()) {
+            le &= request.le;
+            scanMode = Math.max(scanMode, request.scanMode);
+            reportDelayMillis = Math.min(reportDelayMillis, request.reportDelayMillis);
+            if (criteria != null) {
+                if (request.criteria == null) {
+                    criteria = null;
+                } else {
+                    criteria.addAll(request.criteria);
+                }
+            }
+        }
+        return le ? new RadioSpec(true, scanMode, reportDelayMillis, criteria) : RadioSpec.LEGACY;
+    }
+
+    /**
+     * 底层扫描开始为该请求运行, 从此时开始计算请求的扫描超时; 推迟启动的时间不计入超时
+     */
+    private static void startTimeout(Request request) {
+        if (!request.started) {
+            request.started = true;
+            request.callback.startTimeout();
+        }
+    }
+
+    private void recordStart(long now) {
+        startTimes[startIndex] = now;
+        startIndex = (startIndex + 1) % MAX_STARTS;
+        startTotal++;
+    }
+
+    /**
+     * time时刻还能启动扫描的次数
+     */
+    private int availableStarts(long time) {
+        int available = 0;
+        for (long startTime : startTimes) {
+            if (time - startTime >= START_PERIOD_MILLIS + START_PERIOD_MARGIN_MILLIS) {
+                available++;
+            }
+        }
+        return available;
+    }
+
+    /**
+     * time之后最早恢复一次启动额度的时间
+     */
+    private long slotFreedAt(long time) {
+        long freedAt = Long.MAX_VALUE;
+        for (long startTime : startTimes) {
+            long expireAt = startTime + START_PERIOD_MILLIS + START_PERIOD_MARGIN_MILLIS;
+            if (expireAt > time) {
+                freedAt = Math.min(freedAt, expireAt);
+            }
+        }
+        return freedAt == Long.MAX_VALUE ? time : freedAt;
+    }
+
+    /**
+     * 不早于time的最早可以启动扫描的时间
+     */
+    private long nextStartAt(long time) {
+        return availableStarts(time) > 0 ? time : slotFreedAt(time);
+    }
+
+    private boolean isDutyCycled() {
+        return scanWindowMillis > 0 && idleWindowMillis > 0;
+    }
+
+    private void schedule(final int event, long delayMillis) {
+        cancelTimer();
+        final int armedGeneration = generation;
+        phaseTimeout = HashedWheelTimer.getDefault().newTimeout(new Runnable() {
+            @Override
+            public void run() {
+                onTimer(armedGeneration, event);
+            }
+        }, Math.max(delayMillis, 0), TimeUnit.MILLISECONDS);
+    }
+
+    private void cancelTimer() {
+        generation++;
+        if (phaseTimeout != null) {
+            phaseTimeout.cancel();
+            phaseTimeout = null;
+        }
+    }
+
+    private void updateActive() {
+        active = requests.values().toArray(new Request[requests.size()]);
+    }
+
+    /**
+     * 扫描失败, 移除所有请求
+     */
+    private List<Request> takeAll() {
+        cancelTimer();
+        stopRadio();
+        phase = PHASE_OFF;
+        List<Request> taken = new ArrayList<>(requests.values());
+        requests.clear();
+        updateActive();
+        return taken;
+    }
+
+    private static void notifyFailed(List<Request> failed, int errorCode) {
+        for (Request request : failed) {
+            PeriodScanCallback callback = request.callback;
+            callback.removeHandlerMsg();
+            if (callback.getBleBluetooth() != null) {
+                callback.getBleBluetooth().stopScan(callback);
+            }
+            callback.onScanFailed(errorCode);
+        }
+    }
+
+    private static long now() {
+        return TimeUnit.NANOSECONDS.toMillis(System.nanoTime());
+    }
+
+    /**
+     * 底层扫描的回调, 把每个广播分发给所有请求
+     */
+    private final class Radio implements LeScannerBackend.Listener {
+
+        @Override
+        public void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord) {
+            Request[] snapshot = active;
+            AdvertisingData data = null;
+            for (Request request : snapshot) {
+                if (request.serviceUuids != null) {
+                    // 控制器不过滤时在这里按服务UUID匹配, 多个请求共用一次解析
+                    if (data == null) {
+                        data = new AdvertisingData(scanRecord);
+                    }
+                    if (!request.matchesService(data)) {
+                        continue;
+                    }
+                }
+                request.callback.onLeScan(device, rssi, scanRecord);
+            }
+        }
+
+        @Override
+        public void onScanFailed(int errorCode) {
+            List<Request> failed;
+            synchronized (ScanScheduler.this) {
+                if (!radioOn || !running.le) {
+                    return;
+                }
+                // 扫描已经失败, 不需要再停止
+                leScanner = null;
+                radioOn = false;
+                running = null;
+                failed = takeAll();
+            }
+            notifyFailed(failed, errorCode);
+        }
+    }
+
+    private static final class Request {
+        final PeriodScanCallback callback;
+        /** 需要匹配的服务UUID, 为null时不匹配 */
+        final List<UUID> serviceUuids;
+        /** 交给控制器的过滤条件, 为null时不过滤 */
+        final Set<Criterion> criteria;
+        final boolean le;
+        final int scanMode;
+        final long reportDelayMillis;
+        /** 底层扫描已为该请求运行过, 超时已开始计算 */
+        boolean started;
+
+        Request(PeriodScanCallback callback, ScanConfig config) {
+            this.callback = callback;
+            List<UUID> uuids = config == null ? null : config.getServiceUuids();
+            this.serviceUuids = uuids == null || uuids.isEmpty() ? null : uuids;
+            this.criteria = Criterion.combine(callback.getFilterNames(), callback.getFilterAddresses(), serviceUuids);
+            this.le = config != null && config.getEngine() == ScanConfig.ENGINE_LE_SCANNER;
+            this.scanMode = config == null ? ScanConfig.SCAN_MODE_LOW_LATENCY : config.getScanMode();
+            this.reportDelayMillis = config == null ? 0 : config.getReportDelayMillis();
+        }
+
+        boolean matchesService(AdvertisingData data) {
+            for (int i = 0, size = serviceUuids.size(); i < size; i++) {
+                if (data.hasServiceUuid(serviceUuids.get(i))) {
+                    return true;
+                }
+            }
+            return false;
+        }
+    }
+
+    /**
+     * 底层扫描的参数
+     */
+    private static final class RadioSpec {
+        /** startLeScan不过滤, 立即上报, 满足所有请求 */
+        static final RadioSpec LEGACY = new RadioSpec(false, ScanConfig.SCAN_MODE_LOW_LATENCY, 0, null);
+
+        final boolean le;
+        final int scanMode;
+        final long reportDelayMillis;
+        final Set<Criterion> criteria;
+
+        RadioSpec(boolean le, int scanMode, long reportDelayMillis, Set<Criterion> criteria) {
+            this.le = le;
+            this.scanMode = scanMode;
+            this.reportDelayMillis = reportDelayMillis;
+            this.criteria = criteria;
+        }
+
+        /**
+         * 当前扫描是否能收到该请求需要的所有广播
+         */
+        boolean covers(Request request) {
+            if (!le) {
+                return true;
+            }
+            return scanMode >= request.scanMode && reportDelayMillis <= request.reportDelayMillis
+                    && (criteria == null || request.criteria != null && criteria.containsAll(request.criteria));
+        }
+    }
+
+    /**
+     * 一个ScanFilter的条件, 为null的字段不过滤
+     */
+    static final class Criterion {
+        final String name;
+        final String address;
+        final UUID serviceUuid;
+
+        Criterion(String name, String address, UUID serviceUuid) {
+            this.name = name;
+            this.address = address;
+            this.serviceUuid = serviceUuid;
+        }
+
+        /**
+         * 设备名, 地址和服务UUID两两组合, 不同条件之间需同时满足, 同一条件的多个值匹配任意一个
+         *
+         * @return 没有任何条件时返回null(不过滤)
+         */
+        static Set<Criterion> combine(List<String> names, List<String> addresses, List<UUID> serviceUuids) {
+            List<String> nameValues = orAny(names);
+            List<String> addressValues = orAny(addresses);
+            List<UUID> uuidValues = orAny(serviceUuids);
+            if (nameValues.get(0) == null && addressValues.get(0) == null && uuidValues.get(0) == null) {
+                return null;
+            }
+            Set<Criterion> criteria = new HashSet<>();
+            for (String name : nameValues) {
+                for (String address : addressValues) {
+                    for (UUID uuid : uuidValues) {
+                        criteria.add(new Criterion(name, address, uuid));
+                    }
+                }
+            }
+            return criteria;
+        }
+
+        /**
+         * 没有值时用一个null占位, 表示不按该条件过滤
+         */
+        private static <T> List<T> orAny(List<T> values) {
+            return values == null || values.isEmpty() ? Collections.<T>singletonList(null) : values;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+            if (!(o instanceof Criterion)) {
+                return false;
+            }
+            Criterion other = (Criterion) o;
+            return equal(name, other.name) && equal(address, other.address) && equal(serviceUuid, other.serviceUuid);
+        }
+
+        @Override
+        public int hashCode() {
+            int result = name == null ? 0 : name.hashCode();
+            result = 31 * result + (address == null ? 0 : address.hashCode());
+            return 31 * result + (serviceUuid == null ? 0 : serviceUuid.hashCode());
+        }
+
+        private static boolean equal(Object a, Object b) {
+            return a == null ? b == null : a.equals(b);
+        }
+    }
+}
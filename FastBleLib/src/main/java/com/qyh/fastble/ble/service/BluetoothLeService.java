@@ -11,7 +11,6 @@ import android.os.Binder;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Looper;
-import android.os.SystemClock;
 import android.support.annotation.Nullable;
 
 import com.qyh.fastble.ble.BleManager;
@@ -23,12 +22,14 @@ import com.qyh.fastble.ble.constant.UUIDConstant;
 import com.qyh.fastble.ble.data.BleDevice;
 import com.qyh.fastble.ble.exception.BleException;
 import com.qyh.fastble.ble.scan.ListScanCallback;
+import com.qyh.fastble.ble.utils.BleExecutors;
 import com.qyh.fastble.ble.utils.BleLog;
 import com.qyh.fastble.ble.utils.HexUtil;
 
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.Executor;
 
 /**
  * @author 邱永恒
@@ -46,9 +47,13 @@ public class BluetoothLeService extends Service {
      */
     private List<BleServiceCallBack> list;
     /**
-     * 主线程handler
+     * 主线程handler, 用于延时重连
      */
     private Handler threadHandler = new Handler(Looper.getMainLooper());
+    /**
+     * 回调执行器, 默认主线程
+     */
+    private Executor callbackExecutor = BleExecutors.main();
     /**
      * 已连接设备集合
      */
@@ -139,11 +144,11 @@ public class BluetoothLeService extends Service {
             callBack.onStartScan();
         }
 
-        boolean b = bleManager.scanDevice(new ListScanCallback(timeoutMillis) {
+        boolean b = bleManager.scanDevice(direct(new ListScanCallback(timeoutMillis) {
 
             @Override
             public void onScanning(final BleDevice result) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         for (BleServiceCallBack callBack : list) {
@@ -155,7 +160,7 @@ public class BluetoothLeService extends Service {
 
             @Override
             public void onScanComplete(final BleDevice[] results) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         for (BleServiceCallBack callBack : list) {
@@ -165,7 +170,7 @@ public class BluetoothLeService extends Service {
 
                 });
             }
-        });
+        }));
         if (!b) {
             for (BleServiceCallBack callBack : list) {
                 callBack.onScanError();
@@ -213,7 +218,7 @@ public class BluetoothLeService extends Service {
             callBack.onConnecting();
         }
 
-        bleManager.connectDevice(scanResult, false, new BleGattCallback() {
+        bleManager.connectDevice(scanResult, false, direct(new BleGattCallback() {
 
             @Override
             public void onFoundDevice(BleDevice scanResult) {
@@ -227,7 +232,7 @@ public class BluetoothLeService extends Service {
 
             @Override
             public void onConnectError(final BleException exception) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         for (BleServiceCallBack callBack : list) {
@@ -249,7 +254,7 @@ public class BluetoothLeService extends Service {
                     reConnectList.remove(device);
                 }
 
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         for (BleServiceCallBack callBack : list) {
@@ -271,9 +276,7 @@ public class BluetoothLeService extends Service {
                     reConnectList.add(device);
                 }
 
-                // 睡眠100毫秒后再执行后续操作, 如重连
-                SystemClock.sleep(100);
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         for (BleServiceCallBack callBack : list) {
@@ -302,7 +305,7 @@ public class BluetoothLeService extends Service {
                 }
 
                 BluetoothLeService.this.gatt = gatt;
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         for (BleServiceCallBack callBack : list) {
@@ -311,7 +314,7 @@ public class BluetoothLeService extends Service {
                     }
                 });
             }
-        });
+        }));
     }
 
     /**
@@ -321,21 +324,16 @@ public class BluetoothLeService extends Service {
      * @param delay
      */
     private void reConnect(final boolean isAutoConnect, final BluetoothDevice device, final long delay) {
-        runOnMainThread(new Runnable() {
-            @Override
-            public void run() {
-                // 断开重连
-                if (isAutoConnect) {
-                    threadHandler.postDelayed(new Runnable() {
-                        @Override
-                        public void run() {
-                            BleLog.i("执行重连操作");
-                            connectDevice(device.getAddress(), true, delay);
-                        }
-                    }, delay);
+        // 断开重连
+        if (isAutoConnect) {
+            threadHandler.postDelayed(new Runnable() {
+                @Override
+                public void run() {
+                    BleLog.i("执行重连操作");
+                    connectDevice(device.getAddress(), true, delay);
                 }
-            }
-        });
+            }, delay);
+        }
     }
 
     /**
@@ -350,36 +348,41 @@ public class BluetoothLeService extends Service {
     }
 
     public boolean notify(String uuid_service, String uuid_notify) {
-        return bleManager.notify(uuid_service, uuid_notify, new BleCharacterCallback() {
-            @Override
-            public void onSuccess(final BluetoothGattCharacteristic characteristic) {
-                runOnMainThread(new Runnable() {
-                    @Override
-                    public void run() {
-                        if (characteristic.getUuid().toString().equals(UUIDConstant.HRM_CHAR.toString())) {
-                            for (BleServiceCallBack callBack : list) {
-                                callBack.onHRMNotify(characteristic);
-                            }
-                        } else {
-                            for (BleServiceCallBack callBack : list) {
-                                callBack.onChanged(characteristic);
-                            }
+        return bleManager.notify(uuid_service, uuid_notify, notifyCallback);
+    }
+
+    /**
+     * notify回调, 所有特征码复用同一个实例; 同一特征码重复订阅不会产生多个订阅者, 不同特征码的订阅互不影响
+     */
+    private final BleCharacterCallback notifyCallback = direct(new BleCharacterCallback() {
+        @Override
+        public void onSuccess(final BluetoothGattCharacteristic characteristic) {
+            postCallback(new Runnable() {
+                @Override
+                public void run() {
+                    if (characteristic.getUuid().toString().equals(UUIDConstant.HRM_CHAR.toString())) {
+                        for (BleServiceCallBack callBack : list) {
+                            callBack.onHRMNotify(characteristic);
+                        }
+                    } else {
+                        for (BleServiceCallBack callBack : list) {
+                            callBack.onChanged(characteristic);
                         }
                     }
-                });
-            }
+                }
+            });
+        }
 
-            @Override
-            public void onFailure(BleException exception) {
+        @Override
+        public void onFailure(BleException exception) {
 
-            }
+        }
 
-            @Override
-            public void onInitiatedResult(boolean result) {
+        @Override
+        public void onInitiatedResult(boolean result) {
 
-            }
-        });
-    }
+        }
+    });
 
     public boolean indicate(String uuid_service, String uuid_indicate, BleCharacterCallback callback) {
         return bleManager.indicate(uuid_service, uuid_indicate, callback);
@@ -419,16 +422,43 @@ public class BluetoothLeService extends Service {
     }
 
     /**
-     * 在主线程执行
+     * 设置回调执行器, 默认在主线程回调
+     *
+     * 不更新UI的调用方可使用 {@link BleExecutors#direct()} 或
+     * {@link BleExecutors#background()}, 避免高频notify切换到主线程
+     *
+     * @param executor
+     */
+    public void setCallbackExecutor(Executor executor) {
+        this.callbackExecutor = executor == null ? BleExecutors.main() : executor;
+    }
+
+    /**
+     * 在回调执行器中执行
      *
      * @param runnable
      */
-    private void runOnMainThread(Runnable runnable) {
-        if (Looper.myLooper() == Looper.getMainLooper()) {
-            runnable.run();
-        } else {
-            threadHandler.post(runnable);
-        }
+    private void postCallback(Runnable runnable) {
+        callbackExecutor.execute(runnable);
+    }
+
+    /**
+     * 内部回调对外的通知都经过 {@link #postCallback(Runnable)} 切换到callbackExecutor,
+     * 回调本身在事件线程直接执行, 避免默认的主线程执行器再切换一次线程
+     */
+    private static BleGattCallback direct(BleGattCallback callback) {
+        callback.setExecutor(BleExecutors.direct());
+        return callback;
+    }
+
+    private static ListScanCallback direct(ListScanCallback callback) {
+        callback.setExecutor(BleExecutors.direct());
+        return callback;
+    }
+
+    private static BleCharacterCallback direct(BleCharacterCallback callback) {
+        callback.setExecutor(BleExecutors.direct());
+        return callback;
     }
 
     /**
@@ -8,9 +8,7 @@ import android.bluetooth.BluetoothGattDescriptor;
 import android.bluetooth.BluetoothGattService;
 import android.content.Intent;
 import android.os.Binder;
-import android.os.Handler;
 import android.os.IBinder;
-import android.os.Looper;
 
 import com.qyh.fastble.ble.BleManager;
 import com.qyh.fastble.ble.conn.BleCharacterCallback;
@@ -19,10 +17,12 @@ import com.qyh.fastble.ble.conn.BleRssiCallback;
 import com.qyh.fastble.ble.data.BleDevice;
 import com.qyh.fastble.ble.exception.BleException;
 import com.qyh.fastble.ble.scan.ListScanCallback;
+import com.qyh.fastble.ble.utils.BleExecutors;
 import com.qyh.fastble.ble.utils.BleLog;
 import com.qyh.fastble.ble.utils.HexUtil;
 
 import java.util.Arrays;
+import java.util.concurrent.Executor;
 
 /**
  * 蓝牙连接service
@@ -32,8 +32,8 @@ public class BluetoothService extends Service {
     public BluetoothBinder mBinder = new BluetoothBinder();
     /** 蓝牙管理类 */
     private BleManager bleManager;
-    /** 主线程handler */
-    private Handler threadHandler = new Handler(Looper.getMainLooper());
+    /** 回调执行器, 默认主线程 */
+    private Executor callbackExecutor = BleExecutors.main();
     /** 扫描并连接回调 */
     private Callback mCallback = null;
     /** 连接回调 */
@@ -150,11 +150,11 @@ public class BluetoothService extends Service {
             mCallback.onStartScan();
         }
 
-        boolean b = bleManager.scanDevice(new ListScanCallback(5000) {
+        boolean b = bleManager.scanDevice(direct(new ListScanCallback(5000) {
 
             @Override
             public void onScanning(final BleDevice result) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -166,7 +166,7 @@ public class BluetoothService extends Service {
 
             @Override
             public void onScanComplete(final BleDevice[] results) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -175,7 +175,7 @@ public class BluetoothService extends Service {
                     }
                 });
             }
-        });
+        }));
         if (!b) {
             if (mCallback != null) {
                 mCallback.onScanComplete();
@@ -200,7 +200,7 @@ public class BluetoothService extends Service {
         }
 
 
-        bleManager.connectDevice(scanResult, false, new BleGattCallback() {
+        bleManager.connectDevice(scanResult, false, direct(new BleGattCallback() {
 
             @Override
             public void onFoundDevice(BleDevice scanResult) {
@@ -215,7 +215,7 @@ public class BluetoothService extends Service {
 
             @Override
             public void onConnectError(final BleException exception) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -247,7 +247,7 @@ public class BluetoothService extends Service {
                 }
 
                 BluetoothService.this.gatt = gatt;
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -259,7 +259,7 @@ public class BluetoothService extends Service {
 
             @Override
             public void onDisConnected(final BluetoothGatt gatt, int status, BleException exception) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -273,7 +273,7 @@ public class BluetoothService extends Service {
                 });
             }
 
-        });
+        }));
     }
 
     /**
@@ -287,11 +287,11 @@ public class BluetoothService extends Service {
             mCallback.onStartScan();
         }
 
-        bleManager.scanNameAndConnect(name, 5000, false, new BleGattCallback() {
+        bleManager.scanNameAndConnect(name, 5000, false, direct(new BleGattCallback() {
 
             @Override
             public void onFoundDevice(BleDevice scanResult) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -301,7 +301,7 @@ public class BluetoothService extends Service {
                 });
                 BluetoothService.this.name = scanResult.getDevice().getName();
                 BluetoothService.this.mac = scanResult.getDevice().getAddress();
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -318,7 +318,7 @@ public class BluetoothService extends Service {
 
             @Override
             public void onConnectError(final BleException exception) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -336,7 +336,7 @@ public class BluetoothService extends Service {
             @Override
             public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
                 BluetoothService.this.gatt = gatt;
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -348,7 +348,7 @@ public class BluetoothService extends Service {
 
             @Override
             public void onDisConnected(BluetoothGatt gatt, int status, BleException exception) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -360,7 +360,7 @@ public class BluetoothService extends Service {
                     }
                 });
             }
-        });
+        }));
     }
 
     /**
@@ -374,11 +374,11 @@ public class BluetoothService extends Service {
             mCallback.onStartScan();
         }
 
-        bleManager.scanfuzzyNameAndConnect(name, 5000, false, new BleGattCallback() {
+        bleManager.scanfuzzyNameAndConnect(name, 5000, false, direct(new BleGattCallback() {
 
             @Override
             public void onFoundDevice(BleDevice scanResult) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -388,7 +388,7 @@ public class BluetoothService extends Service {
                 });
                 BluetoothService.this.name = scanResult.getDevice().getName();
                 BluetoothService.this.mac = scanResult.getDevice().getAddress();
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -405,7 +405,7 @@ public class BluetoothService extends Service {
 
             @Override
             public void onConnectError(final BleException exception) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -422,7 +422,7 @@ public class BluetoothService extends Service {
 
             @Override
             public void onDisConnected(BluetoothGatt gatt, int status, BleException exception) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -438,7 +438,7 @@ public class BluetoothService extends Service {
             @Override
             public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
                 BluetoothService.this.gatt = gatt;
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -447,7 +447,7 @@ public class BluetoothService extends Service {
                     }
                 });
             }
-        });
+        }));
     }
 
     public void scanNamesAndConnect(String[] names) {
@@ -457,11 +457,11 @@ public class BluetoothService extends Service {
             mCallback.onStartScan();
         }
 
-        bleManager.scanNamesAndConnect(names, 5000, false, new BleGattCallback() {
+        bleManager.scanNamesAndConnect(names, 5000, false, direct(new BleGattCallback() {
 
             @Override
             public void onFoundDevice(BleDevice scanResult) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -471,7 +471,7 @@ public class BluetoothService extends Service {
                 });
                 BluetoothService.this.name = scanResult.getDevice().getName();
                 BluetoothService.this.mac = scanResult.getDevice().getAddress();
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -488,7 +488,7 @@ public class BluetoothService extends Service {
 
             @Override
             public void onConnectError(final BleException exception) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -505,7 +505,7 @@ public class BluetoothService extends Service {
 
             @Override
             public void onDisConnected(BluetoothGatt gatt, int status, BleException exception) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -521,7 +521,7 @@ public class BluetoothService extends Service {
             @Override
             public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
                 BluetoothService.this.gatt = gatt;
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -530,7 +530,7 @@ public class BluetoothService extends Service {
                     }
                 });
             }
-        });
+        }));
 
     }
 
@@ -541,11 +541,11 @@ public class BluetoothService extends Service {
             mCallback.onStartScan();
         }
 
-        bleManager.scanfuzzyNamesAndConnect(names, 5000, false, new BleGattCallback() {
+        bleManager.scanfuzzyNamesAndConnect(names, 5000, false, direct(new BleGattCallback() {
 
             @Override
             public void onFoundDevice(BleDevice scanResult) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -555,7 +555,7 @@ public class BluetoothService extends Service {
                 });
                 BluetoothService.this.name = scanResult.getDevice().getName();
                 BluetoothService.this.mac = scanResult.getDevice().getAddress();
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -572,7 +572,7 @@ public class BluetoothService extends Service {
 
             @Override
             public void onConnectError(final BleException exception) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -589,7 +589,7 @@ public class BluetoothService extends Service {
 
             @Override
             public void onDisConnected(BluetoothGatt gatt, int status, BleException exception) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -605,7 +605,7 @@ public class BluetoothService extends Service {
             @Override
             public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
                 BluetoothService.this.gatt = gatt;
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -614,7 +614,7 @@ public class BluetoothService extends Service {
                     }
                 });
             }
-        });
+        }));
     }
 
     /**
@@ -628,11 +628,11 @@ public class BluetoothService extends Service {
             mCallback.onStartScan();
         }
 
-        bleManager.scanMacAndConnect(mac, 5000, false, new BleGattCallback() {
+        bleManager.scanMacAndConnect(mac, 5000, false, direct(new BleGattCallback() {
 
             @Override
             public void onFoundDevice(BleDevice scanResult) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -642,7 +642,7 @@ public class BluetoothService extends Service {
                 });
                 BluetoothService.this.name = scanResult.getDevice().getName();
                 BluetoothService.this.mac = scanResult.getDevice().getAddress();
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -659,7 +659,7 @@ public class BluetoothService extends Service {
 
             @Override
             public void onConnectError(final BleException exception) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -676,7 +676,7 @@ public class BluetoothService extends Service {
 
             @Override
             public void onDisConnected(BluetoothGatt gatt, int status, BleException exception) {
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -692,7 +692,7 @@ public class BluetoothService extends Service {
             @Override
             public void onServicesDiscovered(final BluetoothGatt gatt, final int status) {
                 BluetoothService.this.gatt = gatt;
-                runOnMainThread(new Runnable() {
+                postCallback(new Runnable() {
                     @Override
                     public void run() {
                         if (mCallback != null) {
@@ -702,7 +702,7 @@ public class BluetoothService extends Service {
                 });
             }
 
-        });
+        }));
     }
 
     /** ----------------------------------------读写数据------------------------------------------------ **/
@@ -793,15 +793,34 @@ public class BluetoothService extends Service {
     }
 
     /**
-     * 在主线程执行
+     * 设置回调执行器, 默认在主线程回调; 不更新UI的调用方可使用
+     * {@link BleExecutors#direct()} 或 {@link BleExecutors#background()}, 避免切换到主线程
+     * @param executor
+     */
+    public void setCallbackExecutor(Executor executor) {
+        this.callbackExecutor = executor == null ? BleExecutors.main() : executor;
+    }
+
+    /**
+     * 在回调执行器中执行
      * @param runnable
      */
-    private void runOnMainThread(Runnable runnable) {
-        if (Looper.myLooper() == Looper.getMainLooper()) {
-            runnable.run();
-        } else {
-            threadHandler.post(runnable);
-        }
+    private void postCallback(Runnable runnable) {
+        callbackExecutor.execute(runnable);
+    }
+
+    /**
+     * 内部回调对外的通知都经过 {@link #postCallback(Runnable)} 切换到callbackExecutor,
+     * 回调本身在事件线程直接执行, 避免默认的主线程执行器再切换一次线程
+     */
+    private static BleGattCallback direct(BleGattCallback callback) {
+        callback.setExecutor(BleExecutors.direct());
+        return callback;
+    }
+
+    private static ListScanCallback direct(ListScanCallback callback) {
+        callback.setExecutor(BleExecutors.direct());
+        return callback;
     }
 
 
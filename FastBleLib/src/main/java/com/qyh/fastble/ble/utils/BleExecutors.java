@@ -0,0 +1,100 @@
+package com.qyh.fastble.ble.utils;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Looper;
+
+import java.util.concurrent.Executor;
+
+/**
+ * 回调执行器
+ *
+ * GATT事件在binder线程返回, 扫描结果在蓝牙线程返回, 回调在哪个线程执行由订阅者选择:
+ * <ul>
+ * <li>{@link #main()} 主线程, 可以直接更新UI (连接, 读写和扫描回调的默认值)</li>
+ * <li>{@link #direct()} 在事件线程直接执行, 延迟最低, 回调中不能做耗时操作, 不更新UI的回调推荐使用</li>
+ * <li>{@link #background()} 共享的后台HandlerThread, 顺序执行</li>
+ * <li>{@link #handler(Handler)} 或任意自定义的 {@link Executor}</li>
+ * </ul>
+ */
+public final class BleExecutors {
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private static volatile Executor main;
+    private static volatile Executor background;
+
+    private BleExecutors() {
+    }
+
+    public static Executor direct() {
+        return DIRECT;
+    }
+
+    /**
+     * 主线程执行, 已在主线程时直接执行
+     */
+    public static Executor main() {
+        if (main == null) {
+            synchronized (BleExecutors.class) {
+                if (main == null) {
+                    main = new HandlerExecutor(new Handler(Looper.getMainLooper()));
+                }
+            }
+        }
+        return main;
+    }
+
+    /**
+     * 所有连接共享的回调线程
+     */
+    public static Executor background() {
+        if (background == null) {
+            synchronized (BleExecutors.class) {
+                if (background == null) {
+                    HandlerThread thread = new HandlerThread("BleCallback");
+                    thread.start();
+                    background = new HandlerExecutor(new Handler(thread.getLooper()));
+                }
+            }
+        }
+        return background;
+    }
+
+    /**
+     * 在handler所在的线程执行
+     */
+    public static Executor handler(Handler handler) {
+        return new HandlerExecutor(handler);
+    }
+
+    /**
+     * 是否直接执行, 直接执行时调用方可以省去创建Runnable
+     */
+    public static boolean isDirect(Executor executor) {
+        return executor == null || executor == DIRECT;
+    }
+
+    private static final class HandlerExecutor implements Executor {
+
+        private final Handler handler;
+
+        HandlerExecutor(Handler handler) {
+            this.handler = handler;
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            if (Looper.myLooper() == handler.getLooper()) {
+                command.run();
+            } else {
+                handler.post(command);
+            }
+        }
+    }
+}
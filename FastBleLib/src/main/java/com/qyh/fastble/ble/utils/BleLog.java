@@ -1,6 +1,13 @@
 package com.qyh.fastble.ble.utils;
 
 public final class BleLog {
+	/**
+	 * 是否输出该级别日志, 级别见 {@link LogUtils#LEVEL_INFO} 等
+	 */
+	public static boolean isLoggable(int level) {
+		return LogUtils.isLoggable(level);
+	}
+
 	public static void i(Object o) {
 		LogUtils.i(o.toString());
 	}
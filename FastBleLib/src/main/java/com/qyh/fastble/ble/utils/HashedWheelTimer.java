@@ -0,0 +1,316 @@
+package com.qyh.fastble.ble.utils;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicIntegerFieldUpdater;
+
+/**
+ * 时间轮定时器
+ *
+ * 所有连接, 所有类型的操作共用一个定时线程, 添加和取消超时都是O(1),
+ * 取消后的任务不会残留在主线程消息队列中
+ *
+ * 定时精度为一个tick(默认10ms), 任务在定时线程中执行, 必须尽快返回
+ */
+public class HashedWheelTimer {
+
+    private static final int WORKER_INIT = 0;
+    private static final int WORKER_STARTED = 1;
+    private static final int WORKER_SHUTDOWN = 2;
+
+    /** 每个tick最多转移的新任务数, 防止添加任务过快时定时线程无法推进 */
+    private static final int MAX_TRANSFER_PER_TICK = 100000;
+
+    private static volatile HashedWheelTimer defaultTimer;
+
+    private final Bucket[] wheel;
+    private final int mask;
+    private final long tickNanos;
+    private final Thread workerThread;
+    private final CountDownLatch startLatch = new CountDownLatch(1);
+    private final ConcurrentLinkedQueue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+    private final ConcurrentLinkedQueue<Timeout> cancelledTimeouts = new ConcurrentLinkedQueue<>();
+
+    private volatile int workerState = WORKER_INIT;
+    private volatile long startTime;
+    private long tick;
+
+    private static final AtomicIntegerFieldUpdater<HashedWheelTimer> WORKER_STATE_UPDATER =
+            AtomicIntegerFieldUpdater.newUpdater(HashedWheelTimer.class, "workerState");
+
+    /**
+     * 默认定时器, 10ms一个tick, 512个槽
+     */
+    public static HashedWheelTimer getDefault() {
+        if (defaultTimer == null) {
+            synchronized (HashedWheelTimer.class) {
+                if (defaultTimer == null) {
+                    defaultTimer = new HashedWheelTimer("BleTimer", 10, TimeUnit.MILLISECONDS, 512);
+                }
+            }
+        }
+        return defaultTimer;
+    }
+
+    public HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int ticksPerWheel) {
+        if (tickDuration <= 0) {
+            throw new IllegalArgumentException("tickDuration must be greater than 0");
+        }
+        if (ticksPerWheel <= 0 || ticksPerWheel > (1 << 30)) {
+            throw new IllegalArgumentException("ticksPerWheel out of range: " + ticksPerWheel);
+        }
+        int size = 1;
+        while (size < ticksPerWheel) {
+            size <<= 1;
+        }
+        wheel = new Bucket[size];
+        for (int i = 0; i < size; i++) {
+            wheel[i] = new Bucket();
+        }
+        mask = size - 1;
+        tickNanos = unit.toNanos(tickDuration);
+        workerThread = new Thread(new Worker(), name);
+        workerThread.setDaemon(true);
+    }
+
+    /**
+     * 添加超时任务
+     *
+     * @param task  到期后在定时线程中执行
+     * @param delay 延时
+     * @param unit  时间单位
+     * @return 可用于取消任务的句柄
+     */
+    public Timeout newTimeout(Runnable task, long delay, TimeUnit unit) {
+        if (task == null) {
+            throw new NullPointerException("task");
+        }
+        start();
+        long deadline = System.nanoTime() + unit.toNanos(delay) - startTime;
+        Timeout timeout = new Timeout(this, task, deadline);
+        pendingTimeouts.add(timeout);
+        return timeout;
+    }
+
+    /**
+     * 停止定时线程, 未到期的任务不再执行
+     */
+    public void stop() {
+        if (WORKER_STATE_UPDATER.getAndSet(this, WORKER_SHUTDOWN) == WORKER_STARTED) {
+            workerThread.interrupt();
+        }
+    }
+
+    private void start() {
+        switch (workerState) {
+            case WORKER_INIT:
+                if (WORKER_STATE_UPDATER.compareAndSet(this, WORKER_INIT, WORKER_STARTED)) {
+                    workerThread.start();
+                }
+                break;
+            case WORKER_STARTED:
+                break;
+            default:
+                throw new IllegalStateException("cannot be started once stopped");
+        }
+        while (startTime == 0) {
+            try {
+                startLatch.await();
+            } catch (InterruptedException ignore) {
+                // 等待定时线程启动
+            }
+        }
+    }
+
+    private final class Worker implements Runnable {
+
+        @Override
+        public void run() {
+            long now = System.nanoTime();
+            startTime = now == 0 ? 1 : now;
+            startLatch.countDown();
+
+            do {
+                long deadline = waitForNextTick();
+                if (deadline > 0) {
+                    processCancelledTimeouts();
+                    transferTimeoutsToBuckets();
+                    wheel[(int) (tick & mask)].expireTimeouts(deadline);
+                    tick++;
+                }
+            } while (workerState == WORKER_STARTED);
+        }
+
+        private long waitForNextTick() {
+            long deadline = tickNanos * (tick + 1);
+            for (; ; ) {
+                long currentTime = System.nanoTime() - startTime;
+                long sleepMillis = (deadline - currentTime + 999999) / 1000000;
+                if (sleepMillis <= 0) {
+                    return currentTime == Long.MIN_VALUE ? -Long.MAX_VALUE : currentTime;
+                }
+                try {
+                    Thread.sleep(sleepMillis);
+                } catch (InterruptedException e) {
+                    if (workerState == WORKER_SHUTDOWN) {
+                        return Long.MIN_VALUE;
+                    }
+                }
+            }
+        }
+
+        private void transferTimeoutsToBuckets() {
+            for (int i = 0; i < MAX_TRANSFER_PER_TICK; i++) {
+                Timeout timeout = pendingTimeouts.poll();
+                if (timeout == null) {
+                    break;
+                }
+                if (timeout.state != Timeout.ST_INIT) {
+                    continue;
+                }
+                long calculated = timeout.deadline / tickNanos;
+                timeout.remainingRounds = (calculated - tick) / wheel.length;
+                long ticks = Math.max(calculated, tick);
+                wheel[(int) (ticks & mask)].add(timeout);
+            }
+        }
+
+        private void processCancelledTimeouts() {
+            for (; ; ) {
+                Timeout timeout = cancelledTimeouts.poll();
+                if (timeout == null) {
+                    break;
+                }
+                if (timeout.bucket != null) {
+                    timeout.bucket.remove(timeout);
+                }
+            }
+        }
+    }
+
+    /**
+     * 超时任务句柄
+     */
+    public static final class Timeout {
+
+        private static final int ST_INIT = 0;
+        private static final int ST_CANCELLED = 1;
+        private static final int ST_EXPIRED = 2;
+
+        private static final AtomicIntegerFieldUpdater<Timeout> STATE_UPDATER =
+                AtomicIntegerFieldUpdater.newUpdater(Timeout.class, "state");
+
+        private final HashedWheelTimer timer;
+        private final Runnable task;
+        private final long deadline;
+        private volatile int state = ST_INIT;
+
+        /** 以下字段只在定时线程中访问 */
+        long remainingRounds;
+        Timeout next;
+        Timeout prev;
+        Bucket bucket;
+
+        Timeout(HashedWheelTimer timer, Runnable task, long deadline) {
+            this.timer = timer;
+            this.task = task;
+            this.deadline = deadline;
+        }
+
+        /**
+         * 取消任务
+         *
+         * @return 任务还未执行并且成功取消时返回true
+         */
+        public boolean cancel() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_CANCELLED)) {
+                return false;
+            }
+            timer.cancelledTimeouts.add(this);
+            return true;
+        }
+
+        public boolean isCancelled() {
+            return state == ST_CANCELLED;
+        }
+
+        public boolean isExpired() {
+            return state == ST_EXPIRED;
+        }
+
+        void expire() {
+            if (!STATE_UPDATER.compareAndSet(this, ST_INIT, ST_EXPIRED)) {
+                return;
+            }
+            try {
+                task.run();
+            } catch (Throwable t) {
+                BleLog.e("HashedWheelTimer", "timer task threw an exception: " + t);
+            }
+        }
+    }
+
+    /**
+     * 时间轮的槽, 双向链表, 只在定时线程中访问
+     */
+    private static final class Bucket {
+        private Timeout head;
+        private Timeout tail;
+
+        void add(Timeout timeout) {
+            timeout.bucket = this;
+            if (head == null) {
+                head = tail = timeout;
+            } else {
+                tail.next = timeout;
+                timeout.prev = tail;
+                tail = timeout;
+            }
+        }
+
+        void expireTimeouts(long deadline) {
+            Timeout timeout = head;
+            while (timeout != null) {
+                Timeout next = timeout.next;
+                if (timeout.remainingRounds <= 0) {
+                    remove(timeout);
+                    if (timeout.deadline <= deadline) {
+                        timeout.expire();
+                    }
+                } else if (timeout.isCancelled()) {
+                    remove(timeout);
+                } else {
+                    timeout.remainingRounds--;
+                }
+                timeout = next;
+            }
+        }
+
+        void remove(Timeout timeout) {
+            if (timeout.bucket != this) {
+                return;
+            }
+            Timeout next = timeout.next;
+            if (timeout.prev != null) {
+                timeout.prev.next = next;
+            }
+            if (timeout.next != null) {
+                timeout.next.prev = timeout.prev;
+            }
+            if (timeout == head) {
+                if (timeout == tail) {
+                    tail = null;
+                    head = null;
+                } else {
+                    head = next;
+                }
+            } else if (timeout == tail) {
+                tail = timeout.prev;
+            }
+            timeout.prev = null;
+            timeout.next = null;
+            timeout.bucket = null;
+        }
+    }
+}
@@ -37,6 +37,16 @@ public class LogUtils {
 	/** 是否允许输出log */
 	private static int mDebuggable = LEVEL_ALL;
 
+	/** 设置日志输出级别, LEVEL_OFF关闭所有日志 */
+	public static void setDebuggable(int level) {
+		mDebuggable = level;
+	}
+
+	/** 该级别的日志是否会输出, 高频调用处先判断再拼接字符串 */
+	public static boolean isLoggable(int level) {
+		return mDebuggable >= level;
+	}
+
 	/** 用于记时的变量 */
 	private static long mTimestamp = 0;
 	/** 写文件的锁对象 */
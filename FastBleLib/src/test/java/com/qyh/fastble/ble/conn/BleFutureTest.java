@@ -0,0 +1,104 @@
+package com.qyh.fastble.ble.conn;
+
+import com.qyh.fastble.ble.exception.BleException;
+import com.qyh.fastble.ble.exception.CancelledException;
+import com.qyh.fastble.ble.exception.GattException;
+import com.qyh.fastble.ble.exception.TimeoutException;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BleFutureTest {
+
+    @Test
+    public void thenComposeChainsSteps() {
+        BleFuture<Integer> first = new BleFuture<>();
+        final BleFuture<String> second = new BleFuture<>();
+        BleFuture<String> result = first.thenCompose(new BleFuture.Function<Integer, BleFuture<String>>() {
+            @Override
+            public BleFuture<String> apply(Integer value) {
+                return second;
+            }
+        }).thenApply(new BleFuture.Function<String, String>() {
+            @Override
+            public String apply(String value) {
+                return value + "!";
+            }
+        });
+
+        first.complete(1);
+        assertFalse(result.isDone());
+        second.complete("done");
+        assertTrue(result.isSuccess());
+        assertEquals("done!", result.getValue());
+    }
+
+    @Test
+    public void allOfKeepsOrderAndFailsFast() {
+        BleFuture<Integer> a = new BleFuture<>();
+        BleFuture<Integer> b = new BleFuture<>();
+        BleFuture<List<Integer>> all = BleFuture.allOf(Arrays.asList(a, b));
+        b.complete(2);
+        a.complete(1);
+        assertEquals(Arrays.asList(1, 2), all.getValue());
+
+        BleFuture<Integer> c = new BleFuture<>();
+        BleFuture<Integer> d = new BleFuture<>();
+        BleFuture<List<Integer>> failed = BleFuture.allOf(Arrays.asList(c, d));
+        c.fail(new GattException(133));
+        assertTrue(failed.getException() instanceof GattException);
+        // the remaining operation is not needed any more
+        assertTrue(d.isCancelled());
+    }
+
+    @Test
+    public void cancellingDerivedFutureCancelsPendingStages() {
+        BleFuture<Integer> source = new BleFuture<>();
+        BleFuture<Integer> derived = source.thenApply(new BleFuture.Function<Integer, Integer>() {
+            @Override
+            public Integer apply(Integer value) {
+                return value + 1;
+            }
+        });
+        assertTrue(derived.cancel());
+        assertTrue(source.isCancelled());
+        assertTrue(derived.getException() instanceof CancelledException);
+        assertEquals(BleException.ERROR_CODE_CANCELLED, derived.getException().getCode());
+        assertFalse(source.complete(1));
+    }
+
+    @Test
+    public void timeoutFailsPendingFuture() throws Exception {
+        BleFuture<Integer> future = new BleFuture<Integer>().withTimeout(20, TimeUnit.MILLISECONDS);
+        assertTrue(future.await(5, TimeUnit.SECONDS));
+        assertTrue(future.getException() instanceof TimeoutException);
+
+        BleFuture<Integer> completed = new BleFuture<Integer>().withTimeout(20, TimeUnit.MILLISECONDS);
+        completed.complete(7);
+        Thread.sleep(100);
+        assertEquals(Integer.valueOf(7), completed.getValue());
+    }
+
+    @Test
+    public void listenerAddedAfterCompletionRunsImmediately() {
+        final Object[] seen = new Object[1];
+        BleFuture.failed(new GattException(8)).addListener(new BleFuture.Listener<Object>() {
+            @Override
+            public void onSuccess(Object value) {
+            }
+
+            @Override
+            public void onFailure(BleException exception) {
+                seen[0] = exception;
+            }
+        });
+        assertTrue(seen[0] instanceof GattException);
+    }
+}
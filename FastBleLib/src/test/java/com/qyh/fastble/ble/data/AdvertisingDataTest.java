@@ -0,0 +1,106 @@
+package com.qyh.fastble.ble.data;
+
+import com.qyh.fastble.ble.notify.ByteSlice;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class AdvertisingDataTest {
+
+    private static final UUID SERVICE_FFF0 = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID BATTERY = UUID.fromString("0000180f-0000-1000-8000-00805f9b34fb");
+    private static final UUID CUSTOM = UUID.fromString("6e400001-b5a3-f393-e0a9-e50e24dcca9e");
+
+    @Test
+    public void decodesFieldsFromPaddedRecord() {
+        AdvertisingData data = new AdvertisingData(sampleRecord());
+
+        assertEquals(7, data.getCount());
+        assertEquals(0x06, data.getFlags());
+        assertEquals(-8, data.getTxPowerLevel());
+        assertEquals("FastBle-Device", data.getLocalName());
+        assertSame(data.getLocalName(), data.getLocalName());
+        assertEquals(Arrays.asList(SERVICE_FFF0, BATTERY, CUSTOM), data.getServiceUuids());
+        assertTrue(data.hasServiceUuid(BATTERY));
+        assertTrue(data.hasServiceUuid(CUSTOM));
+        assertFalse(data.hasServiceUuid(UUID.fromString("0000180d-0000-1000-8000-00805f9b34fb")));
+        assertEquals(0x004C, data.getManufacturerId());
+    }
+
+    @Test
+    public void slicesPointIntoRecordWithoutCopying() {
+        byte[] record = sampleRecord();
+        AdvertisingData data = new AdvertisingData(record);
+        ByteSlice slice = new ByteSlice();
+
+        assertTrue(data.getManufacturerData(0x004C, slice));
+        assertEquals(4, slice.length());
+        assertEquals(0x1502, slice.getUInt16(0));
+        assertFalse(data.getManufacturerData(0x0059, slice));
+
+        assertTrue(data.getServiceData(BATTERY, slice));
+        assertEquals(1, slice.length());
+        assertEquals(100, slice.getUnsigned(0));
+        assertArrayEquals(new byte[]{100}, data.getServiceData(BATTERY));
+
+        // the slice is a view of the record, not a copy
+        record[indexOfServiceData(record)] = 42;
+        assertEquals(42, slice.getUnsigned(0));
+    }
+
+    @Test
+    public void stopsAtTruncatedStructure() {
+        AdvertisingData data = new AdvertisingData(new byte[]{2, 0x01, 0x06, 5, (byte) 0xFF, 0x4C});
+        assertEquals(1, data.getCount());
+        assertEquals(0x06, data.getFlags());
+        assertEquals(-1, data.getManufacturerId());
+        assertNull(data.getLocalName());
+        assertEquals(AdvertisingData.TX_POWER_UNKNOWN, data.getTxPowerLevel());
+        assertTrue(data.getServiceUuids().isEmpty());
+    }
+
+    private static int indexOfServiceData(byte[] record) {
+        AdvertisingData data = new AdvertisingData(record);
+        int index = data.indexOf(AdvertisingData.TYPE_SERVICE_DATA_16_BIT);
+        return data.getDataOffset(index) + 2;
+    }
+
+    private static byte[] sampleRecord() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeAd(out, AdvertisingData.TYPE_FLAGS, new byte[]{0x06});
+        writeAd(out, AdvertisingData.TYPE_UUID16, new byte[]{(byte) 0xF0, (byte) 0xFF, 0x0F, 0x18});
+        writeAd(out, AdvertisingData.TYPE_MANUFACTURER_SPECIFIC_DATA, new byte[]{0x4C, 0x00, 0x02, 0x15, 1, 2});
+        writeAd(out, AdvertisingData.TYPE_TX_POWER_LEVEL, new byte[]{(byte) -8});
+        writeAd(out, AdvertisingData.TYPE_LOCAL_NAME_COMPLETE, "FastBle-Device".getBytes(Charset.forName("UTF-8")));
+        byte[] custom = new byte[16];
+        long lsb = CUSTOM.getLeastSignificantBits();
+        long msb = CUSTOM.getMostSignificantBits();
+        for (int i = 0; i < 8; i++) {
+            custom[i] = (byte) (lsb >>> (8 * i));
+            custom[8 + i] = (byte) (msb >>> (8 * i));
+        }
+        writeAd(out, AdvertisingData.TYPE_UUID128, custom);
+        writeAd(out, AdvertisingData.TYPE_SERVICE_DATA_16_BIT, new byte[]{0x0F, 0x18, 0x64});
+        byte[] record = new byte[62];
+        byte[] data = out.toByteArray();
+        System.arraycopy(data, 0, record, 0, data.length);
+        return record;
+    }
+
+    private static void writeAd(ByteArrayOutputStream out, int type, byte[] data) {
+        out.write(data.length + 1);
+        out.write(type);
+        out.write(data, 0, data.length);
+    }
+}
@@ -0,0 +1,53 @@
+package com.qyh.fastble.ble.notify;
+
+import com.qyh.fastble.ble.utils.BleExecutors;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks that a batch keeps holding maxPackets packets after the packets grew
+ * beyond the preallocated size, e.g. after an MTU exchange.
+ */
+public class BatchingNotifyListenerTest {
+
+    private static final UUID NOTIFY = UUID.fromString("0000fff4-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void batchGrowsToLongerPackets() {
+        final List<Integer> sizes = new ArrayList<>();
+        final List<Integer> bytes = new ArrayList<>();
+        BatchingNotifyListener listener = new BatchingNotifyListener(8, 0,
+                BatchingNotifyListener.DEFAULT_BYTES_PER_PACKET, new BatchListener() {
+            @Override
+            public void onBatch(UUID uuid, NotifyBatch batch) {
+                sizes.add(batch.size());
+                bytes.add(batch.byteCount());
+                for (int i = 0; i < batch.size(); i++) {
+                    assertEquals((byte) i, batch.get(i).get(0));
+                }
+            }
+        }, BleExecutors.direct());
+
+        ByteSlice packet = new ByteSlice();
+        for (int round = 0; round < 3; round++) {
+            for (int i = 0; i < 8; i++) {
+                byte[] value = new byte[244];
+                value[0] = (byte) i;
+                listener.onNotify(NOTIFY, packet.set(value));
+            }
+        }
+
+        assertEquals(3, sizes.size());
+        for (int i = 0; i < sizes.size(); i++) {
+            assertEquals(8, (int) sizes.get(i));
+            assertEquals(8 * 244, (int) bytes.get(i));
+        }
+        assertEquals(24, listener.getPacketCount());
+    }
+}
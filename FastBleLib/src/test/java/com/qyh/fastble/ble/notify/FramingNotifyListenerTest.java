@@ -0,0 +1,143 @@
+package com.qyh.fastble.ble.notify;
+
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.UUID;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Feeds encoded messages split at every possible packet size and checks that
+ * only whole, decoded frames come out.
+ */
+public class FramingNotifyListenerTest {
+
+    private static final UUID NOTIFY = UUID.fromString("0000fff4-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void lengthPrefix() throws Exception {
+        List<byte[]> messages = messages();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] message : messages) {
+            stream.write(message.length & 0xFF);
+            stream.write(message.length >> 8);
+            stream.write(message);
+        }
+        assertReassembled(new LengthPrefixFramer(2), stream.toByteArray(), messages);
+    }
+
+    @Test
+    public void delimiter() throws Exception {
+        List<byte[]> messages = new ArrayList<>();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (String line : new String[]{"AT+OK", "", "temperature=21.5", "x"}) {
+            stream.write(line.getBytes("UTF-8"));
+            stream.write(new byte[]{'\r', '\n'});
+            if (!line.isEmpty()) {
+                messages.add(line.getBytes("UTF-8"));
+            }
+        }
+        assertReassembled(new DelimiterFramer(new byte[]{'\r', '\n'}, true), stream.toByteArray(), messages);
+    }
+
+    @Test
+    public void slip() throws Exception {
+        List<byte[]> messages = messages();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] message : messages) {
+            stream.write(SlipFramer.encode(message));
+        }
+        assertReassembled(new SlipFramer(), stream.toByteArray(), messages);
+    }
+
+    @Test
+    public void cobs() throws Exception {
+        List<byte[]> messages = messages();
+        ByteArrayOutputStream stream = new ByteArrayOutputStream();
+        for (byte[] message : messages) {
+            stream.write(CobsFramer.encode(message));
+        }
+        assertReassembled(new CobsFramer(), stream.toByteArray(), messages);
+    }
+
+    @Test
+    public void singlePacketFrameIsNotCopied() {
+        final ByteSlice packet = new ByteSlice(new byte[]{3, 0, 7, 8, 9}, 0, 5);
+        final boolean[] sameArray = new boolean[1];
+        FramingNotifyListener framing = new FramingNotifyListener(new LengthPrefixFramer(2), new NotifyListener() {
+            @Override
+            public void onNotify(UUID uuid, ByteSlice value) {
+                sameArray[0] = value.array() == packet.array();
+            }
+        });
+        framing.onNotify(NOTIFY, packet);
+        assertTrue(sameArray[0]);
+        assertEquals(0, framing.getPendingLength());
+    }
+
+    @Test
+    public void resynchronizesAfterOversizedGarbage() {
+        Collector collector = new Collector();
+        FramingNotifyListener framing = new FramingNotifyListener(new SlipFramer(), 32, collector);
+        byte[] garbage = new byte[20];
+        Arrays.fill(garbage, (byte) 1);
+        framing.onNotify(NOTIFY, new ByteSlice(garbage, 0, garbage.length));
+        framing.onNotify(NOTIFY, new ByteSlice(garbage, 0, garbage.length));
+        assertEquals(40, framing.getDiscardedBytes());
+
+        byte[] encoded = SlipFramer.encode(new byte[]{5, (byte) 0xC0, 6});
+        framing.onNotify(NOTIFY, new ByteSlice(encoded, 0, encoded.length));
+        assertEquals(1, collector.frames.size());
+        assertArrayEquals(new byte[]{5, (byte) 0xC0, 6}, collector.frames.get(0));
+    }
+
+    private static void assertReassembled(Framer framer, byte[] stream, List<byte[]> expected) {
+        for (int packetSize = 1; packetSize <= stream.length; packetSize++) {
+            framer.reset();
+            Collector collector = new Collector();
+            FramingNotifyListener framing = new FramingNotifyListener(framer, collector);
+            for (int offset = 0; offset < stream.length; offset += packetSize) {
+                // every packet arrives in a fresh array, as the characteristic value does
+                byte[] packet = Arrays.copyOfRange(stream, offset, Math.min(stream.length, offset + packetSize));
+                framing.onNotify(NOTIFY, new ByteSlice(packet, 0, packet.length));
+            }
+            assertEquals("packet size " + packetSize, expected.size(), collector.frames.size());
+            for (int i = 0; i < expected.size(); i++) {
+                assertArrayEquals("packet size " + packetSize, expected.get(i), collector.frames.get(i));
+            }
+            assertEquals(0, framing.getPendingLength());
+        }
+    }
+
+    private static List<byte[]> messages() {
+        Random random = new Random(7);
+        List<byte[]> messages = new ArrayList<>();
+        for (int length : new int[]{1, 19, 300, 2, 254, 255, 600}) {
+            byte[] message = new byte[length];
+            random.nextBytes(message);
+            // plenty of bytes the encodings have to escape
+            for (int i = 0; i < length; i += 3) {
+                message[i] = (byte) (i % 2 == 0 ? 0x00 : 0xC0);
+            }
+            messages.add(message);
+        }
+        messages.add(new byte[]{(byte) 0xDB, (byte) 0xC0, 0, 0});
+        return messages;
+    }
+
+    private static final class Collector implements NotifyListener {
+        final List<byte[]> frames = new ArrayList<>();
+
+        @Override
+        public void onNotify(UUID uuid, ByteSlice value) {
+            frames.add(value.toByteArray());
+        }
+    }
+}
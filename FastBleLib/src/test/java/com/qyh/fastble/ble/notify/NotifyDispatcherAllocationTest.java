@@ -0,0 +1,103 @@
+package com.qyh.fastble.ble.notify;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+/**
+ * Counts the bytes allocated on the delivering thread per notification.
+ * The dispatch path must not allocate once the subscriptions are in place.
+ */
+public class NotifyDispatcherAllocationTest {
+
+    private static final UUID SERVICE = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID NOTIFY = UUID.fromString("0000fff4-0000-1000-8000-00805f9b34fb");
+    private static final int WARMUP = 200000;
+    private static final int MEASURED = 100000;
+
+    @Test
+    public void dispatchDoesNotAllocatePerNotification() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threadBean = (com.sun.management.ThreadMXBean) bean;
+        assumeTrue(threadBean.isThreadAllocatedMemorySupported());
+        threadBean.setThreadAllocatedMemoryEnabled(true);
+
+        NotifyDispatcher dispatcher = new NotifyDispatcher();
+        SumListener first = new SumListener();
+        SumListener second = new SumListener();
+        dispatcher.subscribe(new NotifySubscription(SERVICE, NOTIFY, first));
+        dispatcher.subscribe(new NotifySubscription(SERVICE, NOTIFY, second));
+
+        // the stack hands out its own UUID instance, not the one used to subscribe
+        UUID incoming = new UUID(NOTIFY.getMostSignificantBits(), NOTIFY.getLeastSignificantBits());
+        byte[] packet = new byte[20];
+        for (int i = 0; i < packet.length; i++) {
+            packet[i] = (byte) i;
+        }
+
+        for (int i = 0; i < WARMUP; i++) {
+            dispatcher.dispatch(incoming, packet);
+        }
+
+        long threadId = Thread.currentThread().getId();
+        long before = threadBean.getThreadAllocatedBytes(threadId);
+        for (int i = 0; i < MEASURED; i++) {
+            dispatcher.dispatch(incoming, packet);
+        }
+        long allocated = threadBean.getThreadAllocatedBytes(threadId) - before;
+
+        assertEquals(WARMUP + MEASURED, first.count);
+        assertEquals(WARMUP + MEASURED, second.count);
+        double perNotification = allocated / (double) MEASURED;
+        assertTrue("allocated " + perNotification + " bytes per notification", perNotification < 1.0);
+    }
+
+    @Test
+    public void sliceIsOnlyValidDuringCallback() throws Exception {
+        NotifyDispatcher dispatcher = new NotifyDispatcher();
+        final ByteSlice[] seen = new ByteSlice[2];
+        final byte[][] copies = new byte[2][];
+        NotifyListener listener = new NotifyListener() {
+            int index;
+
+            @Override
+            public void onNotify(UUID uuid, ByteSlice value) {
+                seen[index] = value;
+                copies[index] = value.toByteArray();
+                index++;
+            }
+        };
+        NotifySubscription subscription = new NotifySubscription(SERVICE, NOTIFY, listener);
+        dispatcher.subscribe(subscription);
+
+        dispatcher.dispatch(NOTIFY, new byte[]{1, 2});
+        dispatcher.dispatch(NOTIFY, new byte[]{3, 4, 5});
+
+        assertTrue(seen[0] == seen[1]);
+        assertEquals(2, copies[0].length);
+        assertEquals(3, copies[1][0]);
+        assertEquals(0x0403, seen[1].getUInt16(0));
+
+        assertTrue(dispatcher.unsubscribe(subscription));
+        assertEquals(0, dispatcher.dispatch(NOTIFY, new byte[]{6}));
+    }
+
+    private static final class SumListener implements NotifyListener {
+        int count;
+        long sum;
+
+        @Override
+        public void onNotify(UUID uuid, ByteSlice value) {
+            count++;
+            for (int i = 0; i < value.length(); i++) {
+                sum += value.get(i);
+            }
+        }
+    }
+}
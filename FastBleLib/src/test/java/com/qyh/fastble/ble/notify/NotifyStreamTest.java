@@ -0,0 +1,130 @@
+package com.qyh.fastble.ble.notify;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Overflows a small stream under each policy and checks which packets survive
+ * and what the drop and block counters report.
+ */
+public class NotifyStreamTest {
+
+    private static final UUID NOTIFY = UUID.fromString("0000fff4-0000-1000-8000-00805f9b34fb");
+    private static final UUID OTHER = UUID.fromString("0000fff5-0000-1000-8000-00805f9b34fb");
+
+    @Test
+    public void dropOldestKeepsLatest() {
+        NotifyStream stream = new NotifyStream(3, 4, NotifyStream.OVERFLOW_DROP_OLDEST);
+        ByteSlice packet = new ByteSlice();
+        for (int i = 0; i < 5; i++) {
+            stream.onNotify(NOTIFY, packet.set(new byte[]{(byte) i}));
+        }
+
+        assertEquals(5, stream.getReceivedCount());
+        assertEquals(2, stream.getDropCount());
+        assertEquals(0, stream.getBlockCount());
+        assertPackets(stream, 2, 3, 4);
+    }
+
+    @Test
+    public void dropNewestKeepsFirst() {
+        NotifyStream stream = new NotifyStream(3, 4, NotifyStream.OVERFLOW_DROP_NEWEST);
+        ByteSlice packet = new ByteSlice();
+        for (int i = 0; i < 5; i++) {
+            stream.onNotify(NOTIFY, packet.set(new byte[]{(byte) i}));
+        }
+        stream.onNotify(NOTIFY, packet.set(new byte[5]));
+
+        assertEquals(6, stream.getReceivedCount());
+        assertEquals(3, stream.getDropCount());
+        assertEquals(0, stream.getBlockCount());
+        assertPackets(stream, 0, 1, 2);
+    }
+
+    @Test
+    public void blockDropsAfterTimeout() {
+        NotifyStream stream = new NotifyStream(2, 4, NotifyStream.OVERFLOW_BLOCK)
+                .setBlockTimeout(50, TimeUnit.MILLISECONDS);
+        ByteSlice packet = new ByteSlice();
+        stream.onNotify(NOTIFY, packet.set(new byte[]{0}));
+        stream.onNotify(NOTIFY, packet.set(new byte[]{1}));
+
+        long start = System.nanoTime();
+        stream.onNotify(NOTIFY, packet.set(new byte[]{2}));
+        long waitedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        assertTrue("waited " + waitedMillis + "ms", waitedMillis >= 40);
+        assertEquals(1, stream.getBlockCount());
+        assertEquals(1, stream.getDropCount());
+        assertPackets(stream, 0, 1);
+    }
+
+    @Test
+    public void blockResumesWhenConsumerTakes() throws Exception {
+        final NotifyStream stream = new NotifyStream(2, 4, NotifyStream.OVERFLOW_BLOCK)
+                .setBlockTimeout(5, TimeUnit.SECONDS);
+        ByteSlice packet = new ByteSlice();
+        stream.onNotify(NOTIFY, packet.set(new byte[]{0}));
+        stream.onNotify(NOTIFY, packet.set(new byte[]{1}));
+
+        final byte[] taken = new byte[4];
+        Thread consumer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    Thread.sleep(50);
+                    stream.take(taken, 1, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        });
+        consumer.start();
+        stream.onNotify(NOTIFY, packet.set(new byte[]{2}));
+        consumer.join();
+
+        assertEquals(0, taken[0]);
+        assertEquals(1, stream.getBlockCount());
+        assertEquals(0, stream.getDropCount());
+        assertPackets(stream, 1, 2);
+    }
+
+    @Test
+    public void drainReportsEachPacketsUuid() {
+        NotifyStream stream = new NotifyStream(4, NotifyStream.OVERFLOW_DROP_NEWEST);
+        ByteSlice packet = new ByteSlice();
+        stream.onNotify(NOTIFY, packet.set(new byte[]{0}));
+        stream.onNotify(OTHER, packet.set(new byte[]{1}));
+        stream.onNotify(NOTIFY, packet.set(new byte[]{2}));
+
+        final List<UUID> uuids = new ArrayList<>();
+        int drained = stream.drain(new NotifyListener() {
+            @Override
+            public void onNotify(UUID uuid, ByteSlice value) {
+                assertEquals(uuids.size(), value.get(0));
+                uuids.add(uuid);
+            }
+        });
+
+        assertEquals(3, drained);
+        assertEquals(NOTIFY, uuids.get(0));
+        assertEquals(OTHER, uuids.get(1));
+        assertEquals(NOTIFY, uuids.get(2));
+    }
+
+    private static void assertPackets(NotifyStream stream, int... expected) {
+        byte[] dest = new byte[stream.getSlotSize()];
+        for (int value : expected) {
+            assertEquals(1, stream.poll(dest));
+            assertEquals(value, dest[0]);
+        }
+        assertEquals(-1, stream.poll(dest));
+    }
+}
@@ -0,0 +1,74 @@
+package android.bluetooth;
+
+import android.bluetooth.le.BluetoothLeScanner;
+
+import com.qyh.fastble.benchmark.SimulatedPeripheral;
+
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Simulated android.bluetooth.BluetoothAdapter, always enabled.
+ * Scanning reports nothing, devices come from {@link SimulatedPeripheral#getDevice()}.
+ */
+public final class BluetoothAdapter {
+
+    private static final Map<String, BluetoothDevice> DEVICES = new ConcurrentHashMap<>();
+
+    private final BluetoothLeScanner leScanner = new BluetoothLeScanner();
+
+    public interface LeScanCallback {
+        void onLeScan(BluetoothDevice device, int rssi, byte[] scanRecord);
+    }
+
+    BluetoothAdapter() {
+    }
+
+    static void register(BluetoothDevice device) {
+        DEVICES.put(device.getAddress(), device);
+    }
+
+    public static boolean checkBluetoothAddress(String address) {
+        return address != null && address.matches("([0-9A-F]{2}:){5}[0-9A-F]{2}");
+    }
+
+    public boolean isEnabled() {
+        return true;
+    }
+
+    public boolean enable() {
+        return true;
+    }
+
+    public boolean disable() {
+        return false;
+    }
+
+    public boolean startLeScan(LeScanCallback callback) {
+        return true;
+    }
+
+    public boolean startLeScan(UUID[] serviceUuids, LeScanCallback callback) {
+        return true;
+    }
+
+    public void stopLeScan(LeScanCallback callback) {
+    }
+
+    public BluetoothLeScanner getBluetoothLeScanner() {
+        return leScanner;
+    }
+
+    public boolean isOffloadedScanBatchingSupported() {
+        return false;
+    }
+
+    public BluetoothDevice getRemoteDevice(String address) {
+        BluetoothDevice device = DEVICES.get(address);
+        if (device == null) {
+            throw new IllegalArgumentException(address + " is not a simulated device");
+        }
+        return device;
+    }
+}
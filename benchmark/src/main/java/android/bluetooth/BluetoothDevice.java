@@ -0,0 +1,61 @@
+package android.bluetooth;
+
+import android.content.Context;
+import android.os.Parcel;
+import android.os.Parcelable;
+
+import com.qyh.fastble.benchmark.SimulatedPeripheral;
+
+/**
+ * Simulated android.bluetooth.BluetoothDevice backed by a {@link SimulatedPeripheral}.
+ */
+public final class BluetoothDevice implements Parcelable {
+
+    public static final int TRANSPORT_AUTO = 0;
+    public static final int TRANSPORT_LE = 2;
+
+    private final String address;
+    private final String name;
+    private final SimulatedPeripheral peripheral;
+
+    public BluetoothDevice(String address, String name, SimulatedPeripheral peripheral) {
+        this.address = address;
+        this.name = name;
+        this.peripheral = peripheral;
+        BluetoothAdapter.register(this);
+    }
+
+    public String getAddress() {
+        return address;
+    }
+
+    public String getName() {
+        return name;
+    }
+
+    public BluetoothGatt connectGatt(Context context, boolean autoConnect, BluetoothGattCallback callback) {
+        return connectGatt(context, autoConnect, callback, TRANSPORT_AUTO);
+    }
+
+    public BluetoothGatt connectGatt(Context context, boolean autoConnect, BluetoothGattCallback callback,
+                                     int transport) {
+        BluetoothGatt gatt = new BluetoothGatt(this, callback, peripheral);
+        gatt.connect();
+        return gatt;
+    }
+
+    @Override
+    public int describeContents() {
+        return 0;
+    }
+
+    @Override
+    public void writeToParcel(Parcel dest, int flags) {
+        throw new UnsupportedOperationException("not simulated");
+    }
+
+    @Override
+    public String toString() {
+        return address;
+    }
+}
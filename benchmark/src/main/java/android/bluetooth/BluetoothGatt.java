@@ -0,0 +1,118 @@
+package android.bluetooth;
+
+import com.qyh.fastble.benchmark.SimulatedPeripheral;
+
+import java.util.List;
+import java.util.UUID;
+
+/**
+ * Simulated android.bluetooth.BluetoothGatt, every call is forwarded to a {@link SimulatedPeripheral}.
+ * Like the real stack only one operation may be outstanding, a second call returns false.
+ */
+public final class BluetoothGatt implements BluetoothProfile {
+
+    public static final int GATT_SUCCESS = 0;
+    public static final int GATT_READ_NOT_PERMITTED = 0x2;
+    public static final int GATT_WRITE_NOT_PERMITTED = 0x3;
+    public static final int GATT_FAILURE = 0x101;
+
+    public static final int CONNECTION_PRIORITY_BALANCED = 0;
+    public static final int CONNECTION_PRIORITY_HIGH = 1;
+    public static final int CONNECTION_PRIORITY_LOW_POWER = 2;
+
+    private final BluetoothDevice device;
+    private final BluetoothGattCallback callback;
+    private final SimulatedPeripheral peripheral;
+
+    BluetoothGatt(BluetoothDevice device, BluetoothGattCallback callback, SimulatedPeripheral peripheral) {
+        this.device = device;
+        this.callback = callback;
+        this.peripheral = peripheral;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    /**
+     * the callback passed to connectGatt, used by the peripheral to deliver events
+     */
+    public BluetoothGattCallback getCallback() {
+        return callback;
+    }
+
+    public boolean connect() {
+        return peripheral.connect(this);
+    }
+
+    public void disconnect() {
+        peripheral.disconnect(this);
+    }
+
+    public void close() {
+        peripheral.close(this);
+    }
+
+    public boolean discoverServices() {
+        return peripheral.discoverServices(this);
+    }
+
+    public List<BluetoothGattService> getServices() {
+        return peripheral.getServices();
+    }
+
+    public BluetoothGattService getService(UUID uuid) {
+        for (BluetoothGattService service : peripheral.getServices()) {
+            if (service.getUuid().equals(uuid)) {
+                return service;
+            }
+        }
+        return null;
+    }
+
+    public boolean readCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return peripheral.readCharacteristic(this, characteristic);
+    }
+
+    public boolean writeCharacteristic(BluetoothGattCharacteristic characteristic) {
+        return peripheral.writeCharacteristic(this, characteristic);
+    }
+
+    public boolean readDescriptor(BluetoothGattDescriptor descriptor) {
+        return peripheral.readDescriptor(this, descriptor);
+    }
+
+    public boolean writeDescriptor(BluetoothGattDescriptor descriptor) {
+        return peripheral.writeDescriptor(this, descriptor);
+    }
+
+    public boolean setCharacteristicNotification(BluetoothGattCharacteristic characteristic, boolean enable) {
+        return true;
+    }
+
+    public boolean readRemoteRssi() {
+        return peripheral.readRemoteRssi(this);
+    }
+
+    public boolean requestMtu(int mtu) {
+        return peripheral.requestMtu(this, mtu);
+    }
+
+    public boolean requestConnectionPriority(int connectionPriority) {
+        return true;
+    }
+
+    public boolean beginReliableWrite() {
+        return false;
+    }
+
+    public boolean executeReliableWrite() {
+        return false;
+    }
+
+    public void abortReliableWrite() {
+    }
+
+    public void abortReliableWrite(BluetoothDevice device) {
+    }
+}
@@ -0,0 +1,85 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class BluetoothGattCharacteristic {
+
+    public static final int PROPERTY_BROADCAST = 0x01;
+    public static final int PROPERTY_READ = 0x02;
+    public static final int PROPERTY_WRITE_NO_RESPONSE = 0x04;
+    public static final int PROPERTY_WRITE = 0x08;
+    public static final int PROPERTY_NOTIFY = 0x10;
+    public static final int PROPERTY_INDICATE = 0x20;
+
+    public static final int PERMISSION_READ = 0x01;
+    public static final int PERMISSION_WRITE = 0x10;
+
+    public static final int WRITE_TYPE_NO_RESPONSE = 0x01;
+    public static final int WRITE_TYPE_DEFAULT = 0x02;
+
+    private final UUID uuid;
+    private final int properties;
+    private final List<BluetoothGattDescriptor> descriptors = new ArrayList<>();
+    private BluetoothGattService service;
+    private int writeType = WRITE_TYPE_DEFAULT;
+    private byte[] value;
+
+    public BluetoothGattCharacteristic(UUID uuid, int properties, int permissions) {
+        this.uuid = uuid;
+        this.properties = properties;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public int getProperties() {
+        return properties;
+    }
+
+    public BluetoothGattService getService() {
+        return service;
+    }
+
+    void setService(BluetoothGattService service) {
+        this.service = service;
+    }
+
+    public boolean addDescriptor(BluetoothGattDescriptor descriptor) {
+        descriptors.add(descriptor);
+        descriptor.setCharacteristic(this);
+        return true;
+    }
+
+    public BluetoothGattDescriptor getDescriptor(UUID uuid) {
+        for (BluetoothGattDescriptor descriptor : descriptors) {
+            if (descriptor.getUuid().equals(uuid)) {
+                return descriptor;
+            }
+        }
+        return null;
+    }
+
+    public List<BluetoothGattDescriptor> getDescriptors() {
+        return descriptors;
+    }
+
+    public int getWriteType() {
+        return writeType;
+    }
+
+    public void setWriteType(int writeType) {
+        this.writeType = writeType;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    public boolean setValue(byte[] value) {
+        this.value = value;
+        return true;
+    }
+}
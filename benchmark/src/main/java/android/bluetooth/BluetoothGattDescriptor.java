@@ -0,0 +1,39 @@
+package android.bluetooth;
+
+import java.util.UUID;
+
+public class BluetoothGattDescriptor {
+
+    public static final byte[] ENABLE_NOTIFICATION_VALUE = {0x01, 0x00};
+    public static final byte[] ENABLE_INDICATION_VALUE = {0x02, 0x00};
+    public static final byte[] DISABLE_NOTIFICATION_VALUE = {0x00, 0x00};
+
+    private final UUID uuid;
+    private BluetoothGattCharacteristic characteristic;
+    private byte[] value;
+
+    public BluetoothGattDescriptor(UUID uuid, int permissions) {
+        this.uuid = uuid;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic() {
+        return characteristic;
+    }
+
+    void setCharacteristic(BluetoothGattCharacteristic characteristic) {
+        this.characteristic = characteristic;
+    }
+
+    public byte[] getValue() {
+        return value;
+    }
+
+    public boolean setValue(byte[] value) {
+        this.value = value;
+        return true;
+    }
+}
@@ -0,0 +1,40 @@
+package android.bluetooth;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.UUID;
+
+public class BluetoothGattService {
+
+    public static final int SERVICE_TYPE_PRIMARY = 0;
+
+    private final UUID uuid;
+    private final List<BluetoothGattCharacteristic> characteristics = new ArrayList<>();
+
+    public BluetoothGattService(UUID uuid, int serviceType) {
+        this.uuid = uuid;
+    }
+
+    public UUID getUuid() {
+        return uuid;
+    }
+
+    public boolean addCharacteristic(BluetoothGattCharacteristic characteristic) {
+        characteristics.add(characteristic);
+        characteristic.setService(this);
+        return true;
+    }
+
+    public BluetoothGattCharacteristic getCharacteristic(UUID uuid) {
+        for (BluetoothGattCharacteristic characteristic : characteristics) {
+            if (characteristic.getUuid().equals(uuid)) {
+                return characteristic;
+            }
+        }
+        return null;
+    }
+
+    public List<BluetoothGattCharacteristic> getCharacteristics() {
+        return characteristics;
+    }
+}
@@ -0,0 +1,18 @@
+package android.bluetooth.le;
+
+import java.util.List;
+
+/**
+ * Simulated android.bluetooth.le.BluetoothLeScanner, scanning reports nothing.
+ */
+public final class BluetoothLeScanner {
+
+    public void startScan(List<ScanFilter> filters, ScanSettings settings, ScanCallback callback) {
+    }
+
+    public void stopScan(ScanCallback callback) {
+    }
+
+    public void flushPendingScanResults(ScanCallback callback) {
+    }
+}
@@ -0,0 +1,28 @@
+package android.bluetooth.le;
+
+import android.os.ParcelUuid;
+
+public final class ScanFilter {
+
+    private ScanFilter() {
+    }
+
+    public static final class Builder {
+
+        public Builder setDeviceName(String deviceName) {
+            return this;
+        }
+
+        public Builder setDeviceAddress(String deviceAddress) {
+            return this;
+        }
+
+        public Builder setServiceUuid(ParcelUuid serviceUuid) {
+            return this;
+        }
+
+        public ScanFilter build() {
+            return new ScanFilter();
+        }
+    }
+}
@@ -0,0 +1,14 @@
+package android.bluetooth.le;
+
+public final class ScanRecord {
+
+    private final byte[] bytes;
+
+    public ScanRecord(byte[] bytes) {
+        this.bytes = bytes;
+    }
+
+    public byte[] getBytes() {
+        return bytes;
+    }
+}
@@ -0,0 +1,28 @@
+package android.bluetooth.le;
+
+import android.bluetooth.BluetoothDevice;
+
+public final class ScanResult {
+
+    private final BluetoothDevice device;
+    private final ScanRecord scanRecord;
+    private final int rssi;
+
+    public ScanResult(BluetoothDevice device, ScanRecord scanRecord, int rssi) {
+        this.device = device;
+        this.scanRecord = scanRecord;
+        this.rssi = rssi;
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    public ScanRecord getScanRecord() {
+        return scanRecord;
+    }
+
+    public int getRssi() {
+        return rssi;
+    }
+}
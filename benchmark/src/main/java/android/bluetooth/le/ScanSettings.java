@@ -0,0 +1,22 @@
+package android.bluetooth.le;
+
+public final class ScanSettings {
+
+    private ScanSettings() {
+    }
+
+    public static final class Builder {
+
+        public Builder setScanMode(int scanMode) {
+            return this;
+        }
+
+        public Builder setReportDelay(long reportDelayMillis) {
+            return this;
+        }
+
+        public ScanSettings build() {
+            return new ScanSettings();
+        }
+    }
+}
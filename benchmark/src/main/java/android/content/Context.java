@@ -0,0 +1,21 @@
+package android.content;
+
+import android.bluetooth.BluetoothManager;
+
+/**
+ * Simulated android.content.Context, only provides the bluetooth system service.
+ */
+public class Context {
+
+    public static final String BLUETOOTH_SERVICE = "bluetooth";
+
+    private final BluetoothManager bluetoothManager = new BluetoothManager();
+
+    public Object getSystemService(String name) {
+        return BLUETOOTH_SERVICE.equals(name) ? bluetoothManager : null;
+    }
+
+    public Context getApplicationContext() {
+        return this;
+    }
+}
@@ -0,0 +1,20 @@
+package android.os;
+
+/**
+ * Simulated android.os.Build, the SDK level defaults to 26 and can be set with -Dbenchmark.sdk=
+ */
+public class Build {
+
+    public static class VERSION {
+        public static final int SDK_INT = Integer.getInteger("benchmark.sdk", 26);
+    }
+
+    public static class VERSION_CODES {
+        public static final int JELLY_BEAN_MR2 = 18;
+        public static final int KITKAT = 19;
+        public static final int LOLLIPOP = 21;
+        public static final int M = 23;
+        public static final int N = 24;
+        public static final int O = 26;
+    }
+}
@@ -0,0 +1,43 @@
+package android.os;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Simulated android.os.Handler, runnables only.
+ */
+public class Handler {
+
+    private final Looper looper;
+
+    public Handler() {
+        this(Looper.myLooper());
+    }
+
+    public Handler(Looper looper) {
+        if (looper == null) {
+            throw new RuntimeException("Can't create handler inside thread that has not called Looper.prepare()");
+        }
+        this.looper = looper;
+    }
+
+    public final boolean post(Runnable r) {
+        return postDelayed(r, 0);
+    }
+
+    public final boolean postDelayed(Runnable r, long delayMillis) {
+        looper.enqueue(this, r, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(Math.max(delayMillis, 0)));
+        return true;
+    }
+
+    public final void removeCallbacks(Runnable r) {
+        looper.remove(this, r);
+    }
+
+    public final void removeCallbacksAndMessages(Object token) {
+        looper.remove(this, null);
+    }
+
+    public final Looper getLooper() {
+        return looper;
+    }
+}
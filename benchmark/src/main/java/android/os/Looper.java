@@ -0,0 +1,135 @@
+package android.os;
+
+import java.util.Iterator;
+import java.util.PriorityQueue;
+
+/**
+ * Simulated android.os.Looper: a message loop on one thread, ordered by due time.
+ * The main looper runs on a daemon thread named "main".
+ */
+public final class Looper {
+
+    private static final ThreadLocal<Looper> LOOPERS = new ThreadLocal<>();
+    private static Looper mainLooper;
+
+    private final Thread thread;
+    private final PriorityQueue<Task> queue = new PriorityQueue<>();
+    private long sequence;
+    private boolean quit;
+
+    private Looper() {
+        thread = Thread.currentThread();
+    }
+
+    public static void prepare() {
+        if (LOOPERS.get() != null) {
+            throw new RuntimeException("Only one Looper may be created per thread");
+        }
+        LOOPERS.set(new Looper());
+    }
+
+    public static Looper myLooper() {
+        return LOOPERS.get();
+    }
+
+    public static synchronized Looper getMainLooper() {
+        if (mainLooper == null) {
+            HandlerThread main = new HandlerThread("main");
+            main.setDaemon(true);
+            main.start();
+            mainLooper = main.getLooper();
+        }
+        return mainLooper;
+    }
+
+    public static void loop() {
+        Looper me = myLooper();
+        if (me == null) {
+            throw new RuntimeException("No Looper; Looper.prepare() wasn't called on this thread.");
+        }
+        for (; ; ) {
+            Runnable next = me.next();
+            if (next == null) {
+                return;
+            }
+            next.run();
+        }
+    }
+
+    public Thread getThread() {
+        return thread;
+    }
+
+    public void quit() {
+        synchronized (queue) {
+            quit = true;
+            queue.notifyAll();
+        }
+    }
+
+    void enqueue(Handler handler, Runnable runnable, long uptimeNanos) {
+        synchronized (queue) {
+            queue.add(new Task(handler, runnable, uptimeNanos, sequence++));
+            queue.notifyAll();
+        }
+    }
+
+    void remove(Handler handler, Runnable runnable) {
+        synchronized (queue) {
+            Iterator<Task> iterator = queue.iterator();
+            while (iterator.hasNext()) {
+                Task task = iterator.next();
+                if (task.handler == handler && (runnable == null || task.runnable == runnable)) {
+                    iterator.remove();
+                }
+            }
+        }
+    }
+
+    private Runnable next() {
+        synchronized (queue) {
+            for (; ; ) {
+                if (quit) {
+                    return null;
+                }
+                Task head = queue.peek();
+                long now = System.nanoTime();
+                if (head != null && head.when <= now) {
+                    return queue.poll().runnable;
+                }
+                try {
+                    if (head == null) {
+                        queue.wait();
+                    } else {
+                        long waitNanos = head.when - now;
+                        queue.wait(waitNanos / 1000000, (int) (waitNanos % 1000000));
+                    }
+                } catch (InterruptedException e) {
+                    return null;
+                }
+            }
+        }
+    }
+
+    private static final class Task implements Comparable<Task> {
+        final Handler handler;
+        final Runnable runnable;
+        final long when;
+        final long sequence;
+
+        Task(Handler handler, Runnable runnable, long when, long sequence) {
+            this.handler = handler;
+            this.runnable = runnable;
+            this.when = when;
+            this.sequence = sequence;
+        }
+
+        @Override
+        public int compareTo(Task o) {
+            if (when != o.when) {
+                return when < o.when ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,42 @@
+package android.os;
+
+/**
+ * Simulated android.os.Parcel, parcelling is not part of the benchmark.
+ */
+public final class Parcel {
+
+    private Parcel() {
+    }
+
+    public <T extends Parcelable> T readParcelable(ClassLoader loader) {
+        throw new UnsupportedOperationException("not simulated");
+    }
+
+    public byte[] createByteArray() {
+        throw new UnsupportedOperationException("not simulated");
+    }
+
+    public int readInt() {
+        throw new UnsupportedOperationException("not simulated");
+    }
+
+    public long readLong() {
+        throw new UnsupportedOperationException("not simulated");
+    }
+
+    public void writeParcelable(Parcelable p, int flags) {
+        throw new UnsupportedOperationException("not simulated");
+    }
+
+    public void writeByteArray(byte[] b) {
+        throw new UnsupportedOperationException("not simulated");
+    }
+
+    public void writeInt(int val) {
+        throw new UnsupportedOperationException("not simulated");
+    }
+
+    public void writeLong(long val) {
+        throw new UnsupportedOperationException("not simulated");
+    }
+}
@@ -0,0 +1,617 @@
+package com.qyh.fastble.benchmark;
+
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.content.Context;
+
+import com.qyh.fastble.ble.bluetooth.BleBluetooth;
+import com.qyh.fastble.ble.conn.BleCharacterCallback;
+import com.qyh.fastble.ble.conn.BleConnector;
+import com.qyh.fastble.ble.conn.BleFuture;
+import com.qyh.fastble.ble.conn.BleRpc;
+import com.qyh.fastble.ble.conn.BleGattCallback;
+import com.qyh.fastble.ble.data.BleDevice;
+import com.qyh.fastble.ble.exception.BleException;
+import com.qyh.fastble.ble.notify.ByteSlice;
+import com.qyh.fastble.ble.notify.NotifyListener;
+import com.qyh.fastble.ble.notify.NotifySubscription;
+import com.qyh.fastble.ble.utils.BleExecutors;
+import com.qyh.fastble.ble.utils.LogUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.UUID;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Throughput benchmark of BleBluetooth / BleConnector against a {@link SimulatedPeripheral}.
+ * <p>
+ * Every scenario runs twice: a "raw" variant that drives the simulated BluetoothGatt directly
+ * (the cost of the harness itself) and a "lib" variant going through the library's operation
+ * queue and callback dispatch. The difference between the two is the library's overhead.
+ * <p>
+ * Reported per scenario: operations (or notifications) per second, p50 / p99 latency from the
+ * call (or from sending the notification) to the callback, and bytes allocated per operation
+ * by all threads.
+ * <pre>
+ * ./gradlew :benchmark:run -Pargs="--ops=20000 --latency-us=0 --depth=1 --payload=20"
+ * </pre>
+ */
+public class GattBenchmark {
+
+    private static final UUID SERVICE = UUID.fromString("0000fff0-0000-1000-8000-00805f9b34fb");
+    private static final UUID READ = UUID.fromString("0000fff1-0000-1000-8000-00805f9b34fb");
+    private static final UUID WRITE = UUID.fromString("0000fff2-0000-1000-8000-00805f9b34fb");
+    private static final UUID NOTIFY = UUID.fromString("0000fff3-0000-1000-8000-00805f9b34fb");
+    private static final UUID NOTIFY_SLICE = UUID.fromString("0000fff4-0000-1000-8000-00805f9b34fb");
+    private static final UUID RPC_REQUEST = UUID.fromString("0000fff5-0000-1000-8000-00805f9b34fb");
+    private static final UUID RPC_RESPONSE = UUID.fromString("0000fff6-0000-1000-8000-00805f9b34fb");
+
+    private final int ops;
+    private final int warmup;
+    private final long latencyMicros;
+    private final int depth;
+    private final int payload;
+
+    private GattBenchmark(int ops, int warmup, long latencyMicros, int depth, int payload) {
+        this.ops = ops;
+        this.warmup = warmup;
+        this.latencyMicros = latencyMicros;
+        this.depth = depth;
+        this.payload = payload;
+    }
+
+    public static void main(String[] args) throws Exception {
+        int ops = 20000;
+        int warmup = -1;
+        long latencyMicros = 0;
+        int depth = 1;
+        int payload = 20;
+        for (String arg : args) {
+            String[] pair = arg.split("=", 2);
+            if (pair.length != 2) {
+                throw new IllegalArgumentException("expected --name=value: " + arg);
+            }
+            switch (pair[0]) {
+                case "--ops":
+                    ops = Integer.parseInt(pair[1]);
+                    break;
+                case "--warmup":
+                    warmup = Integer.parseInt(pair[1]);
+                    break;
+                case "--latency-us":
+                    latencyMicros = Long.parseLong(pair[1]);
+                    break;
+                case "--depth":
+                    depth = Integer.parseInt(pair[1]);
+                    break;
+                case "--payload":
+                    payload = Integer.parseInt(pair[1]);
+                    break;
+                default:
+                    throw new IllegalArgumentException("unknown option " + pair[0]);
+            }
+        }
+        LogUtils.setDebuggable(LogUtils.LEVEL_OFF);
+        new GattBenchmark(ops, warmup < 0 ? ops : warmup, latencyMicros, depth, payload).run();
+        System.exit(0);
+    }
+
+    private void run() throws Exception {
+        System.out.println(String.format(Locale.US,
+                "ops=%d warmup=%d latency=%dus depth=%d payload=%dB allocation=%s",
+                ops, warmup, latencyMicros, depth, payload,
+                AllocationMeter.isSupported() ? "all threads" : "unsupported"));
+
+        List<Result> results = new ArrayList<>();
+
+        SimulatedPeripheral rawPeripheral = newPeripheral("00:11:22:33:44:01");
+        RawClient raw = new RawClient(rawPeripheral);
+        results.add(measure(raw.read()));
+        results.add(measure(raw.write()));
+        results.add(measure(raw.notifications(NOTIFY)));
+
+        SimulatedPeripheral libPeripheral = newPeripheral("00:11:22:33:44:02");
+        LibClient lib = new LibClient(libPeripheral);
+        results.add(measure(lib.read()));
+        results.add(measure(lib.write()));
+        results.add(measure(lib.notifications()));
+        results.add(measure(lib.sliceNotifications()));
+        results.add(measure(lib.rpc()));
+
+        System.out.println(String.format(Locale.US, "%-18s %9s %12s %10s %10s %10s",
+                "scenario", "ops", "ops/s", "p50(us)", "p99(us)", "B/op"));
+        for (Result result : results) {
+            System.out.println(result);
+        }
+        System.out.println("rejected gatt calls: raw " + rawPeripheral.getRejectedCount()
+                + ", lib " + libPeripheral.getRejectedCount());
+        rawPeripheral.shutdown();
+        libPeripheral.shutdown();
+    }
+
+    private SimulatedPeripheral newPeripheral(String address) {
+        SimulatedPeripheral peripheral = new SimulatedPeripheral(address, latencyMicros);
+        BluetoothGattService service = peripheral.addService(SERVICE);
+        peripheral.addCharacteristic(service, READ, BluetoothGattCharacteristic.PROPERTY_READ, new byte[payload]);
+        peripheral.addCharacteristic(service, WRITE, BluetoothGattCharacteristic.PROPERTY_WRITE
+                | BluetoothGattCharacteristic.PROPERTY_WRITE_NO_RESPONSE, new byte[payload]);
+        peripheral.addCharacteristic(service, NOTIFY, BluetoothGattCharacteristic.PROPERTY_NOTIFY, null);
+        peripheral.addCharacteristic(service, NOTIFY_SLICE, BluetoothGattCharacteristic.PROPERTY_NOTIFY, null);
+        peripheral.addCharacteristic(service, RPC_REQUEST, BluetoothGattCharacteristic.PROPERTY_WRITE, new byte[payload]);
+        peripheral.addCharacteristic(service, RPC_RESPONSE, BluetoothGattCharacteristic.PROPERTY_NOTIFY, null);
+        peripheral.respond(RPC_REQUEST, RPC_RESPONSE);
+        return peripheral;
+    }
+
+    private Result measure(Scenario scenario) throws Exception {
+        scenario.execute(new Run(warmup, depth));
+        System.gc();
+        Run run = new Run(ops, depth);
+        long bytesBefore = AllocationMeter.allocatedBytes();
+        long start = System.nanoTime();
+        scenario.execute(run);
+        long elapsed = System.nanoTime() - start;
+        long bytes = AllocationMeter.allocatedBytes() - bytesBefore;
+        return new Result(scenario.name, run, elapsed, AllocationMeter.isSupported() ? bytes : -1);
+    }
+
+    /*------------------------------- scenarios ----------------------------------- */
+
+    private abstract static class Scenario {
+        final String name;
+
+        Scenario(String name) {
+            this.name = name;
+        }
+
+        abstract void execute(Run run) throws Exception;
+    }
+
+    /**
+     * request / response scenario keeping up to depth operations outstanding
+     */
+    private abstract static class RequestScenario extends Scenario {
+
+        volatile Run current;
+
+        RequestScenario(String name) {
+            super(name);
+        }
+
+        abstract boolean issue();
+
+        @Override
+        void execute(Run run) throws InterruptedException {
+            current = run;
+            for (int i = 0; i < run.ops; i++) {
+                run.window.acquire();
+                run.starts[i] = System.nanoTime();
+                if (!issue()) {
+                    run.completed(false);
+                }
+            }
+            run.await();
+        }
+    }
+
+    /**
+     * the harness alone: calls the simulated BluetoothGatt from a plain BluetoothGattCallback
+     */
+    private final class RawClient extends BluetoothGattCallback {
+
+        private final SimulatedPeripheral peripheral;
+        private final BluetoothGatt gatt;
+        private final BluetoothGattCharacteristic readCharacteristic;
+        private final BluetoothGattCharacteristic writeCharacteristic;
+        private final byte[] data = new byte[payload];
+        private final CountDownLatch ready = new CountDownLatch(1);
+        private final Semaphore descriptorWritten = new Semaphore(0);
+        private volatile Run current;
+
+        RawClient(SimulatedPeripheral peripheral) throws InterruptedException {
+            this.peripheral = peripheral;
+            gatt = peripheral.getDevice().connectGatt(new Context(), false, this);
+            if (!ready.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("raw client not connected");
+            }
+            readCharacteristic = gatt.getService(SERVICE).getCharacteristic(READ);
+            writeCharacteristic = gatt.getService(SERVICE).getCharacteristic(WRITE);
+        }
+
+        Scenario read() {
+            return new RawRequestScenario("raw-read") {
+                @Override
+                boolean issue() {
+                    return gatt.readCharacteristic(readCharacteristic);
+                }
+            };
+        }
+
+        Scenario write() {
+            return new RawRequestScenario("raw-write") {
+                @Override
+                boolean issue() {
+                    writeCharacteristic.setValue(data);
+                    return gatt.writeCharacteristic(writeCharacteristic);
+                }
+            };
+        }
+
+        Scenario notifications(UUID uuid) throws InterruptedException {
+            final BluetoothGattCharacteristic characteristic = gatt.getService(SERVICE).getCharacteristic(uuid);
+            BluetoothGattDescriptor cccd = characteristic.getDescriptor(SimulatedPeripheral.CLIENT_CHARACTERISTIC_CONFIG);
+            cccd.setValue(BluetoothGattDescriptor.ENABLE_NOTIFICATION_VALUE);
+            gatt.writeDescriptor(cccd);
+            descriptorWritten.acquire();
+            return new Scenario("raw-notify") {
+                @Override
+                void execute(Run run) throws Exception {
+                    current = run;
+                    peripheral.sendNotifications(characteristic, run.ops, payload).get();
+                    run.await();
+                }
+            };
+        }
+
+        private abstract class RawRequestScenario extends RequestScenario {
+            RawRequestScenario(String name) {
+                super(name);
+            }
+
+            @Override
+            void execute(Run run) throws InterruptedException {
+                // the stack accepts one call at a time, no queue to pipeline into
+                RawClient.this.current = run;
+                super.execute(run.withDepth(1));
+            }
+        }
+
+        @Override
+        public void onConnectionStateChange(BluetoothGatt gatt, int status, int newState) {
+            gatt.discoverServices();
+        }
+
+        @Override
+        public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+            ready.countDown();
+        }
+
+        @Override
+        public void onCharacteristicRead(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            current.completed(status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onCharacteristicWrite(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, int status) {
+            current.completed(status == BluetoothGatt.GATT_SUCCESS);
+        }
+
+        @Override
+        public void onCharacteristicChanged(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic) {
+            current.received(System.nanoTime() - getLong(characteristic.getValue()));
+        }
+
+        @Override
+        public void onDescriptorWrite(BluetoothGatt gatt, BluetoothGattDescriptor descriptor, int status) {
+            descriptorWritten.release();
+        }
+    }
+
+    /**
+     * the library: BleBluetooth connection, operation queue and callback dispatch
+     */
+    private final class LibClient {
+
+        private final SimulatedPeripheral peripheral;
+        private final BleBluetooth bleBluetooth;
+        private final byte[] data = new byte[payload];
+
+        LibClient(SimulatedPeripheral peripheral) throws InterruptedException {
+            this.peripheral = peripheral;
+            bleBluetooth = new BleBluetooth(new Context());
+            final CountDownLatch ready = new CountDownLatch(1);
+            bleBluetooth.connect(new BleDevice(peripheral.getDevice(), -50, null, 0), false, direct(new BleGattCallback() {
+                @Override
+                public void onConnectError(BleException exception) {
+                    System.err.println("connect error: " + exception);
+                }
+
+                @Override
+                public void onConnectSuccess(BluetoothGatt gatt, int status) {
+                }
+
+                @Override
+                public void onServicesDiscovered(BluetoothGatt gatt, int status) {
+                    ready.countDown();
+                }
+
+                @Override
+                public void onDisConnected(BluetoothGatt gatt, int status, BleException exception) {
+                }
+            }));
+            if (!ready.await(5, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("library client not connected");
+            }
+        }
+
+        private BleConnector connector(UUID characteristic) {
+            return bleBluetooth.newBleConnector().withUUID(SERVICE, characteristic, null);
+        }
+
+        Scenario read() {
+            final BleConnector connector = connector(READ);
+            final String uuid = READ.toString();
+            return new LibRequestScenario("lib-read") {
+                @Override
+                boolean issue() {
+                    return connector.readCharacteristic(callback, uuid);
+                }
+            };
+        }
+
+        Scenario write() {
+            final BleConnector connector = connector(WRITE);
+            final String uuid = WRITE.toString();
+            return new LibRequestScenario("lib-write") {
+                @Override
+                boolean issue() {
+                    return connector.writeCharacteristic(data, callback, uuid);
+                }
+            };
+        }
+
+        /**
+         * BleCharacterCallback subscribers, the characteristic value is read in the callback
+         */
+        Scenario notifications() throws InterruptedException {
+            final AtomicReferenceRun current = new AtomicReferenceRun();
+            connector(NOTIFY).enableCharacteristicNotify(direct(new BleCharacterCallback() {
+                @Override
+                public void onSuccess(BluetoothGattCharacteristic characteristic) {
+                    current.run.received(System.nanoTime() - getLong(characteristic.getValue()));
+                }
+
+                @Override
+                public void onFailure(BleException exception) {
+                }
+
+                @Override
+                public void onInitiatedResult(boolean result) {
+                }
+            }), NOTIFY.toString());
+            awaitIdle();
+            return notificationScenario("lib-notify", NOTIFY, current);
+        }
+
+        /**
+         * NotifySubscription subscribers, values are delivered as a reused ByteSlice
+         */
+        Scenario sliceNotifications() throws InterruptedException {
+            final AtomicReferenceRun current = new AtomicReferenceRun();
+            connector(NOTIFY_SLICE).enableCharacteristicNotify(new NotifySubscription(SERVICE, NOTIFY_SLICE,
+                    new NotifyListener() {
+                        @Override
+                        public void onNotify(UUID uuid, ByteSlice value) {
+                            current.run.received(System.nanoTime() - getLong(value));
+                        }
+                    }), false);
+            awaitIdle();
+            return notificationScenario("lib-notify-slice", NOTIFY_SLICE, current);
+        }
+
+        /**
+         * request written, response notified by the peer; up to depth requests on the air
+         */
+        Scenario rpc() throws InterruptedException {
+            final BleRpc rpc = connector(RPC_REQUEST).newRpc(new BleRpc.SequenceExtractor() {
+                @Override
+                public long requestId(byte[] request) {
+                    return getInt(request);
+                }
+
+                @Override
+                public long responseId(ByteSlice response) {
+                    return response.getInt32(0);
+                }
+            }, depth);
+            connector(RPC_RESPONSE).enableCharacteristicNotify(new NotifySubscription(SERVICE, RPC_RESPONSE, rpc), false);
+            awaitIdle();
+            return new RequestScenario("lib-rpc") {
+                final BleFuture.Listener<byte[]> listener = new BleFuture.Listener<byte[]>() {
+                    @Override
+                    public void onSuccess(byte[] value) {
+                        current.completed(true);
+                    }
+
+                    @Override
+                    public void onFailure(BleException exception) {
+                        current.completed(false);
+                    }
+                };
+                int sequence;
+
+                @Override
+                boolean issue() {
+                    byte[] request = new byte[Math.max(payload, 4)];
+                    putInt(request, sequence++);
+                    rpc.call(request).addListener(listener);
+                    return true;
+                }
+            };
+        }
+
+        private Scenario notificationScenario(String name, UUID uuid, final AtomicReferenceRun current) {
+            final BluetoothGattCharacteristic characteristic = bleBluetooth.getBluetoothGatt()
+                    .getService(SERVICE).getCharacteristic(uuid);
+            return new Scenario(name) {
+                @Override
+                void execute(Run run) throws Exception {
+                    current.run = run;
+                    if (peripheral.sendNotifications(characteristic, run.ops, payload).get() == 0) {
+                        throw new IllegalStateException(name + ": notifications not enabled");
+                    }
+                    run.await();
+                }
+            };
+        }
+
+        private void awaitIdle() throws InterruptedException {
+            while (!bleBluetooth.getOperationQueue().isIdle()) {
+                Thread.sleep(1);
+            }
+        }
+
+        private abstract class LibRequestScenario extends RequestScenario {
+
+            final BleCharacterCallback callback = direct(new BleCharacterCallback() {
+                @Override
+                public void onSuccess(BluetoothGattCharacteristic characteristic) {
+                    current.completed(true);
+                }
+
+                @Override
+                public void onFailure(BleException exception) {
+                    current.completed(false);
+                }
+
+                @Override
+                public void onInitiatedResult(boolean result) {
+                }
+            });
+
+            LibRequestScenario(String name) {
+                super(name);
+            }
+        }
+    }
+
+    /**
+     * library callbacks run on the binder thread like the raw client, so the comparison
+     * measures the library and not a hop to the main thread
+     */
+    private static BleGattCallback direct(BleGattCallback callback) {
+        callback.setExecutor(BleExecutors.direct());
+        return callback;
+    }
+
+    private static BleCharacterCallback direct(BleCharacterCallback callback) {
+        callback.setExecutor(BleExecutors.direct());
+        return callback;
+    }
+
+    private static final class AtomicReferenceRun {
+        volatile Run run;
+    }
+
+    /*------------------------------- bookkeeping ----------------------------------- */
+
+    /**
+     * state of one measured run, everything is allocated up front
+     */
+    private static final class Run {
+        final int ops;
+        final long[] starts;
+        final LatencyRecorder latencies;
+        final Semaphore window;
+        final CountDownLatch done;
+        final AtomicInteger failures = new AtomicInteger();
+        /** only touched by the binder thread */
+        private int completed;
+
+        Run(int ops, int depth) {
+            this.ops = ops;
+            this.starts = new long[ops];
+            this.latencies = new LatencyRecorder(ops);
+            this.window = new Semaphore(depth);
+            this.done = new CountDownLatch(ops);
+        }
+
+        Run withDepth(int depth) {
+            window.drainPermits();
+            window.release(depth);
+            return this;
+        }
+
+        /**
+         * request completions arrive in issue order, the queue is FIFO within a priority
+         */
+        void completed(boolean success) {
+            latencies.record(System.nanoTime() - starts[completed++]);
+            if (!success) {
+                failures.incrementAndGet();
+            }
+            window.release();
+            done.countDown();
+        }
+
+        void received(long latencyNanos) {
+            latencies.record(latencyNanos);
+            done.countDown();
+        }
+
+        void await() throws InterruptedException {
+            if (!done.await(60, TimeUnit.SECONDS)) {
+                throw new IllegalStateException("timed out, " + done.getCount() + " operations missing");
+            }
+        }
+    }
+
+    private static final class Result {
+        final String name;
+        final Run run;
+        final long elapsedNanos;
+        final long bytes;
+
+        Result(String name, Run run, long elapsedNanos, long bytes) {
+            this.name = name;
+            this.run = run;
+            this.elapsedNanos = elapsedNanos;
+            this.bytes = bytes;
+        }
+
+        @Override
+        public String toString() {
+            double perSecond = run.ops * 1e9 / elapsedNanos;
+            String bytesPerOp = bytes < 0 ? "n/a" : String.format(Locale.US, "%.1f", bytes / (double) run.ops);
+            String line = String.format(Locale.US, "%-18s %9d %12.0f %10.1f %10.1f %10s",
+                    name, run.ops, perSecond,
+                    run.latencies.percentileMicros(50), run.latencies.percentileMicros(99), bytesPerOp);
+            int failures = run.failures.get();
+            return failures == 0 ? line : line + "  failures: " + failures;
+        }
+    }
+
+    private static long getLong(byte[] value) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | (value[i] & 0xff);
+        }
+        return result;
+    }
+
+    private static int getInt(byte[] value) {
+        return (value[0] & 0xff) | (value[1] & 0xff) << 8 | (value[2] & 0xff) << 16 | value[3] << 24;
+    }
+
+    private static void putInt(byte[] dest, int value) {
+        for (int i = 0; i < 4; i++) {
+            dest[i] = (byte) (value >>> (8 * i));
+        }
+    }
+
+    private static long getLong(ByteSlice value) {
+        long result = 0;
+        for (int i = 0; i < 8; i++) {
+            result = (result << 8) | value.getUnsigned(i);
+        }
+        return result;
+    }
+}
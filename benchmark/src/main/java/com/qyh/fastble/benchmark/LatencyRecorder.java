@@ -0,0 +1,41 @@
+package com.qyh.fastble.benchmark;
+
+import java.util.Arrays;
+
+/**
+ * Preallocated latency samples, recording does not allocate.
+ * Written by one thread at a time.
+ */
+public class LatencyRecorder {
+
+    private final long[] samples;
+    private int count;
+
+    public LatencyRecorder(int capacity) {
+        samples = new long[capacity];
+    }
+
+    public void record(long nanos) {
+        if (count < samples.length) {
+            samples[count++] = nanos;
+        }
+    }
+
+    public int count() {
+        return count;
+    }
+
+    /**
+     * @param percentile 0 - 100
+     * @return latency in microseconds, 0 without samples
+     */
+    public double percentileMicros(double percentile) {
+        if (count == 0) {
+            return 0;
+        }
+        long[] sorted = Arrays.copyOf(samples, count);
+        Arrays.sort(sorted);
+        int index = (int) Math.ceil(percentile / 100.0 * count) - 1;
+        return sorted[Math.min(Math.max(index, 0), count - 1)] / 1000.0;
+    }
+}
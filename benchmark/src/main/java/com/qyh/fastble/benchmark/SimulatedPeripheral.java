@@ -0,0 +1,341 @@
+package com.qyh.fastble.benchmark;
+
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothGatt;
+import android.bluetooth.BluetoothGattCallback;
+import android.bluetooth.BluetoothGattCharacteristic;
+import android.bluetooth.BluetoothGattDescriptor;
+import android.bluetooth.BluetoothGattService;
+import android.bluetooth.BluetoothProfile;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A GATT peripheral simulated in process.
+ * <p>
+ * Events are delivered on a single "binder" thread after a configurable latency, which stands in
+ * for the connection interval and the air time. Like the Android stack only one operation may be
+ * outstanding; a call made while busy returns false and is counted in {@link #getRejectedCount()}.
+ * Values handed to the callbacks are fresh arrays, as the stack does for every PDU.
+ */
+public class SimulatedPeripheral {
+
+    public static final UUID CLIENT_CHARACTERISTIC_CONFIG = UUID.fromString("00002902-0000-1000-8000-00805f9b34fb");
+    private static final int MAX_MTU = 517;
+
+    private final BluetoothDevice device;
+    private final List<BluetoothGattService> services = new ArrayList<>();
+    private final ScheduledExecutorService binder;
+    private final AtomicBoolean busy = new AtomicBoolean();
+    private final AtomicLong rejected = new AtomicLong();
+    private final Map<UUID, UUID> responders = new ConcurrentHashMap<>();
+    private volatile long latencyNanos;
+    private volatile BluetoothGatt connected;
+
+    public SimulatedPeripheral(String address, long latencyMicros) {
+        this.device = new BluetoothDevice(address, "sim-" + address, this);
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+        this.binder = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "binder-" + device.getAddress());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    public BluetoothDevice getDevice() {
+        return device;
+    }
+
+    public BluetoothGattService addService(UUID uuid) {
+        BluetoothGattService service = new BluetoothGattService(uuid, BluetoothGattService.SERVICE_TYPE_PRIMARY);
+        services.add(service);
+        return service;
+    }
+
+    /**
+     * notify and indicate characteristics get a client characteristic config descriptor
+     */
+    public BluetoothGattCharacteristic addCharacteristic(BluetoothGattService service, UUID uuid, int properties,
+                                                         byte[] value) {
+        BluetoothGattCharacteristic characteristic = new BluetoothGattCharacteristic(uuid, properties,
+                BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+        if ((properties & (BluetoothGattCharacteristic.PROPERTY_NOTIFY
+                | BluetoothGattCharacteristic.PROPERTY_INDICATE)) != 0) {
+            BluetoothGattDescriptor cccd = new BluetoothGattDescriptor(CLIENT_CHARACTERISTIC_CONFIG,
+                    BluetoothGattCharacteristic.PERMISSION_READ | BluetoothGattCharacteristic.PERMISSION_WRITE);
+            cccd.setValue(BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE);
+            characteristic.addDescriptor(cccd);
+        }
+        characteristic.setValue(value);
+        service.addCharacteristic(characteristic);
+        return characteristic;
+    }
+
+    public List<BluetoothGattService> getServices() {
+        return services;
+    }
+
+    public void setLatencyMicros(long latencyMicros) {
+        this.latencyNanos = TimeUnit.MICROSECONDS.toNanos(latencyMicros);
+    }
+
+    /**
+     * gatt calls refused because another operation was outstanding
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    public void shutdown() {
+        binder.shutdownNow();
+    }
+
+    /*------------------------------- called by the simulated BluetoothGatt ----------------------------------- */
+
+    public boolean connect(final BluetoothGatt gatt) {
+        connected = gatt;
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                gatt.getCallback().onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS,
+                        BluetoothProfile.STATE_CONNECTED);
+            }
+        });
+        return true;
+    }
+
+    public void disconnect(final BluetoothGatt gatt) {
+        if (connected != gatt) {
+            return;
+        }
+        connected = null;
+        busy.set(false);
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                gatt.getCallback().onConnectionStateChange(gatt, BluetoothGatt.GATT_SUCCESS,
+                        BluetoothProfile.STATE_DISCONNECTED);
+            }
+        });
+    }
+
+    public void close(BluetoothGatt gatt) {
+        if (connected == gatt) {
+            connected = null;
+        }
+    }
+
+    public boolean discoverServices(final BluetoothGatt gatt) {
+        if (!begin(gatt)) {
+            return false;
+        }
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                gatt.getCallback().onServicesDiscovered(gatt, BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    public boolean readCharacteristic(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+        if (!begin(gatt)) {
+            return false;
+        }
+        final byte[] stored = characteristic.getValue();
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                characteristic.setValue(stored == null ? new byte[0] : Arrays.copyOf(stored, stored.length));
+                gatt.getCallback().onCharacteristicRead(gatt, characteristic, BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    public boolean writeCharacteristic(final BluetoothGatt gatt, final BluetoothGattCharacteristic characteristic) {
+        if (!begin(gatt)) {
+            return false;
+        }
+        UUID response = responders.get(characteristic.getUuid());
+        final BluetoothGattCharacteristic responseCharacteristic = response == null ? null
+                : characteristic.getService().getCharacteristic(response);
+        final byte[] request = characteristic.getValue().clone();
+        Runnable callback = new Runnable() {
+            @Override
+            public void run() {
+                gatt.getCallback().onCharacteristicWrite(gatt, characteristic, BluetoothGatt.GATT_SUCCESS);
+                if (responseCharacteristic != null) {
+                    deliver(new Runnable() {
+                        @Override
+                        public void run() {
+                            notifyValue(gatt, responseCharacteristic, request);
+                        }
+                    });
+                }
+            }
+        };
+        if (characteristic.getWriteType() == BluetoothGattCharacteristic.WRITE_TYPE_NO_RESPONSE) {
+            // reported as soon as the packet is buffered, no round trip to the peer
+            busy.set(false);
+            binder.execute(callback);
+        } else {
+            complete(callback);
+        }
+        return true;
+    }
+
+    public boolean readDescriptor(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor) {
+        if (!begin(gatt)) {
+            return false;
+        }
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                gatt.getCallback().onDescriptorRead(gatt, descriptor, BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    public boolean writeDescriptor(final BluetoothGatt gatt, final BluetoothGattDescriptor descriptor) {
+        if (!begin(gatt)) {
+            return false;
+        }
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                gatt.getCallback().onDescriptorWrite(gatt, descriptor, BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    public boolean readRemoteRssi(final BluetoothGatt gatt) {
+        if (!begin(gatt)) {
+            return false;
+        }
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                gatt.getCallback().onReadRemoteRssi(gatt, -50, BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    public boolean requestMtu(final BluetoothGatt gatt, final int mtu) {
+        if (!begin(gatt)) {
+            return false;
+        }
+        complete(new Runnable() {
+            @Override
+            public void run() {
+                gatt.getCallback().onMtuChanged(gatt, Math.min(mtu, MAX_MTU), BluetoothGatt.GATT_SUCCESS);
+            }
+        });
+        return true;
+    }
+
+    /*------------------------------- peripheral side ----------------------------------- */
+
+    /**
+     * send notifications back to back on the binder thread, each value starts with
+     * the {@link System#nanoTime()} it was sent at (big endian)
+     *
+     * @return number of notifications delivered, 0 if the client has not enabled them
+     */
+    public Future<Integer> sendNotifications(final BluetoothGattCharacteristic characteristic,
+                                             final int count, final int payloadSize) {
+        return binder.submit(new Callable<Integer>() {
+            @Override
+            public Integer call() {
+                BluetoothGatt gatt = connected;
+                BluetoothGattDescriptor cccd = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+                if (gatt == null || cccd == null
+                        || Arrays.equals(cccd.getValue(), BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
+                    return 0;
+                }
+                BluetoothGattCallback callback = gatt.getCallback();
+                int size = Math.max(payloadSize, 8);
+                for (int i = 0; i < count; i++) {
+                    byte[] value = new byte[size];
+                    putLong(value, System.nanoTime());
+                    characteristic.setValue(value);
+                    callback.onCharacteristicChanged(gatt, characteristic);
+                }
+                return count;
+            }
+        });
+    }
+
+    /**
+     * answer every write to {@code request} with a notification on {@code response} carrying
+     * the written value, one latency after the write response
+     */
+    public void respond(UUID request, UUID response) {
+        responders.put(request, response);
+    }
+
+    private static void notifyValue(BluetoothGatt gatt, BluetoothGattCharacteristic characteristic, byte[] value) {
+        BluetoothGattDescriptor cccd = characteristic.getDescriptor(CLIENT_CHARACTERISTIC_CONFIG);
+        if (cccd == null || Arrays.equals(cccd.getValue(), BluetoothGattDescriptor.DISABLE_NOTIFICATION_VALUE)) {
+            return;
+        }
+        characteristic.setValue(value);
+        gatt.getCallback().onCharacteristicChanged(gatt, characteristic);
+    }
+
+    static void putLong(byte[] dest, long value) {
+        for (int i = 7; i >= 0; i--) {
+            dest[i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    private boolean begin(BluetoothGatt gatt) {
+        if (connected != gatt || !busy.compareAndSet(false, true)) {
+            rejected.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * finish the outstanding operation after the latency, the stack clears its busy flag before the callback
+     */
+    private void complete(final Runnable callback) {
+        deliver(new Runnable() {
+            @Override
+            public void run() {
+                busy.set(false);
+                callback.run();
+            }
+        });
+    }
+
+    private void deliver(Runnable event) {
+        long latency = latencyNanos;
+        if (latency <= 0) {
+            binder.execute(event);
+        } else {
+            binder.schedule(event, latency, TimeUnit.NANOSECONDS);
+        }
+    }
+}
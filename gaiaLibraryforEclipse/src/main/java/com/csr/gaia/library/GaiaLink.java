@@ -1118,11 +1118,8 @@ public class GaiaLink {
     /**
      * Thread to read incoming packets from SPP, GAIA or UDP.
      */
-    private class Reader extends Thread {
-        byte[] packet = new byte[Gaia.MAX_PACKET];
-        int flags;
-        int packet_length = 0;
-        int expected = Gaia.MAX_PAYLOAD;
+    private class Reader extends Thread implements GaiaStreamScanner.Listener {
+        GaiaStreamScanner scanner = new GaiaStreamScanner(this);
 
         boolean going;
         DatagramSocket rx_socket = null;
@@ -1257,56 +1254,36 @@ public class GaiaLink {
         }
 
         private void scanStream(byte[] buffer, int length) {
-            for (int i = 0; i < length; ++i) {
-                if ((packet_length > 0) && (packet_length < Gaia.MAX_PACKET)) {
-                    packet[packet_length] = buffer[i];
+            scanner.scan(buffer, length);
+        }
 
-                    if (packet_length == Gaia.OFFS_FLAGS)
-                        flags = buffer[i];
+        @Override
+        public void onPacket(byte[] packet, int length) {
+            if (mVerbose)
+                Log.d(TAG, "got " + length);
 
-                    else if (packet_length == Gaia.OFFS_PAYLOAD_LENGTH) {
-                        expected = buffer[i] + Gaia.OFFS_PAYLOAD + (((flags & Gaia.FLAG_CHECK) != 0) ? 1 : 0);
-                        if (mVerbose)
-                            Log.d(TAG, "expect " + expected);
-                    }
+            if (mReceiveHandler == null) {
+                if (mDebug)
+                    Log.e(TAG, "No receiver");
+            }
 
-                    ++packet_length;
+            else {
+                GaiaPacket command = new GaiaPacket(packet, length);
+                logCommand(command);
 
-                    if (packet_length == expected) {
-                        if (mVerbose)
-                            Log.d(TAG, "got " + expected);
-
-                        if (mReceiveHandler == null) {
-                            if (mDebug)
-                                Log.e(TAG, "No receiver");
-                        }
-
-                        else {
-                            GaiaPacket command = new GaiaPacket(packet, packet_length);
-                            logCommand(command);
-
-                            if (command.getEvent() == Gaia.EventId.START && !mIsConnected) {
-                                if (mDebug)
-                                    Log.i(TAG, "connection starts");
-                                mReceiveHandler.obtainMessage(Message.CONNECTED.ordinal(), mBTDevice.getAddress())
-                                        .sendToTarget();
-                                mIsConnected = true;
-                            }
-
-                            else {
-                                if (mDebug)
-                                    Log.i(TAG, "received command 0x" + Gaia.hexw(command.getCommand()));
-                                mReceiveHandler.obtainMessage(Message.PACKET.ordinal(), command).sendToTarget();
-                            }
-                        }
-
-                        packet_length = 0;
-                        expected = Gaia.MAX_PAYLOAD;
-                    }
+                if (command.getEvent() == Gaia.EventId.START && !mIsConnected) {
+                    if (mDebug)
+                        Log.i(TAG, "connection starts");
+                    mReceiveHandler.obtainMessage(Message.CONNECTED.ordinal(), mBTDevice.getAddress())
+                            .sendToTarget();
+                    mIsConnected = true;
                 }
 
-                else if (buffer[i] == Gaia.SOF)
-                    packet_length = 1;
+                else {
+                    if (mDebug)
+                        Log.i(TAG, "received command 0x" + Gaia.hexw(command.getCommand()));
+                    mReceiveHandler.obtainMessage(Message.PACKET.ordinal(), command).sendToTarget();
+                }
             }
         }
     }
@@ -0,0 +1,86 @@
+/******************************************************************************
+ *  Copyright (C) Cambridge Silicon Radio Limited 2015
+ *
+ *  This software is provided to the customer for evaluation
+ *  purposes only and, as such early feedback on performance and operation
+ *  is anticipated. The software source code is subject to change and
+ *  not intended for production. Use of developmental release software is
+ *  at the user's own risk. This software is provided "as is," and CSR
+ *  cautions users to determine for themselves the suitability of using the
+ *  beta release version of this software. CSR makes no warranty or
+ *  representation whatsoever of merchantability or fitness of the product
+ *  for any particular purpose or use. In no event shall CSR be liable for
+ *  any consequential, incidental or special damages whatsoever arising out
+ *  of the use of or inability to use this software, even if the user has
+ *  advised CSR of the possibility of such damages.
+ *
+ ******************************************************************************/
+package com.csr.gaia.library;
+
+/**
+ * Reassembles Gaia packets from a byte stream.
+ * 
+ * Bytes are copied into a single packet buffer that is reused for every packet, the listener is called once a whole
+ * packet has been received. This class has no Android dependency so it can be driven directly from a test or a
+ * benchmark.
+ */
+
+final class GaiaStreamScanner {
+    /**
+     * Receives the packets found by the scanner.
+     */
+    interface Listener {
+        /**
+         * Called for every complete packet.
+         * 
+         * @param packet
+         *            The packet buffer, only valid during the call.
+         * @param length
+         *            Number of bytes of the packet, including the SOF and the check byte if any.
+         */
+        void onPacket(byte[] packet, int length);
+    }
+
+    private final Listener mListener;
+    private final byte[] mPacket = new byte[Gaia.MAX_PACKET];
+    private int mFlags;
+    private int mPacketLength = 0;
+    private int mExpected = Gaia.MAX_PAYLOAD;
+
+    GaiaStreamScanner(Listener listener) {
+        mListener = listener;
+    }
+
+    /**
+     * Scans a chunk of the stream, a packet may span several chunks.
+     * 
+     * @param buffer
+     *            The received bytes.
+     * @param length
+     *            Number of valid bytes in the buffer.
+     */
+    void scan(byte[] buffer, int length) {
+        for (int i = 0; i < length; ++i) {
+            if ((mPacketLength > 0) && (mPacketLength < Gaia.MAX_PACKET)) {
+                mPacket[mPacketLength] = buffer[i];
+
+                if (mPacketLength == Gaia.OFFS_FLAGS)
+                    mFlags = buffer[i];
+
+                else if (mPacketLength == Gaia.OFFS_PAYLOAD_LENGTH)
+                    mExpected = buffer[i] + Gaia.OFFS_PAYLOAD + (((mFlags & Gaia.FLAG_CHECK) != 0) ? 1 : 0);
+
+                ++mPacketLength;
+
+                if (mPacketLength == mExpected) {
+                    mListener.onPacket(mPacket, mPacketLength);
+                    mPacketLength = 0;
+                    mExpected = Gaia.MAX_PAYLOAD;
+                }
+            }
+
+            else if (buffer[i] == Gaia.SOF)
+                mPacketLength = 1;
+        }
+    }
+}
@@ -0,0 +1,52 @@
+package com.csr.gaia.library;
+
+import com.csr.gaia.library.exceptions.GaiaFrameException;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link Gaia#frame(int, int, byte[], int, byte)}, called for every command sent to the device.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GaiaFrameBenchmark {
+
+    @Param({"0", "16", "254"})
+    int payloadLength;
+
+    private byte[] payload;
+
+    @Setup
+    public void setUp() {
+        payload = new byte[payloadLength];
+        new Random(42).nextBytes(payload);
+    }
+
+    @Benchmark
+    public byte[] frame() throws GaiaFrameException {
+        return Gaia.frame(Gaia.VENDOR_CSR, Gaia.COMMAND_GET_APPLICATION_VERSION, payload, payloadLength, (byte) 0);
+    }
+
+    @Benchmark
+    public byte[] frameWithCheck() throws GaiaFrameException {
+        return Gaia.frame(Gaia.VENDOR_CSR, Gaia.COMMAND_GET_APPLICATION_VERSION, payload, payloadLength,
+                (byte) Gaia.FLAG_CHECK);
+    }
+}
@@ -0,0 +1,71 @@
+package com.csr.gaia.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link GaiaPacket} construction from a received frame and the accessors used when dispatching it.
+ * Lives in the library package to reach the package private constructor used by the reader.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GaiaPacketBenchmark {
+
+    @Param({"1", "16", "254"})
+    int payloadLength;
+
+    private byte[] frame;
+    private GaiaPacket packet;
+
+    @Setup
+    public void setUp() throws Exception {
+        byte[] payload = new byte[payloadLength];
+        new Random(42).nextBytes(payload);
+        payload[0] = (byte) Gaia.EventId.START.ordinal();
+        frame = Gaia.frame(Gaia.VENDOR_CSR, Gaia.COMMAND_EVENT_NOTIFICATION, payload, payloadLength,
+                (byte) Gaia.FLAG_CHECK);
+        packet = new GaiaPacket(frame, frame.length);
+    }
+
+    @Benchmark
+    public GaiaPacket construct() {
+        return new GaiaPacket(frame, frame.length);
+    }
+
+    @Benchmark
+    public void accessors(Blackhole blackhole) {
+        blackhole.consume(packet.getVendorId());
+        blackhole.consume(packet.getCommand());
+        blackhole.consume(packet.getCommandId());
+        blackhole.consume(packet.isAcknowledgement());
+        blackhole.consume(packet.getEvent());
+        blackhole.consume(packet.getByte());
+        blackhole.consume(packet.getShort());
+        blackhole.consume(packet.getPayload());
+    }
+
+    /**
+     * What the reader does for every received packet: build it and look at the event.
+     */
+    @Benchmark
+    public Gaia.EventId constructAndDispatch() {
+        return new GaiaPacket(frame, frame.length).getEvent();
+    }
+}
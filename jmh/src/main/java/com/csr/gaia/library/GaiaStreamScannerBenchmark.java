@@ -0,0 +1,104 @@
+package com.csr.gaia.library;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The reassembly loop of the GaiaLink reader, fed with {@value #PACKETS} frames split into reads of
+ * {@code chunk} bytes. Results are per packet.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GaiaStreamScannerBenchmark {
+
+    static final int PACKETS = 64;
+
+    @Param({"16", "100"})
+    int payloadLength;
+
+    /**
+     * Size of a single read from the socket.
+     */
+    @Param({"20", "1024"})
+    int chunk;
+
+    private byte[] stream;
+    private byte[] buffer;
+    private int received;
+    private GaiaStreamScanner scanner;
+    private GaiaStreamScanner decodingScanner;
+
+    @Setup
+    public void setUp() throws Exception {
+        Random random = new Random(42);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for (int i = 0; i < PACKETS; i++) {
+            byte[] payload = new byte[payloadLength];
+            random.nextBytes(payload);
+            out.write(Gaia.frame(Gaia.VENDOR_CSR, Gaia.COMMAND_EVENT_NOTIFICATION, payload, payloadLength,
+                    (byte) (i & Gaia.FLAG_CHECK)));
+        }
+        stream = out.toByteArray();
+        buffer = new byte[chunk];
+
+        scanner = new GaiaStreamScanner(new GaiaStreamScanner.Listener() {
+            @Override
+            public void onPacket(byte[] packet, int length) {
+                received += length;
+            }
+        });
+        decodingScanner = new GaiaStreamScanner(new GaiaStreamScanner.Listener() {
+            @Override
+            public void onPacket(byte[] packet, int length) {
+                received += new GaiaPacket(packet, length).getCommand();
+            }
+        });
+    }
+
+    /**
+     * Reassembly only.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public int scan() {
+        return feed(scanner);
+    }
+
+    /**
+     * Reassembly and the {@link GaiaPacket} built for every packet by the reader.
+     */
+    @Benchmark
+    @OperationsPerInvocation(PACKETS)
+    public int scanAndDecode() {
+        return feed(decodingScanner);
+    }
+
+    private int feed(GaiaStreamScanner target) {
+        received = 0;
+        // the reader copies every read into its own buffer before scanning it
+        for (int offset = 0; offset < stream.length; offset += chunk) {
+            int length = Math.min(chunk, stream.length - offset);
+            System.arraycopy(stream, offset, buffer, 0, length);
+            target.scan(buffer, length);
+        }
+        return received;
+    }
+}
@@ -0,0 +1,59 @@
+package com.qyh.fastble.jmh;
+
+import com.qyh.fastble.ble.utils.HexUtil;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * {@link HexUtil} conversions, called for every packet that is logged.
+ * Sizes: a classic 20 byte ATT payload, a 244 byte payload at MTU 247 and a 62 byte scan record.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class HexUtilBenchmark {
+
+    @Param({"20", "62", "244"})
+    int size;
+
+    private byte[] bytes;
+    private String hex;
+
+    @Setup
+    public void setUp() {
+        bytes = new byte[size];
+        new Random(42).nextBytes(bytes);
+        hex = HexUtil.bytesToHexString(bytes);
+    }
+
+    @Benchmark
+    public String encodeHexStr() {
+        return HexUtil.encodeHexStr(bytes);
+    }
+
+    @Benchmark
+    public String bytesToHexString() {
+        return HexUtil.bytesToHexString(bytes);
+    }
+
+    @Benchmark
+    public byte[] hexStringToBytes() {
+        return HexUtil.hexStringToBytes(hex);
+    }
+}
@@ -0,0 +1,187 @@
+package com.qyh.fastble.jmh;
+
+import com.qyh.fastble.ble.data.AdvertisingData;
+import com.qyh.fastble.ble.notify.ByteSlice;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parsing of the advertising data delivered with every scan result.
+ * <p>
+ * {@link #copyingParse()} follows android.bluetooth.le.ScanRecord#parseFromBytes: every AD structure
+ * is copied into its own array and collected in maps and lists, which is what applications end up
+ * doing with the raw scan record of {@code onLeScan}.
+ * <p>
+ * {@link AdvertisingData} indexes the record into an int table in one pass and decodes fields on
+ * access. The filter benchmarks answer the typical scan filter question, "does this advertiser carry
+ * manufacturer data for our company id and what is its first byte", with both parsers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ScanRecordBenchmark {
+
+    static final int TYPE_FLAGS = 0x01;
+    static final int TYPE_UUID16_INCOMPLETE = 0x02;
+    static final int TYPE_UUID16 = 0x03;
+    static final int TYPE_LOCAL_NAME_SHORT = 0x08;
+    static final int TYPE_LOCAL_NAME_COMPLETE = 0x09;
+    static final int TYPE_TX_POWER_LEVEL = 0x0A;
+    static final int TYPE_SERVICE_DATA_16_BIT = 0x16;
+    static final int TYPE_MANUFACTURER_SPECIFIC_DATA = 0xFF;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final UUID BASE_UUID = UUID.fromString("00000000-0000-1000-8000-00805f9b34fb");
+
+    private static final int APPLE = 0x004C;
+
+    private byte[] scanRecord;
+    private final ByteSlice slice = new ByteSlice();
+
+    @Setup
+    public void setUp() {
+        scanRecord = sampleScanRecord();
+    }
+
+    @Benchmark
+    public Object copyingParse() {
+        return CopyingParser.parse(scanRecord);
+    }
+
+    @Benchmark
+    public Object indexedParse() {
+        return new AdvertisingData(scanRecord);
+    }
+
+    /**
+     * the same fields the copying parser produces
+     */
+    @Benchmark
+    public int indexedAllFields() {
+        AdvertisingData data = new AdvertisingData(scanRecord);
+        return data.getFlags() + data.getTxPowerLevel() + data.getLocalName().length()
+                + data.getServiceUuids().size() + data.getManufacturerId();
+    }
+
+    @Benchmark
+    public int copyingFilter() {
+        byte[] manufacturerData = CopyingParser.parse(scanRecord).manufacturerData.get(APPLE);
+        return manufacturerData == null ? -1 : manufacturerData[0];
+    }
+
+    @Benchmark
+    public int indexedFilter() {
+        return new AdvertisingData(scanRecord).getManufacturerData(APPLE, slice) ? slice.get(0) : -1;
+    }
+
+    /**
+     * A 62 byte record as delivered by onLeScan: advertising data and scan response, zero padded.
+     */
+    static byte[] sampleScanRecord() {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeAd(out, TYPE_FLAGS, new byte[]{0x06});
+        writeAd(out, TYPE_UUID16, new byte[]{(byte) 0xF0, (byte) 0xFF, 0x0F, 0x18});
+        writeAd(out, TYPE_MANUFACTURER_SPECIFIC_DATA, new byte[]{0x4C, 0x00, 0x02, 0x15, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10});
+        writeAd(out, TYPE_TX_POWER_LEVEL, new byte[]{(byte) -8});
+        writeAd(out, TYPE_LOCAL_NAME_COMPLETE, "FastBle-Device".getBytes(UTF_8));
+        writeAd(out, TYPE_SERVICE_DATA_16_BIT, new byte[]{0x0F, 0x18, 0x64});
+        byte[] record = new byte[62];
+        byte[] data = out.toByteArray();
+        System.arraycopy(data, 0, record, 0, data.length);
+        return record;
+    }
+
+    private static void writeAd(ByteArrayOutputStream out, int type, byte[] data) {
+        out.write(data.length + 1);
+        out.write(type);
+        out.write(data, 0, data.length);
+    }
+
+    static final class CopyingParser {
+        int flags = -1;
+        int txPowerLevel = Integer.MIN_VALUE;
+        String localName;
+        List<UUID> serviceUuids;
+        final Map<Integer, byte[]> manufacturerData = new HashMap<Integer, byte[]>();
+        final Map<UUID, byte[]> serviceData = new HashMap<UUID, byte[]>();
+
+        static CopyingParser parse(byte[] scanRecord) {
+            CopyingParser result = new CopyingParser();
+            int position = 0;
+            while (position < scanRecord.length) {
+                int length = scanRecord[position++] & 0xFF;
+                if (length == 0) {
+                    break;
+                }
+                int dataLength = length - 1;
+                int type = scanRecord[position++] & 0xFF;
+                switch (type) {
+                    case TYPE_FLAGS:
+                        result.flags = scanRecord[position] & 0xFF;
+                        break;
+                    case TYPE_UUID16_INCOMPLETE:
+                    case TYPE_UUID16:
+                        if (result.serviceUuids == null) {
+                            result.serviceUuids = new ArrayList<UUID>();
+                        }
+                        for (int i = 0; i + 1 < dataLength; i += 2) {
+                            byte[] uuid = extract(scanRecord, position + i, 2);
+                            result.serviceUuids.add(uuid16(uuid));
+                        }
+                        break;
+                    case TYPE_LOCAL_NAME_SHORT:
+                    case TYPE_LOCAL_NAME_COMPLETE:
+                        result.localName = new String(extract(scanRecord, position, dataLength), UTF_8);
+                        break;
+                    case TYPE_TX_POWER_LEVEL:
+                        result.txPowerLevel = scanRecord[position];
+                        break;
+                    case TYPE_SERVICE_DATA_16_BIT:
+                        UUID uuid = uuid16(extract(scanRecord, position, 2));
+                        result.serviceData.put(uuid, extract(scanRecord, position + 2, dataLength - 2));
+                        break;
+                    case TYPE_MANUFACTURER_SPECIFIC_DATA:
+                        int manufacturerId = ((scanRecord[position + 1] & 0xFF) << 8) + (scanRecord[position] & 0xFF);
+                        result.manufacturerData.put(manufacturerId, extract(scanRecord, position + 2, dataLength - 2));
+                        break;
+                    default:
+                        break;
+                }
+                position += dataLength;
+            }
+            return result;
+        }
+
+        private static byte[] extract(byte[] scanRecord, int start, int length) {
+            byte[] bytes = new byte[length];
+            System.arraycopy(scanRecord, start, bytes, 0, length);
+            return bytes;
+        }
+
+        private static UUID uuid16(byte[] bytes) {
+            int value = (bytes[0] & 0xFF) + ((bytes[1] & 0xFF) << 8);
+            return new UUID(BASE_UUID.getMostSignificantBits() + ((long) value << 32), BASE_UUID.getLeastSignificantBits());
+        }
+    }
+}